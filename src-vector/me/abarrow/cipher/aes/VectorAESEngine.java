@@ -0,0 +1,119 @@
+package me.abarrow.cipher.aes;
+
+import java.nio.ByteOrder;
+
+import jdk.incubator.vector.ByteVector;
+import jdk.incubator.vector.IntVector;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorShuffle;
+import jdk.incubator.vector.VectorSpecies;
+
+import me.abarrow.core.CryptoUtils;
+
+/**
+ * AES rounds over two blocks at a time with the Vector API. Each lane holds one column word of one block, the table
+ * lookups are gathers and ShiftRows is a shuffle of the columns within each block.
+ * <p>
+ * The species is fixed at 256 bits. Wider int gathers crash C2 on JDK 17, and narrower vectors lose to the scalar
+ * rounds, so platforms without 256 bit vectors are refused and keep using the scalar rounds.
+ */
+final class VectorAESEngine implements AESBlockEngine {
+
+  private static final VectorSpecies<Integer> INTS = IntVector.SPECIES_256;
+  private static final VectorSpecies<Byte> BYTES = ByteVector.SPECIES_256;
+  private static final int LANES = INTS.length();
+  private static final int BLOCKS = LANES / 4;
+
+  // the four encryption tables one after another, so one gather serves every row
+  private static final int[] TABLES = new int[4 * 256];
+
+  // the lane holding column (c + k) % 4 of the same block, for k of 1 to 3
+  private static final VectorShuffle<Integer> COLUMN_1 = columnShuffle(1);
+  private static final VectorShuffle<Integer> COLUMN_2 = columnShuffle(2);
+  private static final VectorShuffle<Integer> COLUMN_3 = columnShuffle(3);
+
+  // where the gathers read their table indexes from, kept per thread so batches do not allocate
+  private static final ThreadLocal<int[]> INDEX = new ThreadLocal<int[]>() {
+    @Override
+    protected int[] initialValue() {
+      return new int[LANES];
+    }
+  };
+
+  static {
+    for (int r = 0; r < 4; r++) {
+      System.arraycopy(AES.ENCRYPT_TABLES[r], 0, TABLES, r * 256, 256);
+    }
+  }
+
+  VectorAESEngine() {
+    if (IntVector.SPECIES_PREFERRED.vectorBitSize() < INTS.vectorBitSize()) {
+      throw new UnsupportedOperationException("The platform has no 256 bit vectors.");
+    }
+  }
+
+  private static VectorShuffle<Integer> columnShuffle(int k) {
+    int[] lanes = new int[LANES];
+    for (int i = 0; i < LANES; i++) {
+      lanes[i] = (i & ~3) | ((i + k) & 3);
+    }
+    return VectorShuffle.fromArray(INTS, lanes, 0);
+  }
+
+  /**
+   * Repeats each round key for every block in a vector.
+   */
+  @Override
+  public int[] expandRoundKeys(int[] roundKeys, int numberOfRounds) {
+    int[] keys = new int[(numberOfRounds + 1) * LANES];
+    for (int r = 0; r <= numberOfRounds; r++) {
+      for (int i = 0; i < LANES; i++) {
+        keys[r * LANES + i] = roundKeys[r * 4 + (i & 3)];
+      }
+    }
+    return keys;
+  }
+
+  @Override
+  public int encryptBlocks(int[] keys, int numberOfRounds, byte[] input, int srcPos, byte[] output, int destPos,
+      int blocks) {
+    int batches = blocks / BLOCKS;
+    if (batches == 0) {
+      return 0;
+    }
+    int[] index = INDEX.get();
+    int[] sBox = AES.S_BOX_MAP;
+
+    for (int batch = 0; batch < batches; batch++) {
+      int off = 16 * BLOCKS * batch;
+      IntVector s = ByteVector.fromByteArray(BYTES, input, srcPos + off, ByteOrder.LITTLE_ENDIAN).reinterpretAsInts()
+          .lanewise(VectorOperators.XOR, IntVector.fromArray(INTS, keys, 0));
+
+      for (int r = 1; r < numberOfRounds; r++) {
+        s.and(0xff).intoArray(index, 0);
+        IntVector n = IntVector.fromArray(INTS, TABLES, 0, index, 0);
+        s.rearrange(COLUMN_1).lanewise(VectorOperators.LSHR, 8).and(0xff).add(256).intoArray(index, 0);
+        n = n.lanewise(VectorOperators.XOR, IntVector.fromArray(INTS, TABLES, 0, index, 0));
+        s.rearrange(COLUMN_2).lanewise(VectorOperators.LSHR, 16).and(0xff).add(512).intoArray(index, 0);
+        n = n.lanewise(VectorOperators.XOR, IntVector.fromArray(INTS, TABLES, 0, index, 0));
+        s.rearrange(COLUMN_3).lanewise(VectorOperators.LSHR, 24).add(768).intoArray(index, 0);
+        n = n.lanewise(VectorOperators.XOR, IntVector.fromArray(INTS, TABLES, 0, index, 0));
+        s = n.lanewise(VectorOperators.XOR, IntVector.fromArray(INTS, keys, r * LANES));
+      }
+
+      // the last round has no MixColumns step
+      s.and(0xff).intoArray(index, 0);
+      IntVector n = IntVector.fromArray(INTS, sBox, 0, index, 0);
+      s.rearrange(COLUMN_1).lanewise(VectorOperators.LSHR, 8).and(0xff).intoArray(index, 0);
+      n = n.or(IntVector.fromArray(INTS, sBox, 0, index, 0).lanewise(VectorOperators.LSHL, 8));
+      s.rearrange(COLUMN_2).lanewise(VectorOperators.LSHR, 16).and(0xff).intoArray(index, 0);
+      n = n.or(IntVector.fromArray(INTS, sBox, 0, index, 0).lanewise(VectorOperators.LSHL, 16));
+      s.rearrange(COLUMN_3).lanewise(VectorOperators.LSHR, 24).intoArray(index, 0);
+      n = n.or(IntVector.fromArray(INTS, sBox, 0, index, 0).lanewise(VectorOperators.LSHL, 24));
+      s = n.lanewise(VectorOperators.XOR, IntVector.fromArray(INTS, keys, numberOfRounds * LANES));
+      s.reinterpretAsBytes().intoByteArray(output, destPos + off, ByteOrder.LITTLE_ENDIAN);
+    }
+    CryptoUtils.fillWithZeroes(index);
+    return batches * BLOCKS;
+  }
+}
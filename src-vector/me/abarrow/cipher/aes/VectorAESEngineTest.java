@@ -0,0 +1,67 @@
+package me.abarrow.cipher.aes;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assume.assumeTrue;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+import me.abarrow.core.CryptoException;
+
+public class VectorAESEngineTest {
+
+  @Test
+  public void testMatchesScalarRounds() throws CryptoException {
+    // skipped unless run with --add-modules jdk.incubator.vector
+    assumeTrue(AES.hasVectorEngine());
+    Random random = new Random(3);
+    for (int keyBytes : new int[] { 16, 24, 32 }) {
+      byte[] key = new byte[keyBytes];
+      random.nextBytes(key);
+      AES aes = new AES(key);
+      int[] roundKeys = AES.expandRoundKeys(key);
+      int rounds = roundKeys.length / 4 - 1;
+      // odd counts and offsets leave a block or more to the scalar rounds
+      for (int blocks : new int[] { 1, 2, 3, 8, 33 }) {
+        byte[] in = new byte[16 * blocks + 5];
+        random.nextBytes(in);
+        byte[] expected = new byte[16 * blocks + 7];
+        byte[] actual = new byte[16 * blocks + 7];
+        AES.encryptRounds(roundKeys, rounds, in, 5, expected, 7, blocks);
+        aes.encryptBlocks(in, 5, actual, 7, blocks);
+        assertArrayEquals(expected, actual);
+      }
+    }
+  }
+
+  @Test
+  public void vectorBenchmark() throws CryptoException {
+    assumeTrue(AES.hasVectorEngine());
+    byte[] key = new byte[16];
+    AES aes = new AES(key);
+    int[] roundKeys = AES.expandRoundKeys(key);
+    byte[] data = new byte[1 << 12];
+    int blocks = data.length / 16;
+    int repeats = 2000;
+    // best of a few runs of each, alternating so both are compiled and see the same machine
+    long vectorTime = Long.MAX_VALUE;
+    long scalarTime = Long.MAX_VALUE;
+    for (int run = 0; run < 6; run++) {
+      long start = System.nanoTime();
+      for (int i = 0; i < repeats; i++) {
+        aes.encryptBlocks(data, 0, data, 0, blocks);
+      }
+      vectorTime = Math.min(vectorTime, System.nanoTime() - start);
+      start = System.nanoTime();
+      for (int i = 0; i < repeats; i++) {
+        AES.encryptRounds(roundKeys, 10, data, 0, data, 0, blocks);
+      }
+      scalarTime = Math.min(scalarTime, System.nanoTime() - start);
+    }
+    long bytes = (long) repeats * data.length;
+    System.out.println("AES-128 on " + System.getProperty("os.arch") + ": " + (bytes * 1000L / Math.max(1, vectorTime))
+        + "MB/s with the Vector API, " + (bytes * 1000L / Math.max(1, scalarTime)) + "MB/s scalar, "
+        + String.format("%.2f", (double) scalarTime / Math.max(1, vectorTime)) + " times the scalar rate");
+  }
+}
@@ -1,19 +1,77 @@
 package me.abarrow.cipher;
 
 import me.abarrow.core.CryptoException;
+import me.abarrow.core.KeyExpander;
+import me.abarrow.core.KeySchedule;
 
-public abstract class BlockCipher {
+public abstract class BlockCipher implements KeyExpander {
 
   public abstract void removeKey();
   public abstract boolean hasKey();
   public abstract void setKey(byte[] key);
   
   public abstract int getBlockBytes();
+  
+  /**
+   * Expands a key once into a schedule that can be shared between threads and bound to per thread handles with
+   * {@link #setKeySchedule(KeySchedule)}.
+   */
+  @Override
+  public KeySchedule expandKey(byte[] key) throws CryptoException {
+    throw new CryptoException(CryptoException.NO_KEY_SCHEDULES);
+  }
+  
+  /**
+   * Binds this cipher to a shared schedule, holding a reference to it until the key is removed again.
+   */
+  public void setKeySchedule(KeySchedule schedule) throws CryptoException {
+    throw new CryptoException(CryptoException.NO_KEY_SCHEDULES);
+  }
+  
+  public KeySchedule getKeySchedule() {
+    return null;
+  }
+  
+  /**
+   * Creates a new cipher of the same kind bound to the same key schedule, so that each thread can use its own handle
+   * without expanding the key again.
+   */
+  public BlockCipher newHandle() throws CryptoException {
+    throw new CryptoException(CryptoException.NO_KEY_SCHEDULES);
+  }
+  
+  /**
+   * Whether {@link #newHandle()} is supported, so modes can pick between per thread handles and running serially.
+   */
+  public boolean supportsHandles() {
+    return false;
+  }
 
   public abstract byte[] encryptBlock(byte[] input, int srcPos, byte[] output, int destPos) throws CryptoException;
 
   public abstract byte[] decryptBlock(byte[] input, int srcPos, byte[] output, int destPos) throws CryptoException;
 
+  /**
+   * Encrypts a run of consecutive blocks. Ciphers with a faster multi-block path override this.
+   */
+  public byte[] encryptBlocks(byte[] input, int srcPos, byte[] output, int destPos, int blocks)
+      throws CryptoException {
+    int blockBytes = getBlockBytes();
+    for (int n = 0; n < blocks; n++) {
+      encryptBlock(input, srcPos + n * blockBytes, output, destPos + n * blockBytes);
+    }
+    return output;
+  }
+
+  public byte[] decryptBlocks(byte[] input, int srcPos, byte[] output, int destPos, int blocks)
+      throws CryptoException {
+    int blockBytes = getBlockBytes();
+    for (int n = 0; n < blocks; n++) {
+      decryptBlock(input, srcPos + n * blockBytes, output, destPos + n * blockBytes);
+    }
+    return output;
+  }
+
   public byte[] encryptBlock(byte[] input) throws CryptoException {
     byte[] output = new byte[getBlockBytes()];
     return encryptBlock(input, 0, output, 0);
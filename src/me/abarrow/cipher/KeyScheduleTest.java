@@ -0,0 +1,139 @@
+package me.abarrow.cipher;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.concurrent.atomic.AtomicReference;
+
+import me.abarrow.cipher.aes.AES;
+import me.abarrow.cipher.blowfish.TwoFish;
+import me.abarrow.cipher.des.DES;
+import me.abarrow.cipher.serpent.Serpent;
+import me.abarrow.core.CryptoException;
+import me.abarrow.core.CryptoUtils;
+import me.abarrow.core.KeySchedule;
+
+import org.junit.Test;
+
+public class KeyScheduleTest {
+  
+  private static final byte[] KEY = CryptoUtils.parseHexString(
+      "000102030405060708090a0b0c0d0e0f101112131415161718191a1b1c1d1e1f");
+
+  @Test
+  public void testHandlesMatchOwnedKeys() throws CryptoException {
+    sharedScheduleCase(new AES(), new AES(KEY));
+    sharedScheduleCase(new Serpent(), new Serpent(KEY));
+    sharedScheduleCase(new TwoFish(), new TwoFish(KEY));
+    byte[] desKey = CryptoUtils.parseHexString("133457799bbcdff1");
+    BlockCipher des = new DES();
+    KeySchedule desSchedule = des.expandKey(desKey);
+    des.setKeySchedule(desSchedule);
+    byte[] block = CryptoUtils.parseHexString("0123456789abcdef");
+    assertArrayEquals(new DES(desKey).encryptBlock(block), des.newHandle().encryptBlock(block));
+  }
+  
+  private void sharedScheduleCase(BlockCipher unkeyed, BlockCipher keyed) throws CryptoException {
+    assertTrue(unkeyed.supportsHandles());
+    KeySchedule schedule = unkeyed.expandKey(KEY);
+    unkeyed.setKeySchedule(schedule);
+    BlockCipher handle = unkeyed.newHandle();
+    byte[] block = CryptoUtils.parseHexString("00112233445566778899aabbccddeeff");
+    
+    byte[] expected = keyed.encryptBlock(block);
+    assertArrayEquals(expected, unkeyed.encryptBlock(block));
+    assertArrayEquals(expected, handle.encryptBlock(block));
+    assertArrayEquals(block, handle.decryptBlock(expected));
+    
+    // unbinding a handle must leave the shared schedule intact
+    handle.removeKey();
+    assertFalse(handle.hasKey());
+    assertFalse(schedule.isDestroyed());
+    assertArrayEquals(expected, unkeyed.encryptBlock(block));
+    
+    // destroying the schedule unkeys everything still bound to it
+    schedule.destroy();
+    assertFalse(unkeyed.hasKey());
+    try {
+      unkeyed.encryptBlock(block);
+      fail("Encrypted with a destroyed key schedule.");
+    } catch (CryptoException e) {
+    }
+  }
+  
+  @Test
+  public void testOwnedScheduleIsDestroyedWithKey() {
+    AES aes = new AES(KEY);
+    KeySchedule schedule = aes.getKeySchedule();
+    aes.removeKey();
+    assertTrue(schedule.isDestroyed());
+  }
+  
+  @Test
+  public void testHandlesAreNotSupportedWithoutSchedules() {
+    assertTrue(new DES().supportsHandles());
+    assertFalse(new CompoundBlockCipher(new BlockCipher[] { new AES(), new Serpent() }).supportsHandles());
+  }
+  
+  @Test
+  public void testDestroyedSchedulesAreRefused() throws CryptoException {
+    byte[] desKey = CryptoUtils.parseHexString("133457799bbcdff1");
+    BlockCipher[] ciphers = new BlockCipher[] { new AES(KEY), new Serpent(KEY), new TwoFish(KEY), new DES(desKey) };
+    byte[][] keys = new byte[][] { KEY, KEY, KEY, desKey };
+    for (int i = 0; i < ciphers.length; i++) {
+      byte[] block = new byte[ciphers[i].getBlockBytes()];
+      byte[] expected = ciphers[i].encryptBlock(block);
+      KeySchedule destroyed = ciphers[i].expandKey(keys[i]);
+      destroyed.destroy();
+      try {
+        ciphers[i].setKeySchedule(destroyed);
+        fail("Bound a destroyed key schedule.");
+      } catch (CryptoException e) {
+      }
+      // the key it already had is left in place
+      assertArrayEquals(expected, ciphers[i].encryptBlock(block));
+    }
+  }
+  
+  @Test(expected = CryptoException.class)
+  public void testIncompatibleSchedule() throws CryptoException {
+    new AES().setKeySchedule(new Serpent().expandKey(KEY));
+  }
+  
+  @Test
+  public void testConcurrentHandles() throws Exception {
+    final AES shared = new AES();
+    shared.setKeySchedule(shared.expandKey(KEY));
+    final byte[] block = CryptoUtils.parseHexString("00112233445566778899aabbccddeeff");
+    final byte[] expected = new AES(KEY).encryptBlock(block);
+    final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+    
+    Thread[] threads = new Thread[4];
+    for (int t = 0; t < threads.length; t++) {
+      threads[t] = new Thread(new Runnable() {
+        @Override
+        public void run() {
+          try {
+            BlockCipher handle = shared.newHandle();
+            byte[] out = new byte[16];
+            for (int n = 0; n < 2000; n++) {
+              handle.encryptBlock(block, out);
+              assertArrayEquals(expected, out);
+            }
+          } catch (Throwable e) {
+            failure.set(e);
+          }
+        }
+      });
+      threads[t].start();
+    }
+    for (int t = 0; t < threads.length; t++) {
+      threads[t].join();
+    }
+    if (failure.get() != null) {
+      throw new AssertionError(failure.get());
+    }
+  }
+}
@@ -5,6 +5,7 @@ import java.util.Arrays;
 import me.abarrow.cipher.BlockCipher;
 import me.abarrow.core.CryptoException;
 import me.abarrow.core.CryptoUtils;
+import me.abarrow.core.KeySchedule;
 
 public class AES extends BlockCipher {
 
@@ -13,7 +14,7 @@ public class AES extends BlockCipher {
   private static final int[] KEY_LENGTHS = new int[] {16, 24, 32};
 
 
-  private static final int[] S_BOX_MAP = new int[] { 0x63, 0x7c, 0x77, 0x7b, 0xf2, 0x6b, 0x6f, 0xc5, 0x30, 0x01, 0x67, 0x2b,
+  static final int[] S_BOX_MAP = new int[] { 0x63, 0x7c, 0x77, 0x7b, 0xf2, 0x6b, 0x6f, 0xc5, 0x30, 0x01, 0x67, 0x2b,
       0xfe, 0xd7, 0xab, 0x76, 0xca, 0x82, 0xc9, 0x7d, 0xfa, 0x59, 0x47, 0xf0, 0xad, 0xd4, 0xa2, 0xaf, 0x9c, 0xa4, 0x72,
       0xc0, 0xb7, 0xfd, 0x93, 0x26, 0x36, 0x3f, 0xf7, 0xcc, 0x34, 0xa5, 0xe5, 0xf1, 0x71, 0xd8, 0x31, 0x15, 0x04, 0xc7,
       0x23, 0xc3, 0x18, 0x96, 0x05, 0x9a, 0x07, 0x12, 0x80, 0xe2, 0xeb, 0x27, 0xb2, 0x75, 0x09, 0x83, 0x2c, 0x1a, 0x1b,
@@ -47,9 +48,16 @@ public class AES extends BlockCipher {
     0x8d, 0x01, 0x02, 0x04, 0x08, 0x10, 0x20, 0x40, 0x80, 0x1b, 0x36
   };
 
-  private int[] roundKeys; // nK columns 4 rows
+  // Encryption tables combining SubBytes and MixColumns for each row of a column,
+  // ENCRYPT_TABLES[r][x] is ENCRYPT_TABLES[0][x] rotated left by 8 * r bits
+  static final int[][] ENCRYPT_TABLES = createEncryptTables();
 
-  private int numberOfRounds; // number of rounds
+  // declared after the tables, which the engine copies as it loads
+  private static final AESBlockEngine VECTOR_ENGINE = loadVectorEngine();
+
+  private AESKeySchedule schedule;
+  
+  private boolean ownsSchedule;
 
   public AES() {
     
@@ -59,6 +67,10 @@ public class AES extends BlockCipher {
     setKey(aesKey);
   }
   
+  public AES(AESKeySchedule sharedSchedule) throws CryptoException {
+    bindShared(sharedSchedule);
+  }
+  
   private static int getNumberOfRounds(int keyBytes) {
     if (keyBytes == 16) {
       return 10;
@@ -71,6 +83,37 @@ public class AES extends BlockCipher {
     }
   }
   
+  /**
+   * Loads the Vector API engine from src-vector, or returns null when it was not built, jdk.incubator.vector is not
+   * available, the platform has no vectors wide enough for it or it was turned off with
+   * {@code -Dme.abarrow.vector.aes=false}.
+   */
+  private static AESBlockEngine loadVectorEngine() {
+    if ("false".equals(System.getProperty("me.abarrow.vector.aes"))) {
+      return null;
+    }
+    try {
+      return (AESBlockEngine) Class.forName("me.abarrow.cipher.aes.VectorAESEngine").getDeclaredConstructor()
+          .newInstance();
+    } catch (ReflectiveOperationException e) {
+      return null;
+    } catch (LinkageError e) {
+      return null;
+    }
+  }
+  
+  private static int[][] createEncryptTables() {
+    int[][] tables = new int[AES.STATE_COLUMNS][256];
+    for (int x = 0; x < 256; x++) {
+      int s = AES.S_BOX_MAP[x];
+      int word = (multiplyBytes(s, 3) << 24) | (s << 16) | (s << 8) | multiplyBytes(s, 2);
+      for (int r = 0; r < AES.STATE_COLUMNS; r++) {
+        tables[r][x] = CryptoUtils.rotateIntLeft(word, 8 * r);
+      }
+    }
+    return tables;
+  }
+  
   public static int[] expandRoundKeys(byte[] aesKey) {
     
     int keyBytes = aesKey.length;
@@ -102,7 +145,7 @@ public class AES extends BlockCipher {
     return expandedRoundKeys;
   }
 
-  private void addRoundKey(int[] state, int offSet) {
+  private static void addRoundKey(int[] state, int[] roundKeys, int offSet) {
     for (int xn = 0; xn < AES.STATE_COLUMNS; xn++) {
       state[xn] ^= roundKeys[offSet + xn];
     }
@@ -114,24 +157,12 @@ public class AES extends BlockCipher {
     }
   }
 
-  private void subBytes(int[] state) {
-    for (int xn = 0; xn < AES.STATE_COLUMNS; xn++) {
-      state[xn] = subWord(state[xn], AES.S_BOX_MAP);
-    }
-  }
-
   private void inverseMixColumns(int[] state) {
     for (int xn = 0; xn < AES.STATE_COLUMNS; xn++) {
       state[xn] = multiplyInts(0x0b0d090e, state[xn]);
     }
   }
 
-  private void mixColumns(int[] state) {
-    for (int xn = 0; xn < AES.STATE_COLUMNS; xn++) {
-      state[xn] = multiplyInts(0x03010102, state[xn]);
-    }
-  }
-
   private void inverseShiftRows(int[] state) {
     int a = state[0];
     int b = state[1];
@@ -144,19 +175,6 @@ public class AES extends BlockCipher {
     state[3] = (a & 0xff000000) + (b & 0xff0000) + (c & 0xff00) + (d & 0xff);
   }
 
-  private void shiftRows(int[] state) {
-    int a = state[0];
-    int b = state[1];
-    int c = state[2];
-    int d = state[3];
-
-    state[0] = (d & 0xff000000) + (c & 0xff0000) + (b & 0xff00) + (a & 0xff);
-    state[1] = (a & 0xff000000) + (d & 0xff0000) + (c & 0xff00) + (b & 0xff);
-    state[2] = (b & 0xff000000) + (a & 0xff0000) + (d & 0xff00) + (c & 0xff);
-    state[3] = (c & 0xff000000) + (b & 0xff0000) + (a & 0xff00) + (d & 0xff);
-
-  }
-
   public static int subWord(int a, int[] sBox) {
     return (sBox[(a >>> 24) & 0xff] << 24) + (sBox[(a >>> 16) & 0xff] << 16) + (sBox[(a >>> 8) & 0xff] << 8)
         + sBox[a & 0xff];
@@ -211,49 +229,103 @@ public class AES extends BlockCipher {
   
   @Override
   public byte[] encryptBlock(byte[] input, int srcPos, byte[] output, int destPos) throws CryptoException {
+    return encryptBlocks(input, srcPos, output, destPos, 1);
+  }
+  
+  /**
+   * Encrypts several consecutive blocks, handing whole batches to the Vector API engine when it is loaded.
+   */
+  @Override
+  public byte[] encryptBlocks(byte[] input, int srcPos, byte[] output, int destPos, int blocks)
+      throws CryptoException {
     if (!hasKey()) {
       throw new CryptoException(CryptoException.NO_KEY);
     }
-    int[] state = new int[AES.STATE_COLUMNS];
-    copyStateFromByteArray(state, input, srcPos);
-    
-    addRoundKey(state, 0);
-
-    for (int round = 1; round < numberOfRounds; round++) {
-      subBytes(state);
-      shiftRows(state);
-      mixColumns(state);
-      addRoundKey(state, AES.STATE_COLUMNS * round);
+    int done = 0;
+    if (VECTOR_ENGINE != null && blocks > 1) {
+      done = VECTOR_ENGINE.encryptBlocks(schedule.engineKeys, schedule.numberOfRounds, input, srcPos, output, destPos,
+          blocks);
     }
-
-    subBytes(state);
-    shiftRows(state);
-    addRoundKey(state, AES.STATE_COLUMNS * numberOfRounds);
-    
-    copyStateToByteArray(state, output, destPos);
+    encryptRounds(schedule.roundKeys, schedule.numberOfRounds, input, srcPos + 16 * done, output,
+        destPos + 16 * done, blocks - done);
     return output;
   }
+  
+  static boolean hasVectorEngine() {
+    return VECTOR_ENGINE != null;
+  }
+  
+  /**
+   * Encrypts blocks using table lookups for the combined SubBytes, ShiftRows and MixColumns steps, keeping the state
+   * in local variables for the whole batch.
+   */
+  static void encryptRounds(int[] rk, int numberOfRounds, byte[] input, int srcPos, byte[] output, int destPos,
+      int blocks) {
+    final int[] t0 = AES.ENCRYPT_TABLES[0];
+    final int[] t1 = AES.ENCRYPT_TABLES[1];
+    final int[] t2 = AES.ENCRYPT_TABLES[2];
+    final int[] t3 = AES.ENCRYPT_TABLES[3];
+    final int[] sBox = AES.S_BOX_MAP;
+    final int last = AES.STATE_COLUMNS * numberOfRounds;
+    
+    for (int block = 0; block < blocks; block++) {
+      int in = srcPos + 16 * block;
+      int s0 = CryptoUtils.intFromBytes(input, in, true) ^ rk[0];
+      int s1 = CryptoUtils.intFromBytes(input, in + 4, true) ^ rk[1];
+      int s2 = CryptoUtils.intFromBytes(input, in + 8, true) ^ rk[2];
+      int s3 = CryptoUtils.intFromBytes(input, in + 12, true) ^ rk[3];
+      
+      for (int k = AES.STATE_COLUMNS; k < last; k += AES.STATE_COLUMNS) {
+        int n0 = t0[s0 & 0xff] ^ t1[(s1 >>> 8) & 0xff] ^ t2[(s2 >>> 16) & 0xff] ^ t3[s3 >>> 24] ^ rk[k];
+        int n1 = t0[s1 & 0xff] ^ t1[(s2 >>> 8) & 0xff] ^ t2[(s3 >>> 16) & 0xff] ^ t3[s0 >>> 24] ^ rk[k + 1];
+        int n2 = t0[s2 & 0xff] ^ t1[(s3 >>> 8) & 0xff] ^ t2[(s0 >>> 16) & 0xff] ^ t3[s1 >>> 24] ^ rk[k + 2];
+        int n3 = t0[s3 & 0xff] ^ t1[(s0 >>> 8) & 0xff] ^ t2[(s1 >>> 16) & 0xff] ^ t3[s2 >>> 24] ^ rk[k + 3];
+        s0 = n0;
+        s1 = n1;
+        s2 = n2;
+        s3 = n3;
+      }
+      
+      // the last round has no MixColumns step
+      int n0 = (sBox[s0 & 0xff] | (sBox[(s1 >>> 8) & 0xff] << 8) | (sBox[(s2 >>> 16) & 0xff] << 16)
+          | (sBox[s3 >>> 24] << 24)) ^ rk[last];
+      int n1 = (sBox[s1 & 0xff] | (sBox[(s2 >>> 8) & 0xff] << 8) | (sBox[(s3 >>> 16) & 0xff] << 16)
+          | (sBox[s0 >>> 24] << 24)) ^ rk[last + 1];
+      int n2 = (sBox[s2 & 0xff] | (sBox[(s3 >>> 8) & 0xff] << 8) | (sBox[(s0 >>> 16) & 0xff] << 16)
+          | (sBox[s1 >>> 24] << 24)) ^ rk[last + 2];
+      int n3 = (sBox[s3 & 0xff] | (sBox[(s0 >>> 8) & 0xff] << 8) | (sBox[(s1 >>> 16) & 0xff] << 16)
+          | (sBox[s2 >>> 24] << 24)) ^ rk[last + 3];
+      
+      int out = destPos + 16 * block;
+      CryptoUtils.intToBytes(n0, output, out, true);
+      CryptoUtils.intToBytes(n1, output, out + 4, true);
+      CryptoUtils.intToBytes(n2, output, out + 8, true);
+      CryptoUtils.intToBytes(n3, output, out + 12, true);
+    }
+  }
 
   @Override
   public byte[] decryptBlock(byte[] input, int srcPos, byte[] output, int destPos) throws CryptoException {
     if (!hasKey()) {
       throw new CryptoException(CryptoException.NO_KEY);
     }
+    int[] roundKeys = schedule.roundKeys;
+    int numberOfRounds = schedule.numberOfRounds;
     int[] state = new int[AES.STATE_COLUMNS];
     copyStateFromByteArray(state, input, srcPos);
     
-    addRoundKey(state, AES.STATE_COLUMNS * numberOfRounds);
+    addRoundKey(state, roundKeys, AES.STATE_COLUMNS * numberOfRounds);
 
     for (int round = numberOfRounds - 1; round >= 1; round--) {
       inverseShiftRows(state);
       inverseSubBytes(state);
-      addRoundKey(state, AES.STATE_COLUMNS * round);
+      addRoundKey(state, roundKeys, AES.STATE_COLUMNS * round);
       inverseMixColumns(state);
     }
 
     inverseShiftRows(state);
     inverseSubBytes(state);
-    addRoundKey(state, 0);
+    addRoundKey(state, roundKeys, 0);
 
     copyStateToByteArray(state, output, destPos);
     return output;
@@ -266,17 +338,25 @@ public class AES extends BlockCipher {
 
   @Override
   public void removeKey() {
-    if (!hasKey()){
+    if (schedule == null) {
       return;
     }
-    CryptoUtils.fillWithZeroes(roundKeys);
-    roundKeys = null;
+    if (ownsSchedule) {
+      schedule.destroy();
+    } else {
+      schedule.release();
+    }
+    schedule = null;
   }
 
 
   @Override
   public void setKey(byte[] key) {
-    removeKey();
+    bind(expandKey(key), true);
+  }
+  
+  @Override
+  public AESKeySchedule expandKey(byte[] key) {
     byte[] aesKey = null;
     if (key.length == 32 || key.length == 24 || key.length == 16) {
       aesKey = key;
@@ -288,13 +368,62 @@ public class AES extends BlockCipher {
       aesKey = Arrays.copyOf(key, 16);
     }
     
-    numberOfRounds = getNumberOfRounds(aesKey.length);
-    roundKeys = expandRoundKeys(aesKey);
+    int[] roundKeys = expandRoundKeys(aesKey);
+    int rounds = getNumberOfRounds(aesKey.length);
+    AESKeySchedule expanded = new AESKeySchedule(roundKeys, rounds,
+        VECTOR_ENGINE == null ? null : VECTOR_ENGINE.expandRoundKeys(roundKeys, rounds));
+    if (aesKey != key) {
+      CryptoUtils.fillWithZeroes(aesKey);
+    }
+    return expanded;
+  }
+  
+  @Override
+  public void setKeySchedule(KeySchedule sharedSchedule) throws CryptoException {
+    if (!(sharedSchedule instanceof AESKeySchedule)) {
+      throw new CryptoException(CryptoException.INCOMPATIBLE_KEY_SCHEDULE);
+    }
+    bindShared((AESKeySchedule) sharedSchedule);
+  }
+  
+  /**
+   * Binds to a schedule owned elsewhere, refusing one that has already been destroyed.
+   */
+  private void bindShared(AESKeySchedule sharedSchedule) throws CryptoException {
+    // take the reference first, so a destroyed schedule leaves the current key in place
+    if (!sharedSchedule.retain()) {
+      throw new CryptoException(CryptoException.NO_KEY);
+    }
+    bind(sharedSchedule, false);
+  }
+  
+  private void bind(AESKeySchedule newSchedule, boolean owned) {
+    removeKey();
+    schedule = newSchedule;
+    ownsSchedule = owned;
+  }
+  
+  @Override
+  public AESKeySchedule getKeySchedule() {
+    return schedule;
+  }
+  
+  @Override
+  public AES newHandle() throws CryptoException {
+    if (!hasKey()) {
+      throw new CryptoException(CryptoException.NO_KEY);
+    }
+    return new AES(schedule);
+  }
+  
+  @Override
+  public boolean supportsHandles() {
+    return true;
   }
 
   @Override
   public boolean hasKey() {
-    return roundKeys != null;
+    return schedule != null && !schedule.isDestroyed();
   }
 
 }
@@ -0,0 +1,23 @@
+package me.abarrow.cipher.aes;
+
+/**
+ * A multi-block AES encryption engine that {@link AES} uses in place of its scalar rounds when one can be loaded.
+ * <p>
+ * The Vector API engine lives in the separate src-vector source root, since it needs jdk.incubator.vector. It is
+ * compiled on top of these sources with {@code javac --add-modules jdk.incubator.vector} and only picked up when the
+ * program also runs with {@code --add-modules jdk.incubator.vector}. Otherwise AES stays on its scalar rounds.
+ */
+interface AESBlockEngine {
+
+  /**
+   * Lays the round keys out the way the engine reads them, once per key schedule.
+   */
+  int[] expandRoundKeys(int[] roundKeys, int numberOfRounds);
+
+  /**
+   * Encrypts as many of the leading blocks as the engine handles in whole batches and returns how many that was,
+   * leaving the rest to the scalar rounds.
+   */
+  int encryptBlocks(int[] engineKeys, int numberOfRounds, byte[] input, int srcPos, byte[] output, int destPos,
+      int blocks);
+}
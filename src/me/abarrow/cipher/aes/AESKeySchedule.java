@@ -0,0 +1,24 @@
+package me.abarrow.cipher.aes;
+
+import me.abarrow.core.CryptoUtils;
+import me.abarrow.core.KeySchedule;
+
+public final class AESKeySchedule extends KeySchedule {
+  
+  final int[] roundKeys;
+  final int numberOfRounds;
+  // the round keys laid out for the vector engine, or null without one
+  final int[] engineKeys;
+  
+  AESKeySchedule(int[] expandedRoundKeys, int rounds, int[] expandedEngineKeys) {
+    roundKeys = expandedRoundKeys;
+    numberOfRounds = rounds;
+    engineKeys = expandedEngineKeys;
+  }
+
+  @Override
+  protected void zero() {
+    CryptoUtils.fillWithZeroes(roundKeys);
+    CryptoUtils.fillWithZeroes(engineKeys);
+  }
+}
@@ -74,4 +74,40 @@ public class AESTest {
         .parseHexString("8ea2b7ca516745bfeafc49904b496089")));
   }
 
+  @Test
+  public void testEncryptBlocks() throws CryptoException {
+    AES aes = new AES(CryptoUtils.parseHexString("000102030405060708090a0b0c0d0e0f101112131415161718191a1b1c1d1e1f"));
+    byte[] plain = new byte[16 * 37 + 3];
+    for (int n = 0; n < plain.length; n++) {
+      plain[n] = (byte) (n * 7);
+    }
+    byte[] expected = new byte[16 * 37];
+    for (int n = 0; n < 37; n++) {
+      aes.encryptBlock(plain, 3 + 16 * n, expected, 16 * n);
+    }
+    assertArrayEquals(expected, aes.encryptBlocks(plain, 3, new byte[16 * 37], 0, 37));
+    
+    byte[] decrypted = aes.decryptBlocks(expected, 0, new byte[16 * 37], 0, 37);
+    for (int n = 0; n < decrypted.length; n++) {
+      assertEquals(plain[n + 3], decrypted[n]);
+    }
+  }
+  
+  @Test
+  public void testEncryptBlocksThroughput() throws CryptoException {
+    AES aes = new AES(CryptoUtils.parseHexString("2b7e151628aed2a6abf7158809cf4f3c"));
+    byte[] data = new byte[1 << 20];
+    
+    long before = System.nanoTime();
+    for (int n = 0; n < data.length; n += 16) {
+      aes.encryptBlock(data, n, data, n);
+    }
+    long between = System.nanoTime();
+    aes.encryptBlocks(data, 0, data, 0, data.length / 16);
+    long after = System.nanoTime();
+    
+    System.out.println("AES 1MiB single blocks took " + Math.round((between - before) / 1000000D) + "ms, batched took "
+        + Math.round((after - between) / 1000000D) + "ms");
+  }
+
 }
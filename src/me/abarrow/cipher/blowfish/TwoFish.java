@@ -5,6 +5,7 @@ import java.util.Arrays;
 import me.abarrow.cipher.BlockCipher;
 import me.abarrow.core.CryptoException;
 import me.abarrow.core.CryptoUtils;
+import me.abarrow.core.KeySchedule;
 
 public class TwoFish extends BlockCipher {
 
@@ -50,6 +51,10 @@ public class TwoFish extends BlockCipher {
   private int[] roundKeys;
 
   private int[] S;
+  
+  private TwoFishKeySchedule schedule;
+  
+  private boolean ownsSchedule;
 
   public TwoFish() {
   }
@@ -58,6 +63,10 @@ public class TwoFish extends BlockCipher {
     setKey(key);
   }
   
+  public TwoFish(TwoFishKeySchedule sharedSchedule) throws CryptoException {
+    bindShared(sharedSchedule);
+  }
+  
   
   public static int[] createSBoxes(byte[] key) {
     
@@ -250,31 +259,82 @@ public class TwoFish extends BlockCipher {
   }
 
 
+  @Override
+  public void setKey(byte[] key) {
+    bind(expandKey(key), true);
+  }
+  
+  @Override
+  public TwoFishKeySchedule expandKey(byte[] key) {
+    if (key.length != 32) {
+      Arrays.copyOf(key, 32);
+    }
+    return new TwoFishKeySchedule(createSBoxes(key), expandRoundKeys(key));
+  }
+
   @Override
   public void removeKey() {
-    if (!hasKey()) {
+    if (schedule == null) {
       return;
     }
-    CryptoUtils.fillWithZeroes(S);
-    CryptoUtils.fillWithZeroes(roundKeys);
+    if (ownsSchedule) {
+      schedule.destroy();
+    } else {
+      schedule.release();
+    }
     S = null;
     roundKeys = null;
+    schedule = null;
   }
 
-
   @Override
-  public void setKey(byte[] key) {
+  public void setKeySchedule(KeySchedule sharedSchedule) throws CryptoException {
+    if (!(sharedSchedule instanceof TwoFishKeySchedule)) {
+      throw new CryptoException(CryptoException.INCOMPATIBLE_KEY_SCHEDULE);
+    }
+    bindShared((TwoFishKeySchedule) sharedSchedule);
+  }
+  
+  /**
+   * Binds to a schedule owned elsewhere, refusing one that has already been destroyed.
+   */
+  private void bindShared(TwoFishKeySchedule sharedSchedule) throws CryptoException {
+    // take the reference first, so a destroyed schedule leaves the current key in place
+    if (!sharedSchedule.retain()) {
+      throw new CryptoException(CryptoException.NO_KEY);
+    }
+    bind(sharedSchedule, false);
+  }
+  
+  private void bind(TwoFishKeySchedule newSchedule, boolean owned) {
     removeKey();
-    if (key.length != 32) {
-      Arrays.copyOf(key, 32);
+    schedule = newSchedule;
+    ownsSchedule = owned;
+    S = schedule.sBoxes;
+    roundKeys = schedule.roundKeys;
+  }
+  
+  @Override
+  public TwoFishKeySchedule getKeySchedule() {
+    return schedule;
+  }
+  
+  @Override
+  public TwoFish newHandle() throws CryptoException {
+    if (!hasKey()) {
+      throw new CryptoException(CryptoException.NO_KEY);
     }
-    S = createSBoxes(key);
-    roundKeys = expandRoundKeys(key);
+    return new TwoFish(schedule);
+  }
+  
+  @Override
+  public boolean supportsHandles() {
+    return true;
   }
 
   @Override
   public boolean hasKey() {
-    return roundKeys != null;
+    return schedule != null && !schedule.isDestroyed();
   }
 
 }
@@ -0,0 +1,21 @@
+package me.abarrow.cipher.blowfish;
+
+import me.abarrow.core.CryptoUtils;
+import me.abarrow.core.KeySchedule;
+
+public final class TwoFishKeySchedule extends KeySchedule {
+  
+  final int[] sBoxes;
+  final int[] roundKeys;
+  
+  TwoFishKeySchedule(int[] keySBoxes, int[] expandedRoundKeys) {
+    sBoxes = keySBoxes;
+    roundKeys = expandedRoundKeys;
+  }
+
+  @Override
+  protected void zero() {
+    CryptoUtils.fillWithZeroes(sBoxes);
+    CryptoUtils.fillWithZeroes(roundKeys);
+  }
+}
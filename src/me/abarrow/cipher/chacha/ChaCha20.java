@@ -0,0 +1,371 @@
+package me.abarrow.cipher.chacha;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+
+import me.abarrow.cipher.Cipher;
+import me.abarrow.core.CryptoException;
+import me.abarrow.core.CryptoUtils;
+import me.abarrow.stream.StreamProcess;
+import me.abarrow.stream.StreamUtils;
+
+/**
+ * The ChaCha20 stream cipher from RFC 8439, with a 256 bit key, a 96 bit nonce used as the IV and a 32 bit block
+ * counter. The key stream is generated {@link #PARALLEL_BLOCKS} blocks at a time, the blocks side by side so the JIT
+ * can run their rounds in vector instructions, and {@link #seek(long)} starts anywhere in it. Like {@link me.abarrow.cipher.mode.CTRMode} the IV is prepended to the cipher text by default.
+ */
+public class ChaCha20 implements Cipher {
+  
+  public static final int KEY_BYTES = 32;
+  public static final int NONCE_BYTES = 12;
+  public static final int BLOCK_BYTES = 64;
+  public static final int PARALLEL_BLOCKS = 32;
+  
+  static final long MAX_BLOCKS = 1L << 32;
+  
+  // "expand 32-byte k"
+  static final int SIGMA_0 = 0x61707865;
+  static final int SIGMA_1 = 0x3320646e;
+  static final int SIGMA_2 = 0x79622d32;
+  static final int SIGMA_3 = 0x6b206574;
+  
+  private int[] key;
+  private byte[] iv;
+  private long position = 0;
+  private boolean prependingIV = true;
+  
+  public ChaCha20() {
+  }
+  
+  public ChaCha20(byte[] key) {
+    setKey(key);
+  }
+  
+  public ChaCha20(byte[] key, byte[] nonce) {
+    this(key);
+    setIV(nonce);
+  }
+  
+  /**
+   * Sets the block counter of the first block of key stream used, which RFC 8439 starts at 1 when the first block
+   * is kept for a Poly1305 key.
+   */
+  public ChaCha20 setInitialCounter(int counter) {
+    position = (counter & 0xffffffffL) * BLOCK_BYTES;
+    return this;
+  }
+  
+  /**
+   * Starts the key stream the given number of bytes after the start of block 0, so that any part of a message can be
+   * encrypted or decrypted on its own.
+   */
+  public ChaCha20 seek(long bytes) {
+    if (bytes < 0 || bytes >= MAX_BLOCKS * BLOCK_BYTES) {
+      throw new IllegalArgumentException("The position is outside of the key stream.");
+    }
+    position = bytes;
+    return this;
+  }
+  
+  public long getPosition() {
+    return position;
+  }
+  
+  @Override
+  public StreamProcess encrypt() {
+    return new StreamProcess() {
+      @Override
+      public void process(InputStream in, OutputStream out) throws IOException {
+        if (prependingIV && hasIV()) {
+          out.write(iv);
+        }
+        crypt(in, out);
+      }
+    };
+  }
+
+  @Override
+  public StreamProcess decrypt() {
+    return new StreamProcess() {
+      @Override
+      public void process(InputStream in, OutputStream out) throws IOException {
+        if (prependingIV) {
+          byte[] prepended = new byte[NONCE_BYTES];
+          if (StreamUtils.readFully(in, prepended, 0, NONCE_BYTES) != NONCE_BYTES) {
+            throw new IOException(new CryptoException(CryptoException.NO_IV));
+          }
+          setIV(prepended);
+        }
+        crypt(in, out);
+      }
+    };
+  }
+  
+  private void crypt(InputStream in, OutputStream out) throws IOException {
+    if (!hasKey()) {
+      throw new IOException(new CryptoException(CryptoException.NO_KEY));
+    }
+    if (!hasIV()) {
+      throw new IOException(new CryptoException(CryptoException.NO_IV));
+    }
+    ChaChaKeyStream keyStream = null;
+    byte[] buffer = new byte[PARALLEL_BLOCKS * BLOCK_BYTES * 2];
+    try {
+      keyStream = new ChaChaKeyStream(key, iv, position);
+      while (true) {
+        int read = StreamUtils.readFully(in, buffer, 0, buffer.length);
+        keyStream.xor(buffer, 0, buffer, 0, read);
+        out.write(buffer, 0, read);
+        if (read < buffer.length) {
+          break;
+        }
+      }
+    } catch (CryptoException e) {
+      throw new IOException(e);
+    } finally {
+      if (keyStream != null) {
+        keyStream.clear();
+      }
+      CryptoUtils.fillWithZeroes(buffer);
+    }
+  }
+  
+  /**
+   * Writes blocks of key stream for consecutive counters into out. The state holds the constants, key, counter and
+   * nonce words as laid out in RFC 8439. A full {@link #PARALLEL_BLOCKS} are worked on together in lanes, 16 rows
+   * of them with word i of every block in row i, and fewer one at a time.
+   */
+  static void generate(int[] state, int counter, byte[] out, int off, int blocks, int[][] lanes) {
+    if (blocks != PARALLEL_BLOCKS) {
+      for (int b = 0; b < blocks; b++) {
+        block(state, counter + b, out, off + b * BLOCK_BYTES);
+      }
+      return;
+    }
+    for (int i = 0; i < 16; i++) {
+      int[] row = lanes[i];
+      int word = state[i];
+      for (int l = 0; l < PARALLEL_BLOCKS; l++) {
+        row[l] = word;
+      }
+    }
+    int[] counters = lanes[12];
+    for (int l = 0; l < PARALLEL_BLOCKS; l++) {
+      counters[l] = counter + l;
+    }
+    for (int round = 0; round < 10; round++) {
+      quarterRounds(lanes[0], lanes[4], lanes[8], lanes[12]);
+      quarterRounds(lanes[1], lanes[5], lanes[9], lanes[13]);
+      quarterRounds(lanes[2], lanes[6], lanes[10], lanes[14]);
+      quarterRounds(lanes[3], lanes[7], lanes[11], lanes[15]);
+      quarterRounds(lanes[0], lanes[5], lanes[10], lanes[15]);
+      quarterRounds(lanes[1], lanes[6], lanes[11], lanes[12]);
+      quarterRounds(lanes[2], lanes[7], lanes[8], lanes[13]);
+      quarterRounds(lanes[3], lanes[4], lanes[9], lanes[14]);
+    }
+    for (int i = 0; i < 16; i++) {
+      int[] row = lanes[i];
+      if (i == 12) {
+        for (int l = 0; l < PARALLEL_BLOCKS; l++) {
+          CryptoUtils.intToBytes(row[l] + counter + l, out, off + l * BLOCK_BYTES + 48, true);
+        }
+      } else {
+        int word = state[i];
+        for (int l = 0; l < PARALLEL_BLOCKS; l++) {
+          CryptoUtils.intToBytes(row[l] + word, out, off + l * BLOCK_BYTES + i * 4, true);
+        }
+      }
+    }
+  }
+  
+  /**
+   * The same quarter round on every lane, as one loop the JIT can vectorize.
+   */
+  private static void quarterRounds(int[] a, int[] b, int[] c, int[] d) {
+    for (int l = 0; l < PARALLEL_BLOCKS; l++) {
+      int xa = a[l];
+      int xb = b[l];
+      int xc = c[l];
+      int xd = d[l];
+      xa += xb; xd = Integer.rotateLeft(xd ^ xa, 16);
+      xc += xd; xb = Integer.rotateLeft(xb ^ xc, 12);
+      xa += xb; xd = Integer.rotateLeft(xd ^ xa, 8);
+      xc += xd; xb = Integer.rotateLeft(xb ^ xc, 7);
+      a[l] = xa;
+      b[l] = xb;
+      c[l] = xc;
+      d[l] = xd;
+    }
+  }
+  
+  static void block(int[] s, int counter, byte[] out, int off) {
+    int x0 = s[0], x1 = s[1], x2 = s[2], x3 = s[3];
+    int x4 = s[4], x5 = s[5], x6 = s[6], x7 = s[7];
+    int x8 = s[8], x9 = s[9], x10 = s[10], x11 = s[11];
+    int x12 = counter, x13 = s[13], x14 = s[14], x15 = s[15];
+    
+    for (int round = 0; round < 10; round++) {
+      // columns
+      x0 += x4; x12 = Integer.rotateLeft(x12 ^ x0, 16);
+      x8 += x12; x4 = Integer.rotateLeft(x4 ^ x8, 12);
+      x0 += x4; x12 = Integer.rotateLeft(x12 ^ x0, 8);
+      x8 += x12; x4 = Integer.rotateLeft(x4 ^ x8, 7);
+      
+      x1 += x5; x13 = Integer.rotateLeft(x13 ^ x1, 16);
+      x9 += x13; x5 = Integer.rotateLeft(x5 ^ x9, 12);
+      x1 += x5; x13 = Integer.rotateLeft(x13 ^ x1, 8);
+      x9 += x13; x5 = Integer.rotateLeft(x5 ^ x9, 7);
+      
+      x2 += x6; x14 = Integer.rotateLeft(x14 ^ x2, 16);
+      x10 += x14; x6 = Integer.rotateLeft(x6 ^ x10, 12);
+      x2 += x6; x14 = Integer.rotateLeft(x14 ^ x2, 8);
+      x10 += x14; x6 = Integer.rotateLeft(x6 ^ x10, 7);
+      
+      x3 += x7; x15 = Integer.rotateLeft(x15 ^ x3, 16);
+      x11 += x15; x7 = Integer.rotateLeft(x7 ^ x11, 12);
+      x3 += x7; x15 = Integer.rotateLeft(x15 ^ x3, 8);
+      x11 += x15; x7 = Integer.rotateLeft(x7 ^ x11, 7);
+      
+      // diagonals
+      x0 += x5; x15 = Integer.rotateLeft(x15 ^ x0, 16);
+      x10 += x15; x5 = Integer.rotateLeft(x5 ^ x10, 12);
+      x0 += x5; x15 = Integer.rotateLeft(x15 ^ x0, 8);
+      x10 += x15; x5 = Integer.rotateLeft(x5 ^ x10, 7);
+      
+      x1 += x6; x12 = Integer.rotateLeft(x12 ^ x1, 16);
+      x11 += x12; x6 = Integer.rotateLeft(x6 ^ x11, 12);
+      x1 += x6; x12 = Integer.rotateLeft(x12 ^ x1, 8);
+      x11 += x12; x6 = Integer.rotateLeft(x6 ^ x11, 7);
+      
+      x2 += x7; x13 = Integer.rotateLeft(x13 ^ x2, 16);
+      x8 += x13; x7 = Integer.rotateLeft(x7 ^ x8, 12);
+      x2 += x7; x13 = Integer.rotateLeft(x13 ^ x2, 8);
+      x8 += x13; x7 = Integer.rotateLeft(x7 ^ x8, 7);
+      
+      x3 += x4; x14 = Integer.rotateLeft(x14 ^ x3, 16);
+      x9 += x14; x4 = Integer.rotateLeft(x4 ^ x9, 12);
+      x3 += x4; x14 = Integer.rotateLeft(x14 ^ x3, 8);
+      x9 += x14; x4 = Integer.rotateLeft(x4 ^ x9, 7);
+    }
+    
+    CryptoUtils.intToBytes(x0 + s[0], out, off, true);
+    CryptoUtils.intToBytes(x1 + s[1], out, off + 4, true);
+    CryptoUtils.intToBytes(x2 + s[2], out, off + 8, true);
+    CryptoUtils.intToBytes(x3 + s[3], out, off + 12, true);
+    CryptoUtils.intToBytes(x4 + s[4], out, off + 16, true);
+    CryptoUtils.intToBytes(x5 + s[5], out, off + 20, true);
+    CryptoUtils.intToBytes(x6 + s[6], out, off + 24, true);
+    CryptoUtils.intToBytes(x7 + s[7], out, off + 28, true);
+    CryptoUtils.intToBytes(x8 + s[8], out, off + 32, true);
+    CryptoUtils.intToBytes(x9 + s[9], out, off + 36, true);
+    CryptoUtils.intToBytes(x10 + s[10], out, off + 40, true);
+    CryptoUtils.intToBytes(x11 + s[11], out, off + 44, true);
+    CryptoUtils.intToBytes(x12 + counter, out, off + 48, true);
+    CryptoUtils.intToBytes(x13 + s[13], out, off + 52, true);
+    CryptoUtils.intToBytes(x14 + s[14], out, off + 56, true);
+    CryptoUtils.intToBytes(x15 + s[15], out, off + 60, true);
+  }
+  
+  private static void quarterRound(int[] x, int a, int b, int c, int d) {
+    x[a] += x[b];
+    x[d] = Integer.rotateLeft(x[d] ^ x[a], 16);
+    x[c] += x[d];
+    x[b] = Integer.rotateLeft(x[b] ^ x[c], 12);
+    x[a] += x[b];
+    x[d] = Integer.rotateLeft(x[d] ^ x[a], 8);
+    x[c] += x[d];
+    x[b] = Integer.rotateLeft(x[b] ^ x[c], 7);
+  }
+  
+  /**
+   * HChaCha20 from the XChaCha20 draft, which derives a subkey from a key and the first 16 bytes of a long nonce by
+   * running the rounds without adding the input back in and keeping the first and last rows.
+   */
+  static int[] hChaCha20(int[] key, byte[] nonce) {
+    int[] x = new int[16];
+    x[0] = SIGMA_0;
+    x[1] = SIGMA_1;
+    x[2] = SIGMA_2;
+    x[3] = SIGMA_3;
+    System.arraycopy(key, 0, x, 4, 8);
+    CryptoUtils.intArrayFromBytes(x, 12, nonce, 0, 16, true);
+    for (int round = 0; round < 10; round++) {
+      quarterRound(x, 0, 4, 8, 12);
+      quarterRound(x, 1, 5, 9, 13);
+      quarterRound(x, 2, 6, 10, 14);
+      quarterRound(x, 3, 7, 11, 15);
+      quarterRound(x, 0, 5, 10, 15);
+      quarterRound(x, 1, 6, 11, 12);
+      quarterRound(x, 2, 7, 8, 13);
+      quarterRound(x, 3, 4, 9, 14);
+    }
+    int[] subKey = new int[8];
+    System.arraycopy(x, 0, subKey, 0, 4);
+    System.arraycopy(x, 12, subKey, 4, 4);
+    CryptoUtils.fillWithZeroes(x);
+    return subKey;
+  }
+  
+  static int[] keyToWords(byte[] key) {
+    if (key.length != KEY_BYTES) {
+      throw new IllegalArgumentException("ChaCha20 keys are 32 bytes long.");
+    }
+    return CryptoUtils.intArrayFromBytes(key, 0, KEY_BYTES, true);
+  }
+
+  @Override
+  public Cipher setKey(byte[] newKey) {
+    int[] words = keyToWords(newKey);
+    removeKey();
+    key = words;
+    return this;
+  }
+
+  @Override
+  public boolean hasKey() {
+    return key != null;
+  }
+
+  @Override
+  public Cipher removeKey() {
+    CryptoUtils.fillWithZeroes(key);
+    key = null;
+    return this;
+  }
+
+  /**
+   * The nonce has to be 12 bytes long.
+   */
+  @Override
+  public Cipher setIV(byte[] initVector) {
+    if (initVector.length != NONCE_BYTES) {
+      throw new IllegalArgumentException(CryptoException.INVALID_IV_LENGTH);
+    }
+    iv = Arrays.copyOf(initVector, NONCE_BYTES);
+    return this;
+  }
+
+  @Override
+  public byte[] getIV() {
+    return iv;
+  }
+
+  @Override
+  public boolean hasIV() {
+    return iv != null;
+  }
+
+  @Override
+  public boolean isIVPrepending() {
+    return prependingIV;
+  }
+
+  @Override
+  public Cipher setIVPrepending(boolean ivPrepending) {
+    prependingIV = ivPrepending;
+    return this;
+  }
+
+}
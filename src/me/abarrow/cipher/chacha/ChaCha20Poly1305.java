@@ -0,0 +1,427 @@
+package me.abarrow.cipher.chacha;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import me.abarrow.cipher.AuthenticatedCipher;
+import me.abarrow.cipher.Cipher;
+import me.abarrow.core.CryptoException;
+import me.abarrow.core.CryptoUtils;
+import me.abarrow.mac.poly1305.Poly1305;
+import me.abarrow.stream.DirectByteOutputStream;
+import me.abarrow.stream.StreamProcess;
+import me.abarrow.stream.StreamUtils;
+
+/**
+ * The ChaCha20-Poly1305 AEAD from RFC 8439. The first block of key stream for the nonce is the Poly1305 key, and
+ * encryption makes one pass over the message, encrypting and authenticating each chunk as it is read.
+ * <p>
+ * Decryption only keeps one copy of the cipher text, which is decrypted in place once the tag is verified, while
+ * {@link #verify()} checks a sealed message in constant memory without decrypting it.
+ */
+public class ChaCha20Poly1305 implements AuthenticatedCipher {
+  
+  public static final int KEY_BYTES = 32;
+  public static final int TAG_BYTES = 16;
+  
+  private static final int CHUNK_SIZE = 16 * 1024;
+  private static final byte[] ZERO_PADDING = new byte[Poly1305.BLOCK_BYTES];
+  
+  private int[] key;
+  private byte[] iv;
+  private byte[] authData;
+  private boolean prependingIV = false;
+  
+  // associated data given to updateAAD, authenticated as it arrives under the key for pendingNonce
+  private Poly1305 pendingMac;
+  private byte[] pendingNonce;
+  private long pendingAADLength;
+  
+  public ChaCha20Poly1305() {
+  }
+  
+  public ChaCha20Poly1305(byte[] key) {
+    setKey(key);
+  }
+  
+  public int getNonceBytes() {
+    return ChaCha20.NONCE_BYTES;
+  }
+  
+  /**
+   * Starts the key stream of one message at the given byte.
+   */
+  ChaChaKeyStream openKeyStream(int[] messageKey, byte[] nonce, long position) throws CryptoException {
+    return new ChaChaKeyStream(messageKey, nonce, position);
+  }
+  
+  /**
+   * The Poly1305 state of one message and the length of its associated data.
+   */
+  private static final class Message {
+    final Poly1305 mac;
+    final long aadLength;
+    
+    Message(Poly1305 poly, long aLen) throws CryptoException {
+      mac = poly;
+      aadLength = aLen;
+      padToBlock(mac, aadLength);
+    }
+    
+    void finish(long textLength, byte[] tag) throws CryptoException {
+      padToBlock(mac, textLength);
+      byte[] lengths = new byte[16];
+      CryptoUtils.longToBytes(aadLength, lengths, 0, true);
+      CryptoUtils.longToBytes(textLength, lengths, 8, true);
+      mac.update(lengths, 0, lengths.length);
+      mac.doFinal(tag, 0);
+      mac.removeKey();
+    }
+  }
+  
+  private static void padToBlock(Poly1305 mac, long length) throws CryptoException {
+    int rem = (int) (length % Poly1305.BLOCK_BYTES);
+    if (rem != 0) {
+      mac.update(ZERO_PADDING, 0, Poly1305.BLOCK_BYTES - rem);
+    }
+  }
+  
+  /**
+   * Keys Poly1305 with the start of block 0 of the key stream for the nonce.
+   */
+  private Poly1305 macFor(byte[] nonce) throws CryptoException {
+    if (!hasKey()) {
+      throw new CryptoException(CryptoException.NO_KEY);
+    }
+    ChaChaKeyStream keyStream = openKeyStream(key, nonce, 0);
+    byte[] macKey = new byte[Poly1305.KEY_BYTES];
+    try {
+      keyStream.xor(macKey, 0, macKey, 0, macKey.length);
+      return new Poly1305(macKey);
+    } finally {
+      keyStream.clear();
+      CryptoUtils.fillWithZeroes(macKey);
+    }
+  }
+  
+  /**
+   * Starts a message for the current IV, authenticating its associated data.
+   */
+  private Message start() throws CryptoException {
+    if (!hasIV()) {
+      throw new CryptoException(CryptoException.NO_IV);
+    }
+    if (pendingMac != null) {
+      if (!Arrays.equals(pendingNonce, iv)) {
+        throw new CryptoException(CryptoException.AAD_KEY_CHANGED);
+      }
+      Message streamed = new Message(pendingMac, pendingAADLength);
+      pendingMac = null;
+      pendingNonce = null;
+      pendingAADLength = 0;
+      return streamed;
+    }
+    Poly1305 mac = macFor(iv);
+    if (authData == null) {
+      return new Message(mac, 0);
+    }
+    mac.update(authData, 0, authData.length);
+    return new Message(mac, authData.length);
+  }
+  
+  /**
+   * The key stream for the text of a message, which follows the block used for the Poly1305 key.
+   */
+  private ChaChaKeyStream textKeyStream() throws CryptoException {
+    return openKeyStream(key, iv, ChaCha20.BLOCK_BYTES);
+  }
+  
+  @Override
+  public StreamProcess encrypt() {
+    return new StreamProcess() {
+      @Override
+      public void process(InputStream in, OutputStream out) throws IOException {
+        byte[] chunk = new byte[CHUNK_SIZE];
+        byte[] tag = new byte[TAG_BYTES];
+        ChaChaKeyStream keyStream = null;
+        try {
+          Message message = start();
+          keyStream = textKeyStream();
+          if (prependingIV) {
+            out.write(iv);
+          }
+          long textLength = 0;
+          while (true) {
+            int read = StreamUtils.readFully(in, chunk, 0, chunk.length);
+            keyStream.xor(chunk, 0, chunk, 0, read);
+            message.mac.update(chunk, 0, read);
+            out.write(chunk, 0, read);
+            textLength += read;
+            if (read < chunk.length) {
+              break;
+            }
+          }
+          in.close();
+          message.finish(textLength, tag);
+          out.write(tag);
+        } catch (CryptoException e) {
+          throw new IOException(e);
+        } finally {
+          if (keyStream != null) {
+            keyStream.clear();
+          }
+          CryptoUtils.fillWithZeroes(chunk);
+          CryptoUtils.fillWithZeroes(tag);
+        }
+      }
+    };
+  }
+  
+  private void readPrependedIV(InputStream in) throws IOException {
+    if (prependingIV) {
+      byte[] prepended = new byte[getNonceBytes()];
+      if (StreamUtils.readFully(in, prepended, 0, prepended.length) != prepended.length) {
+        throw new IOException(new CryptoException(CryptoException.NO_IV));
+      }
+      if (pendingMac != null && !Arrays.equals(pendingNonce, prepended)) {
+        throw new IOException(new CryptoException(CryptoException.AAD_KEY_CHANGED));
+      }
+      setIV(prepended);
+    }
+  }
+  
+  /**
+   * Authenticates all but the last {@link #TAG_BYTES} of the stream, copying them to cipherText if it is not null,
+   * and returns whether the last bytes are the tag. Only one chunk is held at a time.
+   */
+  private boolean authenticate(InputStream in, Message message, OutputStream cipherText) throws IOException,
+      CryptoException {
+    byte[] buffer = new byte[CHUNK_SIZE + TAG_BYTES];
+    byte[] tag = new byte[TAG_BYTES];
+    try {
+      int held = 0;
+      long textLength = 0;
+      while (true) {
+        int read = StreamUtils.readFully(in, buffer, held, buffer.length - held);
+        held += read;
+        if (held < buffer.length) {
+          break;
+        }
+        message.mac.update(buffer, 0, CHUNK_SIZE);
+        if (cipherText != null) {
+          cipherText.write(buffer, 0, CHUNK_SIZE);
+        }
+        textLength += CHUNK_SIZE;
+        System.arraycopy(buffer, CHUNK_SIZE, buffer, 0, TAG_BYTES);
+        held = TAG_BYTES;
+      }
+      in.close();
+      if (held < TAG_BYTES) {
+        throw new CryptoException(CryptoException.NO_MAC);
+      }
+      int last = held - TAG_BYTES;
+      message.mac.update(buffer, 0, last);
+      if (cipherText != null) {
+        cipherText.write(buffer, 0, last);
+      }
+      textLength += last;
+      message.finish(textLength, tag);
+      return CryptoUtils.constantTimeSubArrayEquals(tag, 0, buffer, last, TAG_BYTES);
+    } finally {
+      CryptoUtils.fillWithZeroes(buffer);
+      CryptoUtils.fillWithZeroes(tag);
+    }
+  }
+
+  @Override
+  public StreamProcess decrypt() {
+    return new StreamProcess() {
+      @Override
+      public void process(InputStream in, OutputStream out) throws IOException {
+        readPrependedIV(in);
+        DirectByteOutputStream cipherText = new DirectByteOutputStream();
+        ChaChaKeyStream keyStream = null;
+        try {
+          if (!authenticate(in, start(), cipherText)) {
+            throw new CryptoException(CryptoException.MAC_DOES_NOT_MATCH);
+          }
+          byte[] data = cipherText.getBuffer();
+          int len = cipherText.getCount();
+          keyStream = textKeyStream();
+          keyStream.xor(data, 0, data, 0, len);
+          out.write(data, 0, len);
+        } catch (CryptoException e) {
+          throw new IOException(e);
+        } finally {
+          if (keyStream != null) {
+            keyStream.clear();
+          }
+          CryptoUtils.fillWithZeroes(cipherText.getBuffer());
+        }
+      }
+    };
+  }
+  
+  /**
+   * Checks the tag of a sealed message without decrypting it, holding only one chunk in memory. Nothing is written,
+   * and a tag that does not match throws.
+   */
+  public StreamProcess verify() {
+    return new StreamProcess() {
+      @Override
+      public void process(InputStream in, OutputStream out) throws IOException {
+        readPrependedIV(in);
+        try {
+          if (!authenticate(in, start(), null)) {
+            throw new CryptoException(CryptoException.MAC_DOES_NOT_MATCH);
+          }
+        } catch (CryptoException e) {
+          throw new IOException(e);
+        }
+      }
+    };
+  }
+  
+  public ChaCha20Poly1305 setAuthData(byte[] data) {
+    removeAuthData();
+    if (data != null) {
+      authData = Arrays.copyOf(data, data.length);
+    }
+    return this;
+  }
+  
+  public ChaCha20Poly1305 removeAuthData() {
+    CryptoUtils.fillWithZeroes(authData);
+    authData = null;
+    removeStreamedAuthData();
+    return this;
+  }
+  
+  private void removeStreamedAuthData() {
+    if (pendingMac != null) {
+      pendingMac.removeKey();
+    }
+    pendingMac = null;
+    pendingNonce = null;
+    pendingAADLength = 0;
+  }
+  
+  /**
+   * Authenticates more associated data straight away instead of keeping a copy. The Poly1305 key depends on the
+   * nonce, so the key and IV have to be set first, and the data only applies to the next message under that IV. It
+   * follows any data given to {@link #setAuthData(byte[])}.
+   */
+  public ChaCha20Poly1305 updateAAD(byte[] data, int off, int len) throws CryptoException {
+    if (pendingMac == null) {
+      if (!hasIV()) {
+        throw new CryptoException(CryptoException.NO_IV);
+      }
+      pendingMac = macFor(iv);
+      pendingNonce = Arrays.copyOf(iv, iv.length);
+      if (authData != null) {
+        pendingMac.update(authData, 0, authData.length);
+        pendingAADLength = authData.length;
+      }
+    }
+    pendingMac.update(data, off, len);
+    pendingAADLength += len;
+    return this;
+  }
+  
+  public ChaCha20Poly1305 updateAAD(ByteBuffer data) throws CryptoException {
+    if (data.hasArray()) {
+      updateAAD(data.array(), data.arrayOffset() + data.position(), data.remaining());
+      data.position(data.limit());
+      return this;
+    }
+    byte[] chunk = new byte[Math.min(data.remaining(), 4096)];
+    try {
+      while (data.hasRemaining()) {
+        int len = Math.min(chunk.length, data.remaining());
+        data.get(chunk, 0, len);
+        updateAAD(chunk, 0, len);
+      }
+    } finally {
+      CryptoUtils.fillWithZeroes(chunk);
+    }
+    return this;
+  }
+  
+  public ChaCha20Poly1305 updateAAD(InputStream in) throws CryptoException, IOException {
+    byte[] chunk = new byte[4096];
+    try {
+      while (true) {
+        int read = in.read(chunk);
+        if (read == -1) {
+          break;
+        }
+        updateAAD(chunk, 0, read);
+      }
+    } finally {
+      CryptoUtils.fillWithZeroes(chunk);
+      in.close();
+    }
+    return this;
+  }
+
+  @Override
+  public Cipher setKey(byte[] newKey) {
+    int[] words = ChaCha20.keyToWords(newKey);
+    removeKey();
+    key = words;
+    return this;
+  }
+
+  @Override
+  public boolean hasKey() {
+    return key != null;
+  }
+
+  @Override
+  public Cipher removeKey() {
+    CryptoUtils.fillWithZeroes(key);
+    key = null;
+    removeStreamedAuthData();
+    return this;
+  }
+
+  /**
+   * Setting a different IV discards associated data given to updateAAD.
+   */
+  @Override
+  public Cipher setIV(byte[] initVector) {
+    if (initVector.length != getNonceBytes()) {
+      throw new IllegalArgumentException(CryptoException.INVALID_IV_LENGTH);
+    }
+    if (pendingMac != null && !Arrays.equals(pendingNonce, initVector)) {
+      removeStreamedAuthData();
+    }
+    iv = Arrays.copyOf(initVector, initVector.length);
+    return this;
+  }
+
+  @Override
+  public byte[] getIV() {
+    return iv;
+  }
+
+  @Override
+  public boolean hasIV() {
+    return iv != null;
+  }
+
+  @Override
+  public boolean isIVPrepending() {
+    return prependingIV;
+  }
+
+  @Override
+  public Cipher setIVPrepending(boolean ivPrepending) {
+    prependingIV = ivPrepending;
+    return this;
+  }
+
+}
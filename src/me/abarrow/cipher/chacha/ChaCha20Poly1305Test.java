@@ -0,0 +1,139 @@
+package me.abarrow.cipher.chacha;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.Test;
+
+import me.abarrow.core.CryptoException;
+import me.abarrow.core.CryptoUtils;
+
+public class ChaCha20Poly1305Test {
+  
+  private static final byte[] KEY = CryptoUtils.parseHexString(
+      "808182838485868788898a8b8c8d8e8f909192939495969798999a9b9c9d9e9f");
+  private static final byte[] AAD = CryptoUtils.parseHexString("50515253c0c1c2c3c4c5c6c7");
+  private static final byte[] PLAIN = ("Ladies and Gentlemen of the class of '99: If I could offer you only one tip for "
+      + "the future, sunscreen would be it.").getBytes();
+
+  @Test
+  public void testRFC8439() throws IOException {
+    byte[] expected = CryptoUtils.parseHexString(
+        "d31a8d34648e60db7b86afbc53ef7ec2a4aded51296e08fea9e2b5a736ee62d63dbea45e8ca9671282fafb69da92728b"
+        + "1a71de0a9e060b2905d6a5b67ecd3b3692ddbd7f2d778b8c9803aee328091b58fab324e4fad675945585808b4831d7bc"
+        + "3ff4def08e4b7a9de576d26586cec64b6116" + "1ae10b594f09e26a7e902ecbd0600691");
+    ChaCha20Poly1305 aead = new ChaCha20Poly1305(KEY);
+    aead.setIV(CryptoUtils.parseHexString("070000004041424344454647"));
+    aead.setAuthData(AAD);
+    assertArrayEquals(expected, aead.encrypt().runSync(PLAIN));
+    assertArrayEquals(PLAIN, aead.decrypt().runSync(expected));
+    aead.verify().runSync(expected);
+  }
+  
+  @Test
+  public void testHChaCha20() {
+    int[] key = ChaCha20.keyToWords(CryptoUtils.parseHexString(
+        "000102030405060708090a0b0c0d0e0f101112131415161718191a1b1c1d1e1f"));
+    int[] subKey = ChaCha20.hChaCha20(key, CryptoUtils.parseHexString("000000090000004a0000000031415927"));
+    assertArrayEquals(CryptoUtils.parseHexString(
+        "82413b4227b27bfed30e42508a877d73a0f9e4d58a74a853c12ec41326d3ecdc"),
+        CryptoUtils.intArrayToByteArray(subKey, true));
+  }
+  
+  @Test
+  public void testXChaCha20Poly1305() throws IOException {
+    byte[] expected = CryptoUtils.parseHexString(
+        "bd6d179d3e83d43b9576579493c0e939572a1700252bfaccbed2902c21396cbb731c7f1b0b4aa6440bf3a82f4eda7e39"
+        + "ae64c6708c54c216cb96b72e1213b4522f8c9ba40db5d945b11b69b982c1bb9e3f3fac2bc369488f76b2383565d3fff9"
+        + "21f9664c97637da9768812f615c68b13b52e" + "c0875924c1c7987947deafd8780acf49");
+    XChaCha20Poly1305 aead = new XChaCha20Poly1305(KEY);
+    aead.setIV(CryptoUtils.parseHexString("404142434445464748494a4b4c4d4e4f5051525354555657"));
+    aead.setAuthData(AAD);
+    assertArrayEquals(expected, aead.encrypt().runSync(PLAIN));
+    assertArrayEquals(PLAIN, aead.decrypt().runSync(expected));
+  }
+  
+  @Test
+  public void testLongMessages() throws IOException {
+    Random rand = new Random(38);
+    byte[] nonce = new byte[12];
+    rand.nextBytes(nonce);
+    ChaCha20Poly1305 aead = new ChaCha20Poly1305(KEY);
+    aead.setIV(nonce);
+    aead.setIVPrepending(true);
+    // lengths around the chunk boundary, where decryption holds back the tag
+    for (int len : new int[] {0, 1, 63, 64, 65, 16 * 1024 - 1, 16 * 1024, 16 * 1024 + 15, 16 * 1024 + 16,
+        100000}) {
+      byte[] plain = new byte[len];
+      rand.nextBytes(plain);
+      byte[] sealed = aead.encrypt().runSync(plain);
+      assertEquals(12 + len + ChaCha20Poly1305.TAG_BYTES, sealed.length);
+      assertArrayEquals(plain, new ChaCha20Poly1305(KEY).setIVPrepending(true).decrypt().runSync(sealed));
+      assertEquals(0, aead.verify().runSync(sealed).length);
+      sealed[rand.nextInt(sealed.length - 12) + 12] ^= 1;
+      try {
+        aead.decrypt().runSync(sealed);
+        fail("Tampered message was opened at length " + len);
+      } catch (IOException e) {
+        assertEquals(CryptoException.MAC_DOES_NOT_MATCH, e.getCause().getMessage());
+      }
+    }
+  }
+  
+  @Test
+  public void testStreamedAuthData() throws IOException, CryptoException {
+    byte[] nonce = CryptoUtils.parseHexString("070000004041424344454647");
+    ChaCha20Poly1305 aead = new ChaCha20Poly1305(KEY);
+    aead.setIV(nonce);
+    aead.setAuthData(AAD);
+    byte[] expected = aead.encrypt().runSync(PLAIN);
+    
+    aead.setAuthData(Arrays.copyOf(AAD, 3));
+    aead.updateAAD(AAD, 3, 4);
+    aead.updateAAD(ByteBuffer.wrap(AAD, 7, 2));
+    aead.updateAAD(new ByteArrayInputStream(AAD, 9, 3));
+    assertArrayEquals(expected, aead.encrypt().runSync(PLAIN));
+    
+    // streamed data only applies to one message
+    aead.setAuthData(null);
+    aead.updateAAD(AAD, 0, AAD.length);
+    assertArrayEquals(PLAIN, aead.decrypt().runSync(expected));
+    try {
+      aead.decrypt().runSync(expected);
+      fail("Associated data was reused");
+    } catch (IOException e) {
+      assertEquals(CryptoException.MAC_DOES_NOT_MATCH, e.getCause().getMessage());
+    }
+    
+    aead.updateAAD(AAD, 0, AAD.length);
+    aead.setIV(new byte[12]);
+    try {
+      aead.decrypt().runSync(expected);
+      fail("Associated data survived a new IV");
+    } catch (IOException e) {
+      assertEquals(CryptoException.MAC_DOES_NOT_MATCH, e.getCause().getMessage());
+    }
+  }
+  
+  @Test
+  public void testBenchmark() throws IOException {
+    byte[] data = new byte[1 << 22];
+    ChaCha20Poly1305 aead = new ChaCha20Poly1305(KEY);
+    aead.setIV(new byte[12]);
+    aead.encrypt().runSync(data);
+    long start = System.nanoTime();
+    byte[] sealed = aead.encrypt().runSync(data);
+    long sealTime = System.nanoTime() - start;
+    start = System.nanoTime();
+    aead.decrypt().runSync(sealed);
+    long openTime = System.nanoTime() - start;
+    System.out.println("ChaCha20-Poly1305 4MiB seal: " + sealTime / 1000000 + "ms, open: " + openTime / 1000000
+        + "ms");
+  }
+
+}
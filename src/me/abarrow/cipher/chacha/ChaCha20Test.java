@@ -0,0 +1,101 @@
+package me.abarrow.cipher.chacha;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+import org.junit.Test;
+
+import me.abarrow.cipher.aes.AES;
+import me.abarrow.cipher.mode.CTRMode;
+import me.abarrow.core.CryptoException;
+import me.abarrow.core.CryptoUtils;
+
+public class ChaCha20Test {
+  
+  private static final byte[] KEY = CryptoUtils.parseHexString(
+      "000102030405060708090a0b0c0d0e0f101112131415161718191a1b1c1d1e1f");
+
+  @Test
+  public void testRFC8439Encryption() throws IOException {
+    byte[] nonce = CryptoUtils.parseHexString("000000000000004a00000000");
+    byte[] plain = ("Ladies and Gentlemen of the class of '99: If I could offer you only one tip for the future, "
+        + "sunscreen would be it.").getBytes();
+    byte[] expected = CryptoUtils.parseHexString(
+        "6e2e359a2568f98041ba0728dd0d6981e97e7aec1d4360c20a27afccfd9fae0bf91b65c5524733ab8f593dabcd62b357"
+        + "1639d624e65152ab8f530c359f0861d807ca0dbf500d6a6156a38e088a22b65e52bc514d16ccf806818ce91ab7793736"
+        + "5af90bbf74a35be6b40b8eedf2785e42874d");
+    ChaCha20 chacha = new ChaCha20(KEY, nonce).setInitialCounter(1);
+    chacha.setIVPrepending(false);
+    assertArrayEquals(expected, chacha.encrypt().runSync(plain));
+    assertArrayEquals(plain, chacha.decrypt().runSync(expected));
+  }
+  
+  @Test
+  public void testSeek() throws IOException {
+    byte[] nonce = CryptoUtils.parseHexString("000000000000004a00000000");
+    ChaCha20 chacha = new ChaCha20(KEY, nonce);
+    chacha.setIVPrepending(false);
+    byte[] keyStream = chacha.encrypt().runSync(new byte[5000]);
+    assertArrayEquals(CryptoUtils.parseHexString(
+        "72db4d64b696df68bc92f68248f7b4313d60beb56a31f6f087a6b2f3628b32be5a93a41f0bf105f9"),
+        Arrays.copyOfRange(keyStream, 600, 640));
+    for (int offset : new int[] {1, 63, 64, 65, 300, 999, 2047, 2048, 3001}) {
+      byte[] tail = chacha.seek(offset).encrypt().runSync(new byte[5000 - offset]);
+      assertArrayEquals(Arrays.copyOfRange(keyStream, offset, 5000), tail);
+    }
+  }
+  
+  @Test
+  public void testLanesMatchSingleBlocks() {
+    int[] state = new int[16];
+    for (int i = 0; i < state.length; i++) {
+      state[i] = i * 0x9e3779b9;
+    }
+    byte[] wide = new byte[ChaCha20.PARALLEL_BLOCKS * ChaCha20.BLOCK_BYTES];
+    byte[] single = new byte[wide.length];
+    for (int counter : new int[] {0, 1, -3}) {
+      ChaCha20.generate(state, counter, wide, 0, ChaCha20.PARALLEL_BLOCKS, new int[16][ChaCha20.PARALLEL_BLOCKS]);
+      for (int b = 0; b < ChaCha20.PARALLEL_BLOCKS; b++) {
+        ChaCha20.block(state, counter + b, single, b * ChaCha20.BLOCK_BYTES);
+      }
+      assertArrayEquals(single, wide);
+    }
+  }
+  
+  @Test
+  public void testIVPrepending() throws IOException {
+    byte[] nonce = new byte[12];
+    nonce[3] = 7;
+    byte[] plain = "prepended".getBytes();
+    byte[] out = new ChaCha20(KEY, nonce).encrypt().runSync(plain);
+    assertArrayEquals(nonce, Arrays.copyOf(out, 12));
+    assertArrayEquals(plain, new ChaCha20(KEY).decrypt().runSync(out));
+  }
+  
+  @Test(expected = IOException.class)
+  public void testCounterExhausted() throws IOException {
+    ChaCha20 chacha = new ChaCha20(KEY, new byte[12]).setInitialCounter(-1);
+    chacha.encrypt().runSync(new byte[65]);
+  }
+  
+  @Test
+  public void testThroughputAgainstAESCTR() throws CryptoException, IOException {
+    byte[] plain = new byte[4 << 20];
+    ChaCha20 chacha = new ChaCha20(KEY, new byte[12]);
+    CTRMode ctr = new CTRMode(new AES(Arrays.copyOf(KEY, 16)), new byte[16]);
+    chacha.encrypt().runSync(plain);
+    ctr.encrypt().runSync(plain);
+    
+    long start = System.nanoTime();
+    chacha.encrypt().runSync(plain);
+    long chachaTime = System.nanoTime() - start;
+    start = System.nanoTime();
+    ctr.encrypt().runSync(plain);
+    long ctrTime = System.nanoTime() - start;
+    System.out.println("4MiB ChaCha20 took " + Math.round(chachaTime / 1e6) + "ms, CTRMode(AES) took "
+        + Math.round(ctrTime / 1e6) + "ms");
+  }
+
+}
@@ -0,0 +1,86 @@
+package me.abarrow.cipher.chacha;
+
+import me.abarrow.core.CryptoException;
+import me.abarrow.core.CryptoUtils;
+
+/**
+ * The running key stream of one ChaCha20 message, refilled {@link ChaCha20#PARALLEL_BLOCKS} blocks at a time.
+ */
+final class ChaChaKeyStream {
+  
+  private static final int BUFFER_BYTES = ChaCha20.PARALLEL_BLOCKS * ChaCha20.BLOCK_BYTES;
+  
+  private final int[] state = new int[16];
+  private final byte[] buffer = new byte[BUFFER_BYTES];
+  // only needed once a full buffer is generated, so short messages do without it
+  private int[][] lanes;
+  private int used;
+  private long nextBlock;
+  
+  /**
+   * @param position the byte of key stream to start at, counted from block 0
+   */
+  ChaChaKeyStream(int[] key, byte[] nonce, long position) throws CryptoException {
+    state[0] = ChaCha20.SIGMA_0;
+    state[1] = ChaCha20.SIGMA_1;
+    state[2] = ChaCha20.SIGMA_2;
+    state[3] = ChaCha20.SIGMA_3;
+    System.arraycopy(key, 0, state, 4, 8);
+    state[13] = CryptoUtils.intFromBytes(nonce, 0, true);
+    state[14] = CryptoUtils.intFromBytes(nonce, 4, true);
+    state[15] = CryptoUtils.intFromBytes(nonce, 8, true);
+    nextBlock = position / ChaCha20.BLOCK_BYTES;
+    used = BUFFER_BYTES;
+    int skip = (int) (position % ChaCha20.BLOCK_BYTES);
+    if (skip != 0) {
+      refill(1);
+      used = BUFFER_BYTES - ChaCha20.BLOCK_BYTES + skip;
+    }
+  }
+  
+  /**
+   * Refills the end of the buffer with the given number of blocks.
+   */
+  private void refill(int blocks) throws CryptoException {
+    if (nextBlock + blocks > ChaCha20.MAX_BLOCKS) {
+      throw new CryptoException(CryptoException.MESSAGE_TOO_LONG);
+    }
+    int off = BUFFER_BYTES - blocks * ChaCha20.BLOCK_BYTES;
+    if (blocks == ChaCha20.PARALLEL_BLOCKS && lanes == null) {
+      lanes = new int[16][ChaCha20.PARALLEL_BLOCKS];
+    }
+    ChaCha20.generate(state, (int) nextBlock, buffer, off, blocks, lanes);
+    nextBlock += blocks;
+    used = off;
+  }
+  
+  /**
+   * out = in XOR the next len bytes of key stream, which may be done in place.
+   */
+  void xor(byte[] in, int inOff, byte[] out, int outOff, int len) throws CryptoException {
+    while (len > 0) {
+      if (used == BUFFER_BYTES) {
+        // only generate the blocks needed for short messages
+        int wanted = (len + ChaCha20.BLOCK_BYTES - 1) / ChaCha20.BLOCK_BYTES;
+        refill(Math.min(ChaCha20.PARALLEL_BLOCKS, wanted));
+      }
+      int n = Math.min(len, BUFFER_BYTES - used);
+      CryptoUtils.xorByteArrays(in, inOff, buffer, used, out, outOff, n);
+      used += n;
+      inOff += n;
+      outOff += n;
+      len -= n;
+    }
+  }
+  
+  void clear() {
+    CryptoUtils.fillWithZeroes(state);
+    CryptoUtils.fillWithZeroes(buffer);
+    if (lanes != null) {
+      for (int[] row : lanes) {
+        CryptoUtils.fillWithZeroes(row);
+      }
+    }
+  }
+
+}
@@ -0,0 +1,38 @@
+package me.abarrow.cipher.chacha;
+
+import me.abarrow.core.CryptoException;
+import me.abarrow.core.CryptoUtils;
+
+/**
+ * ChaCha20-Poly1305 with 24 byte nonces, which are long enough to be chosen at random. The first 16 bytes of the
+ * nonce derive a subkey with HChaCha20, and the last 8 are the ChaCha20 nonce under it.
+ */
+public class XChaCha20Poly1305 extends ChaCha20Poly1305 {
+  
+  public static final int NONCE_BYTES = 24;
+  
+  public XChaCha20Poly1305() {
+  }
+  
+  public XChaCha20Poly1305(byte[] key) {
+    super(key);
+  }
+  
+  @Override
+  public int getNonceBytes() {
+    return NONCE_BYTES;
+  }
+  
+  @Override
+  ChaChaKeyStream openKeyStream(int[] messageKey, byte[] nonce, long position) throws CryptoException {
+    int[] subKey = ChaCha20.hChaCha20(messageKey, nonce);
+    byte[] subNonce = new byte[ChaCha20.NONCE_BYTES];
+    System.arraycopy(nonce, 16, subNonce, 4, 8);
+    try {
+      return new ChaChaKeyStream(subKey, subNonce, position);
+    } finally {
+      CryptoUtils.fillWithZeroes(subKey);
+    }
+  }
+
+}
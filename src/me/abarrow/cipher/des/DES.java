@@ -5,6 +5,7 @@ import java.util.Arrays;
 import me.abarrow.cipher.BlockCipher;
 import me.abarrow.core.CryptoException;
 import me.abarrow.core.CryptoUtils;
+import me.abarrow.core.KeySchedule;
 
 public class DES extends BlockCipher {
 
@@ -76,6 +77,10 @@ public class DES extends BlockCipher {
   
   private long[] subKeys;
   
+  private DESKeySchedule schedule;
+  
+  private boolean ownsSchedule;
+  
   public DES() {
   }
   
@@ -83,6 +88,10 @@ public class DES extends BlockCipher {
     setKey(key);
     
   }
+  
+  public DES(DESKeySchedule sharedSchedule) throws CryptoException {
+    bindShared(sharedSchedule);
+  }
 
   @Override
   public int getBlockBytes() {
@@ -201,20 +210,14 @@ public class DES extends BlockCipher {
   }
 
   @Override
-  public void removeKey() {
-    if (!hasKey()) {
-      return;
-    }
-    CryptoUtils.fillWithZeroes(subKeys);
-    subKeys = null;
-    
+  public void setKey(byte[] key) {
+    bind(expandKey(key), true);
   }
-
+  
   @Override
-  public void setKey(byte[] key) {
-    removeKey();
+  public DESKeySchedule expandKey(byte[] key) {
     byte[] premutated = new byte[DES.BLOCK_BYTES];
-    subKeys = new long[DES.ROUNDS];
+    long[] subKeys = new long[DES.ROUNDS];
     
     byte[] swap;
     byte[] fortyEightBits = new byte[6];
@@ -247,11 +250,70 @@ public class DES extends BlockCipher {
     }
     
     Arrays.fill(thirtyTwoBits, CryptoUtils.ZERO_BYTE);
+    return new DESKeySchedule(subKeys);
+  }
+
+  @Override
+  public void removeKey() {
+    if (schedule == null) {
+      return;
+    }
+    if (ownsSchedule) {
+      schedule.destroy();
+    } else {
+      schedule.release();
+    }
+    subKeys = null;
+    schedule = null;
+  }
+
+  @Override
+  public void setKeySchedule(KeySchedule sharedSchedule) throws CryptoException {
+    if (!(sharedSchedule instanceof DESKeySchedule)) {
+      throw new CryptoException(CryptoException.INCOMPATIBLE_KEY_SCHEDULE);
+    }
+    bindShared((DESKeySchedule) sharedSchedule);
+  }
+  
+  /**
+   * Binds to a schedule owned elsewhere, refusing one that has already been destroyed.
+   */
+  private void bindShared(DESKeySchedule sharedSchedule) throws CryptoException {
+    // take the reference first, so a destroyed schedule leaves the current key in place
+    if (!sharedSchedule.retain()) {
+      throw new CryptoException(CryptoException.NO_KEY);
+    }
+    bind(sharedSchedule, false);
+  }
+  
+  private void bind(DESKeySchedule newSchedule, boolean owned) {
+    removeKey();
+    schedule = newSchedule;
+    ownsSchedule = owned;
+    subKeys = schedule.subKeys;
+  }
+  
+  @Override
+  public DESKeySchedule getKeySchedule() {
+    return schedule;
+  }
+  
+  @Override
+  public DES newHandle() throws CryptoException {
+    if (!hasKey()) {
+      throw new CryptoException(CryptoException.NO_KEY);
+    }
+    return new DES(schedule);
+  }
+  
+  @Override
+  public boolean supportsHandles() {
+    return true;
   }
 
   @Override
   public boolean hasKey() {
-    return subKeys != null;
+    return schedule != null && !schedule.isDestroyed();
   }
 
 }
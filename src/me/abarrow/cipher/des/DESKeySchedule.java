@@ -0,0 +1,18 @@
+package me.abarrow.cipher.des;
+
+import me.abarrow.core.CryptoUtils;
+import me.abarrow.core.KeySchedule;
+
+public final class DESKeySchedule extends KeySchedule {
+  
+  final long[] subKeys;
+  
+  DESKeySchedule(long[] roundSubKeys) {
+    subKeys = roundSubKeys;
+  }
+
+  @Override
+  protected void zero() {
+    CryptoUtils.fillWithZeroes(subKeys);
+  }
+}
@@ -0,0 +1,293 @@
+package me.abarrow.cipher.mode;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ForkJoinPool;
+
+import me.abarrow.cipher.BlockCipher;
+import me.abarrow.core.CryptoException;
+import me.abarrow.core.CryptoUtils;
+
+/**
+ * Seals and opens many small GCM messages under one key in a single call. H and the GHASH tables are computed once
+ * per key rather than once per message, and each record goes straight from its input array to its output array
+ * without any stream plumbing, reusing one key stream buffer per worker.
+ * <p>
+ * Batches are split between workers on the executor when the block cipher supports {@link BlockCipher#newHandle()}.
+ * Output is identical to {@link GCMMode}: the cipher text followed by a 16 byte tag.
+ */
+public class GCMBatchSealer {
+  
+  public static final int TAG_BYTES = 16;
+  
+  private static final int BLOCK_SIZE = 16;
+  // batches smaller than this per worker are not worth handing to other threads
+  private static final int MIN_RECORDS_PER_WORKER = 64;
+  
+  private final BlockCipher bc;
+  private final int parallelism;
+  private final ExecutorService executor;
+  
+  private final KeyedTable<GHash> gHash;
+  
+  public GCMBatchSealer(BlockCipher blockCipher) throws CryptoException {
+    this(blockCipher, Runtime.getRuntime().availableProcessors(), ForkJoinPool.commonPool());
+  }
+  
+  public GCMBatchSealer(BlockCipher blockCipher, int parallelism, ExecutorService executor)
+      throws CryptoException {
+    if (blockCipher.getBlockBytes() != BLOCK_SIZE) {
+      throw new CryptoException(CryptoException.INCOMPATIBLE_CIPHER);
+    }
+    if (parallelism <= 0) {
+      throw new IllegalArgumentException("Parallelism must be positive.");
+    }
+    bc = blockCipher;
+    this.parallelism = parallelism;
+    this.executor = executor;
+    gHash = new KeyedTable<GHash>(bc) {
+      @Override
+      protected GHash build(byte[] h) {
+        return new GHash(h, GHash.SHOUP_8_BIT);
+      }
+    };
+  }
+  
+  public GCMBatchSealer setKey(byte[] key) {
+    gHash.clear();
+    bc.setKey(key);
+    return this;
+  }
+  
+  public boolean hasKey() {
+    return bc.hasKey();
+  }
+  
+  public GCMBatchSealer removeKey() {
+    gHash.clear();
+    bc.removeKey();
+    return this;
+  }
+  
+  /**
+   * Seals every record, returning the cipher text and tag of each. Associated data may be null, as a whole or for
+   * any record.
+   */
+  public byte[][] seal(byte[][] nonces, byte[][] authData, byte[][] plainTexts) throws CryptoException {
+    checkLengths(nonces, authData, plainTexts);
+    final byte[][] sealed = new byte[plainTexts.length][];
+    for (int n = 0; n < plainTexts.length; n++) {
+      sealed[n] = new byte[plainTexts[n].length + TAG_BYTES];
+    }
+    runBatch(plainTexts.length, new RecordTask() {
+      @Override
+      public void run(Worker worker, int n) throws CryptoException {
+        byte[] aad = authData == null ? null : authData[n];
+        worker.seal(nonces[n], aad, plainTexts[n], 0, plainTexts[n].length, sealed[n], 0);
+      }
+    });
+    return sealed;
+  }
+  
+  /**
+   * Opens every record, returning its plain text, or null for any record whose tag does not match.
+   */
+  public byte[][] open(byte[][] nonces, byte[][] authData, byte[][] sealed) throws CryptoException {
+    checkLengths(nonces, authData, sealed);
+    final byte[][] plainTexts = new byte[sealed.length][];
+    runBatch(sealed.length, new RecordTask() {
+      @Override
+      public void run(Worker worker, int n) throws CryptoException {
+        byte[] aad = authData == null ? null : authData[n];
+        if (sealed[n].length < TAG_BYTES) {
+          return;
+        }
+        byte[] plain = new byte[sealed[n].length - TAG_BYTES];
+        if (worker.open(nonces[n], aad, sealed[n], 0, plain.length, plain, 0)) {
+          plainTexts[n] = plain;
+        }
+      }
+    });
+    return plainTexts;
+  }
+  
+  /**
+   * Seals the remaining bytes of each plain text buffer into the matching output buffer, advancing the positions of
+   * both.
+   */
+  public void seal(ByteBuffer[] nonces, ByteBuffer[] authData, ByteBuffer[] plainTexts, ByteBuffer[] outputs)
+      throws CryptoException {
+    checkLengths(nonces, authData, plainTexts);
+    if (outputs.length != plainTexts.length) {
+      throw new IllegalArgumentException("Every record needs an output buffer.");
+    }
+    for (int n = 0; n < outputs.length; n++) {
+      if (outputs[n].remaining() < plainTexts[n].remaining() + TAG_BYTES) {
+        throw new IllegalArgumentException("Output buffer " + n + " is too small.");
+      }
+    }
+    runBatch(plainTexts.length, new RecordTask() {
+      @Override
+      public void run(Worker worker, int n) throws CryptoException {
+        byte[] nonce = toArray(nonces[n]);
+        byte[] aad = authData == null || authData[n] == null ? null : toArray(authData[n]);
+        ByteBuffer in = plainTexts[n];
+        ByteBuffer out = outputs[n];
+        int len = in.remaining();
+        if (in.hasArray() && out.hasArray()) {
+          worker.seal(nonce, aad, in.array(), in.arrayOffset() + in.position(), len, out.array(),
+              out.arrayOffset() + out.position());
+        } else {
+          byte[] sealed = new byte[len + TAG_BYTES];
+          in.duplicate().get(sealed, 0, len);
+          worker.seal(nonce, aad, sealed, 0, len, sealed, 0);
+          out.duplicate().put(sealed);
+          CryptoUtils.fillWithZeroes(sealed);
+        }
+        in.position(in.limit());
+        out.position(out.position() + len + TAG_BYTES);
+      }
+    });
+  }
+  
+  private static byte[] toArray(ByteBuffer buffer) {
+    byte[] bytes = new byte[buffer.remaining()];
+    buffer.duplicate().get(bytes);
+    return bytes;
+  }
+  
+  private static void checkLengths(Object[] nonces, Object[] authData, Object[] texts) {
+    if (nonces.length != texts.length || (authData != null && authData.length != texts.length)) {
+      throw new IllegalArgumentException("Every record needs a nonce and, if any are given, associated data.");
+    }
+  }
+  
+  private interface RecordTask {
+    void run(Worker worker, int record) throws CryptoException;
+  }
+  
+  private void runBatch(int records, final RecordTask task) throws CryptoException {
+    final GHash g = gHash.get();
+    int workers = Math.max(1, Math.min(parallelism, records / MIN_RECORDS_PER_WORKER));
+    if (workers == 1 || !bc.supportsHandles()) {
+      Worker worker = new Worker(bc, g);
+      try {
+        for (int n = 0; n < records; n++) {
+          task.run(worker, n);
+        }
+      } finally {
+        worker.clear();
+      }
+      return;
+    }
+    List<Callable<Void>> tasks = new ArrayList<Callable<Void>>();
+    for (int w = 0; w < workers; w++) {
+      final int from = (int) ((long) records * w / workers);
+      final int to = (int) ((long) records * (w + 1) / workers);
+      tasks.add(new Callable<Void>() {
+        @Override
+        public Void call() throws CryptoException {
+          BlockCipher handle = bc.newHandle();
+          Worker worker = new Worker(handle, g);
+          try {
+            for (int n = from; n < to; n++) {
+              task.run(worker, n);
+            }
+          } finally {
+            worker.clear();
+            handle.removeKey();
+          }
+          return null;
+        }
+      });
+    }
+    try {
+      ParallelTasks.invokeAll(executor, tasks);
+    } catch (IOException e) {
+      throw new CryptoException(e);
+    }
+  }
+  
+  /**
+   * The scratch space of one thread.
+   */
+  private static final class Worker {
+    private final BlockCipher bc;
+    private final GHash g;
+    private final long[] hash = new long[2];
+    private final byte[] j0 = new byte[BLOCK_SIZE];
+    private final byte[] tag = new byte[TAG_BYTES];
+    private byte[] keyStream = new byte[16 * BLOCK_SIZE];
+    
+    Worker(BlockCipher blockCipher, GHash gHash) {
+      bc = blockCipher;
+      g = gHash;
+    }
+    
+    /**
+     * Fills the key stream with E(J0) followed by the counter blocks for len bytes.
+     */
+    private void prepare(byte[] nonce, int len) throws CryptoException {
+      GCMMode.preCounterBlock(g, nonce, j0);
+      int blocks = (len + BLOCK_SIZE - 1) / BLOCK_SIZE + 1;
+      if (keyStream.length < blocks * BLOCK_SIZE) {
+        CryptoUtils.fillWithZeroes(keyStream);
+        keyStream = new byte[blocks * BLOCK_SIZE];
+      }
+      int counter = CryptoUtils.intFromBytes(j0, 12);
+      for (int n = 0; n < blocks; n++) {
+        System.arraycopy(j0, 0, keyStream, n * BLOCK_SIZE, 12);
+        CryptoUtils.intToBytes(counter + n, keyStream, n * BLOCK_SIZE + 12);
+      }
+      bc.encryptBlocks(keyStream, 0, keyStream, 0, blocks);
+    }
+    
+    private void computeTag(byte[] aad, byte[] cipherText, int off, int len) {
+      hash[0] = 0;
+      hash[1] = 0;
+      long aLen = 0;
+      if (aad != null) {
+        g.update(hash, aad, 0, aad.length);
+        aLen = aad.length;
+      }
+      g.update(hash, cipherText, off, len);
+      g.finish(hash, aLen, len);
+      GHash.toBytes(hash, tag, 0);
+      CryptoUtils.xorByteArrays(tag, 0, keyStream, 0, tag, 0, TAG_BYTES);
+    }
+    
+    void seal(byte[] nonce, byte[] aad, byte[] in, int inOff, int len, byte[] out, int outOff)
+        throws CryptoException {
+      prepare(nonce, len);
+      CryptoUtils.xorByteArrays(in, inOff, keyStream, BLOCK_SIZE, out, outOff, len);
+      computeTag(aad, out, outOff, len);
+      System.arraycopy(tag, 0, out, outOff + len, TAG_BYTES);
+    }
+    
+    /**
+     * Only writes the plain text once the tag has been checked.
+     */
+    boolean open(byte[] nonce, byte[] aad, byte[] in, int inOff, int len, byte[] out, int outOff)
+        throws CryptoException {
+      prepare(nonce, len);
+      computeTag(aad, in, inOff, len);
+      if (!CryptoUtils.constantTimeSubArrayEquals(tag, 0, in, inOff + len, TAG_BYTES)) {
+        return false;
+      }
+      CryptoUtils.xorByteArrays(in, inOff, keyStream, BLOCK_SIZE, out, outOff, len);
+      return true;
+    }
+    
+    void clear() {
+      CryptoUtils.fillWithZeroes(hash);
+      CryptoUtils.fillWithZeroes(j0);
+      CryptoUtils.fillWithZeroes(tag);
+      CryptoUtils.fillWithZeroes(keyStream);
+    }
+  }
+
+}
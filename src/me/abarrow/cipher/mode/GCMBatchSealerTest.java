@@ -0,0 +1,108 @@
+package me.abarrow.cipher.mode;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.junit.Test;
+
+import me.abarrow.cipher.aes.AES;
+import me.abarrow.core.CryptoException;
+
+public class GCMBatchSealerTest {
+  
+  private static final byte[] KEY = new byte[] {1, 2, 3, 4, 5, 6, 7, 8, 9, 10, 11, 12, 13, 14, 15, 16};
+
+  @Test
+  public void testMatchesGCMMode() throws CryptoException, IOException {
+    Random rand = new Random(11);
+    int records = 300;
+    byte[][] nonces = new byte[records][];
+    byte[][] authData = new byte[records][];
+    byte[][] plainTexts = new byte[records][];
+    for (int n = 0; n < records; n++) {
+      nonces[n] = new byte[n % 10 == 0 ? 16 : 12];
+      authData[n] = n % 3 == 0 ? null : new byte[rand.nextInt(40)];
+      plainTexts[n] = new byte[rand.nextInt(300)];
+      rand.nextBytes(nonces[n]);
+      if (authData[n] != null) {
+        rand.nextBytes(authData[n]);
+      }
+      rand.nextBytes(plainTexts[n]);
+    }
+    
+    ExecutorService pool = Executors.newFixedThreadPool(4);
+    try {
+      for (int parallelism : new int[] {1, 4}) {
+        GCMBatchSealer sealer = new GCMBatchSealer(new AES(KEY), parallelism, pool);
+        byte[][] sealed = sealer.seal(nonces, authData, plainTexts);
+        for (int n = 0; n < records; n++) {
+          byte[] expected = new GCMMode(new AES(KEY)).setAuthData(authData[n]).setIV(nonces[n]).encrypt()
+              .runSync(plainTexts[n]);
+          assertArrayEquals(expected, sealed[n]);
+        }
+        
+        sealed[7][3] ^= 1;
+        byte[][] opened = sealer.open(nonces, authData, sealed);
+        for (int n = 0; n < records; n++) {
+          if (n == 7) {
+            assertNull(opened[n]);
+          } else {
+            assertArrayEquals(plainTexts[n], opened[n]);
+          }
+        }
+      }
+    } finally {
+      pool.shutdown();
+    }
+  }
+  
+  @Test
+  public void testByteBuffers() throws CryptoException {
+    GCMBatchSealer sealer = new GCMBatchSealer(new AES(KEY));
+    byte[] nonce = new byte[12];
+    byte[] plain = "a record on the bus".getBytes();
+    byte[] expected = sealer.seal(new byte[][] {nonce}, null, new byte[][] {plain})[0];
+    
+    ByteBuffer direct = ByteBuffer.allocateDirect(plain.length);
+    direct.put(plain).flip();
+    ByteBuffer[] outputs = new ByteBuffer[] {ByteBuffer.allocate(100), ByteBuffer.allocateDirect(100)};
+    sealer.seal(new ByteBuffer[] {ByteBuffer.wrap(nonce), ByteBuffer.wrap(nonce)}, null,
+        new ByteBuffer[] {ByteBuffer.wrap(plain), direct}, outputs);
+    for (ByteBuffer out : outputs) {
+      assertEquals(expected.length, out.position());
+      out.flip();
+      byte[] sealed = new byte[out.remaining()];
+      out.get(sealed);
+      assertArrayEquals(expected, sealed);
+    }
+    assertFalse(direct.hasRemaining());
+  }
+  
+  @Test
+  public void testThroughput() throws CryptoException, IOException {
+    int records = 20000;
+    byte[][] nonces = new byte[records][12];
+    byte[][] plainTexts = new byte[records][200];
+    
+    long start = System.nanoTime();
+    GCMMode gcm = new GCMMode(new AES(KEY));
+    for (int n = 0; n < records; n++) {
+      gcm.setIV(nonces[n]);
+      gcm.encrypt().runSync(plainTexts[n]);
+    }
+    long serialTime = System.nanoTime() - start;
+    
+    GCMBatchSealer sealer = new GCMBatchSealer(new AES(KEY));
+    start = System.nanoTime();
+    sealer.seal(nonces, null, plainTexts);
+    long batchTime = System.nanoTime() - start;
+    System.out.println("Sealing 20000 200 byte records one at a time took " + Math.round(serialTime / 1e6)
+        + "ms, batched took " + Math.round(batchTime / 1e6) + "ms");
+  }
+
+}
@@ -3,6 +3,7 @@ package me.abarrow.cipher.mode;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.nio.ByteBuffer;
 import java.util.Arrays;
 
 import me.abarrow.cipher.AuthenticatedCipher;
@@ -12,6 +13,7 @@ import me.abarrow.core.CryptoException;
 import me.abarrow.core.CryptoUtils;
 import me.abarrow.math.Int128;
 import me.abarrow.stream.StreamProcess;
+import me.abarrow.stream.StreamUtils;
 import me.abarrow.stream.SuffixStream;
 import me.abarrow.stream.DirectByteOutputStream;
 
@@ -22,15 +24,111 @@ public class GCMMode implements AuthenticatedCipher {
   private byte[] authData = null;
   private BlockCipher bc;
   private boolean prpendingIV = false;
+  
+  private int ghashTableBits;
+  private final KeyedTable<GHash> gHash;
+  
+  // associated data given to updateAAD, hashed as it arrives
+  private long[] aadHash = null;
+  private byte[] aadBlock = null;
+  private int aadBlockCount = 0;
+  private long aadLength = 0;
+  // H the pending associated data was hashed under
+  private long[] aadKey = null;
 
   
   private static final int BLOCK_SIZE = 16;
+  // blocks read from a stream at a time, so the cipher and GHASH see runs of blocks
+  private static final int STREAM_BLOCKS = 64;
 
   public GCMMode(BlockCipher blockCipher) throws CryptoException {
+    this(blockCipher, GHash.SHOUP_8_BIT);
+  }
+  
+  /**
+   * @param tableBits the size of the per key GHASH tables, one of {@link GHash#SHOUP_8_BIT},
+   * {@link GHash#SHOUP_4_BIT} or {@link GHash#NO_TABLE}
+   */
+  public GCMMode(BlockCipher blockCipher, int tableBits) throws CryptoException {
     bc = blockCipher;
     if (bc.getBlockBytes() != BLOCK_SIZE) {
       throw new CryptoException(CryptoException.INCOMPATIBLE_CIPHER);
     }
+    gHash = new KeyedTable<GHash>(bc) {
+      @Override
+      protected GHash build(byte[] h) {
+        return new GHash(h, ghashTableBits);
+      }
+    };
+    setGHashTableBits(tableBits);
+  }
+  
+  public GCMMode setGHashTableBits(int tableBits) {
+    if (tableBits != GHash.NO_TABLE && tableBits != GHash.SHOUP_4_BIT && tableBits != GHash.SHOUP_8_BIT) {
+      throw new IllegalArgumentException("GHASH tables can only be indexed by 0, 4 or 8 bits.");
+    }
+    if (tableBits != ghashTableBits) {
+      gHash.clear();
+    }
+    ghashTableBits = tableBits;
+    return this;
+  }
+  
+  public int getGHashTableBits() {
+    return ghashTableBits;
+  }
+  
+  /**
+   * Returns the GHASH tables for the current key, only building them again once the key changes.
+   */
+  GHash getGHash() throws CryptoException {
+    return gHash.get();
+  }
+  
+  BlockCipher getBlockCipher() {
+    return bc;
+  }
+  
+  /**
+   * Sets hash to the GHASH of the associated data, without its final length block, and returns its length.
+   */
+  long hashAuthData(GHash g, long[] hash) throws CryptoException {
+    if (aadHash != null) {
+      checkAADKey(g);
+      hash[0] = aadHash[0];
+      hash[1] = aadHash[1];
+      g.update(hash, aadBlock, 0, aadBlockCount);
+      return aadLength;
+    }
+    if (authData != null) {
+      g.update(hash, authData, 0, authData.length);
+      return authData.length;
+    }
+    return 0;
+  }
+  
+  /**
+   * Computes the pre-counter block J0 for any length of IV.
+   */
+  public static byte[] preCounterBlock(GHash g, byte[] iv, byte[] dest) {
+    if (iv.length == 12) {
+      System.arraycopy(iv, 0, dest, 0, 12);
+      CryptoUtils.intToBytes(1, dest, 12);
+      return dest;
+    }
+    return hashIV(g, iv, dest);
+  }
+  
+  /**
+   * Computes the pre-counter block J0 for an IV which is not 96 bits long.
+   */
+  static byte[] hashIV(GHash g, byte[] iv, byte[] dest) {
+    long[] state = new long[2];
+    g.update(state, iv, 0, iv.length);
+    g.finish(state, 0, iv.length);
+    GHash.toBytes(state, dest, 0);
+    CryptoUtils.fillWithZeroes(state);
+    return dest;
   }
   
   public static void ghash(Int128 h, byte[] a, byte[] c, Int128 hash, Int128 spare) {
@@ -80,6 +178,19 @@ public class GCMMode implements AuthenticatedCipher {
   private static void weirdIncrement(Int128 x) {
     x.setWord(3, CryptoUtils.reverseIntBitOrder(CryptoUtils.reverseIntBitOrder(x.getWord(3))+1));
   }
+  
+  /**
+   * Fills the key stream with the encryptions of the next blocks counters.
+   */
+  private void nextKeyStream(Int128 counter, byte[] counterBlock, byte[] keyStream, int blocks)
+      throws CryptoException {
+    for (int n = 0; n < blocks; n++) {
+      weirdIncrement(counter);
+      counter.toLittleBitEndianBytes(counterBlock);
+      System.arraycopy(counterBlock, 0, keyStream, n * BLOCK_SIZE, BLOCK_SIZE);
+    }
+    bc.encryptBlocks(keyStream, 0, keyStream, 0, blocks);
+  }
 
 	@Override
 	public StreamProcess encrypt() {
@@ -93,19 +204,17 @@ public class GCMMode implements AuthenticatedCipher {
         byte[] block = new byte[BLOCK_SIZE];
         byte[] encryptedIV = new byte[BLOCK_SIZE];
         byte[] counterBlock = new byte[BLOCK_SIZE];
+        byte[] chunk = new byte[STREAM_BLOCKS * BLOCK_SIZE];
+        byte[] keyStream = new byte[STREAM_BLOCKS * BLOCK_SIZE];
 
-        Int128 hInt = new Int128();
         Int128 counter = new Int128();
-        Int128 hash = new Int128();
-        Int128 spare = new Int128();
+        long[] hash = new long[2];
         
         long aLen = 0;
         
         try {
-          // prepare the finite field multiplier hInt and encrypt the IV
-          bc.encryptBlock(block, block);
-          hInt.copyFromLittleBitEndian(block);
-          CryptoUtils.fillWithZeroes(block);
+          // prepare the GHASH tables and encrypt the IV
+          GHash g = getGHash();
           if (iv.length == 12) {
             if (prpendingIV) {
               out.write(iv);
@@ -117,49 +226,35 @@ public class GCMMode implements AuthenticatedCipher {
             if (prpendingIV) {
               throw new IOException(new CryptoException(CryptoException.CANNOT_PREPEND__IV));
             }
-            ghash(hInt, new byte[0], iv, counter, spare);
+            counter.copyFromLittleBitEndian(hashIV(g, iv, block));
           }
+          CryptoUtils.fillWithZeroes(block);
           counter.toLittleBitEndianBytes(encryptedIV);
           bc.encryptBlock(encryptedIV, encryptedIV);
           // prepare hash
-          if (authData != null) {
-            ghash_array(hash, hInt, authData, spare);
-            aLen = authData.length;
-          }
+          aLen = hashAuthData(g, hash);
           
           // encrypt message
           long cLen = 0;
-          while(true) {
-            weirdIncrement(counter);
-            counter.toLittleBitEndianBytes(counterBlock);
-            bc.encryptBlock(counterBlock, counterBlock);
-            
-            int read = in.read(block);
-            if (read == -1) {
+          while (true) {
+            int read = StreamUtils.readFully(in, chunk, 0, chunk.length);
+            if (read == 0) {
               break;
             }
             cLen += read;
-            if (read == BLOCK_SIZE) {
-              CryptoUtils.xorByteArrays(block, counterBlock, block);
-              ghash_block(hash, hInt, block, 0, spare);
-              out.write(block);
-            } else {
-              // Fill the remainder of the block with 0s
-              for (int n = read; n < BLOCK_SIZE; n++) {
-                block[n] = 0;
-                counterBlock[n] = 0;
-              }
-              CryptoUtils.xorByteArrays(block, counterBlock, block);
-              ghash_block(hash, hInt, block, 0, spare);
-              out.write(block, 0, read);
+            nextKeyStream(counter, counterBlock, keyStream, (read + BLOCK_SIZE - 1) / BLOCK_SIZE);
+            CryptoUtils.xorByteArrays(chunk, 0, keyStream, 0, chunk, 0, read);
+            g.update(hash, chunk, 0, read);
+            out.write(chunk, 0, read);
+            if (read < chunk.length) {
               break;
             }
           }
           in.close();
           
           //finish hash
-          finish_ghash(hash, hInt, aLen * 8, cLen * 8, spare);
-          hash.toLittleBitEndianBytes(block);
+          g.finish(hash, aLen, cLen);
+          GHash.toBytes(hash, block, 0);
           CryptoUtils.xorByteArrays(block, encryptedIV, encryptedIV);
           
           out.write(encryptedIV);
@@ -169,7 +264,9 @@ public class GCMMode implements AuthenticatedCipher {
           CryptoUtils.fillWithZeroes(block);
           CryptoUtils.fillWithZeroes(encryptedIV);
           CryptoUtils.fillWithZeroes(counterBlock);
-          hInt.toZero();
+          CryptoUtils.fillWithZeroes(chunk);
+          CryptoUtils.fillWithZeroes(keyStream);
+          CryptoUtils.fillWithZeroes(hash);
           counter.toZero();
         }
       }
@@ -196,37 +293,33 @@ public class GCMMode implements AuthenticatedCipher {
         byte[] block = new byte[BLOCK_SIZE];
         byte[] encryptedIV = new byte[BLOCK_SIZE];
         byte[] counterBlock = new byte[BLOCK_SIZE];
+        byte[] chunk = new byte[STREAM_BLOCKS * BLOCK_SIZE];
+        byte[] keyStream = new byte[STREAM_BLOCKS * BLOCK_SIZE];
         byte[] includedTag = null;
         
         DirectByteOutputStream buffOut = new DirectByteOutputStream();
 
-        Int128 hInt = new Int128();
         Int128 counter = new Int128();
-        Int128 hash = new Int128();
-        Int128 spare = new Int128();
+        long[] hash = new long[2];
         
         long aLen = 0;
         
         try {
-          // prepare the finite field multiplier hInt and encrypt the IV
-          bc.encryptBlock(block, block);
-          hInt.copyFromLittleBitEndian(block);
-          CryptoUtils.fillWithZeroes(block);
+          // prepare the GHASH tables and encrypt the IV
+          GHash g = getGHash();
           if (iv.length == 12) {
             System.arraycopy(iv, 0, block, 0, 12);
             counter.copyFromLittleBitEndian(block);
             weirdIncrement(counter);
           } else {
-            ghash(hInt, new byte[0], iv, counter, spare);
+            counter.copyFromLittleBitEndian(hashIV(g, iv, block));
           }
+          CryptoUtils.fillWithZeroes(block);
           counter.toLittleBitEndianBytes(encryptedIV);
           bc.encryptBlock(encryptedIV, encryptedIV);
           
           // prepare hash
-          if (authData != null) {
-            ghash_array(hash, hInt, authData, spare);
-            aLen = authData.length;
-          }
+          aLen = hashAuthData(g, hash);
           
           SuffixStream sufIn = new SuffixStream(in, BLOCK_SIZE);
           if (!sufIn.hasFullSuffix()) {
@@ -237,36 +330,24 @@ public class GCMMode implements AuthenticatedCipher {
           
           // decrypt the message
           long cLen = 0;
-          while(true) {
-            weirdIncrement(counter);
-            counter.toLittleBitEndianBytes(counterBlock);
-            bc.encryptBlock(counterBlock, counterBlock);
-            
-            int read = sufIn.read(block);
-            if (read == -1) {
+          while (true) {
+            int read = StreamUtils.readFully(sufIn, chunk, 0, chunk.length);
+            if (read == 0) {
               break;
             }
             cLen += read;
-            if (read == BLOCK_SIZE) {
-              ghash_block(hash, hInt, block, 0, spare);
-              CryptoUtils.xorByteArrays(block, counterBlock, block);
-              buffOut.write(block);
-            } else {
-              // Fill the remainder of the block with 0s
-              for (int n = read; n < BLOCK_SIZE; n++) {
-                block[n] = 0;
-                counterBlock[n] = 0;
-              }
-              ghash_block(hash, hInt, block, 0, spare);
-              CryptoUtils.xorByteArrays(block, counterBlock, block);
-              buffOut.write(block, 0, read);
+            g.update(hash, chunk, 0, read);
+            nextKeyStream(counter, counterBlock, keyStream, (read + BLOCK_SIZE - 1) / BLOCK_SIZE);
+            CryptoUtils.xorByteArrays(chunk, 0, keyStream, 0, chunk, 0, read);
+            buffOut.write(chunk, 0, read);
+            if (read < chunk.length) {
               break;
             }
           }
           sufIn.close();
 
-          finish_ghash(hash, hInt, aLen * 8, cLen * 8, spare);
-          hash.toLittleBitEndianBytes(block);
+          g.finish(hash, aLen, cLen);
+          GHash.toBytes(hash, block, 0);
           CryptoUtils.xorByteArrays(block, encryptedIV, encryptedIV);
           
           if(!CryptoUtils.constantTimeArrayEquals(includedTag, encryptedIV)) {
@@ -279,8 +360,10 @@ public class GCMMode implements AuthenticatedCipher {
           CryptoUtils.fillWithZeroes(block);
           CryptoUtils.fillWithZeroes(encryptedIV);
           CryptoUtils.fillWithZeroes(counterBlock);
+          CryptoUtils.fillWithZeroes(chunk);
+          CryptoUtils.fillWithZeroes(keyStream);
           CryptoUtils.fillWithZeroes(includedTag);
-          hInt.toZero();
+          CryptoUtils.fillWithZeroes(hash);
           counter.toZero();
           CryptoUtils.fillWithZeroes(buffOut.getBuffer());
         }
@@ -290,9 +373,7 @@ public class GCMMode implements AuthenticatedCipher {
 	}
 	
 	public GCMMode setAuthData(byte[] data) {
-	  if (authData != null) {
-	    removeAuthData();
-	  }
+	  removeAuthData();
 	  if (data != null) {
 	    authData = Arrays.copyOf(data, data.length);
 	  }
@@ -302,11 +383,119 @@ public class GCMMode implements AuthenticatedCipher {
 	public GCMMode removeAuthData() {
 	  CryptoUtils.fillWithZeroes(authData);
 	  authData = null;
+	  removeStreamedAuthData();
 	  return this;
 	}
+	
+	private void removeStreamedAuthData() {
+	  CryptoUtils.fillWithZeroes(aadHash);
+	  CryptoUtils.fillWithZeroes(aadBlock);
+	  aadHash = null;
+	  aadBlock = null;
+	  aadBlockCount = 0;
+	  aadLength = 0;
+	  CryptoUtils.fillWithZeroes(aadKey);
+	  aadKey = null;
+	}
+	
+	/**
+	 * Checks the pending associated data was hashed under the same H, whichever tables g was built with.
+	 */
+	private void checkAADKey(GHash g) throws CryptoException {
+	  long[] h = g.getH();
+	  long diff = (h[0] ^ aadKey[0]) | (h[1] ^ aadKey[1]);
+	  CryptoUtils.fillWithZeroes(h);
+	  if (diff != 0) {
+	    throw new CryptoException(CryptoException.AAD_KEY_CHANGED);
+	  }
+	}
+	
+	/**
+	 * Hashes more associated data straight into GHASH instead of keeping a copy, so memory use does not depend on the
+	 * size of the associated data. It follows any data given to {@link #setAuthData(byte[])} and, like it,
+	 * authenticates every following message until removed. Changing the key through this mode removes it.
+	 */
+	public GCMMode updateAAD(byte[] data, int off, int len) throws CryptoException {
+	  GHash g = getGHash();
+	  if (aadHash == null) {
+	    aadHash = new long[2];
+	    aadBlock = new byte[BLOCK_SIZE];
+	    aadKey = g.getH();
+	    if (authData != null) {
+	      absorbAuthData(g, authData, 0, authData.length);
+	      CryptoUtils.fillWithZeroes(authData);
+	      authData = null;
+	    }
+	  } else {
+	    checkAADKey(g);
+	  }
+	  absorbAuthData(g, data, off, len);
+	  return this;
+	}
+	
+	public GCMMode updateAAD(ByteBuffer data) throws CryptoException {
+	  if (data.hasArray()) {
+	    updateAAD(data.array(), data.arrayOffset() + data.position(), data.remaining());
+	    data.position(data.limit());
+	    return this;
+	  }
+	  byte[] chunk = new byte[Math.min(data.remaining(), 4096)];
+	  try {
+	    while (data.hasRemaining()) {
+	      int len = Math.min(chunk.length, data.remaining());
+	      data.get(chunk, 0, len);
+	      updateAAD(chunk, 0, len);
+	    }
+	  } finally {
+	    CryptoUtils.fillWithZeroes(chunk);
+	  }
+	  return this;
+	}
+	
+	/**
+	 * Reads the rest of the stream as associated data and closes it.
+	 */
+	public GCMMode updateAAD(InputStream in) throws CryptoException, IOException {
+	  byte[] chunk = new byte[4096];
+	  try {
+	    while (true) {
+	      int read = in.read(chunk);
+	      if (read == -1) {
+	        break;
+	      }
+	      updateAAD(chunk, 0, read);
+	    }
+	  } finally {
+	    CryptoUtils.fillWithZeroes(chunk);
+	    in.close();
+	  }
+	  return this;
+	}
+	
+	private void absorbAuthData(GHash g, byte[] data, int off, int len) {
+	  aadLength += len;
+	  if (aadBlockCount > 0) {
+	    int taken = Math.min(len, BLOCK_SIZE - aadBlockCount);
+	    System.arraycopy(data, off, aadBlock, aadBlockCount, taken);
+	    aadBlockCount += taken;
+	    off += taken;
+	    len -= taken;
+	    if (aadBlockCount < BLOCK_SIZE) {
+	      return;
+	    }
+	    g.updateBlock(aadHash, aadBlock, 0);
+	    aadBlockCount = 0;
+	  }
+	  int fullBytes = len - len % BLOCK_SIZE;
+	  g.update(aadHash, data, off, fullBytes);
+	  System.arraycopy(data, off + fullBytes, aadBlock, 0, len - fullBytes);
+	  aadBlockCount = len - fullBytes;
+	}
 
 	@Override
 	public Cipher setKey(byte[] key) throws CryptoException {
+	  gHash.clear();
+	  removeStreamedAuthData();
 	  bc.setKey(key);
 		return this;
 	}
@@ -318,6 +507,8 @@ public class GCMMode implements AuthenticatedCipher {
 
 	@Override
 	public Cipher removeKey() {
+	  gHash.clear();
+	  removeStreamedAuthData();
 		bc.removeKey();
 		return this;
 	}
@@ -2,10 +2,16 @@ package me.abarrow.cipher.mode;
 
 import static org.junit.Assert.*;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
 
 import org.junit.Test;
 
+import me.abarrow.cipher.BlockCipher;
+import me.abarrow.cipher.CompoundBlockCipher;
 import me.abarrow.cipher.aes.AES;
 import me.abarrow.core.CryptoException;
 import me.abarrow.core.CryptoUtils;
@@ -206,11 +212,119 @@ public class GCMModeTest {
   private void fullTestCase(byte[] key, byte[] iv, byte[] plain, byte[] authData, byte[] cipherExpected,
       byte[] tExpected) throws IOException, CryptoException {
     byte[] outExpected = CryptoUtils.concatArrays(cipherExpected, tExpected);
-    byte[] out = new GCMMode(new AES(key)).setAuthData(authData).setIV(iv).encrypt().runSync(plain); 
-    assertArrayEquals(outExpected, out);
+    for (int tableBits : new int[] {GHash.SHOUP_8_BIT, GHash.SHOUP_4_BIT, GHash.NO_TABLE}) {
+      byte[] out = new GCMMode(new AES(key), tableBits).setAuthData(authData).setIV(iv).encrypt().runSync(plain); 
+      assertArrayEquals(outExpected, out);
+      
+      byte[] in = new GCMMode(new AES(key), tableBits).setAuthData(authData).setIV(iv).decrypt()
+          .runSync(outExpected); 
+      assertArrayEquals(plain, in);
+    }
+  }
+  
+  @Test
+  public void testStreamedAuthData() throws CryptoException, IOException {
+    byte[] key = CryptoUtils.parseHexString("feffe9928665731c6d6a8f9467308308");
+    byte[] iv = CryptoUtils.parseHexString("cafebabefacedbaddecaf888");
+    byte[] plain = new byte[40];
+    byte[] authData = new byte[100];
+    for (int n = 0; n < authData.length; n++) {
+      authData[n] = (byte) n;
+    }
+    byte[] expected = new GCMMode(new AES(key)).setAuthData(authData).setIV(iv).encrypt().runSync(plain);
+    
+    for (int chunk : new int[] {1, 5, 16, 17, 100}) {
+      GCMMode gcm = new GCMMode(new AES(key));
+      for (int n = 0; n < authData.length; n += chunk) {
+        gcm.updateAAD(authData, n, Math.min(chunk, authData.length - n));
+      }
+      gcm.setIV(iv);
+      assertArrayEquals(expected, gcm.encrypt().runSync(plain));
+      assertArrayEquals(plain, gcm.decrypt().runSync(expected));
+    }
+    
+    GCMMode gcm = new GCMMode(new AES(key)).setAuthData(Arrays.copyOf(authData, 30));
+    ByteBuffer direct = ByteBuffer.allocateDirect(40);
+    direct.put(authData, 30, 40).flip();
+    gcm.updateAAD(direct).updateAAD(new ByteArrayInputStream(authData, 70, 30)).setIV(iv);
+    assertArrayEquals(expected, gcm.encrypt().runSync(plain));
+    
+    GCMMode parallel = new ParallelGCMMode(new AES(key)).updateAAD(ByteBuffer.wrap(authData));
+    parallel.setIV(iv);
+    assertArrayEquals(expected, parallel.encrypt().runSync(plain));
+    
+    gcm.setKey(key);
+    gcm.setIV(iv);
+    assertArrayEquals(new GCMMode(new AES(key)).setIV(iv).encrypt().runSync(plain), gcm.encrypt().runSync(plain));
+  }
+  
+  @Test
+  public void testGHashTablesReusedAcrossMessages() throws CryptoException, IOException {
+    byte[] key = CryptoUtils.parseHexString("feffe9928665731c6d6a8f9467308308");
+    byte[] iv = CryptoUtils.parseHexString("cafebabefacedbaddecaf888");
+    GCMMode gcm = new GCMMode(new AES(key));
+    byte[] first = gcm.setIV(iv).encrypt().runSync(new byte[50]);
+    GHash tables = gcm.getGHash();
+    byte[] second = gcm.setIV(iv).encrypt().runSync(new byte[50]);
+    assertSame(tables, gcm.getGHash());
+    assertArrayEquals(first, second);
+    
+    gcm.setKey(CryptoUtils.parseHexString("00000000000000000000000000000000"));
+    assertTrue(tables.isDestroyed());
+    byte[] third = gcm.setIV(iv).encrypt().runSync(new byte[50]);
+    assertFalse(java.util.Arrays.equals(first, third));
+  }
+  
+  @Test
+  public void testMessagesLongerThanAStreamChunk() throws CryptoException, IOException {
+    byte[] key = CryptoUtils.parseHexString("feffe9928665731c6d6a8f9467308308");
+    byte[] iv = CryptoUtils.parseHexString("cafebabefacedbaddecaf888");
+    byte[] authData = new byte[] { 1, 2, 3 };
+    GCMMode gcm = new GCMMode(new AES(key));
+    GCMBatchSealer sealer = new GCMBatchSealer(new AES(key));
+    for (int len : new int[] { 1023, 1024, 1025, 5000 }) {
+      byte[] plain = new byte[len];
+      for (int n = 0; n < len; n++) {
+        plain[n] = (byte) (n * 7);
+      }
+      byte[] expected = sealer.seal(new byte[][] { iv }, new byte[][] { authData }, new byte[][] { plain })[0];
+      assertArrayEquals(expected, gcm.setAuthData(authData).setIV(iv).encrypt().runSync(plain));
+      // a stream handing over a few bytes at a time is still read in whole chunks
+      ByteArrayOutputStream out = new ByteArrayOutputStream();
+      gcm.encrypt().runSync(new ByteArrayInputStream(plain) {
+        @Override
+        public synchronized int read(byte[] b, int off, int len) {
+          return super.read(b, off, Math.min(len, 7));
+        }
+      }, out);
+      assertArrayEquals(expected, out.toByteArray());
+      assertArrayEquals(plain, gcm.decrypt().runSync(expected));
+    }
+  }
+  
+  @Test
+  public void testStreamedAuthDataWithoutKeySchedule() throws CryptoException, IOException {
+    byte[] key = CryptoUtils.parseHexString("feffe9928665731c6d6a8f9467308308");
+    byte[] iv = CryptoUtils.parseHexString("cafebabefacedbaddecaf888");
+    byte[] plain = new byte[40];
+    byte[] authData = new byte[100];
+    for (int n = 0; n < authData.length; n++) {
+      authData[n] = (byte) n;
+    }
+    byte[] expected = new GCMMode(new AES(key)).setAuthData(authData).setIV(iv).encrypt().runSync(plain);
     
-    byte[] in = new GCMMode(new AES(key)).setAuthData(authData).setIV(iv).decrypt().runSync(outExpected); 
-    assertArrayEquals(plain, in);
+    // a compound cipher has no key schedule, so its tables are only kept while H stays the same
+    GCMMode gcm = new GCMMode(new CompoundBlockCipher(new BlockCipher[] { new AES(key) }));
+    gcm.updateAAD(authData, 0, 10).updateAAD(authData, 10, 40);
+    GHash tables = gcm.getGHash();
+    assertSame(tables, gcm.getGHash());
+    // tables of another size hash to the same values, so the pending data carries over
+    gcm.setGHashTableBits(GHash.SHOUP_4_BIT);
+    gcm.updateAAD(authData, 50, 50).setIV(iv);
+    assertTrue(tables.isDestroyed());
+    assertArrayEquals(expected, gcm.encrypt().runSync(plain));
+    assertArrayEquals(expected, gcm.encrypt().runSync(plain));
+    assertArrayEquals(plain, gcm.decrypt().runSync(expected));
   }
 
 }
@@ -0,0 +1,283 @@
+package me.abarrow.cipher.mode;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+
+import me.abarrow.cipher.AuthenticatedCipher;
+import me.abarrow.cipher.Cipher;
+import me.abarrow.cipher.aes.AES;
+import me.abarrow.core.CryptoException;
+import me.abarrow.core.CryptoUtils;
+import me.abarrow.stream.DirectByteOutputStream;
+import me.abarrow.stream.StreamProcess;
+import me.abarrow.stream.StreamUtils;
+import me.abarrow.stream.SuffixStream;
+
+/**
+ * AES-GCM-SIV from RFC 8452, an AEAD which stays secure when a nonce is repeated, only revealing whether the same
+ * message was sent twice. Fresh authentication and encryption keys are derived from the key and nonce for every
+ * message, the tag is the encrypted POLYVAL of the associated data and plain text, and the tag is then the initial
+ * counter for CTR mode.
+ * <p>
+ * The tag depends on the whole plain text before any of it can be encrypted, so both directions buffer the message.
+ */
+public class GCMSIVMode implements AuthenticatedCipher {
+  
+  public static final int NONCE_BYTES = 12;
+  public static final int TAG_BYTES = 16;
+  
+  private static final int BLOCK_SIZE = 16;
+  private static final int CTR_CHUNK_BLOCKS = 256;
+  private static final long MAX_TEXT_BYTES = 1L << 36;
+  
+  private final AES keyGenerator = new AES();
+  private int keyBytes;
+  private byte[] iv;
+  private byte[] authData;
+  private boolean prependingIV = false;
+  
+  public GCMSIVMode() {
+  }
+  
+  public GCMSIVMode(byte[] key) throws CryptoException {
+    setKey(key);
+  }
+  
+  @Override
+  public StreamProcess encrypt() {
+    return new StreamProcess() {
+      @Override
+      public void process(InputStream in, OutputStream out) throws IOException {
+        checkReady();
+        DirectByteOutputStream buffOut = new DirectByteOutputStream();
+        StreamUtils.copyStream(in, buffOut);
+        in.close();
+        byte[] data = buffOut.getBuffer();
+        int len = buffOut.getCount();
+        byte[] authKey = new byte[BLOCK_SIZE];
+        byte[] encKey = new byte[keyBytes];
+        byte[] tag = new byte[TAG_BYTES];
+        try {
+          deriveKeys(iv, authKey, encKey);
+          AES enc = new AES(encKey);
+          computeTag(enc, authKey, data, len, tag);
+          ctr(enc, tag, data, len);
+          enc.removeKey();
+          
+          if (prependingIV) {
+            out.write(iv);
+          }
+          out.write(data, 0, len);
+          out.write(tag);
+        } catch (CryptoException ce) {
+          throw new IOException(ce);
+        } finally {
+          CryptoUtils.fillWithZeroes(data);
+          CryptoUtils.fillWithZeroes(authKey);
+          CryptoUtils.fillWithZeroes(encKey);
+          CryptoUtils.fillWithZeroes(tag);
+        }
+      }
+    };
+  }
+
+  @Override
+  public StreamProcess decrypt() {
+    return new StreamProcess() {
+      @Override
+      public void process(InputStream in, OutputStream out) throws IOException {
+        if (prependingIV) {
+          byte[] prepended = new byte[NONCE_BYTES];
+          if (StreamUtils.readFully(in, prepended, 0, NONCE_BYTES) != NONCE_BYTES) {
+            throw new IOException(new CryptoException(CryptoException.NO_IV));
+          }
+          setIV(prepended);
+        }
+        checkReady();
+        SuffixStream sufIn = new SuffixStream(in, TAG_BYTES);
+        if (!sufIn.hasFullSuffix()) {
+          sufIn.close();
+          throw new IOException(new CryptoException(CryptoException.NO_MAC));
+        }
+        byte[] includedTag = sufIn.getSuffix();
+        DirectByteOutputStream buffOut = new DirectByteOutputStream();
+        StreamUtils.copyStream(sufIn, buffOut);
+        sufIn.close();
+        byte[] data = buffOut.getBuffer();
+        int len = buffOut.getCount();
+        byte[] authKey = new byte[BLOCK_SIZE];
+        byte[] encKey = new byte[keyBytes];
+        byte[] tag = new byte[TAG_BYTES];
+        try {
+          deriveKeys(iv, authKey, encKey);
+          AES enc = new AES(encKey);
+          ctr(enc, includedTag, data, len);
+          computeTag(enc, authKey, data, len, tag);
+          enc.removeKey();
+          
+          if (!CryptoUtils.constantTimeArrayEquals(includedTag, tag)) {
+            throw new IOException(new CryptoException(CryptoException.MAC_DOES_NOT_MATCH));
+          }
+          out.write(data, 0, len);
+        } catch (CryptoException ce) {
+          throw new IOException(ce);
+        } finally {
+          CryptoUtils.fillWithZeroes(data);
+          CryptoUtils.fillWithZeroes(authKey);
+          CryptoUtils.fillWithZeroes(encKey);
+          CryptoUtils.fillWithZeroes(tag);
+          CryptoUtils.fillWithZeroes(includedTag);
+        }
+      }
+    };
+  }
+  
+  private void checkReady() throws IOException {
+    if (!hasKey()) {
+      throw new IOException(new CryptoException(CryptoException.NO_KEY));
+    }
+    if (!hasIV()) {
+      throw new IOException(new CryptoException(CryptoException.NO_IV));
+    }
+  }
+  
+  /**
+   * Each half block of key material is the first 8 bytes of E(K, LE32(i) || nonce).
+   */
+  private void deriveKeys(byte[] nonce, byte[] authKey, byte[] encKey) throws CryptoException {
+    byte[] block = new byte[BLOCK_SIZE];
+    byte[] encrypted = new byte[BLOCK_SIZE];
+    System.arraycopy(nonce, 0, block, 4, NONCE_BYTES);
+    int halves = 2 + keyBytes / 8;
+    for (int i = 0; i < halves; i++) {
+      CryptoUtils.intToBytes(i, block, 0, true);
+      keyGenerator.encryptBlock(block, encrypted);
+      if (i < 2) {
+        System.arraycopy(encrypted, 0, authKey, 8 * i, 8);
+      } else {
+        System.arraycopy(encrypted, 0, encKey, 8 * (i - 2), 8);
+      }
+    }
+    CryptoUtils.fillWithZeroes(encrypted);
+  }
+  
+  private void computeTag(AES enc, byte[] authKey, byte[] plain, int len, byte[] tag) throws CryptoException {
+    if (len > MAX_TEXT_BYTES || (authData != null && authData.length > MAX_TEXT_BYTES)) {
+      throw new CryptoException(CryptoException.MESSAGE_TOO_LONG);
+    }
+    Polyval polyval = new Polyval(authKey);
+    long[] hash = new long[2];
+    long aLen = 0;
+    if (authData != null) {
+      polyval.update(hash, authData, 0, authData.length);
+      aLen = authData.length;
+    }
+    polyval.update(hash, plain, 0, len);
+    polyval.finish(hash, aLen, len);
+    Polyval.toBytes(hash, tag, 0);
+    polyval.destroy();
+    CryptoUtils.fillWithZeroes(hash);
+    
+    for (int n = 0; n < NONCE_BYTES; n++) {
+      tag[n] ^= iv[n];
+    }
+    tag[15] &= 0x7f;
+    enc.encryptBlock(tag, tag);
+  }
+  
+  /**
+   * CTR mode starting from the tag with its top bit set, incrementing only the first 32 bits as a little endian
+   * counter, a batch of blocks at a time.
+   */
+  private static void ctr(AES enc, byte[] tag, byte[] data, int len) throws CryptoException {
+    byte[] keyStream = new byte[CTR_CHUNK_BLOCKS * BLOCK_SIZE];
+    int counter = CryptoUtils.intFromBytes(tag, 0, true);
+    for (int off = 0; off < len; off += keyStream.length) {
+      int chunk = Math.min(keyStream.length, len - off);
+      int blocks = (chunk + BLOCK_SIZE - 1) / BLOCK_SIZE;
+      for (int n = 0; n < blocks; n++) {
+        CryptoUtils.intToBytes(counter++, keyStream, n * BLOCK_SIZE, true);
+        System.arraycopy(tag, 4, keyStream, n * BLOCK_SIZE + 4, 12);
+        keyStream[n * BLOCK_SIZE + 15] |= 0x80;
+      }
+      enc.encryptBlocks(keyStream, 0, keyStream, 0, blocks);
+      CryptoUtils.xorByteArrays(data, off, keyStream, 0, data, off, chunk);
+    }
+    CryptoUtils.fillWithZeroes(keyStream);
+  }
+  
+  public GCMSIVMode setAuthData(byte[] data) {
+    removeAuthData();
+    if (data != null) {
+      authData = Arrays.copyOf(data, data.length);
+    }
+    return this;
+  }
+  
+  public GCMSIVMode removeAuthData() {
+    CryptoUtils.fillWithZeroes(authData);
+    authData = null;
+    return this;
+  }
+
+  /**
+   * The key has to be 16 or 32 bytes long.
+   */
+  @Override
+  public Cipher setKey(byte[] key) throws CryptoException {
+    if (key.length != 16 && key.length != 32) {
+      throw new IllegalArgumentException("AES-GCM-SIV keys are 16 or 32 bytes long.");
+    }
+    keyGenerator.setKey(key);
+    keyBytes = key.length;
+    return this;
+  }
+
+  @Override
+  public boolean hasKey() {
+    return keyGenerator.hasKey();
+  }
+
+  @Override
+  public Cipher removeKey() {
+    keyGenerator.removeKey();
+    keyBytes = 0;
+    return this;
+  }
+
+  /**
+   * The nonce has to be 12 bytes long.
+   */
+  @Override
+  public Cipher setIV(byte[] initVector) {
+    if (initVector.length != NONCE_BYTES) {
+      throw new IllegalArgumentException(CryptoException.INVALID_IV_LENGTH);
+    }
+    iv = Arrays.copyOf(initVector, initVector.length);
+    return this;
+  }
+
+  @Override
+  public byte[] getIV() {
+    return iv;
+  }
+
+  @Override
+  public boolean hasIV() {
+    return iv != null;
+  }
+
+  @Override
+  public boolean isIVPrepending() {
+    return prependingIV;
+  }
+
+  @Override
+  public Cipher setIVPrepending(boolean ivPrepending) {
+    prependingIV = ivPrepending;
+    return this;
+  }
+
+}
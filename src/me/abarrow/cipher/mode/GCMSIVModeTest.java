@@ -0,0 +1,73 @@
+package me.abarrow.cipher.mode;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+
+import org.junit.Test;
+
+import me.abarrow.core.CryptoException;
+import me.abarrow.core.CryptoUtils;
+
+public class GCMSIVModeTest {
+
+  @Test
+  public void testPolyval() {
+    Polyval polyval = new Polyval(CryptoUtils.parseHexString("25629347589242761d31f826ba4b757b"));
+    byte[] data = CryptoUtils.parseHexString("4f4f95668c83dfb6401762bb2d01a262d1a24ddd2721d006bbe45f20d3c9f362");
+    long[] hash = new long[2];
+    polyval.update(hash, data, 0, data.length);
+    assertArrayEquals(CryptoUtils.parseHexString("f7a3b47b846119fae5b7866cf5e5b77e"),
+        Polyval.toBytes(hash, new byte[16], 0));
+  }
+  
+  @Test
+  public void testAES128GCMSIV() throws CryptoException, IOException {
+    String key = "01000000000000000000000000000000";
+    String nonce = "030000000000000000000000";
+    fullTestCase(key, nonce, "", "", "dc20e2d83f25705bb49e439eca56de25");
+    fullTestCase(key, nonce, "0100000000000000", "", "b5d839330ac7b786578782fff6013b815b287c22493a364c");
+    fullTestCase(key, nonce, "010000000000000000000000000000000200000000000000", "01",
+        "f211ba16b3793436f0dc3ff400980e61461449861bd071d219ec6894c889a132dfc7790e1834aa12");
+    fullTestCase("ee8e1ed9ff2540ae8f2ba9f50bc2f27c", "752abad3e0afb5f434dc4310", "48656c6c6f20776f726c64",
+        "6578616d706c65", "5d349ead175ef6b1def6fd4fbcdeb7e4793f4a1d7e4faa70100af1");
+  }
+  
+  @Test
+  public void testAES256GCMSIV() throws CryptoException, IOException {
+    fullTestCase("0100000000000000000000000000000000000000000000000000000000000000", "030000000000000000000000",
+        "01000000000000000000000000000000020000000000000000000000000000000300000000000000",
+        "010000000000000000000000",
+        "3f63ddb94eaaf49452abb7162385d28bedc31aa54256b8be77d2e0d090eb87bb977062b9a542b6e2553ff0c04671f60ac9afe770484ec08d");
+  }
+  
+  @Test(expected = IOException.class)
+  public void testCorruptTag() throws CryptoException, IOException {
+    GCMSIVMode siv = new GCMSIVMode(new byte[16]);
+    siv.setIV(new byte[12]).setIVPrepending(true);
+    byte[] out = siv.encrypt().runSync(new byte[5000]);
+    out[100] ^= 1;
+    siv.decrypt().runSync(out);
+  }
+  
+  @Test
+  public void testLongMessage() throws CryptoException, IOException {
+    GCMSIVMode siv = new GCMSIVMode(new byte[32]);
+    siv.setIV(new byte[12]);
+    byte[] plain = new byte[100000];
+    for (int n = 0; n < plain.length; n++) {
+      plain[n] = (byte) (n * 31);
+    }
+    assertArrayEquals(plain, siv.decrypt().runSync(siv.encrypt().runSync(plain)));
+  }
+  
+  private void fullTestCase(String key, String nonce, String plain, String authData, String expected)
+      throws CryptoException, IOException {
+    GCMSIVMode siv = new GCMSIVMode(CryptoUtils.parseHexString(key));
+    siv.setAuthData(CryptoUtils.parseHexString(authData)).setIV(CryptoUtils.parseHexString(nonce));
+    byte[] out = siv.encrypt().runSync(CryptoUtils.parseHexString(plain));
+    assertArrayEquals(CryptoUtils.parseHexString(expected), out);
+    assertArrayEquals(CryptoUtils.parseHexString(plain), siv.decrypt().runSync(out));
+  }
+
+}
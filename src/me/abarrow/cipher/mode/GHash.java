@@ -0,0 +1,255 @@
+package me.abarrow.cipher.mode;
+
+import me.abarrow.core.CryptoUtils;
+import me.abarrow.core.KeySchedule;
+
+/**
+ * The GHASH universal hash from GCM with per key tables of multiples of H (Shoup's method).
+ * <p>
+ * Field elements are held as two longs in GCM's bit order, the first being bytes 0 to 7 of the block read big endian,
+ * so the hash state of a message is a {@code long[2]} owned by the caller. The tables are only read once built, which
+ * makes one instance safe to share between threads.
+ * <ul>
+ * <li>{@link #SHOUP_8_BIT} uses 256 multiples of H (4KiB) and one lookup per byte.</li>
+ * <li>{@link #SHOUP_4_BIT} uses 16 multiples of H (256B) and one lookup per nibble.</li>
+ * <li>{@link #NO_TABLE} multiplies bit by bit and keeps only H.</li>
+ * </ul>
+ */
+public final class GHash extends KeySchedule {
+
+  public static final int NO_TABLE = 0;
+  public static final int SHOUP_4_BIT = 4;
+  public static final int SHOUP_8_BIT = 8;
+
+  public static final int BLOCK_BYTES = 16;
+
+  // x^128 + x^7 + x^2 + x + 1 in GCM's reflected bit order
+  private static final long R = 0xe100000000000000L;
+
+  private static final long[] REDUCE_4_BIT = createReductionTable(4);
+  private static final long[] REDUCE_8_BIT = createReductionTable(8);
+
+  private final int tableBits;
+  private final long[] h;
+  private final long[] tableHi;
+  private final long[] tableLo;
+
+  public GHash(byte[] hBytes, int ghashTableBits) {
+    this(CryptoUtils.longFromBytes(hBytes, 0), CryptoUtils.longFromBytes(hBytes, 8), ghashTableBits);
+  }
+
+  public GHash(long hHi, long hLo, int ghashTableBits) {
+    if (ghashTableBits != NO_TABLE && ghashTableBits != SHOUP_4_BIT && ghashTableBits != SHOUP_8_BIT) {
+      throw new IllegalArgumentException("GHASH tables can only be indexed by 0, 4 or 8 bits.");
+    }
+    tableBits = ghashTableBits;
+    h = new long[] { hHi, hLo };
+    if (tableBits == NO_TABLE) {
+      tableHi = null;
+      tableLo = null;
+    } else {
+      int size = 1 << tableBits;
+      tableHi = new long[size];
+      tableLo = new long[size];
+      // the highest bit of an index is the lowest power of x
+      long[] v = new long[] { hHi, hLo };
+      for (int i = size >>> 1; i > 0; i >>>= 1) {
+        tableHi[i] = v[0];
+        tableLo[i] = v[1];
+        timesX(v);
+      }
+      for (int i = 2; i < size; i <<= 1) {
+        for (int j = 1; j < i; j++) {
+          tableHi[i + j] = tableHi[i] ^ tableHi[j];
+          tableLo[i + j] = tableLo[i] ^ tableLo[j];
+        }
+      }
+    }
+  }
+
+  /**
+   * For every possible set of k low bits, the bits that shifting them out right by k folds back into the top.
+   */
+  private static long[] createReductionTable(int k) {
+    long[] table = new long[1 << k];
+    long[] v = new long[2];
+    for (int rem = 0; rem < table.length; rem++) {
+      v[0] = 0;
+      v[1] = rem;
+      for (int n = 0; n < k; n++) {
+        timesX(v);
+      }
+      table[rem] = v[0];
+    }
+    return table;
+  }
+
+  private static void timesX(long[] v) {
+    long carry = v[1] & 1;
+    v[1] = (v[1] >>> 1) | (v[0] << 63);
+    v[0] = (v[0] >>> 1) ^ (carry == 0 ? 0 : R);
+  }
+
+  public int getTableBits() {
+    return tableBits;
+  }
+
+  public long[] getH() {
+    return new long[] { h[0], h[1] };
+  }
+
+  /**
+   * x = x * H
+   */
+  public void multiplyH(long[] x) {
+    if (tableBits == SHOUP_8_BIT) {
+      multiply8(x);
+    } else if (tableBits == SHOUP_4_BIT) {
+      multiply4(x);
+    } else {
+      multiply(x, h[0], h[1]);
+    }
+  }
+
+  private void multiply8(long[] x) {
+    long xHi = x[0];
+    long xLo = x[1];
+    long zHi = 0;
+    long zLo = 0;
+    for (int i = 0; i < 8; i++) {
+      int b = (int) (xLo >>> (8 * i)) & 0xff;
+      int rem = (int) zLo & 0xff;
+      zLo = (zLo >>> 8) | (zHi << 56);
+      zHi = (zHi >>> 8) ^ REDUCE_8_BIT[rem];
+      zHi ^= tableHi[b];
+      zLo ^= tableLo[b];
+    }
+    for (int i = 0; i < 8; i++) {
+      int b = (int) (xHi >>> (8 * i)) & 0xff;
+      int rem = (int) zLo & 0xff;
+      zLo = (zLo >>> 8) | (zHi << 56);
+      zHi = (zHi >>> 8) ^ REDUCE_8_BIT[rem];
+      zHi ^= tableHi[b];
+      zLo ^= tableLo[b];
+    }
+    x[0] = zHi;
+    x[1] = zLo;
+  }
+
+  private void multiply4(long[] x) {
+    long xHi = x[0];
+    long xLo = x[1];
+    long zHi = 0;
+    long zLo = 0;
+    for (int i = 0; i < 16; i++) {
+      int n = (int) (xLo >>> (4 * i)) & 0xf;
+      int rem = (int) zLo & 0xf;
+      zLo = (zLo >>> 4) | (zHi << 60);
+      zHi = (zHi >>> 4) ^ REDUCE_4_BIT[rem];
+      zHi ^= tableHi[n];
+      zLo ^= tableLo[n];
+    }
+    for (int i = 0; i < 16; i++) {
+      int n = (int) (xHi >>> (4 * i)) & 0xf;
+      int rem = (int) zLo & 0xf;
+      zLo = (zLo >>> 4) | (zHi << 60);
+      zHi = (zHi >>> 4) ^ REDUCE_4_BIT[rem];
+      zHi ^= tableHi[n];
+      zLo ^= tableLo[n];
+    }
+    x[0] = zHi;
+    x[1] = zLo;
+  }
+
+  /**
+   * x = x * y using the bit serial algorithm from the GCM specification, for multipliers without a table.
+   */
+  public static void multiply(long[] x, long yHi, long yLo) {
+    long zHi = 0;
+    long zLo = 0;
+    long vHi = yHi;
+    long vLo = yLo;
+    for (int i = 0; i < 128; i++) {
+      long word = i < 64 ? x[0] : x[1];
+      // branch free so the running time does not depend on the bits of x
+      long mask = -((word >>> (63 - (i & 63))) & 1);
+      zHi ^= vHi & mask;
+      zLo ^= vLo & mask;
+      long carry = -(vLo & 1);
+      vLo = (vLo >>> 1) | (vHi << 63);
+      vHi = (vHi >>> 1) ^ (R & carry);
+    }
+    x[0] = zHi;
+    x[1] = zLo;
+  }
+
+  /**
+   * Returns H^k. Hashing k more blocks after a state x gives x * H^k plus the hash of those blocks from a zero state,
+   * which lets the hashes of separate runs of blocks be chained together.
+   */
+  public long[] powerOfH(long k) {
+    // 1 in GCM's bit order
+    long[] result = new long[] { 0x8000000000000000L, 0 };
+    long[] square = new long[] { h[0], h[1] };
+    while (k > 0) {
+      if ((k & 1) != 0) {
+        multiply(result, square[0], square[1]);
+      }
+      k >>>= 1;
+      if (k > 0) {
+        multiply(square, square[0], square[1]);
+      }
+    }
+    CryptoUtils.fillWithZeroes(square);
+    return result;
+  }
+
+  /**
+   * Absorbs one full block.
+   */
+  public void updateBlock(long[] x, byte[] data, int start) {
+    x[0] ^= CryptoUtils.longFromBytes(data, start);
+    x[1] ^= CryptoUtils.longFromBytes(data, start + 8);
+    multiplyH(x);
+  }
+
+  /**
+   * Absorbs len bytes, zero padding the final partial block.
+   */
+  public void update(long[] x, byte[] data, int start, int len) {
+    int end = start + len;
+    int n = start;
+    for (; n + BLOCK_BYTES <= end; n += BLOCK_BYTES) {
+      updateBlock(x, data, n);
+    }
+    if (n != end) {
+      x[0] ^= CryptoUtils.safeLongFromBytes(data, n, end);
+      x[1] ^= CryptoUtils.safeLongFromBytes(data, n + 8, end);
+      multiplyH(x);
+    }
+  }
+
+  /**
+   * Absorbs the final block holding the bit lengths of the associated data and the cipher text.
+   */
+  public void finish(long[] x, long aadBytes, long textBytes) {
+    x[0] ^= aadBytes * 8;
+    x[1] ^= textBytes * 8;
+    multiplyH(x);
+  }
+
+  public static byte[] toBytes(long[] x, byte[] out, int start) {
+    CryptoUtils.longToBytes(x[0], out, start);
+    CryptoUtils.longToBytes(x[1], out, start + 8);
+    return out;
+  }
+
+  @Override
+  protected void zero() {
+    CryptoUtils.fillWithZeroes(h);
+    if (tableHi != null) {
+      CryptoUtils.fillWithZeroes(tableHi);
+      CryptoUtils.fillWithZeroes(tableLo);
+    }
+  }
+}
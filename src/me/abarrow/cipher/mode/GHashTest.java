@@ -0,0 +1,89 @@
+package me.abarrow.cipher.mode;
+
+import static org.junit.Assert.*;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+import me.abarrow.core.CryptoUtils;
+import me.abarrow.math.Int128;
+
+public class GHashTest {
+  
+  private static final int[] TABLE_SIZES = new int[] {GHash.SHOUP_8_BIT, GHash.SHOUP_4_BIT, GHash.NO_TABLE};
+
+  @Test
+  public void testGhashTestCase4() {
+    byte[] h = CryptoUtils.parseHexString("b83b533708bf535d0aa6e52980d53b78");
+    byte[] a = CryptoUtils.parseHexString("feedfacedeadbeeffeedfacedeadbeefabaddad2");
+    byte[] c = CryptoUtils.parseHexString("42831ec2217774244b7221b784d0d49ce3aa212f2c02a4e035c17e2329aca12e21d514b25466931c7d8f6a5aac84aa051ba30b396a0aac973d58e091");
+    byte[] expected = CryptoUtils.parseHexString("698e57f70e6ecc7fd9463b7260a9ae5f");
+    for (int bits : TABLE_SIZES) {
+      assertArrayEquals(expected, ghash(new GHash(h, bits), a, c));
+    }
+  }
+  
+  @Test
+  public void testGhashTestCase18IV() {
+    byte[] h = CryptoUtils.parseHexString("acbef20579b4b8ebce889bac8732dad7");
+    byte[] iv = CryptoUtils.parseHexString("9313225df88406e555909c5aff5269aa6a7a9538534f7da1e4c303d2a318a728c3c0c95156809539fcf0e2429a6b525416aedbf5a0de6a57a637b39b");
+    byte[] expected = CryptoUtils.parseHexString("0cd953e2140a5976079f8e2406bc8eb4");
+    for (int bits : TABLE_SIZES) {
+      assertArrayEquals(expected, GCMMode.hashIV(new GHash(h, bits), iv, new byte[16]));
+    }
+  }
+  
+  @Test
+  public void testMatchesInt128() {
+    Random rand = new Random(42);
+    for (int i = 0; i < 50; i++) {
+      byte[] h = new byte[16];
+      byte[] a = new byte[rand.nextInt(40)];
+      byte[] c = new byte[rand.nextInt(70)];
+      rand.nextBytes(h);
+      rand.nextBytes(a);
+      rand.nextBytes(c);
+      Int128 expected = new Int128();
+      GCMMode.ghash(Int128.parseLittleBitEndianHex(CryptoUtils.byteArrayToHexString(h)), a, c, expected);
+      byte[] expectedBytes = new byte[16];
+      expected.toLittleBitEndianBytes(expectedBytes);
+      for (int bits : TABLE_SIZES) {
+        assertArrayEquals(expectedBytes, ghash(new GHash(h, bits), a, c));
+      }
+    }
+  }
+  
+  @Test
+  public void testDestroy() {
+    GHash g = new GHash(CryptoUtils.parseHexString("b83b533708bf535d0aa6e52980d53b78"), GHash.SHOUP_8_BIT);
+    g.destroy();
+    assertTrue(g.isDestroyed());
+    assertArrayEquals(new long[2], g.getH());
+  }
+  
+  @Test
+  public void testThroughput() {
+    byte[] data = new byte[1 << 20];
+    for (int bits : TABLE_SIZES) {
+      GHash g = new GHash(CryptoUtils.parseHexString("b83b533708bf535d0aa6e52980d53b78"), bits);
+      long[] state = new long[2];
+      int rounds = bits == GHash.NO_TABLE ? 2 : 16;
+      long start = System.nanoTime();
+      for (int i = 0; i < rounds; i++) {
+        g.update(state, data, 0, data.length);
+      }
+      long mbPerSecond = Math.round(rounds * 1e9 / (System.nanoTime() - start));
+      System.out.println("GHASH with " + bits + " bit tables hashed " + mbPerSecond + "MB/s");
+    }
+  }
+  
+  private static byte[] ghash(GHash g, byte[] a, byte[] c) {
+    long[] state = new long[2];
+    g.update(state, a, 0, a.length);
+    g.update(state, c, 0, c.length);
+    g.finish(state, a.length, c.length);
+    return GHash.toBytes(state, new byte[16], 0);
+  }
+
+}
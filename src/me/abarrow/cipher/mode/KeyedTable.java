@@ -0,0 +1,59 @@
+package me.abarrow.cipher.mode;
+
+import me.abarrow.cipher.BlockCipher;
+import me.abarrow.core.CryptoException;
+import me.abarrow.core.CryptoUtils;
+import me.abarrow.core.KeySchedule;
+
+/**
+ * Holds a table built from the zero block encrypted under a cipher's current key, such as the GHASH tables or the OCB
+ * offsets, and only builds it again once the key changes. Ciphers with key schedules are checked by schedule. Ciphers
+ * without them encrypt the zero block again and keep the table if it comes out the same, so the table is stable for
+ * as long as the key is.
+ */
+public abstract class KeyedTable<T extends KeySchedule> {
+
+  private final BlockCipher bc;
+  private T table;
+  private KeySchedule tableKey;
+  private byte[] zeroBlockEncrypted;
+
+  protected KeyedTable(BlockCipher blockCipher) {
+    bc = blockCipher;
+  }
+
+  /**
+   * Builds the table from the encrypted zero block, which is zeroed by the holder once the table is dropped.
+   */
+  protected abstract T build(byte[] zeroBlock);
+
+  public synchronized T get() throws CryptoException {
+    if (!bc.hasKey()) {
+      throw new CryptoException(CryptoException.NO_KEY);
+    }
+    KeySchedule key = bc.getKeySchedule();
+    if (table != null && key != null && key == tableKey && !key.isDestroyed()) {
+      return table;
+    }
+    byte[] encrypted = bc.encryptBlock(new byte[bc.getBlockBytes()]);
+    if (table != null && CryptoUtils.constantTimeArrayEquals(encrypted, zeroBlockEncrypted)) {
+      CryptoUtils.fillWithZeroes(encrypted);
+    } else {
+      clear();
+      table = build(encrypted);
+      zeroBlockEncrypted = encrypted;
+    }
+    tableKey = key;
+    return table;
+  }
+
+  public synchronized void clear() {
+    if (table != null) {
+      table.destroy();
+    }
+    CryptoUtils.fillWithZeroes(zeroBlockEncrypted);
+    table = null;
+    tableKey = null;
+    zeroBlockEncrypted = null;
+  }
+}
@@ -0,0 +1,533 @@
+package me.abarrow.cipher.mode;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+
+import me.abarrow.cipher.AuthenticatedCipher;
+import me.abarrow.cipher.BlockCipher;
+import me.abarrow.cipher.Cipher;
+import me.abarrow.core.CryptoException;
+import me.abarrow.core.CryptoUtils;
+import me.abarrow.core.KeySchedule;
+import me.abarrow.stream.DirectByteOutputStream;
+import me.abarrow.stream.StreamProcess;
+import me.abarrow.stream.StreamUtils;
+import me.abarrow.stream.SuffixStream;
+
+/**
+ * OCB3 from RFC 7253 with 128 bit tags, which encrypts and authenticates in a single call to the block cipher per
+ * block. Block i is whitened with the offset {@code Offset_0 ^ L[ntz(1)] ^ ... ^ L[ntz(i)]}, which is also the XOR of
+ * the L values picked out by the set bits of the Gray code of i, so any run of blocks can start from its own offset.
+ * Runs of blocks go through {@link BlockCipher#encryptBlocks} together, and with an executor the message is split into
+ * segments on several threads, whose checksums are XORed together at the end.
+ * <p>
+ * Decryption buffers the message so that no plain text is written before the tag is checked.
+ */
+public class OCBMode implements AuthenticatedCipher {
+
+  public static final int TAG_BYTES = 16;
+  public static final int DEFAULT_NONCE_BYTES = 12;
+  public static final int DEFAULT_SEGMENT_BYTES = 64 * 1024;
+
+  private static final int BLOCK_SIZE = 16;
+  private static final int BATCH_BLOCKS = 64;
+
+  private final BlockCipher bc;
+  private final int segmentBytes;
+  private final int parallelism;
+  private final ExecutorService executor;
+
+  private byte[] iv;
+  private byte[] authData;
+  private boolean prependingIV = false;
+
+  private final KeyedTable<OffsetTable> table;
+
+  /**
+   * Runs on the calling thread.
+   */
+  public OCBMode(BlockCipher blockCipher) throws CryptoException {
+    this(blockCipher, DEFAULT_SEGMENT_BYTES, 1, null);
+  }
+
+  /**
+   * @param segmentBytes the bytes of message given to each task, a multiple of 16
+   * @param parallelism how many segments are read and worked on at once, which needs a block cipher that supports
+   * {@link BlockCipher#newHandle()} to be more than 1
+   */
+  public OCBMode(BlockCipher blockCipher, int segmentBytes, int parallelism, ExecutorService executor)
+      throws CryptoException {
+    bc = blockCipher;
+    if (bc.getBlockBytes() != BLOCK_SIZE) {
+      throw new CryptoException(CryptoException.INCOMPATIBLE_CIPHER);
+    }
+    if (segmentBytes <= 0 || segmentBytes % BLOCK_SIZE != 0) {
+      throw new IllegalArgumentException("Segments must be a positive number of blocks.");
+    }
+    if (parallelism <= 0 || (parallelism > 1 && executor == null)) {
+      throw new IllegalArgumentException("Parallelism must be positive, and needs an executor above 1.");
+    }
+    this.segmentBytes = segmentBytes;
+    this.parallelism = parallelism;
+    this.executor = executor;
+    table = new KeyedTable<OffsetTable>(bc) {
+      @Override
+      protected OffsetTable build(byte[] lStar) {
+        return new OffsetTable(lStar);
+      }
+    };
+  }
+
+  /**
+   * L_*, L_$ and L[i] for every i a block index can have trailing zeroes, as big endian pairs of longs. It is only
+   * read once built, so segments on different threads share it.
+   */
+  static final class OffsetTable extends KeySchedule {
+
+    final long[] lStar;
+    final long[] lDollar;
+    final long[] lHi = new long[64];
+    final long[] lLo = new long[64];
+
+    OffsetTable(byte[] zeroBlockEncrypted) {
+      lStar = new long[] { CryptoUtils.longFromBytes(zeroBlockEncrypted, 0),
+          CryptoUtils.longFromBytes(zeroBlockEncrypted, 8) };
+      lDollar = times2(lStar);
+      long[] l = times2(lDollar);
+      for (int i = 0; i < lHi.length; i++) {
+        lHi[i] = l[0];
+        lLo[i] = l[1];
+        l = times2(l);
+      }
+    }
+
+    private static long[] times2(long[] s) {
+      long carry = s[0] >> 63;
+      return new long[] { (s[0] << 1) | (s[1] >>> 63), (s[1] << 1) ^ (carry & 0x87) };
+    }
+
+    /**
+     * offset ^= L[ntz(1)] ^ ... ^ L[ntz(blockIndex)]
+     */
+    void skipTo(long[] offset, long blockIndex) {
+      long gray = blockIndex ^ (blockIndex >>> 1);
+      for (int i = 0; gray != 0; i++, gray >>>= 1) {
+        if ((gray & 1) != 0) {
+          offset[0] ^= lHi[i];
+          offset[1] ^= lLo[i];
+        }
+      }
+    }
+
+    @Override
+    protected void zero() {
+      CryptoUtils.fillWithZeroes(lStar);
+      CryptoUtils.fillWithZeroes(lDollar);
+      CryptoUtils.fillWithZeroes(lHi);
+      CryptoUtils.fillWithZeroes(lLo);
+    }
+  }
+
+  /**
+   * Returns the L table for the current key, only building it again once the key changes.
+   */
+  OffsetTable getOffsetTable() throws CryptoException {
+    return table.get();
+  }
+
+  /**
+   * Computes Offset_0 from a nonce of 1 to 15 bytes.
+   */
+  static long[] initialOffset(BlockCipher bc, byte[] nonce) throws CryptoException {
+    byte[] block = new byte[BLOCK_SIZE];
+    System.arraycopy(nonce, 0, block, BLOCK_SIZE - nonce.length, nonce.length);
+    block[BLOCK_SIZE - 1 - nonce.length] |= 1;
+    int bottom = block[BLOCK_SIZE - 1] & 0x3f;
+    block[BLOCK_SIZE - 1] &= 0xc0;
+    bc.encryptBlock(block, block);
+    long top0 = CryptoUtils.longFromBytes(block, 0);
+    long top1 = CryptoUtils.longFromBytes(block, 8);
+    CryptoUtils.fillWithZeroes(block);
+    // Stretch = Ktop || (Ktop[1..64] xor Ktop[9..72])
+    long stretch2 = top0 ^ ((top0 << 8) | (top1 >>> 56));
+    if (bottom == 0) {
+      return new long[] { top0, top1 };
+    }
+    return new long[] { (top0 << bottom) | (top1 >>> (64 - bottom)),
+        (top1 << bottom) | (stretch2 >>> (64 - bottom)) };
+  }
+
+  /**
+   * Encrypts or decrypts whole blocks in place, updating the offset and XORing the plain text into checksum.
+   *
+   * @param offset Offset_{firstBlock - 1}, left as the offset of the last block
+   * @param firstBlock the 1 based index of the first block in the message
+   */
+  static void cryptBlocks(BlockCipher bc, OffsetTable t, long[] offset, long[] checksum, long firstBlock,
+      byte[] data, int start, int blocks, boolean encrypting) throws CryptoException {
+    long[] offsets = new long[2 * BATCH_BLOCKS];
+    long blockIndex = firstBlock;
+    try {
+      for (int done = 0; done < blocks; done += BATCH_BLOCKS) {
+        int batch = Math.min(BATCH_BLOCKS, blocks - done);
+        int batchStart = start + done * BLOCK_SIZE;
+        int pos = batchStart;
+        for (int n = 0; n < batch; n++, pos += BLOCK_SIZE) {
+          int ntz = Long.numberOfTrailingZeros(blockIndex++);
+          offset[0] ^= t.lHi[ntz];
+          offset[1] ^= t.lLo[ntz];
+          offsets[2 * n] = offset[0];
+          offsets[2 * n + 1] = offset[1];
+          long hi = CryptoUtils.longFromBytes(data, pos);
+          long lo = CryptoUtils.longFromBytes(data, pos + 8);
+          if (encrypting) {
+            checksum[0] ^= hi;
+            checksum[1] ^= lo;
+          }
+          CryptoUtils.longToBytes(hi ^ offset[0], data, pos);
+          CryptoUtils.longToBytes(lo ^ offset[1], data, pos + 8);
+        }
+        if (encrypting) {
+          bc.encryptBlocks(data, batchStart, data, batchStart, batch);
+        } else {
+          bc.decryptBlocks(data, batchStart, data, batchStart, batch);
+        }
+        pos = batchStart;
+        for (int n = 0; n < batch; n++, pos += BLOCK_SIZE) {
+          long hi = CryptoUtils.longFromBytes(data, pos) ^ offsets[2 * n];
+          long lo = CryptoUtils.longFromBytes(data, pos + 8) ^ offsets[2 * n + 1];
+          if (!encrypting) {
+            checksum[0] ^= hi;
+            checksum[1] ^= lo;
+          }
+          CryptoUtils.longToBytes(hi, data, pos);
+          CryptoUtils.longToBytes(lo, data, pos + 8);
+        }
+      }
+    } finally {
+      CryptoUtils.fillWithZeroes(offsets);
+    }
+  }
+
+  /**
+   * HASH(K, A) from the RFC, which whitens the associated data with offsets starting from zero.
+   */
+  static void hashAuthData(BlockCipher bc, OffsetTable t, byte[] data, long[] sum) throws CryptoException {
+    int fullBlocks = data.length / BLOCK_SIZE;
+    byte[] buffer = new byte[BATCH_BLOCKS * BLOCK_SIZE];
+    long[] offset = new long[2];
+    try {
+      for (int done = 0; done < fullBlocks; done += BATCH_BLOCKS) {
+        int batch = Math.min(BATCH_BLOCKS, fullBlocks - done);
+        System.arraycopy(data, done * BLOCK_SIZE, buffer, 0, batch * BLOCK_SIZE);
+        for (int n = 0; n < batch; n++) {
+          int ntz = Long.numberOfTrailingZeros(done + n + 1);
+          offset[0] ^= t.lHi[ntz];
+          offset[1] ^= t.lLo[ntz];
+          xorLongs(buffer, n * BLOCK_SIZE, offset);
+        }
+        bc.encryptBlocks(buffer, 0, buffer, 0, batch);
+        for (int n = 0; n < batch; n++) {
+          sum[0] ^= CryptoUtils.longFromBytes(buffer, n * BLOCK_SIZE);
+          sum[1] ^= CryptoUtils.longFromBytes(buffer, n * BLOCK_SIZE + 8);
+        }
+      }
+      int rem = data.length - fullBlocks * BLOCK_SIZE;
+      if (rem != 0) {
+        Arrays.fill(buffer, 0, BLOCK_SIZE, (byte) 0);
+        System.arraycopy(data, fullBlocks * BLOCK_SIZE, buffer, 0, rem);
+        buffer[rem] = CryptoUtils.ONE_AND_SEVEN_ZEROES_BYTE;
+        offset[0] ^= t.lStar[0];
+        offset[1] ^= t.lStar[1];
+        xorLongs(buffer, 0, offset);
+        bc.encryptBlock(buffer, 0, buffer, 0);
+        sum[0] ^= CryptoUtils.longFromBytes(buffer, 0);
+        sum[1] ^= CryptoUtils.longFromBytes(buffer, 8);
+      }
+    } finally {
+      CryptoUtils.fillWithZeroes(buffer);
+      CryptoUtils.fillWithZeroes(offset);
+    }
+  }
+
+  private static void xorLongs(byte[] data, int pos, long[] x) {
+    CryptoUtils.longToBytes(CryptoUtils.longFromBytes(data, pos) ^ x[0], data, pos);
+    CryptoUtils.longToBytes(CryptoUtils.longFromBytes(data, pos + 8) ^ x[1], data, pos + 8);
+  }
+
+  private boolean canRunInParallel() {
+    return parallelism > 1 && bc.supportsHandles();
+  }
+
+  /**
+   * Encrypts or decrypts the whole blocks of a chunk in place, splitting them into segments when running in
+   * parallel.
+   */
+  private void cryptChunk(final OffsetTable t, long[] offset, long[] checksum, final long blocksDone, final byte[] data,
+      int blocks, final boolean encrypting, boolean parallel) throws IOException, CryptoException {
+    int segmentBlocks = segmentBytes / BLOCK_SIZE;
+    if (!parallel || blocks <= segmentBlocks) {
+      cryptBlocks(bc, t, offset, checksum, blocksDone + 1, data, 0, blocks, encrypting);
+      return;
+    }
+    final long[] firstOffset = new long[] { offset[0], offset[1] };
+    List<Callable<long[]>> tasks = new ArrayList<Callable<long[]>>();
+    for (int first = 0; first < blocks; first += segmentBlocks) {
+      final int segmentFirst = first;
+      final int segmentLength = Math.min(segmentBlocks, blocks - first);
+      final long firstIndex = blocksDone + first + 1;
+      tasks.add(new Callable<long[]>() {
+        @Override
+        public long[] call() throws CryptoException {
+          // Offset_{blocksDone} ^ G(blocksDone) ^ G(firstIndex - 1) is Offset_{firstIndex - 1}
+          long[] segmentOffset = new long[] { firstOffset[0], firstOffset[1] };
+          long[] segmentChecksum = new long[2];
+          t.skipTo(segmentOffset, blocksDone);
+          t.skipTo(segmentOffset, firstIndex - 1);
+          BlockCipher handle = bc.newHandle();
+          try {
+            cryptBlocks(handle, t, segmentOffset, segmentChecksum, firstIndex, data, segmentFirst * BLOCK_SIZE,
+                segmentLength, encrypting);
+          } finally {
+            handle.removeKey();
+          }
+          return new long[] { segmentOffset[0], segmentOffset[1], segmentChecksum[0], segmentChecksum[1] };
+        }
+      });
+    }
+    List<long[]> results = ParallelTasks.invokeAll(executor, tasks);
+    for (long[] state : results) {
+      checksum[0] ^= state[2];
+      checksum[1] ^= state[3];
+    }
+    long[] last = results.get(results.size() - 1);
+    offset[0] = last[0];
+    offset[1] = last[1];
+    for (long[] state : results) {
+      CryptoUtils.fillWithZeroes(state);
+    }
+  }
+
+  /**
+   * Encrypts or decrypts the rest of a message, writing encrypted chunks to out or holding decrypted ones, and
+   * computes its tag.
+   */
+  private void crypt(InputStream in, OutputStream out, DirectByteOutputStream held, boolean encrypting, byte[] tag)
+      throws IOException, CryptoException {
+    OffsetTable t = getOffsetTable();
+    long[] offset = initialOffset(bc, iv);
+    long[] checksum = new long[2];
+    boolean parallel = canRunInParallel();
+    byte[] buffer = new byte[parallel ? segmentBytes * parallelism : segmentBytes];
+    try {
+      long blocksDone = 0;
+      while (true) {
+        int read = StreamUtils.readFully(in, buffer, 0, buffer.length);
+        int blocks = read / BLOCK_SIZE;
+        cryptChunk(t, offset, checksum, blocksDone, buffer, blocks, encrypting, parallel);
+        blocksDone += blocks;
+        int rem = read - blocks * BLOCK_SIZE;
+        if (rem != 0) {
+          int pos = blocks * BLOCK_SIZE;
+          offset[0] ^= t.lStar[0];
+          offset[1] ^= t.lStar[1];
+          byte[] pad = new byte[BLOCK_SIZE];
+          CryptoUtils.longToBytes(offset[0], pad, 0);
+          CryptoUtils.longToBytes(offset[1], pad, 8);
+          bc.encryptBlock(pad, pad);
+          if (encrypting) {
+            xorPartialChecksum(checksum, buffer, pos, rem);
+          }
+          CryptoUtils.xorByteArrays(buffer, pos, pad, 0, buffer, pos, rem);
+          if (!encrypting) {
+            xorPartialChecksum(checksum, buffer, pos, rem);
+          }
+          CryptoUtils.fillWithZeroes(pad);
+        }
+        if (encrypting) {
+          out.write(buffer, 0, read);
+        } else {
+          held.write(buffer, 0, read);
+        }
+        if (read < buffer.length) {
+          break;
+        }
+      }
+      in.close();
+
+      checksum[0] ^= offset[0] ^ t.lDollar[0];
+      checksum[1] ^= offset[1] ^ t.lDollar[1];
+      CryptoUtils.longToBytes(checksum[0], tag, 0);
+      CryptoUtils.longToBytes(checksum[1], tag, 8);
+      bc.encryptBlock(tag, tag);
+      if (authData != null) {
+        long[] sum = new long[2];
+        hashAuthData(bc, t, authData, sum);
+        xorLongs(tag, 0, sum);
+        CryptoUtils.fillWithZeroes(sum);
+      }
+    } finally {
+      CryptoUtils.fillWithZeroes(buffer);
+      CryptoUtils.fillWithZeroes(offset);
+      CryptoUtils.fillWithZeroes(checksum);
+    }
+  }
+
+  /**
+   * checksum ^= P_* || 1 || 0...
+   */
+  private static void xorPartialChecksum(long[] checksum, byte[] data, int pos, int len) {
+    byte[] padded = new byte[BLOCK_SIZE];
+    System.arraycopy(data, pos, padded, 0, len);
+    padded[len] = CryptoUtils.ONE_AND_SEVEN_ZEROES_BYTE;
+    checksum[0] ^= CryptoUtils.longFromBytes(padded, 0);
+    checksum[1] ^= CryptoUtils.longFromBytes(padded, 8);
+    CryptoUtils.fillWithZeroes(padded);
+  }
+
+  private void checkReady() throws CryptoException {
+    if (!hasKey()) {
+      throw new CryptoException(CryptoException.NO_KEY);
+    }
+    if (!hasIV()) {
+      throw new CryptoException(CryptoException.NO_IV);
+    }
+  }
+
+  @Override
+  public StreamProcess encrypt() {
+    return new StreamProcess() {
+      @Override
+      public void process(InputStream in, OutputStream out) throws IOException {
+        byte[] tag = new byte[TAG_BYTES];
+        try {
+          checkReady();
+          if (prependingIV) {
+            if (iv.length != DEFAULT_NONCE_BYTES) {
+              throw new CryptoException(CryptoException.CANNOT_PREPEND__IV);
+            }
+            out.write(iv);
+          }
+          crypt(in, out, null, true, tag);
+          out.write(tag);
+        } catch (CryptoException ce) {
+          throw new IOException(ce);
+        } finally {
+          CryptoUtils.fillWithZeroes(tag);
+        }
+      }
+    };
+  }
+
+  @Override
+  public StreamProcess decrypt() {
+    return new StreamProcess() {
+      @Override
+      public void process(InputStream in, OutputStream out) throws IOException {
+        if (prependingIV) {
+          byte[] prepended = new byte[DEFAULT_NONCE_BYTES];
+          if (StreamUtils.readFully(in, prepended, 0, prepended.length) != prepended.length) {
+            throw new IOException(new CryptoException(CryptoException.NO_IV));
+          }
+          setIV(prepended);
+        }
+        byte[] tag = new byte[TAG_BYTES];
+        byte[] includedTag = null;
+        DirectByteOutputStream buffOut = new DirectByteOutputStream();
+        try {
+          checkReady();
+          SuffixStream sufIn = new SuffixStream(in, TAG_BYTES);
+          if (!sufIn.hasFullSuffix()) {
+            sufIn.close();
+            throw new CryptoException(CryptoException.NO_MAC);
+          }
+          includedTag = sufIn.getSuffix();
+          crypt(sufIn, null, buffOut, false, tag);
+          if (!CryptoUtils.constantTimeArrayEquals(includedTag, tag)) {
+            throw new CryptoException(CryptoException.MAC_DOES_NOT_MATCH);
+          }
+          out.write(buffOut.getBuffer(), 0, buffOut.getCount());
+        } catch (CryptoException ce) {
+          throw new IOException(ce);
+        } finally {
+          CryptoUtils.fillWithZeroes(tag);
+          CryptoUtils.fillWithZeroes(includedTag);
+          CryptoUtils.fillWithZeroes(buffOut.getBuffer());
+        }
+      }
+    };
+  }
+
+  public OCBMode setAuthData(byte[] data) {
+    removeAuthData();
+    if (data != null) {
+      authData = Arrays.copyOf(data, data.length);
+    }
+    return this;
+  }
+
+  public OCBMode removeAuthData() {
+    CryptoUtils.fillWithZeroes(authData);
+    authData = null;
+    return this;
+  }
+
+  @Override
+  public Cipher setKey(byte[] key) throws CryptoException {
+    table.clear();
+    bc.setKey(key);
+    return this;
+  }
+
+  @Override
+  public boolean hasKey() {
+    return bc.hasKey();
+  }
+
+  @Override
+  public Cipher removeKey() {
+    table.clear();
+    bc.removeKey();
+    return this;
+  }
+
+  /**
+   * The nonce can be 1 to 15 bytes long, though only 12 byte nonces can be prepended.
+   */
+  @Override
+  public Cipher setIV(byte[] initVector) {
+    if (initVector.length == 0 || initVector.length >= BLOCK_SIZE) {
+      throw new IllegalArgumentException(CryptoException.INVALID_IV_LENGTH);
+    }
+    iv = Arrays.copyOf(initVector, initVector.length);
+    return this;
+  }
+
+  @Override
+  public byte[] getIV() {
+    return iv;
+  }
+
+  @Override
+  public boolean hasIV() {
+    return iv != null;
+  }
+
+  @Override
+  public boolean isIVPrepending() {
+    return prependingIV;
+  }
+
+  @Override
+  public Cipher setIVPrepending(boolean ivPrepending) {
+    prependingIV = ivPrepending;
+    return this;
+  }
+
+}
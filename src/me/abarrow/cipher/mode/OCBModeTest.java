@@ -0,0 +1,136 @@
+package me.abarrow.cipher.mode;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.junit.Test;
+
+import me.abarrow.cipher.BlockCipher;
+import me.abarrow.cipher.CompoundBlockCipher;
+import me.abarrow.cipher.aes.AES;
+import me.abarrow.core.CryptoException;
+import me.abarrow.core.CryptoUtils;
+
+public class OCBModeTest {
+  
+  private static final String KEY = "000102030405060708090a0b0c0d0e0f";
+  private static final byte[] KEY_256 = CryptoUtils.parseHexString(
+      "000102030405060708090a0b0c0d0e0f101112131415161718191a1b1c1d1e1f");
+
+  @Test
+  public void testRFC7253() throws CryptoException, IOException {
+    fullTestCase(KEY, "bbaa99887766554433221100", "", "", "785407bfffc8ad9edcc5520ac9111ee6");
+    fullTestCase(KEY, "bbaa99887766554433221101", "0001020304050607", "0001020304050607",
+        "6820b3657b6f615a5725bda0d3b4eb3a257c9af1f8f03009");
+    fullTestCase(KEY, "bbaa99887766554433221102", "0001020304050607", "",
+        "6dd42c17cbf9c7835dfd6e630e8f98eb3d2a49b0dc0f314e");
+    fullTestCase(KEY, "bbaa99887766554433221103", "", "0001020304050607", "be4d5464eae0130ab15fde803f261206");
+    String forty = "000102030405060708090a0b0c0d0e0f101112131415161718191a1b1c1d1e1f2021222324252627";
+    fullTestCase(KEY, "bbaa99887766554433221104", forty, forty,
+        "571d535b60b277188be5147170a9a22cdb9ef96f538354af0e6e5d7f6f640af83ff2f8c1d4b20b2946fd49338eb2722757a4f343450036f4");
+    fullTestCase(KEY, "bbaa99887766554433221105", forty, "",
+        "9ffd50f147694cde9654ec6e7ce7d40acd5419ab0f4cd109f77a722a525e68f9eb8f90266c3abc8c125189ae3b03c307e9c333f70b26188a");
+  }
+  
+  private static void fullTestCase(String key, String nonce, String plain, String aad, String sealed)
+      throws CryptoException, IOException {
+    OCBMode ocb = new OCBMode(new AES());
+    ocb.setKey(CryptoUtils.parseHexString(key));
+    ocb.setIV(CryptoUtils.parseHexString(nonce));
+    ocb.setAuthData(CryptoUtils.parseHexString(aad));
+    assertArrayEquals(CryptoUtils.parseHexString(sealed), ocb.encrypt().runSync(CryptoUtils.parseHexString(plain)));
+    assertArrayEquals(CryptoUtils.parseHexString(plain), ocb.decrypt().runSync(CryptoUtils.parseHexString(sealed)));
+  }
+  
+  private static byte[] pattern(int len) {
+    byte[] data = new byte[len];
+    for (int i = 0; i < len; i++) {
+      data[i] = (byte) (i * 7 + 3);
+    }
+    return data;
+  }
+  
+  @Test
+  public void testLongMessages() throws CryptoException, IOException {
+    ExecutorService executor = Executors.newFixedThreadPool(4);
+    try {
+      OCBMode serial = new OCBMode(new AES(KEY_256));
+      OCBMode parallel = new OCBMode(new AES(KEY_256), 1024, 4, executor);
+      byte[] nonce = CryptoUtils.parseHexString("000102030405060708090a0b");
+      String[][] cases = {
+          { "17", "7c6ef6460a2a8ae4aa60036172dc87e3444dc40e63e6b813bd9cdff05c39b2a1d2" },
+          { "1000", "bea4d48367a5035227b63b181dcb98ac" },
+          { "200000", "39ef5587181d374854d98f68c998bfc5" } };
+      for (OCBMode ocb : new OCBMode[] { serial, parallel }) {
+        ocb.setIV(nonce);
+        ocb.setAuthData("header".getBytes());
+      }
+      for (OCBMode ocb : new OCBMode[] { serial, parallel }) {
+        for (String[] c : cases) {
+          byte[] plain = pattern(Integer.parseInt(c[0]));
+          byte[] sealed = ocb.encrypt().runSync(plain);
+          byte[] expected = CryptoUtils.parseHexString(c[1]);
+          assertArrayEquals(expected, Arrays.copyOfRange(sealed, sealed.length - expected.length, sealed.length));
+          assertArrayEquals(plain, serial.decrypt().runSync(sealed));
+          assertArrayEquals(plain, parallel.decrypt().runSync(sealed));
+          
+          sealed[sealed.length / 2] ^= 1;
+          try {
+            ocb.decrypt().runSync(sealed);
+            fail("Tampered message was opened");
+          } catch (IOException e) {
+            assertEquals(CryptoException.MAC_DOES_NOT_MATCH, e.getCause().getMessage());
+          }
+        }
+      }
+    } finally {
+      executor.shutdown();
+    }
+  }
+  
+  @Test
+  public void testIVPrepending() throws CryptoException, IOException {
+    OCBMode ocb = new OCBMode(new AES(KEY_256));
+    ocb.setIVPrepending(true);
+    ocb.setIV(CryptoUtils.parseHexString("0a0b0c0d0e0f101112131415"));
+    byte[] sealed = ocb.encrypt().runSync(pattern(100));
+    OCBMode other = new OCBMode(new AES(KEY_256));
+    other.setIVPrepending(true);
+    assertArrayEquals(pattern(100), other.decrypt().runSync(sealed));
+  }
+  
+  @Test
+  public void testCipherWithoutKeySchedule() throws CryptoException, IOException {
+    byte[] iv = CryptoUtils.parseHexString("0a0b0c0d0e0f101112131415");
+    byte[] expected = new OCBMode(new AES(KEY_256)).setIV(iv).encrypt().runSync(pattern(100));
+    OCBMode ocb = new OCBMode(new CompoundBlockCipher(new BlockCipher[] { new AES(KEY_256) }));
+    ocb.setIV(iv);
+    assertArrayEquals(expected, ocb.encrypt().runSync(pattern(100)));
+    OCBMode.OffsetTable table = ocb.getOffsetTable();
+    assertArrayEquals(expected, ocb.encrypt().runSync(pattern(100)));
+    assertSame(table, ocb.getOffsetTable());
+  }
+  
+  @Test
+  public void testBenchmark() throws CryptoException, IOException {
+    byte[] data = new byte[1 << 23];
+    OCBMode ocb = new OCBMode(new AES(KEY_256));
+    ocb.setIV(new byte[12]);
+    GCMMode gcm = new GCMMode(new AES(KEY_256));
+    gcm.setIV(new byte[12]);
+    ocb.encrypt().runSync(data);
+    gcm.encrypt().runSync(data);
+    long start = System.nanoTime();
+    ocb.encrypt().runSync(data);
+    long ocbTime = System.nanoTime() - start;
+    start = System.nanoTime();
+    gcm.encrypt().runSync(data);
+    long gcmTime = System.nanoTime() - start;
+    System.out.println("8MiB OCB took " + ocbTime / 1000000 + "ms, GCM took " + gcmTime / 1000000 + "ms");
+  }
+
+}
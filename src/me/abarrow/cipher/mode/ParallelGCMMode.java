@@ -0,0 +1,246 @@
+package me.abarrow.cipher.mode;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ForkJoinPool;
+
+import me.abarrow.cipher.BlockCipher;
+import me.abarrow.core.CryptoException;
+import me.abarrow.core.CryptoUtils;
+import me.abarrow.stream.DirectByteOutputStream;
+import me.abarrow.stream.StreamProcess;
+import me.abarrow.stream.StreamUtils;
+import me.abarrow.stream.SuffixStream;
+
+/**
+ * GCM which encrypts fixed size segments of the message on several threads. The cipher text of each segment is hashed
+ * from a zero GHASH state, and the partial hashes are chained in order by multiplying the running hash by H^k, where
+ * k is the number of blocks in the next segment, so the output is exactly that of {@link GCMMode}.
+ * <p>
+ * Every segment gets its own handle on the key schedule, so the block cipher has to support
+ * {@link BlockCipher#newHandle()}. Ciphers that do not are run serially.
+ */
+public class ParallelGCMMode extends GCMMode {
+  
+  public static final int DEFAULT_SEGMENT_BYTES = 64 * 1024;
+  
+  private static final int BLOCK_SIZE = 16;
+  
+  private final int segmentBytes;
+  private final int parallelism;
+  private final ExecutorService executor;
+  
+  public ParallelGCMMode(BlockCipher blockCipher) throws CryptoException {
+    this(blockCipher, DEFAULT_SEGMENT_BYTES, Runtime.getRuntime().availableProcessors(), ForkJoinPool.commonPool());
+  }
+  
+  /**
+   * @param segmentBytes the bytes of message given to each task, a multiple of 16
+   * @param parallelism how many segments are read and worked on at once
+   */
+  public ParallelGCMMode(BlockCipher blockCipher, int segmentBytes, int parallelism, ExecutorService executor)
+      throws CryptoException {
+    super(blockCipher);
+    if (segmentBytes <= 0 || segmentBytes % BLOCK_SIZE != 0) {
+      throw new IllegalArgumentException("Segments must be a positive number of blocks.");
+    }
+    if (parallelism <= 0) {
+      throw new IllegalArgumentException("Parallelism must be positive.");
+    }
+    this.segmentBytes = segmentBytes;
+    this.parallelism = parallelism;
+    this.executor = executor;
+  }
+  
+  public int getSegmentBytes() {
+    return segmentBytes;
+  }
+  
+  public int getParallelism() {
+    return parallelism;
+  }
+  
+  @Override
+  public StreamProcess encrypt() {
+    if (!getBlockCipher().supportsHandles()) {
+      return super.encrypt();
+    }
+    return new StreamProcess() {
+      @Override
+      public void process(InputStream in, OutputStream out) throws IOException {
+        if (!hasIV()) {
+          throw new IOException(new CryptoException(CryptoException.NO_IV));
+        }
+        if (isIVPrepending()) {
+          if (getIV().length != 12) {
+            throw new IOException(new CryptoException(CryptoException.CANNOT_PREPEND__IV));
+          }
+          out.write(getIV());
+        }
+        run(in, out, true);
+      }
+    };
+  }
+  
+  @Override
+  public StreamProcess decrypt() {
+    if (!getBlockCipher().supportsHandles()) {
+      return super.decrypt();
+    }
+    return new StreamProcess() {
+      @Override
+      public void process(InputStream in, OutputStream out) throws IOException {
+        if (isIVPrepending()) {
+          byte[] prependedIV = new byte[12];
+          if (StreamUtils.readFully(in, prependedIV, 0, prependedIV.length) != prependedIV.length) {
+            throw new IOException(new CryptoException(CryptoException.NO_IV));
+          }
+          setIV(prependedIV);
+        }
+        if (!hasIV()) {
+          throw new IOException(new CryptoException(CryptoException.NO_IV));
+        }
+        run(in, out, false);
+      }
+    };
+  }
+  
+  private void run(InputStream in, OutputStream out, boolean encrypting) throws IOException {
+    byte[] j0 = new byte[BLOCK_SIZE];
+    byte[] tag = new byte[BLOCK_SIZE];
+    byte[] buffer = new byte[segmentBytes * parallelism];
+    byte[] includedTag = null;
+    long[] hash = new long[2];
+    DirectByteOutputStream buffOut = encrypting ? null : new DirectByteOutputStream();
+    
+    try {
+      final BlockCipher bc = getBlockCipher();
+      final GHash g = getGHash();
+      preCounterBlock(g, getIV(), j0);
+      
+      long aLen = hashAuthData(g, hash);
+      
+      InputStream source = in;
+      if (!encrypting) {
+        SuffixStream sufIn = new SuffixStream(in, BLOCK_SIZE);
+        if (!sufIn.hasFullSuffix()) {
+          sufIn.close();
+          throw new CryptoException(CryptoException.NO_MAC);
+        }
+        includedTag = sufIn.getSuffix();
+        source = sufIn;
+      }
+      
+      long[] segmentPower = g.powerOfH(segmentBytes / BLOCK_SIZE);
+      long cLen = 0;
+      while (true) {
+        int read = StreamUtils.readFully(source, buffer, 0, buffer.length);
+        if (read == 0) {
+          break;
+        }
+        List<Callable<long[]>> tasks = new ArrayList<Callable<long[]>>();
+        for (int start = 0; start < read; start += segmentBytes) {
+          final int segmentStart = start;
+          final int segmentLength = Math.min(segmentBytes, read - start);
+          final long firstBlock = (cLen + start) / BLOCK_SIZE;
+          final byte[] data = buffer;
+          final byte[] preCounter = j0;
+          tasks.add(new Callable<long[]>() {
+            @Override
+            public long[] call() throws CryptoException {
+              BlockCipher handle = bc.newHandle();
+              try {
+                return cryptSegment(handle, g, preCounter, firstBlock, data, segmentStart, segmentLength, encrypting);
+              } finally {
+                handle.removeKey();
+              }
+            }
+          });
+        }
+        List<long[]> partials = ParallelTasks.invokeAll(executor, tasks);
+        
+        // chain the partial hashes in message order
+        for (int s = 0; s < partials.size(); s++) {
+          int segmentLength = Math.min(segmentBytes, read - s * segmentBytes);
+          long[] power = segmentLength == segmentBytes ? segmentPower
+              : g.powerOfH((segmentLength + BLOCK_SIZE - 1) / BLOCK_SIZE);
+          long[] partial = partials.get(s);
+          GHash.multiply(hash, power[0], power[1]);
+          hash[0] ^= partial[0];
+          hash[1] ^= partial[1];
+          CryptoUtils.fillWithZeroes(partial);
+        }
+        
+        if (encrypting) {
+          out.write(buffer, 0, read);
+        } else {
+          buffOut.write(buffer, 0, read);
+        }
+        cLen += read;
+        if (read < buffer.length) {
+          break;
+        }
+      }
+      source.close();
+      
+      g.finish(hash, aLen, cLen);
+      GHash.toBytes(hash, tag, 0);
+      byte[] counterBlock = bc.encryptBlock(j0);
+      CryptoUtils.xorByteArrays(tag, counterBlock, tag);
+      CryptoUtils.fillWithZeroes(counterBlock);
+      
+      if (encrypting) {
+        out.write(tag);
+      } else {
+        if (!CryptoUtils.constantTimeArrayEquals(includedTag, tag)) {
+          throw new CryptoException(CryptoException.MAC_DOES_NOT_MATCH);
+        }
+        out.write(buffOut.getBuffer(), 0, buffOut.getCount());
+      }
+    } catch (CryptoException ce) {
+      throw new IOException(ce);
+    } finally {
+      CryptoUtils.fillWithZeroes(j0);
+      CryptoUtils.fillWithZeroes(tag);
+      CryptoUtils.fillWithZeroes(buffer);
+      CryptoUtils.fillWithZeroes(includedTag);
+      CryptoUtils.fillWithZeroes(hash);
+      if (buffOut != null) {
+        CryptoUtils.fillWithZeroes(buffOut.getBuffer());
+      }
+    }
+  }
+  
+  /**
+   * Encrypts or decrypts one segment in place and returns the GHASH of its cipher text from a zero state.
+   */
+  static long[] cryptSegment(BlockCipher bc, GHash g, byte[] j0, long firstBlock, byte[] data, int start, int len,
+      boolean encrypting) throws CryptoException {
+    int blocks = (len + BLOCK_SIZE - 1) / BLOCK_SIZE;
+    byte[] keyStream = new byte[blocks * BLOCK_SIZE];
+    // only the last 32 bits of the counter are incremented
+    int counter = CryptoUtils.intFromBytes(j0, 12) + (int) firstBlock;
+    for (int n = 0; n < blocks; n++) {
+      System.arraycopy(j0, 0, keyStream, n * BLOCK_SIZE, 12);
+      CryptoUtils.intToBytes(counter + n + 1, keyStream, n * BLOCK_SIZE + 12);
+    }
+    bc.encryptBlocks(keyStream, 0, keyStream, 0, blocks);
+    
+    long[] partial = new long[2];
+    if (!encrypting) {
+      g.update(partial, data, start, len);
+    }
+    CryptoUtils.xorByteArrays(data, start, keyStream, 0, data, start, len);
+    if (encrypting) {
+      g.update(partial, data, start, len);
+    }
+    CryptoUtils.fillWithZeroes(keyStream);
+    return partial;
+  }
+  
+}
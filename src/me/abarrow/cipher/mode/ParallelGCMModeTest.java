@@ -0,0 +1,108 @@
+package me.abarrow.cipher.mode;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.junit.Test;
+
+import me.abarrow.cipher.aes.AES;
+import me.abarrow.cipher.serpent.Serpent;
+import me.abarrow.core.CryptoException;
+import me.abarrow.core.CryptoUtils;
+
+public class ParallelGCMModeTest {
+
+  @Test
+  public void testMatchesSerialGCM() throws CryptoException, IOException {
+    Random rand = new Random(7);
+    ExecutorService pool = Executors.newFixedThreadPool(3);
+    try {
+      for (int length : new int[] {0, 1, 15, 16, 63, 64, 65, 191, 192, 193, 500, 1000}) {
+        byte[] key = new byte[16];
+        byte[] iv = new byte[length % 2 == 0 ? 12 : 20];
+        byte[] authData = new byte[length % 37];
+        byte[] plain = new byte[length];
+        rand.nextBytes(key);
+        rand.nextBytes(iv);
+        rand.nextBytes(authData);
+        rand.nextBytes(plain);
+        
+        byte[] expected = new GCMMode(new AES(key)).setAuthData(authData).setIV(iv).encrypt().runSync(plain);
+        ParallelGCMMode gcm = new ParallelGCMMode(new AES(key), 64, 3, pool);
+        gcm.setAuthData(authData).setIV(iv);
+        byte[] out = gcm.encrypt().runSync(plain);
+        assertArrayEquals(expected, out);
+        assertArrayEquals(plain, gcm.decrypt().runSync(out));
+      }
+    } finally {
+      pool.shutdown();
+    }
+  }
+  
+  @Test
+  public void testGCMModeTestCase4() throws CryptoException, IOException {
+    byte[] key = CryptoUtils.parseHexString("feffe9928665731c6d6a8f9467308308");
+    byte[] iv = CryptoUtils.parseHexString("cafebabefacedbaddecaf888");
+    byte[] plain = CryptoUtils.parseHexString(
+        "d9313225f88406e5a55909c5aff5269a" + 
+        "86a7a9531534f7da2e4c303d8a318a72" + 
+        "1c3c0c95956809532fcf0e2449a6b525" + 
+        "b16aedf5aa0de657ba637b39");
+    byte[] authData = CryptoUtils.parseHexString("feedfacedeadbeeffeedfacedeadbeefabaddad2");
+    byte[] outExpected = CryptoUtils.parseHexString(
+        "42831ec2217774244b7221b784d0d49c" + 
+        "e3aa212f2c02a4e035c17e2329aca12e" + 
+        "21d514b25466931c7d8f6a5aac84aa05" + 
+        "1ba30b396a0aac973d58e091" +
+        "5bc94fbc3221a5db94fae95ae7121a47");
+    ExecutorService pool = Executors.newCachedThreadPool();
+    try {
+      ParallelGCMMode gcm = new ParallelGCMMode(new AES(key), 16, 4, pool);
+      gcm.setAuthData(authData).setIV(iv);
+      assertArrayEquals(outExpected, gcm.encrypt().runSync(plain));
+      assertArrayEquals(plain, gcm.decrypt().runSync(outExpected));
+    } finally {
+      pool.shutdown();
+    }
+  }
+  
+  @Test(expected = IOException.class)
+  public void testCorruptSegment() throws CryptoException, IOException {
+    byte[] key = new byte[32];
+    ExecutorService pool = Executors.newCachedThreadPool();
+    try {
+      ParallelGCMMode gcm = new ParallelGCMMode(new Serpent(key), 32, 4, pool);
+      gcm.setIV(new byte[12]).setIVPrepending(true);
+      byte[] out = gcm.encrypt().runSync(new byte[300]);
+      out[12 + 100] ^= 1;
+      gcm.decrypt().runSync(out);
+    } finally {
+      pool.shutdown();
+    }
+  }
+  
+  @Test
+  public void testThroughput() throws CryptoException, IOException {
+    byte[] key = new byte[16];
+    byte[] plain = new byte[8 << 20];
+    GCMMode serial = new GCMMode(new AES(key));
+    serial.setIV(new byte[12]);
+    ParallelGCMMode parallel = new ParallelGCMMode(new AES(key));
+    parallel.setIV(new byte[12]);
+    
+    long start = System.nanoTime();
+    byte[] expected = serial.encrypt().runSync(plain);
+    long serialTime = System.nanoTime() - start;
+    start = System.nanoTime();
+    byte[] out = parallel.encrypt().runSync(plain);
+    long parallelTime = System.nanoTime() - start;
+    assertArrayEquals(expected, out);
+    System.out.println("GCM 8MiB serial took " + Math.round(serialTime / 1e6) + "ms, " + parallel.getParallelism()
+        + " threads took " + Math.round(parallelTime / 1e6) + "ms");
+  }
+
+}
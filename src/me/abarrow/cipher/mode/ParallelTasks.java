@@ -0,0 +1,52 @@
+package me.abarrow.cipher.mode;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+import me.abarrow.core.CryptoException;
+
+/**
+ * Runs the per segment tasks of the parallel modes on their executors.
+ */
+final class ParallelTasks {
+
+  private ParallelTasks() {
+  }
+
+  /**
+   * Runs the tasks on the executor and returns their results in order, running a single task on this thread.
+   */
+  static <T> List<T> invokeAll(ExecutorService executor, List<Callable<T>> tasks) throws IOException,
+      CryptoException {
+    List<T> results = new ArrayList<T>(tasks.size());
+    if (tasks.size() == 1) {
+      try {
+        results.add(tasks.get(0).call());
+      } catch (CryptoException e) {
+        throw e;
+      } catch (Exception e) {
+        throw new IOException(e);
+      }
+      return results;
+    }
+    try {
+      for (Future<T> result : executor.invokeAll(tasks)) {
+        results.add(result.get());
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IOException(e);
+    } catch (ExecutionException e) {
+      if (e.getCause() instanceof CryptoException) {
+        throw (CryptoException) e.getCause();
+      }
+      throw new IOException(e.getCause());
+    }
+    return results;
+  }
+}
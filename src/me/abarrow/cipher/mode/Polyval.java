@@ -0,0 +1,77 @@
+package me.abarrow.cipher.mode;
+
+import me.abarrow.core.CryptoUtils;
+import me.abarrow.core.KeySchedule;
+
+/**
+ * The POLYVAL universal hash from AES-GCM-SIV (RFC 8452). POLYVAL is GHASH with the bytes of each block reversed and
+ * its key multiplied by x, as shown in appendix A of the RFC, so it runs on the Shoup tables of {@link GHash}.
+ * <p>
+ * The hash state of a message is a {@code long[2]} in GHASH's representation, owned by the caller.
+ */
+public final class Polyval extends KeySchedule {
+  
+  public static final int BLOCK_BYTES = 16;
+  
+  private static final long R = 0xe100000000000000L;
+  
+  private final GHash g;
+  
+  public Polyval(byte[] h) {
+    this(h, GHash.SHOUP_8_BIT);
+  }
+  
+  public Polyval(byte[] h, int tableBits) {
+    // mulX_GHASH(ByteReverse(H))
+    long hHi = CryptoUtils.longFromBytes(h, 8, true);
+    long hLo = CryptoUtils.longFromBytes(h, 0, true);
+    long carry = hLo & 1;
+    hLo = (hLo >>> 1) | (hHi << 63);
+    hHi = (hHi >>> 1) ^ (carry == 0 ? 0 : R);
+    g = new GHash(hHi, hLo, tableBits);
+  }
+  
+  public void updateBlock(long[] x, byte[] data, int start) {
+    x[0] ^= CryptoUtils.longFromBytes(data, start + 8, true);
+    x[1] ^= CryptoUtils.longFromBytes(data, start, true);
+    g.multiplyH(x);
+  }
+  
+  /**
+   * Absorbs len bytes, zero padding the final partial block.
+   */
+  public void update(long[] x, byte[] data, int start, int len) {
+    int end = start + len;
+    int n = start;
+    for (; n + BLOCK_BYTES <= end; n += BLOCK_BYTES) {
+      updateBlock(x, data, n);
+    }
+    if (n != end) {
+      byte[] last = new byte[BLOCK_BYTES];
+      System.arraycopy(data, n, last, 0, end - n);
+      updateBlock(x, last, 0);
+      CryptoUtils.fillWithZeroes(last);
+    }
+  }
+  
+  /**
+   * Absorbs the block holding the bit lengths of the associated data and the plain text.
+   */
+  public void finish(long[] x, long aadBytes, long textBytes) {
+    x[0] ^= textBytes * 8;
+    x[1] ^= aadBytes * 8;
+    g.multiplyH(x);
+  }
+  
+  public static byte[] toBytes(long[] x, byte[] out, int start) {
+    CryptoUtils.longToBytes(x[1], out, start, true);
+    CryptoUtils.longToBytes(x[0], out, start + 8, true);
+    return out;
+  }
+  
+  @Override
+  protected void zero() {
+    g.destroy();
+  }
+
+}
@@ -0,0 +1,268 @@
+package me.abarrow.cipher.mode;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PushbackInputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ForkJoinPool;
+
+import me.abarrow.cipher.BlockCipher;
+import me.abarrow.cipher.Cipher;
+import me.abarrow.core.CryptoException;
+import me.abarrow.core.CryptoUtils;
+import me.abarrow.stream.StreamProcess;
+import me.abarrow.stream.StreamUtils;
+
+/**
+ * An online AEAD built from GCM with the STREAM construction of Hoang, Reyhanitabar, Rogaway and Vizar. The message is
+ * cut into segments of a fixed size and each is sealed as its own GCM message with a 16 byte tag, under the nonce
+ * <pre>
+ * nonce prefix (7 bytes) || segment number (4 bytes, big endian) || 1 on the last segment, otherwise 0 (1 byte)
+ * </pre>
+ * The segment numbers stop segments from being reordered and the last segment flag stops the stream from being
+ * truncated, so decryption can release each segment as soon as its tag verifies, using memory for only a few
+ * segments whatever the size of the message. The associated data is authenticated with the first segment.
+ * <p>
+ * Several segments are sealed or opened at once on the executor when the block cipher supports
+ * {@link BlockCipher#newHandle()}. This format is not compatible with plain GCM.
+ */
+public class SegmentedGCMMode extends GCMMode {
+  
+  public static final int NONCE_PREFIX_BYTES = 7;
+  public static final int DEFAULT_SEGMENT_BYTES = 64 * 1024;
+  public static final int TAG_BYTES = 16;
+  
+  private static final int BLOCK_SIZE = 16;
+  private static final long MAX_SEGMENTS = 0xffffffffL;
+  
+  private final int segmentBytes;
+  private final int parallelism;
+  private final ExecutorService executor;
+  
+  public SegmentedGCMMode(BlockCipher blockCipher) throws CryptoException {
+    this(blockCipher, DEFAULT_SEGMENT_BYTES, Runtime.getRuntime().availableProcessors(), ForkJoinPool.commonPool());
+  }
+  
+  /**
+   * @param segmentBytes the bytes of plain text in every segment but the last, a multiple of 16
+   * @param parallelism how many segments are read and worked on at once
+   */
+  public SegmentedGCMMode(BlockCipher blockCipher, int segmentBytes, int parallelism, ExecutorService executor)
+      throws CryptoException {
+    super(blockCipher);
+    if (segmentBytes <= 0 || segmentBytes % BLOCK_SIZE != 0) {
+      throw new IllegalArgumentException("Segments must be a positive number of blocks.");
+    }
+    if (parallelism <= 0) {
+      throw new IllegalArgumentException("Parallelism must be positive.");
+    }
+    this.segmentBytes = segmentBytes;
+    this.parallelism = parallelism;
+    this.executor = executor;
+  }
+  
+  public int getSegmentBytes() {
+    return segmentBytes;
+  }
+  
+  /**
+   * Sets the nonce prefix, which has to be {@link #NONCE_PREFIX_BYTES} long and never reused with the same key.
+   */
+  @Override
+  public Cipher setIV(byte[] initVector) {
+    if (initVector.length != NONCE_PREFIX_BYTES) {
+      throw new IllegalArgumentException(CryptoException.INVALID_IV_LENGTH);
+    }
+    return super.setIV(initVector);
+  }
+  
+  @Override
+  public StreamProcess encrypt() {
+    return new StreamProcess() {
+      @Override
+      public void process(InputStream in, OutputStream out) throws IOException {
+        if (!hasIV()) {
+          throw new IOException(new CryptoException(CryptoException.NO_IV));
+        }
+        if (isIVPrepending()) {
+          out.write(getIV());
+        }
+        run(in, out, true);
+      }
+    };
+  }
+  
+  @Override
+  public StreamProcess decrypt() {
+    return new StreamProcess() {
+      @Override
+      public void process(InputStream in, OutputStream out) throws IOException {
+        if (isIVPrepending()) {
+          byte[] prefix = new byte[NONCE_PREFIX_BYTES];
+          if (StreamUtils.readFully(in, prefix, 0, prefix.length) != prefix.length) {
+            throw new IOException(new CryptoException(CryptoException.NO_IV));
+          }
+          setIV(prefix);
+        }
+        if (!hasIV()) {
+          throw new IOException(new CryptoException(CryptoException.NO_IV));
+        }
+        run(in, out, false);
+      }
+    };
+  }
+  
+  private void run(InputStream in, OutputStream out, boolean encrypting) throws IOException {
+    final int stride = encrypting ? segmentBytes : segmentBytes + TAG_BYTES;
+    final byte[] buffer = new byte[stride * parallelism];
+    final int[] lengths = new int[parallelism];
+    final byte[] tags = new byte[TAG_BYTES * parallelism];
+    final byte[] aadHash = new byte[BLOCK_SIZE];
+    PushbackInputStream source = new PushbackInputStream(in, 1);
+    
+    try {
+      final BlockCipher bc = getBlockCipher();
+      final GHash g = getGHash();
+      final byte[] prefix = getIV();
+      final boolean handles = bc.supportsHandles();
+      
+      long[] hash = new long[2];
+      final long aLen = hashAuthData(g, hash);
+      GHash.toBytes(hash, aadHash, 0);
+      CryptoUtils.fillWithZeroes(hash);
+      
+      long segment = 0;
+      boolean last = false;
+      while (!last) {
+        // read a batch of segments, looking one byte ahead to find the last one
+        int count = 0;
+        while (count < parallelism && !last) {
+          int read = StreamUtils.readFully(source, buffer, count * stride, stride);
+          if (read < stride) {
+            last = true;
+          } else {
+            int next = source.read();
+            if (next == -1) {
+              last = true;
+            } else {
+              source.unread(next);
+            }
+          }
+          if (!encrypting && read < TAG_BYTES) {
+            throw new CryptoException(CryptoException.NO_MAC);
+          }
+          lengths[count] = encrypting ? read : read - TAG_BYTES;
+          count++;
+        }
+        if (segment + count - 1 > MAX_SEGMENTS) {
+          throw new CryptoException(CryptoException.MESSAGE_TOO_LONG);
+        }
+        
+        List<Callable<Boolean>> tasks = new ArrayList<Callable<Boolean>>();
+        for (int s = 0; s < count; s++) {
+          final int index = s;
+          final long segmentNumber = segment + s;
+          final boolean isLast = last && s == count - 1;
+          tasks.add(new Callable<Boolean>() {
+            @Override
+            public Boolean call() throws CryptoException {
+              BlockCipher handle = handles ? bc.newHandle() : bc;
+              try {
+                byte[] tag = new byte[TAG_BYTES];
+                crypt(handle, g, nonce(prefix, segmentNumber, isLast), segmentNumber == 0 ? aadHash : null,
+                    segmentNumber == 0 ? aLen : 0, buffer, index * stride, lengths[index], encrypting, tag);
+                try {
+                  if (encrypting) {
+                    System.arraycopy(tag, 0, tags, index * TAG_BYTES, TAG_BYTES);
+                    return true;
+                  }
+                  return CryptoUtils.constantTimeSubArrayEquals(tag, 0, buffer, index * stride + lengths[index],
+                      TAG_BYTES);
+                } finally {
+                  CryptoUtils.fillWithZeroes(tag);
+                }
+              } finally {
+                if (handles) {
+                  handle.removeKey();
+                }
+              }
+            }
+          });
+        }
+        List<Boolean> verified = handles ? ParallelTasks.invokeAll(executor, tasks) : callInOrder(tasks);
+        
+        for (int s = 0; s < count; s++) {
+          if (encrypting) {
+            out.write(buffer, s * stride, lengths[s]);
+            out.write(tags, s * TAG_BYTES, TAG_BYTES);
+          } else if (verified.get(s)) {
+            out.write(buffer, s * stride, lengths[s]);
+          } else {
+            throw new CryptoException(CryptoException.MAC_DOES_NOT_MATCH);
+          }
+        }
+        segment += count;
+      }
+      source.close();
+    } catch (CryptoException ce) {
+      throw new IOException(ce);
+    } finally {
+      CryptoUtils.fillWithZeroes(buffer);
+      CryptoUtils.fillWithZeroes(tags);
+      CryptoUtils.fillWithZeroes(aadHash);
+    }
+  }
+  
+  private static <T> List<T> callInOrder(List<Callable<T>> tasks) throws IOException, CryptoException {
+    List<T> results = new ArrayList<T>(tasks.size());
+    for (Callable<T> task : tasks) {
+      try {
+        results.add(task.call());
+      } catch (CryptoException e) {
+        throw e;
+      } catch (Exception e) {
+        throw new IOException(e);
+      }
+    }
+    return results;
+  }
+  
+  static byte[] nonce(byte[] prefix, long segment, boolean last) {
+    byte[] nonce = Arrays.copyOf(prefix, 12);
+    CryptoUtils.intToBytes((int) segment, nonce, NONCE_PREFIX_BYTES);
+    nonce[11] = last ? CryptoUtils.ONE_BYTE : CryptoUtils.ZERO_BYTE;
+    return nonce;
+  }
+  
+  /**
+   * Encrypts or decrypts one segment in place as a GCM message with a 96 bit nonce, writing its tag. The GHASH of the
+   * associated data is passed in already computed, since it is the same for any segment it is used with.
+   */
+  static void crypt(BlockCipher bc, GHash g, byte[] nonce, byte[] aadHash, long aLen, byte[] data, int start,
+      int len, boolean encrypting, byte[] tag) throws CryptoException {
+    byte[] j0 = GCMMode.preCounterBlock(g, nonce, new byte[BLOCK_SIZE]);
+    long[] partial = ParallelGCMMode.cryptSegment(bc, g, j0, 0, data, start, len, encrypting);
+    long[] hash = new long[2];
+    if (aadHash != null) {
+      hash[0] = CryptoUtils.longFromBytes(aadHash, 0);
+      hash[1] = CryptoUtils.longFromBytes(aadHash, 8);
+      long[] power = g.powerOfH((len + BLOCK_SIZE - 1) / BLOCK_SIZE);
+      GHash.multiply(hash, power[0], power[1]);
+    }
+    hash[0] ^= partial[0];
+    hash[1] ^= partial[1];
+    g.finish(hash, aLen, len);
+    GHash.toBytes(hash, tag, 0);
+    bc.encryptBlock(j0, j0);
+    CryptoUtils.xorByteArrays(tag, j0, tag);
+    CryptoUtils.fillWithZeroes(j0);
+    CryptoUtils.fillWithZeroes(partial);
+    CryptoUtils.fillWithZeroes(hash);
+  }
+
+}
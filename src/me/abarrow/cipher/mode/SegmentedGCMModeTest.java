@@ -0,0 +1,138 @@
+package me.abarrow.cipher.mode;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.junit.Test;
+
+import me.abarrow.cipher.aes.AES;
+import me.abarrow.cipher.blowfish.TwoFish;
+import me.abarrow.core.CryptoException;
+import me.abarrow.core.CryptoUtils;
+
+public class SegmentedGCMModeTest {
+  
+  private static final byte[] KEY = CryptoUtils.parseHexString("feffe9928665731c6d6a8f9467308308");
+  private static final byte[] PREFIX = CryptoUtils.parseHexString("cafebabefacedb");
+  private static final byte[] AUTH_DATA = CryptoUtils.parseHexString("feedfacedeadbeeffeedfacedeadbeefabaddad2");
+
+  @Test
+  public void testRoundTrip() throws CryptoException, IOException {
+    Random rand = new Random(3);
+    ExecutorService pool = Executors.newFixedThreadPool(3);
+    try {
+      for (int length : new int[] {0, 1, 31, 32, 33, 64, 100, 1000}) {
+        byte[] plain = new byte[length];
+        rand.nextBytes(plain);
+        SegmentedGCMMode mode = new SegmentedGCMMode(new AES(KEY), 32, 3, pool);
+        mode.setAuthData(AUTH_DATA).setIV(PREFIX);
+        byte[] out = mode.encrypt().runSync(plain);
+        int segments = Math.max(1, (length + 31) / 32);
+        assertEquals(length + segments * SegmentedGCMMode.TAG_BYTES, out.length);
+        assertArrayEquals(plain, mode.decrypt().runSync(out));
+        
+        SegmentedGCMMode serial = new SegmentedGCMMode(new AES(KEY), 32, 1, pool);
+        serial.setAuthData(AUTH_DATA).setIV(PREFIX);
+        assertArrayEquals(out, serial.encrypt().runSync(plain));
+      }
+    } finally {
+      pool.shutdown();
+    }
+  }
+  
+  @Test
+  public void testSegmentsAreGCMMessages() throws CryptoException, IOException {
+    byte[] plain = new byte[40];
+    new Random(5).nextBytes(plain);
+    ExecutorService pool = Executors.newCachedThreadPool();
+    try {
+      SegmentedGCMMode mode = new SegmentedGCMMode(new AES(KEY), 32, 2, pool);
+      mode.setAuthData(AUTH_DATA).setIV(PREFIX);
+      byte[] out = mode.encrypt().runSync(plain);
+    
+      byte[] first = new GCMMode(new AES(KEY)).setAuthData(AUTH_DATA)
+          .setIV(SegmentedGCMMode.nonce(PREFIX, 0, false)).encrypt().runSync(Arrays.copyOf(plain, 32));
+      byte[] second = new GCMMode(new AES(KEY))
+          .setIV(SegmentedGCMMode.nonce(PREFIX, 1, true)).encrypt().runSync(Arrays.copyOfRange(plain, 32, 40));
+      assertArrayEquals(CryptoUtils.concatArrays(first, second), out);
+    } finally {
+      pool.shutdown();
+    }
+  }
+  
+  @Test
+  public void testTruncationDetected() throws CryptoException, IOException {
+    ExecutorService pool = Executors.newCachedThreadPool();
+    try {
+      SegmentedGCMMode mode = new SegmentedGCMMode(new AES(KEY), 32, 2, pool);
+      mode.setIV(PREFIX);
+      byte[] out = mode.encrypt().runSync(new byte[96]);
+      try {
+        mode.decrypt().runSync(Arrays.copyOf(out, 2 * (32 + SegmentedGCMMode.TAG_BYTES)));
+        fail();
+      } catch (IOException e) {
+        assertEquals(CryptoException.MAC_DOES_NOT_MATCH, e.getCause().getMessage());
+      }
+    } finally {
+      pool.shutdown();
+    }
+  }
+  
+  @Test
+  public void testReorderDetected() throws CryptoException, IOException {
+    ExecutorService pool = Executors.newCachedThreadPool();
+    try {
+      SegmentedGCMMode mode = new SegmentedGCMMode(new AES(KEY), 32, 1, pool);
+      mode.setIV(PREFIX);
+      byte[] out = mode.encrypt().runSync(new byte[96]);
+      int sealed = 32 + SegmentedGCMMode.TAG_BYTES;
+      byte[] swapped = Arrays.copyOf(out, out.length);
+      System.arraycopy(out, 0, swapped, sealed, sealed);
+      System.arraycopy(out, sealed, swapped, 0, sealed);
+      try {
+        mode.decrypt().runSync(swapped);
+        fail();
+      } catch (IOException e) {
+        assertEquals(CryptoException.MAC_DOES_NOT_MATCH, e.getCause().getMessage());
+      }
+    } finally {
+      pool.shutdown();
+    }
+  }
+  
+  @Test
+  public void testVerifiedSegmentsReleasedBeforeFailure() throws CryptoException, IOException {
+    byte[] plain = new byte[200];
+    new Random(9).nextBytes(plain);
+    ExecutorService pool = Executors.newCachedThreadPool();
+    try {
+      SegmentedGCMMode mode = new SegmentedGCMMode(new TwoFish(KEY), 32, 2, pool);
+      mode.setIV(PREFIX).setIVPrepending(true);
+      byte[] out = mode.encrypt().runSync(plain);
+      out[out.length - 1] ^= 1;
+      ByteArrayOutputStream released = new ByteArrayOutputStream();
+      try {
+        mode.decrypt().process(new ByteArrayInputStream(out), released);
+        fail();
+      } catch (IOException e) {
+        assertEquals(CryptoException.MAC_DOES_NOT_MATCH, e.getCause().getMessage());
+      }
+      assertArrayEquals(Arrays.copyOf(plain, 192), released.toByteArray());
+    } finally {
+      pool.shutdown();
+    }
+  }
+  
+  @Test(expected = IllegalArgumentException.class)
+  public void testWrongPrefixLength() throws CryptoException {
+    new SegmentedGCMMode(new AES(KEY)).setIV(new byte[12]);
+  }
+
+}
@@ -0,0 +1,248 @@
+package me.abarrow.cipher.mode;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SeekableByteChannel;
+
+import me.abarrow.core.CryptoException;
+import me.abarrow.core.CryptoUtils;
+
+/**
+ * A channel over the plain text of a channel encrypted with {@link XTSMode}, numbering sectors from the start of the
+ * underlying channel. Positions and sizes are the same in both, and reads and writes only touch the sectors they
+ * cover, decrypting and encrypting runs of sectors together. Writing part of a sector reads it back first.
+ * <p>
+ * Like XTS itself the channel cannot hold a final sector of less than one block, so writes and truncations that would
+ * leave one fail. It is not safe to use from several threads at once.
+ */
+public class XTSChannel implements SeekableByteChannel {
+
+  private static final int BLOCK_SIZE = 16;
+  private static final int BUFFER_BYTES = 64 * 1024;
+
+  private final SeekableByteChannel channel;
+  private final XTSMode xts;
+  private final int sectorBytes;
+  private final byte[] buffer;
+  private long position = 0;
+
+  public XTSChannel(SeekableByteChannel encrypted, XTSMode xtsMode) {
+    channel = encrypted;
+    xts = xtsMode;
+    sectorBytes = xts.getSectorBytes();
+    int sectors = Math.max(xts.getParallelism(), (BUFFER_BYTES + sectorBytes - 1) / sectorBytes);
+    buffer = new byte[sectors * sectorBytes];
+  }
+
+  private void ensureOpen() throws ClosedChannelException {
+    if (!channel.isOpen()) {
+      throw new ClosedChannelException();
+    }
+  }
+
+  private int readRaw(long at, int off, int len) throws IOException {
+    channel.position(at);
+    ByteBuffer wrapped = ByteBuffer.wrap(buffer, off, len);
+    while (wrapped.hasRemaining()) {
+      if (channel.read(wrapped) == -1) {
+        break;
+      }
+    }
+    return wrapped.position() - off;
+  }
+
+  private void writeRaw(long at, int off, int len) throws IOException {
+    channel.position(at);
+    ByteBuffer wrapped = ByteBuffer.wrap(buffer, off, len);
+    while (wrapped.hasRemaining()) {
+      channel.write(wrapped);
+    }
+  }
+
+  /**
+   * Reads and decrypts one whole sector of a file of the given size into the buffer, returning its length.
+   */
+  private int loadSector(long sector, int off, long size) throws IOException, CryptoException {
+    long start = sector * sectorBytes;
+    int len = (int) Math.min(sectorBytes, size - start);
+    if (readRaw(start, off, len) != len) {
+      throw new IOException("The encrypted channel ended early.");
+    }
+    xts.decryptSector(sector, buffer, off, len);
+    return len;
+  }
+
+  @Override
+  public int read(ByteBuffer dst) throws IOException {
+    ensureOpen();
+    long size = channel.size();
+    if (position >= size) {
+      return dst.hasRemaining() ? -1 : 0;
+    }
+    int total = 0;
+    try {
+      while (dst.hasRemaining() && position < size) {
+        long firstSector = position / sectorBytes;
+        long runStart = firstSector * sectorBytes;
+        long wantEnd = Math.min(size, position + dst.remaining());
+        long runEnd = Math.min(size, Math.min(roundUp(wantEnd), runStart + buffer.length));
+        int runLen = (int) (runEnd - runStart);
+        if (readRaw(runStart, 0, runLen) != runLen) {
+          throw new IOException("The encrypted channel ended early.");
+        }
+        xts.decryptSectors(firstSector, buffer, 0, runLen);
+        int skip = (int) (position - runStart);
+        int n = Math.min(dst.remaining(), runLen - skip);
+        dst.put(buffer, skip, n);
+        position += n;
+        total += n;
+      }
+    } catch (CryptoException e) {
+      throw new IOException(e);
+    } finally {
+      CryptoUtils.fillWithZeroes(buffer);
+    }
+    return total;
+  }
+
+  private long roundUp(long pos) {
+    return (pos + sectorBytes - 1) / sectorBytes * sectorBytes;
+  }
+
+  /**
+   * Writing past the end fills the gap with encrypted zeroes.
+   */
+  @Override
+  public int write(ByteBuffer src) throws IOException {
+    ensureOpen();
+    long size = channel.size();
+    if (position > size && src.hasRemaining()) {
+      long requested = position;
+      position = size;
+      try {
+        return writeRuns(src, requested - size, size);
+      } catch (IOException e) {
+        position = Math.max(position, requested);
+        throw e;
+      }
+    }
+    return writeRuns(src, 0, size);
+  }
+
+  /**
+   * Writes the given number of zeroes followed by src, a buffer of whole sectors at a time.
+   */
+  private int writeRuns(ByteBuffer src, long zeroes, long size) throws IOException {
+    int total = 0;
+    try {
+      while (zeroes > 0 || src.hasRemaining()) {
+        long firstSector = position / sectorBytes;
+        long runStart = firstSector * sectorBytes;
+        int skip = (int) (position - runStart);
+        int z = (int) Math.min(zeroes, buffer.length - skip);
+        int n = Math.min(src.remaining(), buffer.length - skip - z);
+        long writeEnd = position + z + n;
+        long newSize = Math.max(size, writeEnd);
+        long runEnd = Math.min(newSize, roundUp(writeEnd));
+        int runLen = (int) (runEnd - runStart);
+        int sectors = (runLen + sectorBytes - 1) / sectorBytes;
+        int lastOff = (sectors - 1) * sectorBytes;
+        if (runLen - lastOff < BLOCK_SIZE) {
+          throw new CryptoException(CryptoException.SECTOR_TOO_SHORT);
+        }
+
+        // only the sectors at either end can be partly overwritten
+        if (size > runStart && (skip > 0 || writeEnd < Math.min(runStart + sectorBytes, size))) {
+          loadSector(firstSector, 0, size);
+        }
+        long lastStart = runStart + lastOff;
+        if (sectors > 1 && size > lastStart && writeEnd < Math.min(lastStart + sectorBytes, size)) {
+          loadSector(firstSector + sectors - 1, lastOff, size);
+        }
+        // zeroes only ever follow the old end, so the buffer is still clear there
+        src.get(buffer, skip + z, n);
+        xts.encryptSectors(firstSector, buffer, 0, runLen);
+        writeRaw(runStart, 0, runLen);
+        CryptoUtils.fillWithZeroes(buffer);
+
+        position = writeEnd;
+        size = newSize;
+        zeroes -= z;
+        total += n;
+      }
+    } catch (CryptoException e) {
+      throw new IOException(e);
+    } finally {
+      CryptoUtils.fillWithZeroes(buffer);
+    }
+    return total;
+  }
+
+  @Override
+  public long position() throws IOException {
+    ensureOpen();
+    return position;
+  }
+
+  @Override
+  public SeekableByteChannel position(long newPosition) throws IOException {
+    ensureOpen();
+    if (newPosition < 0) {
+      throw new IllegalArgumentException("The position cannot be negative.");
+    }
+    position = newPosition;
+    return this;
+  }
+
+  @Override
+  public long size() throws IOException {
+    ensureOpen();
+    return channel.size();
+  }
+
+  /**
+   * Cutting a sector short encrypts what is left of it again, as the stolen cipher text moves.
+   */
+  @Override
+  public SeekableByteChannel truncate(long newSize) throws IOException {
+    ensureOpen();
+    if (newSize < 0) {
+      throw new IllegalArgumentException("The size cannot be negative.");
+    }
+    long size = channel.size();
+    if (newSize < size) {
+      int tail = (int) (newSize % sectorBytes);
+      try {
+        if (tail != 0) {
+          if (tail < BLOCK_SIZE) {
+            throw new CryptoException(CryptoException.SECTOR_TOO_SHORT);
+          }
+          long sector = newSize / sectorBytes;
+          loadSector(sector, 0, size);
+          xts.encryptSector(sector, buffer, 0, tail);
+          writeRaw(sector * sectorBytes, 0, tail);
+        }
+      } catch (CryptoException e) {
+        throw new IOException(e);
+      } finally {
+        CryptoUtils.fillWithZeroes(buffer);
+      }
+      channel.truncate(newSize);
+    }
+    position = Math.min(position, newSize);
+    return this;
+  }
+
+  @Override
+  public boolean isOpen() {
+    return channel.isOpen();
+  }
+
+  @Override
+  public void close() throws IOException {
+    CryptoUtils.fillWithZeroes(buffer);
+    channel.close();
+  }
+
+}
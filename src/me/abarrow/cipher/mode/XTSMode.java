@@ -0,0 +1,401 @@
+package me.abarrow.cipher.mode;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+
+import me.abarrow.cipher.BlockCipher;
+import me.abarrow.cipher.Cipher;
+import me.abarrow.core.CryptoException;
+import me.abarrow.core.CryptoUtils;
+import me.abarrow.stream.StreamProcess;
+import me.abarrow.stream.StreamUtils;
+
+/**
+ * XTS from IEEE 1619 for encrypting storage a sector (data unit) at a time. The key is two keys of the block cipher
+ * joined together, the second encrypting the little endian sector number into the tweak for the first block, which
+ * is doubled in GF(2^128) for each block after it. A sector that is not a whole number of blocks uses cipher text
+ * stealing, so the cipher text is exactly as long as the plain text, but every sector has to be at least one block.
+ * <p>
+ * Sectors are independent, so {@link #encryptSector(long, byte[], int, int)} can be called for any sector in any
+ * order, and runs of sectors are split between threads when an executor is given. As a stream cipher the IV is the
+ * 16 byte little endian number of the first sector, and the message is split into sectors of the configured size.
+ * Use {@link XTSChannel} for random access to an encrypted file.
+ */
+public class XTSMode implements Cipher {
+
+  public static final int TWEAK_BYTES = 16;
+  public static final int DEFAULT_SECTOR_BYTES = 4096;
+
+  private static final int BLOCK_SIZE = 16;
+  private static final int BATCH_BLOCKS = 64;
+  private static final long GF_128_FDBK = 0x87;
+
+  private final BlockCipher dataCipher;
+  private final BlockCipher tweakCipher;
+  private final int sectorBytes;
+  private final int parallelism;
+  private final ExecutorService executor;
+
+  private byte[] iv;
+  private boolean prependingIV = false;
+
+  public XTSMode(BlockCipher dataCipher, BlockCipher tweakCipher) throws CryptoException {
+    this(dataCipher, tweakCipher, DEFAULT_SECTOR_BYTES, 1, null);
+  }
+
+  /**
+   * @param dataCipher encrypts the blocks of each sector under the first half of the key
+   * @param tweakCipher a second cipher of the same kind, which encrypts sector numbers under the second half
+   * @param sectorBytes the size of the sectors messages are split into by {@link #encrypt()}, at least one block
+   * @param parallelism how many threads runs of sectors are split between, which needs both ciphers to support
+   * {@link BlockCipher#newHandle()} to be more than 1
+   */
+  public XTSMode(BlockCipher dataCipher, BlockCipher tweakCipher, int sectorBytes, int parallelism,
+      ExecutorService executor) throws CryptoException {
+    if (dataCipher.getBlockBytes() != BLOCK_SIZE || tweakCipher.getBlockBytes() != BLOCK_SIZE) {
+      throw new CryptoException(CryptoException.INCOMPATIBLE_CIPHER);
+    }
+    if (sectorBytes < BLOCK_SIZE) {
+      throw new IllegalArgumentException(CryptoException.SECTOR_TOO_SHORT);
+    }
+    if (parallelism <= 0 || (parallelism > 1 && executor == null)) {
+      throw new IllegalArgumentException("Parallelism must be positive, and needs an executor above 1.");
+    }
+    this.dataCipher = dataCipher;
+    this.tweakCipher = tweakCipher;
+    this.sectorBytes = sectorBytes;
+    this.parallelism = parallelism;
+    this.executor = executor;
+  }
+
+  public int getSectorBytes() {
+    return sectorBytes;
+  }
+
+  public int getParallelism() {
+    return parallelism;
+  }
+
+  /**
+   * Encrypts one sector of len bytes in place.
+   */
+  public void encryptSector(long sectorNumber, byte[] data, int off, int len) throws CryptoException {
+    checkKey();
+    cryptSector(dataCipher, tweakCipher, sectorNumber, 0, data, off, len, true);
+  }
+
+  public void decryptSector(long sectorNumber, byte[] data, int off, int len) throws CryptoException {
+    checkKey();
+    cryptSector(dataCipher, tweakCipher, sectorNumber, 0, data, off, len, false);
+  }
+
+  public void encryptSector(long sectorNumber, byte[] data) throws CryptoException {
+    encryptSector(sectorNumber, data, 0, data.length);
+  }
+
+  public void decryptSector(long sectorNumber, byte[] data) throws CryptoException {
+    decryptSector(sectorNumber, data, 0, data.length);
+  }
+
+  /**
+   * Encrypts consecutive sectors of {@link #getSectorBytes()} in place, starting with firstSector, where only the
+   * last can be shorter.
+   */
+  public void encryptSectors(long firstSector, byte[] data, int off, int len) throws CryptoException, IOException {
+    cryptSectors(firstSector, 0, data, off, len, true);
+  }
+
+  public void decryptSectors(long firstSector, byte[] data, int off, int len) throws CryptoException, IOException {
+    cryptSectors(firstSector, 0, data, off, len, false);
+  }
+
+  private void checkKey() throws CryptoException {
+    if (!hasKey()) {
+      throw new CryptoException(CryptoException.NO_KEY);
+    }
+  }
+
+  private boolean canRunInParallel() {
+    return parallelism > 1 && dataCipher.supportsHandles() && tweakCipher.supportsHandles();
+  }
+
+  /**
+   * @param firstLo the low 64 bits of the tweak of the first sector
+   * @param firstHi the high 64 bits
+   */
+  private void cryptSectors(final long firstLo, final long firstHi, final byte[] data, final int off, int len,
+      final boolean encrypting) throws CryptoException, IOException {
+    checkKey();
+    int sectors = (len + sectorBytes - 1) / sectorBytes;
+    if (len - (sectors - 1) * sectorBytes < BLOCK_SIZE) {
+      throw new CryptoException(CryptoException.SECTOR_TOO_SHORT);
+    }
+    if (sectors <= 1 || !canRunInParallel()) {
+      cryptRun(dataCipher, tweakCipher, firstLo, firstHi, 0, data, off, len, encrypting);
+      return;
+    }
+    int perTask = (sectors + parallelism - 1) / parallelism;
+    List<Callable<Void>> tasks = new ArrayList<Callable<Void>>();
+    for (int first = 0; first < sectors; first += perTask) {
+      final int taskFirst = first;
+      final int taskStart = off + first * sectorBytes;
+      final int taskLength = Math.min(perTask * sectorBytes, off + len - taskStart);
+      tasks.add(new Callable<Void>() {
+        @Override
+        public Void call() throws CryptoException {
+          BlockCipher data1 = dataCipher.newHandle();
+          BlockCipher tweak1 = tweakCipher.newHandle();
+          try {
+            cryptRun(data1, tweak1, firstLo, firstHi, taskFirst, data, taskStart, taskLength, encrypting);
+          } finally {
+            data1.removeKey();
+            tweak1.removeKey();
+          }
+          return null;
+        }
+      });
+    }
+    ParallelTasks.invokeAll(executor, tasks);
+  }
+
+  /**
+   * Encrypts or decrypts consecutive sectors, the first being number (firstHi, firstLo) + skip.
+   */
+  private void cryptRun(BlockCipher data1, BlockCipher tweak1, long firstLo, long firstHi, long skip, byte[] data,
+      int off, int len, boolean encrypting) throws CryptoException {
+    long lo = firstLo + skip;
+    long hi = firstHi + (Long.compareUnsigned(lo, firstLo) < 0 ? 1 : 0);
+    for (int pos = 0; pos < len; pos += sectorBytes) {
+      cryptSector(data1, tweak1, lo, hi, data, off + pos, Math.min(sectorBytes, len - pos), encrypting);
+      lo++;
+      if (lo == 0) {
+        hi++;
+      }
+    }
+  }
+
+  /**
+   * Encrypts or decrypts one sector in place with the tweak (hi, lo), stealing cipher text for a final partial block.
+   */
+  static void cryptSector(BlockCipher data1, BlockCipher tweak1, long lo, long hi, byte[] data, int off, int len,
+      boolean encrypting) throws CryptoException {
+    if (len < BLOCK_SIZE) {
+      throw new CryptoException(CryptoException.SECTOR_TOO_SHORT);
+    }
+    byte[] block = new byte[BLOCK_SIZE];
+    long[] tweaks = new long[2 * BATCH_BLOCKS];
+    try {
+      CryptoUtils.longToBytes(lo, block, 0, true);
+      CryptoUtils.longToBytes(hi, block, 8, true);
+      tweak1.encryptBlock(block, block);
+      long[] t = new long[] { CryptoUtils.longFromBytes(block, 0, true), CryptoUtils.longFromBytes(block, 8, true) };
+
+      int rem = len % BLOCK_SIZE;
+      // with stealing, the last whole block is left for the end
+      int blocks = len / BLOCK_SIZE - (rem == 0 ? 0 : 1);
+      for (int done = 0; done < blocks; done += BATCH_BLOCKS) {
+        int batch = Math.min(BATCH_BLOCKS, blocks - done);
+        int batchStart = off + done * BLOCK_SIZE;
+        for (int n = 0; n < batch; n++) {
+          tweaks[2 * n] = t[0];
+          tweaks[2 * n + 1] = t[1];
+          xorTweak(data, batchStart + n * BLOCK_SIZE, t);
+          timesAlpha(t);
+        }
+        if (encrypting) {
+          data1.encryptBlocks(data, batchStart, data, batchStart, batch);
+        } else {
+          data1.decryptBlocks(data, batchStart, data, batchStart, batch);
+        }
+        for (int n = 0; n < batch; n++) {
+          int pos = batchStart + n * BLOCK_SIZE;
+          CryptoUtils.longToBytes(CryptoUtils.longFromBytes(data, pos, true) ^ tweaks[2 * n], data, pos, true);
+          CryptoUtils.longToBytes(CryptoUtils.longFromBytes(data, pos + 8, true) ^ tweaks[2 * n + 1], data, pos + 8,
+              true);
+        }
+      }
+      if (rem != 0) {
+        int last = off + blocks * BLOCK_SIZE;
+        long[] next = new long[] { t[0], t[1] };
+        timesAlpha(next);
+        // encryption uses the tweaks in order, decryption has to undo the later one first
+        long[] first = encrypting ? t : next;
+        long[] second = encrypting ? next : t;
+        cryptBlock(data1, data, last, first, encrypting);
+        // swap the partial block with the head of the block before it
+        System.arraycopy(data, last, block, 0, BLOCK_SIZE);
+        System.arraycopy(data, last + BLOCK_SIZE, block, 0, rem);
+        System.arraycopy(data, last, data, last + BLOCK_SIZE, rem);
+        System.arraycopy(block, 0, data, last, BLOCK_SIZE);
+        cryptBlock(data1, data, last, second, encrypting);
+        CryptoUtils.fillWithZeroes(next);
+      }
+      CryptoUtils.fillWithZeroes(t);
+    } finally {
+      CryptoUtils.fillWithZeroes(block);
+      CryptoUtils.fillWithZeroes(tweaks);
+    }
+  }
+
+  private static void cryptBlock(BlockCipher data1, byte[] data, int pos, long[] t, boolean encrypting)
+      throws CryptoException {
+    xorTweak(data, pos, t);
+    if (encrypting) {
+      data1.encryptBlock(data, pos, data, pos);
+    } else {
+      data1.decryptBlock(data, pos, data, pos);
+    }
+    xorTweak(data, pos, t);
+  }
+
+  private static void xorTweak(byte[] data, int pos, long[] t) {
+    CryptoUtils.longToBytes(CryptoUtils.longFromBytes(data, pos, true) ^ t[0], data, pos, true);
+    CryptoUtils.longToBytes(CryptoUtils.longFromBytes(data, pos + 8, true) ^ t[1], data, pos + 8, true);
+  }
+
+  /**
+   * t = t * alpha, in the little endian bit order of IEEE 1619.
+   */
+  private static void timesAlpha(long[] t) {
+    long carry = t[1] >> 63;
+    t[1] = (t[1] << 1) | (t[0] >>> 63);
+    t[0] = (t[0] << 1) ^ (carry & GF_128_FDBK);
+  }
+
+  private StreamProcess crypt(final boolean encrypting) {
+    return new StreamProcess() {
+      @Override
+      public void process(InputStream in, OutputStream out) throws IOException {
+        if (encrypting && prependingIV && hasIV()) {
+          out.write(iv);
+        } else if (!encrypting && prependingIV) {
+          byte[] prepended = new byte[TWEAK_BYTES];
+          if (StreamUtils.readFully(in, prepended, 0, TWEAK_BYTES) != TWEAK_BYTES) {
+            throw new IOException(new CryptoException(CryptoException.NO_IV));
+          }
+          setIV(prepended);
+        }
+        if (!hasIV()) {
+          throw new IOException(new CryptoException(CryptoException.NO_IV));
+        }
+        long lo = CryptoUtils.longFromBytes(iv, 0, true);
+        long hi = CryptoUtils.longFromBytes(iv, 8, true);
+        byte[] buffer = new byte[sectorBytes * parallelism];
+        try {
+          while (true) {
+            int read = StreamUtils.readFully(in, buffer, 0, buffer.length);
+            if (read == 0) {
+              break;
+            }
+            cryptSectors(lo, hi, buffer, 0, read, encrypting);
+            out.write(buffer, 0, read);
+            if (read < buffer.length) {
+              break;
+            }
+            long newLo = lo + parallelism;
+            if (Long.compareUnsigned(newLo, lo) < 0) {
+              hi++;
+            }
+            lo = newLo;
+          }
+          in.close();
+        } catch (CryptoException e) {
+          throw new IOException(e);
+        } finally {
+          CryptoUtils.fillWithZeroes(buffer);
+        }
+      }
+    };
+  }
+
+  @Override
+  public StreamProcess encrypt() {
+    return crypt(true);
+  }
+
+  @Override
+  public StreamProcess decrypt() {
+    return crypt(false);
+  }
+
+  /**
+   * The key is the data key followed by the tweak key, which must not be the same.
+   */
+  @Override
+  public Cipher setKey(byte[] key) throws CryptoException {
+    if (key.length % 2 != 0) {
+      throw new IllegalArgumentException("XTS keys are two keys of the same length.");
+    }
+    int half = key.length / 2;
+    if (CryptoUtils.constantTimeSubArrayEquals(key, 0, key, half, half)) {
+      throw new IllegalArgumentException("The two halves of an XTS key must be different.");
+    }
+    byte[] dataKey = Arrays.copyOfRange(key, 0, half);
+    byte[] tweakKey = Arrays.copyOfRange(key, half, key.length);
+    try {
+      dataCipher.setKey(dataKey);
+      tweakCipher.setKey(tweakKey);
+    } finally {
+      CryptoUtils.fillWithZeroes(dataKey);
+      CryptoUtils.fillWithZeroes(tweakKey);
+    }
+    return this;
+  }
+
+  @Override
+  public boolean hasKey() {
+    return dataCipher.hasKey() && tweakCipher.hasKey();
+  }
+
+  @Override
+  public Cipher removeKey() {
+    dataCipher.removeKey();
+    tweakCipher.removeKey();
+    return this;
+  }
+
+  /**
+   * The IV is the 16 byte little endian number of the first sector of the message.
+   */
+  @Override
+  public Cipher setIV(byte[] initVector) {
+    if (initVector.length != TWEAK_BYTES) {
+      throw new IllegalArgumentException(CryptoException.INVALID_IV_LENGTH);
+    }
+    iv = Arrays.copyOf(initVector, TWEAK_BYTES);
+    return this;
+  }
+
+  public XTSMode setFirstSector(long sectorNumber) {
+    setIV(CryptoUtils.longToBytes(sectorNumber, new byte[TWEAK_BYTES], 0, true));
+    return this;
+  }
+
+  @Override
+  public byte[] getIV() {
+    return iv;
+  }
+
+  @Override
+  public boolean hasIV() {
+    return iv != null;
+  }
+
+  @Override
+  public boolean isIVPrepending() {
+    return prependingIV;
+  }
+
+  @Override
+  public Cipher setIVPrepending(boolean ivPrepending) {
+    prependingIV = ivPrepending;
+    return this;
+  }
+
+}
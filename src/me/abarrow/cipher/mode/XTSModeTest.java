@@ -0,0 +1,181 @@
+package me.abarrow.cipher.mode;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.junit.Test;
+
+import me.abarrow.cipher.aes.AES;
+import me.abarrow.core.CryptoException;
+import me.abarrow.core.CryptoUtils;
+
+public class XTSModeTest {
+  
+  private static final byte[] KEY = CryptoUtils.parseHexString(
+      "000102030405060708090a0b0c0d0e0f101112131415161718191a1b1c1d1e1f");
+  
+  private static byte[] pattern(int len) {
+    byte[] data = new byte[len];
+    for (int i = 0; i < len; i++) {
+      data[i] = (byte) (i * 7 + 3);
+    }
+    return data;
+  }
+  
+  private static XTSMode newXTS(byte[] key, int sectorBytes) throws CryptoException {
+    XTSMode xts = new XTSMode(new AES(), new AES(), sectorBytes, 1, null);
+    xts.setKey(key);
+    return xts;
+  }
+  
+  private static void sectorTestCase(byte[] key, long sector, int len, String expected) throws CryptoException {
+    XTSMode xts = newXTS(key, XTSMode.DEFAULT_SECTOR_BYTES);
+    byte[] data = pattern(len);
+    xts.encryptSector(sector, data);
+    byte[] expectedBytes = CryptoUtils.parseHexString(expected);
+    assertArrayEquals(expectedBytes, Arrays.copyOfRange(data, len - expectedBytes.length, len));
+    xts.decryptSector(sector, data);
+    assertArrayEquals(pattern(len), data);
+  }
+
+  @Test
+  public void testSectors() throws CryptoException {
+    sectorTestCase(KEY, 0, 16, "e9e4c0294045c8e699038ed38c1492e8");
+    sectorTestCase(KEY, 1, 17, "dad82433e19e0d7b1994a4abbd81fb1900");
+    sectorTestCase(KEY, 0x123456789aL, 40,
+        "56846a43888ae0db93b956313bb5b10f77d3ae9c3fd9c80a924f79f0afcb1ab29dbbc60b04e078b5");
+    sectorTestCase(KEY, 5, 512, "49933190194d9fdb26a9a63bfc34daa0100aa15973a4cf6b029319f91cb7505a");
+    byte[] key256 = new byte[64];
+    for (int i = 0; i < key256.length; i++) {
+      key256[i] = (byte) i;
+    }
+    sectorTestCase(key256, (1L << 40) + 7, 31, "d0ea3d2d5f8cede23159b53e78382f4a1cef0f6b5b8c21b6b88068873dc737");
+  }
+  
+  @Test(expected = CryptoException.class)
+  public void testShortSector() throws CryptoException {
+    newXTS(KEY, 512).encryptSector(0, new byte[15]);
+  }
+  
+  @Test
+  public void testStreamsAndParallelSectors() throws CryptoException, IOException {
+    ExecutorService executor = Executors.newFixedThreadPool(4);
+    try {
+      XTSMode serial = newXTS(KEY, 512);
+      XTSMode parallel = new XTSMode(new AES(), new AES(), 512, 4, executor);
+      parallel.setKey(KEY);
+      for (int len : new int[] { 16, 512, 1000, 4 * 512, 20000 + 17 }) {
+        byte[] expected = pattern(len);
+        serial.encryptSectors(9, expected, 0, len);
+        
+        byte[] data = pattern(len);
+        parallel.encryptSectors(9, data, 0, len);
+        assertArrayEquals(expected, data);
+        
+        for (XTSMode xts : new XTSMode[] { serial, parallel }) {
+          xts.setFirstSector(9);
+          assertArrayEquals(expected, xts.encrypt().runSync(pattern(len)));
+          assertArrayEquals(pattern(len), xts.decrypt().runSync(expected));
+        }
+        for (int s = 0; s * 512 < len; s++) {
+          byte[] sector = pattern(len);
+          int sectorLen = Math.min(512, len - s * 512);
+          serial.decryptSector(9 + s, expected, s * 512, sectorLen);
+          assertArrayEquals(Arrays.copyOfRange(sector, s * 512, s * 512 + sectorLen),
+              Arrays.copyOfRange(expected, s * 512, s * 512 + sectorLen));
+        }
+      }
+    } finally {
+      executor.shutdown();
+    }
+  }
+  
+  @Test
+  public void testChannel() throws CryptoException, IOException {
+    Path file = Files.createTempFile("xts", ".bin");
+    Random rand = new Random(40);
+    XTSMode xts = newXTS(KEY, 512);
+    byte[] model = new byte[0];
+    try (XTSChannel channel = new XTSChannel(FileChannel.open(file, StandardOpenOption.READ,
+        StandardOpenOption.WRITE), xts)) {
+      for (int op = 0; op < 300; op++) {
+        long size = model.length;
+        int at = rand.nextInt(model.length + 700);
+        int len = 16 + rand.nextInt(3000);
+        if (rand.nextInt(10) == 0 && size > 0) {
+          int newSize = rand.nextInt(model.length);
+          if (newSize % 512 != 0 && newSize % 512 < 16) {
+            continue;
+          }
+          channel.truncate(newSize);
+          model = Arrays.copyOf(model, newSize);
+        } else {
+          int end = Math.max(model.length, at + len);
+          if (end % 512 != 0 && end % 512 < 16) {
+            continue;
+          }
+          byte[] data = new byte[len];
+          rand.nextBytes(data);
+          channel.position(at);
+          assertEquals(len, channel.write(ByteBuffer.wrap(data)));
+          model = Arrays.copyOf(model, end);
+          System.arraycopy(data, 0, model, at, len);
+        }
+        assertEquals(model.length, channel.size());
+        
+        int from = rand.nextInt(model.length + 1);
+        ByteBuffer read = ByteBuffer.allocate(rand.nextInt(2000) + 1);
+        channel.position(from);
+        int got = channel.read(read);
+        if (from == model.length) {
+          assertEquals(-1, got);
+        } else {
+          assertEquals(Math.min(read.capacity(), model.length - from), got);
+          assertArrayEquals(Arrays.copyOfRange(model, from, from + got), Arrays.copyOf(read.array(), got));
+        }
+      }
+    }
+    try {
+      byte[] encrypted = Files.readAllBytes(file);
+      byte[] expected = Arrays.copyOf(model, model.length);
+      xts.encryptSectors(0, expected, 0, expected.length);
+      assertArrayEquals(expected, encrypted);
+    } finally {
+      Files.delete(file);
+    }
+  }
+  
+  @Test
+  public void testBenchmark() throws CryptoException, IOException {
+    byte[] data = new byte[1 << 23];
+    XTSMode xts = newXTS(KEY, 4096);
+    xts.encryptSectors(0, data, 0, data.length);
+    long start = System.nanoTime();
+    xts.encryptSectors(0, data, 0, data.length);
+    long xtsTime = System.nanoTime() - start;
+    ExecutorService executor = Executors.newFixedThreadPool(4);
+    try {
+      XTSMode parallel = new XTSMode(new AES(), new AES(), 4096, 4, executor);
+      parallel.setKey(KEY);
+      parallel.encryptSectors(0, data, 0, data.length);
+      start = System.nanoTime();
+      parallel.encryptSectors(0, data, 0, data.length);
+      long parallelTime = System.nanoTime() - start;
+      System.out.println("8MiB of XTS sectors took " + xtsTime / 1000000 + "ms, on 4 threads " + parallelTime / 1000000
+          + "ms");
+    } finally {
+      executor.shutdown();
+    }
+  }
+
+}
@@ -5,6 +5,7 @@ import java.util.Arrays;
 import me.abarrow.cipher.BlockCipher;
 import me.abarrow.core.CryptoException;
 import me.abarrow.core.CryptoUtils;
+import me.abarrow.core.KeySchedule;
 
 public class Serpent extends BlockCipher {
 
@@ -18,6 +19,10 @@ public class Serpent extends BlockCipher {
 
   private int[][] roundKeys;
   
+  private SerpentKeySchedule schedule;
+  
+  private boolean ownsSchedule;
+  
   public Serpent() {
   }
 
@@ -25,6 +30,10 @@ public class Serpent extends BlockCipher {
     setKey(key);
   }
   
+  public Serpent(SerpentKeySchedule sharedSchedule) throws CryptoException {
+    bindShared(sharedSchedule);
+  }
+  
   @Override
   public int getBlockBytes() {
     return Serpent.BLOCK_BYTES;
@@ -667,19 +676,12 @@ public class Serpent extends BlockCipher {
   }
 
   @Override
-  public void removeKey() {
-    if (!hasKey()) {
-      return;
-    }
-    for (int i = 0; i < 33; i++) {
-      CryptoUtils.fillWithZeroes(roundKeys[i]);
-    }
-    roundKeys = null;
+  public void setKey(byte[] key) {
+    bind(expandKey(key), true);
   }
 
   @Override
-  public void setKey(byte[] key) {
-    removeKey();
+  public SerpentKeySchedule expandKey(byte[] key) {
     byte[] fullKey;
 
     if (key.length == 32) {
@@ -698,17 +700,77 @@ public class Serpent extends BlockCipher {
           ^ roundKeyWords[i - 1] ^ Serpent.PHI ^ (i - 8), 11);
     }
 
-    roundKeys = new int[33][];
+    int[][] expandedRoundKeys = new int[33][];
 
     for (int i = 0; i < 33; i++) {
-      roundKeys[i] = S(new int[] { roundKeyWords[i * 4 + 8], roundKeyWords[i * 4 + 9], roundKeyWords[i * 4 + 10],
+      expandedRoundKeys[i] = S(new int[] { roundKeyWords[i * 4 + 8], roundKeyWords[i * 4 + 9], roundKeyWords[i * 4 + 10],
           roundKeyWords[i * 4 + 11] }, 35 - i);
     }
+    CryptoUtils.fillWithZeroes(roundKeyWords);
+    return new SerpentKeySchedule(expandedRoundKeys);
+  }
+
+  @Override
+  public void removeKey() {
+    if (schedule == null) {
+      return;
+    }
+    if (ownsSchedule) {
+      schedule.destroy();
+    } else {
+      schedule.release();
+    }
+    roundKeys = null;
+    schedule = null;
+  }
+
+  @Override
+  public void setKeySchedule(KeySchedule sharedSchedule) throws CryptoException {
+    if (!(sharedSchedule instanceof SerpentKeySchedule)) {
+      throw new CryptoException(CryptoException.INCOMPATIBLE_KEY_SCHEDULE);
+    }
+    bindShared((SerpentKeySchedule) sharedSchedule);
+  }
+  
+  /**
+   * Binds to a schedule owned elsewhere, refusing one that has already been destroyed.
+   */
+  private void bindShared(SerpentKeySchedule sharedSchedule) throws CryptoException {
+    // take the reference first, so a destroyed schedule leaves the current key in place
+    if (!sharedSchedule.retain()) {
+      throw new CryptoException(CryptoException.NO_KEY);
+    }
+    bind(sharedSchedule, false);
+  }
+  
+  private void bind(SerpentKeySchedule newSchedule, boolean owned) {
+    removeKey();
+    schedule = newSchedule;
+    ownsSchedule = owned;
+    roundKeys = schedule.roundKeys;
+  }
+  
+  @Override
+  public SerpentKeySchedule getKeySchedule() {
+    return schedule;
+  }
+  
+  @Override
+  public Serpent newHandle() throws CryptoException {
+    if (!hasKey()) {
+      throw new CryptoException(CryptoException.NO_KEY);
+    }
+    return new Serpent(schedule);
+  }
+  
+  @Override
+  public boolean supportsHandles() {
+    return true;
   }
 
   @Override
   public boolean hasKey() {
-    return roundKeys != null;
+    return schedule != null && !schedule.isDestroyed();
   }
 
 }
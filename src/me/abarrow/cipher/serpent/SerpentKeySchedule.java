@@ -0,0 +1,20 @@
+package me.abarrow.cipher.serpent;
+
+import me.abarrow.core.CryptoUtils;
+import me.abarrow.core.KeySchedule;
+
+public final class SerpentKeySchedule extends KeySchedule {
+  
+  final int[][] roundKeys;
+  
+  SerpentKeySchedule(int[][] expandedRoundKeys) {
+    roundKeys = expandedRoundKeys;
+  }
+
+  @Override
+  protected void zero() {
+    for (int i = 0; i < roundKeys.length; i++) {
+      CryptoUtils.fillWithZeroes(roundKeys[i]);
+    }
+  }
+}
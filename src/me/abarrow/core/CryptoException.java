@@ -13,11 +13,23 @@ public class CryptoException extends Exception {
   
   public static final String CANNOT_PREPEND__IV = "Cannot prepend IV that of non standard size.";
   
+  public static final String INVALID_IV_LENGTH = "The IV is not of a length this mode can use.";
+  
+  public static final String MESSAGE_TOO_LONG = "The message is longer than this mode can safely process.";
+  
   public static final String MAC_DOES_NOT_MATCH = "The provided MAC does not match the provided message.";
   
   public static final String NO_MAC = "No MAC was provided.";
   
+  public static final String AAD_KEY_CHANGED = "The associated data was hashed under a different key.";
+  
   public static final String INCOMPATIBLE_CIPHER = "No Cipher provided is not compatible.";
+  
+  public static final String INCOMPATIBLE_KEY_SCHEDULE = "The key schedule was not expanded for this kind of cipher.";
+  
+  public static final String NO_KEY_SCHEDULES = "This cipher does not support shared key schedules.";
+  
+  public static final String SECTOR_TOO_SHORT = "Every sector must be at least one block long.";
 
   
   public CryptoException(String error) {
@@ -79,20 +79,26 @@ public class CryptoUtils {
   }
 
   public static void fillWithZeroes(char[] data) {
-    for (int n = 0; n < data.length; n++) {
-      data[n] = 0;
+    if (data != null) {
+      for (int n = 0; n < data.length; n++) {
+        data[n] = 0;
+      }
     }
   }
 
   public static void fillWithZeroes(long[] data) {
-    for (int n = 0; n < data.length; n++) {
-      data[n] = 0;
+    if (data != null) {
+      for (int n = 0; n < data.length; n++) {
+        data[n] = 0;
+      }
     }
   }
 
   public static void fillWithZeroes(int[] data) {
-    for (int n = 0; n < data.length; n++) {
-      data[n] = 0;
+    if (data != null) {
+      for (int n = 0; n < data.length; n++) {
+        data[n] = 0;
+      }
     }
   }
   
@@ -358,13 +364,20 @@ public class CryptoUtils {
   }
 
   public static long safeLongFromBytes(byte[] bytes, int start) {
+    return safeLongFromBytes(bytes, start, bytes.length);
+  }
+
+  /**
+   * Reads a big endian long treating every byte at or after end as zero.
+   */
+  public static long safeLongFromBytes(byte[] bytes, int start, int end) {
     long output = 0;
 
     int index = start;
 
     int shift = 56;
 
-    while ((bytes.length > index) && (shift >= 0)) {
+    while ((end > index) && (shift >= 0)) {
       output += (bytes[index] & 0xffL) << shift;
       index++;
       shift -= 8;
@@ -835,7 +848,7 @@ public class CryptoUtils {
     }
     int orred = 0;
     int aIndex = aStart;
-    for (int n = aIndex; n < bEnd; n++) {
+    for (int n = bStart; n < bEnd; n++) {
       orred |= a[aIndex] ^ b[n];
       aIndex++;
     }
@@ -143,6 +143,21 @@ public class CryptoUtilsTest {
     assertEquals(true, CryptoUtils.constantTimeArrayEquals(a, c));
   }
 
+  @Test
+  public void testSubArrayEquals() {
+    byte[] a = new byte[] { 1, 2, 3, 4, 5, 6, 7, 8 };
+    byte[] b = new byte[] { 9, 9, 9, 4, 5, 6, 9 };
+    // the runs start at different indexes in each array
+    assertEquals(true, CryptoUtils.constantTimeSubArrayEquals(a, 3, b, 3, 3));
+    assertEquals(true, CryptoUtils.constantTimeSubArrayEquals(b, 3, a, 3, 3));
+    assertEquals(true, CryptoUtils.constantTimeSubArrayEquals(new byte[] { 4, 5, 6 }, 0, b, 3, 3));
+    assertEquals(true, CryptoUtils.constantTimeSubArrayEquals(b, 3, new byte[] { 0, 4, 5, 6 }, 1, 3));
+    assertEquals(false, CryptoUtils.constantTimeSubArrayEquals(b, 3, new byte[] { 0, 4, 5, 7 }, 1, 3));
+    assertEquals(false, CryptoUtils.constantTimeSubArrayEquals(a, 0, b, 3, 3));
+    assertEquals(false, CryptoUtils.constantTimeSubArrayEquals(a, 6, b, 3, 3));
+    assertEquals(false, CryptoUtils.constantTimeSubArrayEquals(new byte[] { 4, 5, 6 }, 0, b, 5, 3));
+  }
+
   @Test
   public void reverseIntBitOrder() {
     int before =    0b11110000101001011110011100011001;
@@ -0,0 +1,8 @@
+package me.abarrow.core;
+
+/**
+ * Anything that can expand raw key bytes into a reusable {@link KeySchedule}.
+ */
+public interface KeyExpander {
+  public KeySchedule expandKey(byte[] key) throws CryptoException;
+}
@@ -0,0 +1,58 @@
+package me.abarrow.core;
+
+/**
+ * An expanded key which is built once and then only read, so a single schedule can be shared between threads and
+ * bound to any number of lightweight cipher handles.
+ * <p>
+ * A schedule starts with one reference, held by whoever expanded it. Handles take another while they are bound to a
+ * schedule they do not own and give it back when unbound, and the last reference to go zeroes the schedule. Destroying
+ * a schedule zeroes it straight away whatever is still bound, after which every handle bound to it reports that it no
+ * longer has a key.
+ */
+public abstract class KeySchedule {
+  
+  private volatile boolean destroyed = false;
+  private int references = 1;
+  
+  /**
+   * Takes another reference, returning false if the schedule has already been zeroed.
+   */
+  public final synchronized boolean retain() {
+    if (destroyed) {
+      return false;
+    }
+    references++;
+    return true;
+  }
+  
+  /**
+   * Gives back a reference, zeroing the schedule if it was the last.
+   */
+  public final void release() {
+    synchronized (this) {
+      if (destroyed || --references > 0) {
+        return;
+      }
+    }
+    destroy();
+  }
+  
+  public final void destroy() {
+    synchronized (this) {
+      if (destroyed) {
+        return;
+      }
+      destroyed = true;
+    }
+    zero();
+  }
+  
+  public final boolean isDestroyed() {
+    return destroyed;
+  }
+  
+  /**
+   * Overwrites all key material held by this schedule.
+   */
+  protected abstract void zero();
+}
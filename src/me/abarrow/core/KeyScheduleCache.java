@@ -0,0 +1,182 @@
+package me.abarrow.core;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A bounded cache of expanded key schedules keyed by a caller chosen id such as a tenant and key version. Entries are
+ * evicted least recently used first once the cache is full, or once they are older than the time to live.
+ * <p>
+ * The cache holds a reference to each schedule it keeps, and {@link KeySchedule#release()}s it when the entry goes.
+ * Handles still bound to an evicted schedule keep using it, and it is zeroed once the last of them lets go. Lookups
+ * hand the schedule back with a reference held for the caller, so it cannot be zeroed before it is bound. The caller
+ * releases that reference once the schedule is bound to the handles that need it:
+ * <pre>
+ * KeySchedule schedule = cache.get(tenant, key);
+ * try {
+ *   handle.setKeySchedule(schedule);
+ * } finally {
+ *   schedule.release();
+ * }
+ * </pre>
+ * <p>
+ * The id must change whenever the key it stands for changes, since a hit never looks at the supplied key bytes.
+ */
+public class KeyScheduleCache<K> {
+  
+  private static final class Entry {
+    private final KeySchedule schedule;
+    private final long created;
+    
+    private Entry(KeySchedule keySchedule, long createdNanos) {
+      schedule = keySchedule;
+      created = createdNanos;
+    }
+  }
+  
+  private final KeyExpander expander;
+  private final int maxEntries;
+  private final long ttlNanos;
+  private final LinkedHashMap<K, Entry> entries;
+  
+  private long hits;
+  private long misses;
+  private long evictions;
+  private long expirations;
+  
+  /**
+   * @param keyExpander expands keys on a miss, for example a {@link me.abarrow.cipher.BlockCipher} or HMAC
+   * @param maximumEntries the most schedules kept at once
+   * @param ttlMillis how long a schedule may be used after it was expanded, 0 or less to never expire
+   */
+  public KeyScheduleCache(KeyExpander keyExpander, int maximumEntries, long ttlMillis) {
+    if (maximumEntries < 1) {
+      throw new IllegalArgumentException("A key schedule cache must be able to hold at least one schedule.");
+    }
+    expander = keyExpander;
+    maxEntries = maximumEntries;
+    ttlNanos = ttlMillis > 0 ? ttlMillis * 1000000L : 0;
+    entries = new LinkedHashMap<K, Entry>(16, 0.75f, true);
+  }
+  
+  /**
+   * Returns the cached schedule for the id, expanding the key only if there is no live schedule for it. The caller
+   * must release the schedule once done with it.
+   */
+  public KeySchedule get(K id, byte[] key) throws CryptoException {
+    KeySchedule cached = getIfPresent(id);
+    if (cached != null) {
+      return cached;
+    }
+    
+    // expand outside of the lock so one slow expansion does not stall every other tenant
+    KeySchedule expanded = expander.expandKey(key);
+    synchronized (this) {
+      Entry raced = entries.get(id);
+      if (raced != null && !isExpired(raced, System.nanoTime())) {
+        expanded.destroy();
+        raced.schedule.retain();
+        return raced.schedule;
+      }
+      if (raced != null) {
+        entries.remove(id);
+        raced.schedule.release();
+        expirations++;
+      }
+      entries.put(id, new Entry(expanded, System.nanoTime()));
+      expanded.retain();
+      while (entries.size() > maxEntries) {
+        Iterator<Entry> eldest = entries.values().iterator();
+        eldest.next().schedule.release();
+        eldest.remove();
+        evictions++;
+      }
+    }
+    return expanded;
+  }
+  
+  /**
+   * Returns the cached schedule for the id or null, counting the lookup as a hit or a miss. The caller must release a
+   * schedule it gets back once done with it.
+   */
+  public synchronized KeySchedule getIfPresent(K id) {
+    Entry entry = entries.get(id);
+    if (entry == null) {
+      misses++;
+      return null;
+    }
+    if (isExpired(entry, System.nanoTime())) {
+      entries.remove(id);
+      entry.schedule.release();
+      expirations++;
+      misses++;
+      return null;
+    }
+    hits++;
+    entry.schedule.retain();
+    return entry.schedule;
+  }
+  
+  public synchronized void invalidate(K id) {
+    Entry entry = entries.remove(id);
+    if (entry != null) {
+      entry.schedule.release();
+    }
+  }
+  
+  /**
+   * Drops every schedule that has outlived the time to live.
+   */
+  public synchronized void removeExpired() {
+    long now = System.nanoTime();
+    Iterator<Map.Entry<K, Entry>> it = entries.entrySet().iterator();
+    while (it.hasNext()) {
+      Entry entry = it.next().getValue();
+      if (isExpired(entry, now)) {
+        entry.schedule.release();
+        it.remove();
+        expirations++;
+      }
+    }
+  }
+  
+  public synchronized void clear() {
+    for (Entry entry : entries.values()) {
+      entry.schedule.release();
+    }
+    entries.clear();
+  }
+  
+  private boolean isExpired(Entry entry, long now) {
+    return ttlNanos != 0 && (now - entry.created) >= ttlNanos;
+  }
+  
+  public synchronized int size() {
+    return entries.size();
+  }
+  
+  public synchronized long getHitCount() {
+    return hits;
+  }
+  
+  public synchronized long getMissCount() {
+    return misses;
+  }
+  
+  /**
+   * The number of schedules removed to stay within the maximum size.
+   */
+  public synchronized long getEvictionCount() {
+    return evictions;
+  }
+  
+  public synchronized long getExpirationCount() {
+    return expirations;
+  }
+  
+  public synchronized double getHitRate() {
+    long lookups = hits + misses;
+    return lookups == 0 ? 0 : ((double) hits) / lookups;
+  }
+}
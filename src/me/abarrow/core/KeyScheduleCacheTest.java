@@ -0,0 +1,211 @@
+package me.abarrow.core;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicReference;
+
+import me.abarrow.cipher.aes.AES;
+import me.abarrow.hash.Hasher;
+import me.abarrow.hash.sha.SHA1;
+import me.abarrow.hash.sha.SHA256;
+import me.abarrow.mac.hmac.HMAC;
+
+import org.junit.Test;
+
+public class KeyScheduleCacheTest {
+  
+  private static byte[] tenantKey(int tenant) {
+    byte[] key = new byte[16];
+    key[0] = (byte) tenant;
+    return key;
+  }
+
+  @Test
+  public void testHitsAndMisses() throws CryptoException {
+    KeyScheduleCache<String> cache = new KeyScheduleCache<String>(new AES(), 10, 0);
+    KeySchedule first = cache.get("tenant-a", tenantKey(1));
+    for (int i = 0; i < 2; i++) {
+      KeySchedule again = cache.get("tenant-a", tenantKey(1));
+      assertSame(first, again);
+      again.release();
+    }
+    cache.get("tenant-b", tenantKey(2)).release();
+    
+    assertEquals(2, cache.getHitCount());
+    assertEquals(2, cache.getMissCount());
+    assertEquals(0.5, cache.getHitRate(), 0);
+    
+    AES handle = new AES();
+    handle.setKeySchedule(first);
+    first.release();
+    byte[] block = new byte[16];
+    assertArrayEquals(new AES(tenantKey(1)).encryptBlock(block), handle.encryptBlock(block));
+  }
+  
+  @Test
+  public void testLeastRecentlyUsedEviction() throws CryptoException {
+    KeyScheduleCache<Integer> cache = new KeyScheduleCache<Integer>(new AES(), 2, 0);
+    KeySchedule one = cache.get(1, tenantKey(1));
+    one.release();
+    KeySchedule two = cache.get(2, tenantKey(2));
+    two.release();
+    cache.get(1, tenantKey(1)).release();
+    cache.get(3, tenantKey(3)).release();
+    
+    assertEquals(2, cache.size());
+    assertEquals(1, cache.getEvictionCount());
+    assertTrue(two.isDestroyed());
+    assertFalse(one.isDestroyed());
+    assertNull(cache.getIfPresent(2));
+    
+    cache.clear();
+    assertTrue(one.isDestroyed());
+    assertEquals(0, cache.size());
+  }
+  
+  @Test
+  public void testExpiry() throws CryptoException, InterruptedException {
+    KeyScheduleCache<Integer> cache = new KeyScheduleCache<Integer>(new AES(), 10, 5);
+    KeySchedule first = cache.get(1, tenantKey(1));
+    first.release();
+    Thread.sleep(20);
+    KeySchedule second = cache.get(1, tenantKey(1));
+    second.release();
+    
+    assertTrue(first.isDestroyed());
+    assertFalse(second.isDestroyed());
+    assertEquals(1, cache.getExpirationCount());
+    
+    Thread.sleep(20);
+    cache.removeExpired();
+    assertTrue(second.isDestroyed());
+    assertEquals(0, cache.size());
+  }
+  
+  @Test
+  public void testEvictionWhileInUse() throws CryptoException {
+    KeyScheduleCache<Integer> cache = new KeyScheduleCache<Integer>(new AES(), 1, 0);
+    byte[] block = new byte[16];
+    byte[] expected = new AES(tenantKey(1)).encryptBlock(block);
+    
+    // a handle bound to an evicted schedule keeps its key until it lets go
+    AES bound = new AES();
+    KeySchedule schedule = cache.get(1, tenantKey(1));
+    bound.setKeySchedule(schedule);
+    schedule.release();
+    cache.get(2, tenantKey(2)).release();
+    assertEquals(1, cache.getEvictionCount());
+    assertFalse(schedule.isDestroyed());
+    assertArrayEquals(expected, bound.encryptBlock(block));
+    bound.removeKey();
+    assertTrue(schedule.isDestroyed());
+    
+    // a schedule evicted between the lookup and binding it still has its key
+    schedule = cache.get(1, tenantKey(1));
+    cache.invalidate(1);
+    cache.clear();
+    AES late = new AES();
+    late.setKeySchedule(schedule);
+    schedule.release();
+    assertArrayEquals(expected, late.encryptBlock(block));
+    late.removeKey();
+    assertTrue(schedule.isDestroyed());
+  }
+  
+  @Test
+  public void testHMACSchedules() throws CryptoException {
+    KeyScheduleCache<String> cache = new KeyScheduleCache<String>(new HMAC(new SHA1()), 10, 0);
+    byte[] data = "The quick brown fox jumps over the lazy dog".getBytes();
+    
+    KeySchedule schedule = cache.get("tenant", "key".getBytes());
+    HMAC mac = new HMAC(new SHA1()).setKeySchedule(schedule);
+    schedule.release();
+    assertArrayEquals(CryptoUtils.parseHexString("de7c9b85b8b78aa6bc8a7a36f70a90701c9db4d9"), mac.tag(data, true));
+    
+    // the schedule survives the handle letting go of it
+    mac.removeKey();
+    assertFalse(schedule.isDestroyed());
+    schedule = cache.get("tenant", "key".getBytes());
+    mac.setKeySchedule(schedule);
+    schedule.release();
+    assertArrayEquals(CryptoUtils.parseHexString("de7c9b85b8b78aa6bc8a7a36f70a90701c9db4d9"), mac.tag(data, true));
+    assertEquals(1, cache.getHitCount());
+  }
+  
+  @Test
+  public void testConcurrentHMACMisses() throws Exception {
+    // keys longer than a block are hashed while expanding, on every thread that misses
+    final HMAC expander = new HMAC(new YieldingSHA256());
+    final byte[] data = "The quick brown fox jumps over the lazy dog".getBytes();
+    final int tenants = 200;
+    final byte[][] expected = new byte[tenants][];
+    for (int i = 0; i < tenants; i++) {
+      expected[i] = new HMAC(new SHA256(), longKey(i)).tag(data, true);
+    }
+    final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+    for (int round = 0; round < 5 && failure.get() == null; round++) {
+      final KeyScheduleCache<Integer> cache = new KeyScheduleCache<Integer>(expander, 1000, 0);
+      final CountDownLatch start = new CountDownLatch(1);
+      Thread[] threads = new Thread[8];
+      for (int t = 0; t < threads.length; t++) {
+        final int offset = t * 17;
+        threads[t] = new Thread(new Runnable() {
+          @Override
+          public void run() {
+            try {
+              HMAC mac = new HMAC(new YieldingSHA256());
+              start.await();
+              for (int n = 0; n < tenants; n++) {
+                int tenant = (n + offset) % tenants;
+                KeySchedule schedule = cache.get(tenant, longKey(tenant));
+                mac.setKeySchedule(schedule);
+                schedule.release();
+                assertArrayEquals(expected[tenant], mac.tag(data, true));
+              }
+            } catch (Throwable e) {
+              failure.set(e);
+            }
+          }
+        });
+        threads[t].start();
+      }
+      start.countDown();
+      for (int t = 0; t < threads.length; t++) {
+        threads[t].join();
+      }
+    }
+    if (failure.get() != null) {
+      throw new AssertionError(failure.get());
+    }
+  }
+
+  /**
+   * Gives up the processor on every update, so threads sharing one interleave even on a single core.
+   */
+  private static final class YieldingSHA256 extends SHA256 {
+    @Override
+    public Hasher update(byte[] data, int off, int len) {
+      super.update(data, off, len);
+      Thread.yield();
+      return this;
+    }
+  }
+
+  private static byte[] longKey(int tenant) {
+    byte[] key = new byte[200];
+    Arrays.fill(key, (byte) tenant);
+    return key;
+  }
+  
+  @Test(expected = CryptoException.class)
+  public void testHMACScheduleForOtherHash() throws CryptoException {
+    new HMAC(new SHA256()).setKeySchedule(new HMAC(new SHA1()).expandKey("key".getBytes()));
+  }
+}
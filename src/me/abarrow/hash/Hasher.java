@@ -3,16 +3,30 @@ package me.abarrow.hash;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.nio.ByteBuffer;
 import java.util.Arrays;
 
 import me.abarrow.core.CryptoUtils;
 import me.abarrow.math.Int128;
 import me.abarrow.stream.StreamProcess;
 
-public abstract class Hasher {
+/**
+ * A hash function absorbing a message block by block.
+ * <p>
+ * Hashers that support it can snapshot a message part way through with {@link #copyState()} and go back to that point
+ * with {@link #restoreState(Hasher)}, so a prefix shared by many messages, such as a padded HMAC key, is only hashed
+ * once.
+ */
+public abstract class Hasher implements Cloneable {
+  
+  private static final int STREAM_CHUNK_BYTES = 8192;
   
   protected Int128 hashByteCount = new Int128();
   
+  // the start of a block given to update, until the rest of it arrives
+  private byte[] pending;
+  private int pendingLength;
+  
   public Hasher() {
     reset();
   }
@@ -26,34 +40,198 @@ public abstract class Hasher {
       @Override
       public void process(InputStream in, OutputStream out) throws IOException {
         reset();
-        int blockBytes = getBlockBytes();
-        
-        byte[] temp = new byte[blockBytes];
-        int read = 0;
+        byte[] chunk = new byte[STREAM_CHUNK_BYTES];
         while(true) {
-          read = in.read(temp);
-          read = read == -1 ? 0 : read;
-          if (read == blockBytes) {
-            hashBlock(temp, 0);
-          } else {
-            Arrays.fill(temp, read, blockBytes, CryptoUtils.ZERO_BYTE);
+          int read = in.read(chunk);
+          if (read == -1) {
             break;
           }
+          update(chunk, 0, read);
         }
-        byte[] hashed = computeHash(temp, read);
+        byte[] hashed = digest();
         out.write(hashed);
         CryptoUtils.fillWithZeroes(hashed);
-        CryptoUtils.fillWithZeroes(temp);
-        reset();
+        CryptoUtils.fillWithZeroes(chunk);
       }
     };
   }
   
+  /**
+   * Absorbs len more bytes of the message. Whole blocks are hashed straight from data, and only a partial block at
+   * either end is copied.
+   */
+  public Hasher update(byte[] data, int off, int len) {
+    int blockBytes = getBlockBytes();
+    if (pending == null) {
+      pending = new byte[blockBytes];
+    }
+    if (pendingLength > 0) {
+      int taken = Math.min(len, blockBytes - pendingLength);
+      System.arraycopy(data, off, pending, pendingLength, taken);
+      pendingLength += taken;
+      off += taken;
+      len -= taken;
+      if (pendingLength < blockBytes) {
+        return this;
+      }
+      hashBlock(pending, 0);
+      pendingLength = 0;
+    }
+    int end = off + len;
+    for (; off + blockBytes <= end; off += blockBytes) {
+      hashBlock(data, off);
+    }
+    System.arraycopy(data, off, pending, 0, end - off);
+    pendingLength = end - off;
+    return this;
+  }
+  
+  public Hasher update(byte[] data) {
+    return update(data, 0, data.length);
+  }
+  
+  /**
+   * Absorbs the remaining bytes of data, leaving it at its limit.
+   */
+  public Hasher update(ByteBuffer data) {
+    if (data.hasArray()) {
+      update(data.array(), data.arrayOffset() + data.position(), data.remaining());
+      data.position(data.limit());
+      return this;
+    }
+    int blockBytes = getBlockBytes();
+    if (pending == null) {
+      pending = new byte[blockBytes];
+    }
+    while (data.hasRemaining()) {
+      int taken = Math.min(data.remaining(), blockBytes - pendingLength);
+      data.get(pending, pendingLength, taken);
+      pendingLength += taken;
+      if (pendingLength == blockBytes) {
+        hashBlock(pending, 0);
+        pendingLength = 0;
+      }
+    }
+    return this;
+  }
+  
+  /**
+   * Writes the hash of everything given to update since the last reset or digest to out and starts a new message.
+   */
+  public byte[] digest(byte[] out, int off) {
+    if (pending == null) {
+      pending = new byte[getBlockBytes()];
+    }
+    // the padding is written over the rest of the block
+    Arrays.fill(pending, pendingLength, pending.length, CryptoUtils.ZERO_BYTE);
+    computeHash(pending, pendingLength, out, off);
+    reset();
+    return out;
+  }
+
+  /**
+   * Finishes the message as computeHash does but writes the hash to out. remainder is a whole block, zeroed past
+   * remainderLength, that may be written over. Hashers that can pad in place and write their result straight to out
+   * override this to finish without allocating.
+   */
+  protected void computeHash(byte[] remainder, int remainderLength, byte[] out, int off) {
+    byte[] hashed = computeHash(remainder, remainderLength);
+    System.arraycopy(hashed, 0, out, off, hashed.length);
+    CryptoUtils.fillWithZeroes(hashed);
+  }
+  
+  public byte[] digest() {
+    return digest(new byte[getHashByteLength()], 0);
+  }
+
+  /**
+   * The number of bytes given to update that do not yet fill a block.
+   */
+  protected final int getPendingLength() {
+    return pendingLength;
+  }
+
+  /**
+   * Moves the bytes given to update that do not yet fill a block to the start of block, zeroing the rest of it, and
+   * returns how many there were. For hashers that finish a message some other way than digest.
+   */
+  protected final int takePending(byte[] block) {
+    int taken = pendingLength;
+    if (taken > 0) {
+      System.arraycopy(pending, 0, block, 0, taken);
+      CryptoUtils.fillWithZeroes(pending);
+      pendingLength = 0;
+    }
+    Arrays.fill(block, taken, block.length, CryptoUtils.ZERO_BYTE);
+    return taken;
+  }
+  
+  /**
+   * Whether copyState and restoreState are supported.
+   */
+  public boolean supportsStateCopy() {
+    return false;
+  }
+
+  /**
+   * Returns a hasher of the same kind holding everything absorbed so far. Updating either one leaves the other alone.
+   */
+  public Hasher copyState() {
+    throw new UnsupportedOperationException(getClass().getSimpleName() + " cannot copy its state.");
+  }
+
+  /**
+   * Puts this hasher back in the state of a snapshot taken by copyState from a hasher of the same kind, without
+   * allocating. The snapshot itself is left as it was.
+   */
+  public Hasher restoreState(Hasher snapshot) {
+    throw new UnsupportedOperationException(getClass().getSimpleName() + " cannot restore its state.");
+  }
+
+  /**
+   * A shallow clone of the subclass with its own copy of the state kept here, for subclasses to finish by copying
+   * their own arrays.
+   */
+  protected final Hasher copyBaseState() {
+    Hasher copy;
+    try {
+      copy = (Hasher) clone();
+    } catch (CloneNotSupportedException e) {
+      throw new IllegalStateException(e);
+    }
+    copy.hashByteCount = new Int128(hashByteCount.getWord(0), hashByteCount.getWord(1), hashByteCount.getWord(2),
+        hashByteCount.getWord(3));
+    copy.pending = pending == null ? null : pending.clone();
+    return copy;
+  }
+
+  /**
+   * Copies the state kept here from a snapshot, checking that it came from the same kind of hasher.
+   */
+  protected final void restoreBaseState(Hasher snapshot) {
+    if (snapshot.getClass() != getClass() || snapshot.getBlockBytes() != getBlockBytes()
+        || snapshot.getHashByteLength() != getHashByteLength()) {
+      throw new IllegalArgumentException("A " + getClass().getSimpleName()
+          + " can only restore the state of the same kind of hasher.");
+    }
+    hashByteCount.setWords(snapshot.hashByteCount.getWord(0), snapshot.hashByteCount.getWord(1),
+        snapshot.hashByteCount.getWord(2), snapshot.hashByteCount.getWord(3));
+    if (snapshot.pendingLength > 0) {
+      if (pending == null) {
+        pending = new byte[getBlockBytes()];
+      }
+      System.arraycopy(snapshot.pending, 0, pending, 0, snapshot.pendingLength);
+    }
+    pendingLength = snapshot.pendingLength;
+  }
+  
   /**
    * Resets any internal state of a hasher.
    */
   public void reset() {
     hashByteCount.toZero();
+    CryptoUtils.fillWithZeroes(pending);
+    pendingLength = 0;
   }
   
   public abstract int getBlockBytes();
@@ -0,0 +1,588 @@
+package me.abarrow.hash.blake;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+import me.abarrow.core.CryptoUtils;
+import me.abarrow.hash.Hasher;
+
+/**
+ * BLAKE3, with its keyed hash and key derivation modes and extendable output.
+ * <p>
+ * The message is cut into 1KiB chunks that are hashed on their own and then joined pairwise in a binary tree. Long
+ * runs given to update in one piece are split into whole subtrees whose chunks are hashed on a fork join pool, many
+ * chunks to a task. The chaining values of finished subtrees are kept on a stack and only joined once more input shows
+ * that they are not the root. After the message, any amount of output can be read with repeated calls to
+ * {@link #squeeze(byte[], int, int)}, and digest gives the first {@link #getHashByteLength()} bytes.
+ */
+public class BLAKE3 extends Hasher {
+
+  public static final int KEY_BYTES = 32;
+  public static final int BLOCK_BYTES = 64;
+  public static final int CHUNK_BYTES = 1024;
+
+  private static final int CHUNK_START = 1;
+  private static final int CHUNK_END = 2;
+  private static final int PARENT = 4;
+  private static final int ROOT = 8;
+  private static final int KEYED_HASH = 16;
+  private static final int DERIVE_KEY_CONTEXT = 32;
+  private static final int DERIVE_KEY_MATERIAL = 64;
+
+  private static final int[] IV = new int[] { 0x6a09e667, 0xbb67ae85, 0x3c6ef372, 0xa54ff53a, 0x510e527f, 0x9b05688c,
+      0x1f83d9ab, 0x5be0cd19 };
+
+  private static final int ROUNDS = 7;
+
+  // enough for 2^64 bytes of chunks
+  private static final int MAX_DEPTH = 54;
+  // the fewest whole chunks worth handing to the pool
+  private static final int PARALLEL_CHUNKS = 16;
+  // the most chunks a task hashes itself rather than splitting
+  private static final int TASK_CHUNKS = 64;
+
+  private final int[] key;
+  private final int flags;
+  private final int outputBytes;
+  private final ForkJoinPool pool;
+
+  private int[] cvStack;
+  private int stackSize;
+  // chunks whose chaining values are on the stack or joined into it
+  private long chunkCounter;
+  // the first chunk stays here until more input shows that it is not the whole message
+  private byte[] firstChunk;
+  private boolean holdingFirstChunk;
+  private int[] words;
+  private int[] cv;
+
+  // the root node, compressed again with an increasing counter for each block of output
+  private int[] rootCV;
+  private int[] rootBlock;
+  private int rootBlockLength;
+  private int rootFlags;
+  private long rootCounter;
+  private long outputCounter;
+  private int[] outputWords;
+  private byte[] output;
+  private int outputOffset;
+  private boolean squeezing;
+
+  public BLAKE3() {
+    this(32, ForkJoinPool.commonPool());
+  }
+
+  /**
+   * Without a pool every chunk is hashed on the calling thread.
+   */
+  public BLAKE3(int outputSize, ForkJoinPool forkJoinPool) {
+    this(IV, 0, outputSize, forkJoinPool);
+  }
+
+  /**
+   * The keyed hash mode, a MAC or PRF with a 32 byte key.
+   */
+  public BLAKE3(byte[] key) {
+    this(key, 32, ForkJoinPool.commonPool());
+  }
+
+  public BLAKE3(byte[] key, int outputSize, ForkJoinPool forkJoinPool) {
+    this(keyWords(key), KEYED_HASH, outputSize, forkJoinPool);
+  }
+
+  private BLAKE3(int[] keyWords, int modeFlags, int outputSize, ForkJoinPool forkJoinPool) {
+    if (outputSize < 1) {
+      throw new IllegalArgumentException("BLAKE3 cannot have an output size of " + outputSize + " bytes.");
+    }
+    key = keyWords.clone();
+    flags = modeFlags;
+    outputBytes = outputSize;
+    pool = forkJoinPool;
+    cvStack = new int[MAX_DEPTH * 8];
+    firstChunk = new byte[CHUNK_BYTES];
+    words = new int[16];
+    cv = new int[16];
+    rootCV = new int[8];
+    rootBlock = new int[16];
+    outputWords = new int[16];
+    output = new byte[BLOCK_BYTES];
+    reset();
+  }
+
+  /**
+   * The key derivation mode. The context string should be fixed and unique to the application and purpose, and the
+   * key material is then given to update.
+   */
+  public static BLAKE3 deriveKey(String context, int outputSize) {
+    BLAKE3 contextHasher = new BLAKE3(IV, DERIVE_KEY_CONTEXT, KEY_BYTES, null);
+    byte[] contextKey = contextHasher.update(context.getBytes(StandardCharsets.UTF_8)).digest();
+    BLAKE3 derived = new BLAKE3(keyWords(contextKey), DERIVE_KEY_MATERIAL, outputSize, ForkJoinPool.commonPool());
+    CryptoUtils.fillWithZeroes(contextKey);
+    return derived;
+  }
+
+  private static int[] keyWords(byte[] key) {
+    if (key.length != KEY_BYTES) {
+      throw new IllegalArgumentException("BLAKE3 keys must be " + KEY_BYTES + " bytes long.");
+    }
+    return CryptoUtils.intArrayFromBytes(key, 0, KEY_BYTES, true);
+  }
+
+  /**
+   * The compression function. The first 8 words of the result go to out, and with full the last 8 too, as needed for
+   * output blocks. cv may be out.
+   */
+  private static void compress(int[] cv, int cvOff, int[] m, int mOff, long counter, int blockLength, int flags, int[] out,
+      int outOff, boolean full) {
+    int c0 = cv[cvOff];
+    int c1 = cv[cvOff + 1];
+    int c2 = cv[cvOff + 2];
+    int c3 = cv[cvOff + 3];
+    int c4 = cv[cvOff + 4];
+    int c5 = cv[cvOff + 5];
+    int c6 = cv[cvOff + 6];
+    int c7 = cv[cvOff + 7];
+    int v0 = c0;
+    int v1 = c1;
+    int v2 = c2;
+    int v3 = c3;
+    int v4 = c4;
+    int v5 = c5;
+    int v6 = c6;
+    int v7 = c7;
+    int v8 = IV[0];
+    int v9 = IV[1];
+    int v10 = IV[2];
+    int v11 = IV[3];
+    int v12 = (int) counter;
+    int v13 = (int) (counter >>> 32);
+    int v14 = blockLength;
+    int v15 = flags;
+    int m0 = m[mOff + 0];
+    int m1 = m[mOff + 1];
+    int m2 = m[mOff + 2];
+    int m3 = m[mOff + 3];
+    int m4 = m[mOff + 4];
+    int m5 = m[mOff + 5];
+    int m6 = m[mOff + 6];
+    int m7 = m[mOff + 7];
+    int m8 = m[mOff + 8];
+    int m9 = m[mOff + 9];
+    int m10 = m[mOff + 10];
+    int m11 = m[mOff + 11];
+    int m12 = m[mOff + 12];
+    int m13 = m[mOff + 13];
+    int m14 = m[mOff + 14];
+    int m15 = m[mOff + 15];
+    for (int r = 0; r < ROUNDS; r++) {
+      // columns
+      v0 += v4 + m0;
+      v12 = Integer.rotateRight(v12 ^ v0, 16);
+      v8 += v12;
+      v4 = Integer.rotateRight(v4 ^ v8, 12);
+      v0 += v4 + m1;
+      v12 = Integer.rotateRight(v12 ^ v0, 8);
+      v8 += v12;
+      v4 = Integer.rotateRight(v4 ^ v8, 7);
+      v1 += v5 + m2;
+      v13 = Integer.rotateRight(v13 ^ v1, 16);
+      v9 += v13;
+      v5 = Integer.rotateRight(v5 ^ v9, 12);
+      v1 += v5 + m3;
+      v13 = Integer.rotateRight(v13 ^ v1, 8);
+      v9 += v13;
+      v5 = Integer.rotateRight(v5 ^ v9, 7);
+      v2 += v6 + m4;
+      v14 = Integer.rotateRight(v14 ^ v2, 16);
+      v10 += v14;
+      v6 = Integer.rotateRight(v6 ^ v10, 12);
+      v2 += v6 + m5;
+      v14 = Integer.rotateRight(v14 ^ v2, 8);
+      v10 += v14;
+      v6 = Integer.rotateRight(v6 ^ v10, 7);
+      v3 += v7 + m6;
+      v15 = Integer.rotateRight(v15 ^ v3, 16);
+      v11 += v15;
+      v7 = Integer.rotateRight(v7 ^ v11, 12);
+      v3 += v7 + m7;
+      v15 = Integer.rotateRight(v15 ^ v3, 8);
+      v11 += v15;
+      v7 = Integer.rotateRight(v7 ^ v11, 7);
+      // diagonals
+      v0 += v5 + m8;
+      v15 = Integer.rotateRight(v15 ^ v0, 16);
+      v10 += v15;
+      v5 = Integer.rotateRight(v5 ^ v10, 12);
+      v0 += v5 + m9;
+      v15 = Integer.rotateRight(v15 ^ v0, 8);
+      v10 += v15;
+      v5 = Integer.rotateRight(v5 ^ v10, 7);
+      v1 += v6 + m10;
+      v12 = Integer.rotateRight(v12 ^ v1, 16);
+      v11 += v12;
+      v6 = Integer.rotateRight(v6 ^ v11, 12);
+      v1 += v6 + m11;
+      v12 = Integer.rotateRight(v12 ^ v1, 8);
+      v11 += v12;
+      v6 = Integer.rotateRight(v6 ^ v11, 7);
+      v2 += v7 + m12;
+      v13 = Integer.rotateRight(v13 ^ v2, 16);
+      v8 += v13;
+      v7 = Integer.rotateRight(v7 ^ v8, 12);
+      v2 += v7 + m13;
+      v13 = Integer.rotateRight(v13 ^ v2, 8);
+      v8 += v13;
+      v7 = Integer.rotateRight(v7 ^ v8, 7);
+      v3 += v4 + m14;
+      v14 = Integer.rotateRight(v14 ^ v3, 16);
+      v9 += v14;
+      v4 = Integer.rotateRight(v4 ^ v9, 12);
+      v3 += v4 + m15;
+      v14 = Integer.rotateRight(v14 ^ v3, 8);
+      v9 += v14;
+      v4 = Integer.rotateRight(v4 ^ v9, 7);
+      // the message words move to their places for the next round
+      int t0 = m0;
+      m0 = m2;
+      m2 = m3;
+      m3 = m10;
+      m10 = m12;
+      m12 = m9;
+      m9 = m11;
+      m11 = m5;
+      m5 = t0;
+      int t1 = m1;
+      m1 = m6;
+      m6 = m4;
+      m4 = m7;
+      m7 = m13;
+      m13 = m14;
+      m14 = m15;
+      m15 = m8;
+      m8 = t1;
+    }
+    out[outOff] = v0 ^ v8;
+    out[outOff + 1] = v1 ^ v9;
+    out[outOff + 2] = v2 ^ v10;
+    out[outOff + 3] = v3 ^ v11;
+    out[outOff + 4] = v4 ^ v12;
+    out[outOff + 5] = v5 ^ v13;
+    out[outOff + 6] = v6 ^ v14;
+    out[outOff + 7] = v7 ^ v15;
+    if (full) {
+      out[outOff + 8] = v8 ^ c0;
+      out[outOff + 9] = v9 ^ c1;
+      out[outOff + 10] = v10 ^ c2;
+      out[outOff + 11] = v11 ^ c3;
+      out[outOff + 12] = v12 ^ c4;
+      out[outOff + 13] = v13 ^ c5;
+      out[outOff + 14] = v14 ^ c6;
+      out[outOff + 15] = v15 ^ c7;
+    }
+  }
+
+  /**
+   * The chaining value of one whole chunk that is not the root.
+   */
+  private static void chunkCV(int[] key, int flags, byte[] data, int off, long counter, int[] m, int[] out,
+      int outOff) {
+    System.arraycopy(key, 0, out, outOff, 8);
+    ByteBuffer littleEndian = ByteBuffer.wrap(data).order(ByteOrder.LITTLE_ENDIAN);
+    for (int b = 0; b < CHUNK_BYTES / BLOCK_BYTES; b++) {
+      for (int i = 0; i < 16; i++) {
+        m[i] = littleEndian.getInt(off + b * BLOCK_BYTES + i * 4);
+      }
+      int blockFlags = flags | (b == 0 ? CHUNK_START : 0) | (b == CHUNK_BYTES / BLOCK_BYTES - 1 ? CHUNK_END : 0);
+      compress(out, outOff, m, 0, counter, BLOCK_BYTES, blockFlags, out, outOff, false);
+    }
+  }
+
+  /**
+   * The chaining value of a subtree of a power of two whole chunks. All the chunks are hashed first and then joined a
+   * level at a time in place.
+   */
+  private static void subtreeCV(int[] key, int flags, byte[] data, int off, int chunks, long counter, int[] out,
+      int outOff) {
+    int[] cvs = new int[chunks * 8];
+    int[] m = new int[16];
+    for (int i = 0; i < chunks; i++) {
+      chunkCV(key, flags, data, off + i * CHUNK_BYTES, counter + i, m, cvs, i * 8);
+    }
+    for (int width = chunks; width > 1; width >>>= 1) {
+      for (int i = 0; i < width / 2; i++) {
+        compress(key, 0, cvs, i * 16, 0, BLOCK_BYTES, flags | PARENT, cvs, i * 8, false);
+      }
+    }
+    System.arraycopy(cvs, 0, out, outOff, 8);
+    CryptoUtils.fillWithZeroes(cvs);
+  }
+
+  /**
+   * Hashes a subtree of a power of two whole chunks to its chaining value, or to the chaining values of its two
+   * halves, splitting it in half until the subtrees are small.
+   */
+  private static final class SubtreeTask extends RecursiveAction {
+
+    private static final long serialVersionUID = -6731468026342957611L;
+
+    private final int[] key;
+    private final int flags;
+    private final byte[] data;
+    private final int off;
+    private final int chunks;
+    private final long counter;
+    private final int[] out;
+    private final int outOff;
+    private final boolean halves;
+
+    SubtreeTask(int[] key, int flags, byte[] data, int off, int chunks, long counter, int[] out, int outOff,
+        boolean halves) {
+      this.key = key;
+      this.flags = flags;
+      this.data = data;
+      this.off = off;
+      this.chunks = chunks;
+      this.counter = counter;
+      this.out = out;
+      this.outOff = outOff;
+      this.halves = halves;
+    }
+
+    @Override
+    protected void compute() {
+      if (chunks <= TASK_CHUNKS && !halves) {
+        subtreeCV(key, flags, data, off, chunks, counter, out, outOff);
+        return;
+      }
+      int half = chunks / 2;
+      int[] children = new int[16];
+      invokeAll(new SubtreeTask(key, flags, data, off, half, counter, children, 0, false),
+          new SubtreeTask(key, flags, data, off + half * CHUNK_BYTES, half, counter + half, children, 8, false));
+      if (halves) {
+        System.arraycopy(children, 0, out, outOff, 16);
+      } else {
+        compress(key, 0, children, 0, 0, BLOCK_BYTES, flags | PARENT, out, outOff, false);
+      }
+    }
+  }
+
+  /**
+   * Joins the chaining values on the stack into one for each complete subtree of the given number of chunks, which
+   * also tells that none of them is the root.
+   */
+  private void mergeStack(long chunks) {
+    while (stackSize > Long.bitCount(chunks)) {
+      stackSize -= 2;
+      compress(key, 0, cvStack, stackSize * 8, 0, BLOCK_BYTES, flags | PARENT, cvStack, stackSize * 8, false);
+      stackSize++;
+    }
+  }
+
+  /**
+   * Pushes the chaining value of the subtree starting at the given chunk.
+   */
+  private void pushCV(int[] chainingValue, int off, long startChunk) {
+    mergeStack(startChunk);
+    System.arraycopy(chainingValue, off, cvStack, stackSize * 8, 8);
+    stackSize++;
+  }
+
+  private void releaseFirstChunk() {
+    if (holdingFirstChunk) {
+      chunkCV(key, flags, firstChunk, 0, 0, words, cv, 0);
+      pushCV(cv, 0, 0);
+      chunkCounter = 1;
+      holdingFirstChunk = false;
+      CryptoUtils.fillWithZeroes(firstChunk);
+    }
+  }
+
+  @Override
+  public void hashBlock(byte[] data, int srcPos) {
+    if (chunkCounter == 0 && !holdingFirstChunk) {
+      System.arraycopy(data, srcPos, firstChunk, 0, CHUNK_BYTES);
+      holdingFirstChunk = true;
+      return;
+    }
+    releaseFirstChunk();
+    chunkCV(key, flags, data, srcPos, chunkCounter, words, cv, 0);
+    pushCV(cv, 0, chunkCounter);
+    chunkCounter++;
+  }
+
+  @Override
+  public BLAKE3 update(byte[] data, int off, int len) {
+    checkAbsorbing();
+    if (pool != null && getPendingLength() == 0 && len >= PARALLEL_CHUNKS * CHUNK_BYTES) {
+      releaseFirstChunk();
+      // the last chunk is left for the usual path, as it may be the end of the message
+      while (len > CHUNK_BYTES) {
+        int chunks = Integer.highestOneBit(len / CHUNK_BYTES);
+        // a subtree has to start at a multiple of its size
+        while (((chunks - 1) & chunkCounter) != 0) {
+          chunks >>>= 1;
+        }
+        if (chunks == 1) {
+          chunkCV(key, flags, data, off, chunkCounter, words, cv, 0);
+          pushCV(cv, 0, chunkCounter);
+        } else {
+          pool.invoke(new SubtreeTask(key, flags, data, off, chunks, chunkCounter, cv, 0, true));
+          // the halves go on the stack separately in case this subtree is the whole message
+          pushCV(cv, 0, chunkCounter);
+          pushCV(cv, 8, chunkCounter + chunks / 2);
+        }
+        chunkCounter += chunks;
+        off += chunks * CHUNK_BYTES;
+        len -= chunks * CHUNK_BYTES;
+      }
+    }
+    super.update(data, off, len);
+    return this;
+  }
+
+  @Override
+  public BLAKE3 update(byte[] data) {
+    return update(data, 0, data.length);
+  }
+
+  @Override
+  public BLAKE3 update(ByteBuffer data) {
+    checkAbsorbing();
+    super.update(data);
+    return this;
+  }
+
+  private void checkAbsorbing() {
+    if (squeezing) {
+      throw new IllegalStateException("BLAKE3 cannot absorb more of a message once squeezing has started.");
+    }
+  }
+
+  /**
+   * Makes the last chunk, of len bytes of data, the root node, or its last block the start of the root.
+   */
+  private void setChunkRoot(byte[] data, int len, long counter) {
+    System.arraycopy(key, 0, rootCV, 0, 8);
+    int blocks = Math.max(1, (len + BLOCK_BYTES - 1) / BLOCK_BYTES);
+    for (int b = 0; b < blocks - 1; b++) {
+      CryptoUtils.intArrayFromBytes(words, 0, data, b * BLOCK_BYTES, BLOCK_BYTES, true);
+      compress(rootCV, 0, words, 0, counter, BLOCK_BYTES, flags | (b == 0 ? CHUNK_START : 0), rootCV, 0, false);
+    }
+    int last = (blocks - 1) * BLOCK_BYTES;
+    byte[] block = new byte[BLOCK_BYTES];
+    System.arraycopy(data, last, block, 0, len - last);
+    CryptoUtils.intArrayFromBytes(rootBlock, 0, block, 0, BLOCK_BYTES, true);
+    CryptoUtils.fillWithZeroes(block);
+    rootBlockLength = len - last;
+    rootFlags = flags | CHUNK_END | (blocks == 1 ? CHUNK_START : 0);
+    rootCounter = counter;
+  }
+
+  /**
+   * Makes a parent of the given chaining values the root.
+   */
+  private void setParentRoot(int[] left, int leftOff, int[] right, int rightOff) {
+    System.arraycopy(key, 0, rootCV, 0, 8);
+    System.arraycopy(left, leftOff, rootBlock, 0, 8);
+    System.arraycopy(right, rightOff, rootBlock, 8, 8);
+    rootBlockLength = BLOCK_BYTES;
+    rootFlags = flags | PARENT;
+    rootCounter = 0;
+  }
+
+  /**
+   * Finishes the tree with len bytes of data as the last chunk, joining everything on the stack up to the root.
+   */
+  private void absorbFinal(byte[] data, int len) {
+    int remaining = stackSize;
+    if (holdingFirstChunk && len == 0) {
+      setChunkRoot(firstChunk, CHUNK_BYTES, 0);
+    } else {
+      releaseFirstChunk();
+      remaining = stackSize;
+      if (len > 0 || remaining == 0) {
+        mergeStack(chunkCounter);
+        remaining = stackSize;
+        setChunkRoot(data, len, chunkCounter);
+      } else {
+        remaining -= 2;
+        setParentRoot(cvStack, remaining * 8, cvStack, (remaining + 1) * 8);
+      }
+    }
+    while (remaining > 0) {
+      remaining--;
+      compress(rootCV, 0, rootBlock, 0, rootCounter, rootBlockLength, rootFlags, cv, 0, false);
+      setParentRoot(cvStack, remaining * 8, cv, 0);
+    }
+    outputCounter = 0;
+    outputOffset = BLOCK_BYTES;
+    squeezing = true;
+  }
+
+  /**
+   * Writes the next len bytes of output to out, finishing the message first if this is the first squeeze.
+   */
+  public byte[] squeeze(byte[] out, int off, int len) {
+    if (!squeezing) {
+      byte[] last = new byte[CHUNK_BYTES];
+      absorbFinal(last, takePending(last));
+      CryptoUtils.fillWithZeroes(last);
+    }
+    while (len > 0) {
+      if (outputOffset == BLOCK_BYTES) {
+        compress(rootCV, 0, rootBlock, 0, outputCounter++, rootBlockLength, rootFlags | ROOT, outputWords, 0, true);
+        CryptoUtils.intArrayToByteArray(output, 0, outputWords, true);
+        outputOffset = 0;
+      }
+      int n = Math.min(len, BLOCK_BYTES - outputOffset);
+      System.arraycopy(output, outputOffset, out, off, n);
+      outputOffset += n;
+      off += n;
+      len -= n;
+    }
+    return out;
+  }
+
+  public byte[] squeeze(int len) {
+    return squeeze(new byte[len], 0, len);
+  }
+
+  @Override
+  public byte[] computeHash(byte[] remainder, int remainderLength) {
+    checkAbsorbing();
+    absorbFinal(remainder, remainderLength);
+    byte[] result = squeeze(outputBytes);
+    reset();
+    return result;
+  }
+
+  @Override
+  public void reset() {
+    super.reset();
+    CryptoUtils.fillWithZeroes(cvStack);
+    CryptoUtils.fillWithZeroes(firstChunk);
+    CryptoUtils.fillWithZeroes(cv);
+    CryptoUtils.fillWithZeroes(rootCV);
+    CryptoUtils.fillWithZeroes(rootBlock);
+    CryptoUtils.fillWithZeroes(outputWords);
+    CryptoUtils.fillWithZeroes(output);
+    stackSize = 0;
+    chunkCounter = 0;
+    holdingFirstChunk = false;
+    outputOffset = 0;
+    squeezing = false;
+  }
+
+  @Override
+  public int getBlockBytes() {
+    return CHUNK_BYTES;
+  }
+
+  @Override
+  public int getHashByteLength() {
+    return outputBytes;
+  }
+}
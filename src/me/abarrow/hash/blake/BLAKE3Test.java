@@ -0,0 +1,131 @@
+package me.abarrow.hash.blake;
+
+import static org.junit.Assert.*;
+
+import java.util.concurrent.ForkJoinPool;
+
+import me.abarrow.core.CryptoUtils;
+import me.abarrow.hash.Hasher;
+import me.abarrow.hash.sha.SHA256;
+import me.abarrow.hash.sha.SHA512;
+
+import org.junit.Test;
+
+public class BLAKE3Test {
+
+  // the inputs, key and context of the official test vectors
+  private static final int[] LENGTHS = new int[] { 0, 1, 1024, 1025, 2049, 8193, 31744, 102400, 1 << 20 };
+
+  private static final byte[] KEY = "whats the Elvish word for friend".getBytes();
+
+  private static final String CONTEXT = "BLAKE3 2019-12-27 16:29:52 test vectors context";
+
+  private static byte[] pattern(int length) {
+    byte[] data = new byte[length];
+    for (int i = 0; i < length; i++) {
+      data[i] = (byte) (i % 251);
+    }
+    return data;
+  }
+
+  private static String hex(byte[] bytes) {
+    return CryptoUtils.byteArrayToHexString(bytes);
+  }
+
+  @Test
+  public void hashMatchesReferenceVectors() {
+    String[] expected = new String[] {
+        "af1349b9f5f9a1a6a0404dea36dcc9499bcb25c9adc112b7cc9a93cae41f3262",
+        "2d3adedff11b61f14c886e35afa036736dcd87a74d27b5c1510225d0f592e213",
+        "42214739f095a406f3fc83deb889744ac00df831c10daa55189b5d121c855af7",
+        "d00278ae47eb27b34faecf67b4fe263f82d5412916c1ffd97c8cb7fb814b8444",
+        "5f4d72f40d7a5f82b15ca2b2e44b1de3c2ef86c426c95c1af0b6879522563030",
+        "bab6c09cb8ce8cf459261398d2e7aef35700bf488116ceb94a36d0f5f1b7bc3b",
+        "62b6960e1a44bcc1eb1a611a8d6235b6b4b78f32e7abc4fb4c6cdcce94895c47",
+        "bc3e3d41a1146b069abffad3c0d44860cf664390afce4d9661f7902e7943e085",
+        "74cb441fd087764ca9c3694da742ebe30cbeb3060a17009ca81825c7a8d10343" };
+    for (int i = 0; i < LENGTHS.length; i++) {
+      byte[] data = pattern(LENGTHS[i]);
+      assertEquals(expected[i], hex(new BLAKE3(32, null).update(data).digest()));
+      assertEquals(expected[i], hex(new BLAKE3().update(data).digest()));
+    }
+  }
+
+  @Test
+  public void keyedHashMatchesReferenceVectors() {
+    String[] expected = new String[] {
+        "92b2b75604ed3c761f9d6f62392c8a9227ad0ea3f09573e783f1498a4ed60d26",
+        "6d7878dfff2f485635d39013278ae14f1454b8c0a3a2d34bc1ab38228a80c95b",
+        "75c46f6f3d9eb4f55ecaaee480db732e6c2105546f1e675003687c31719c7ba4",
+        "357dc55de0c7e382c900fd6e320acc04146be01db6a8ce7210b7189bd664ea69",
+        "9f29700902f7c86e514ddc4df1e3049f258b2472b6dd5267f61bf13983b78dd5",
+        "954a2a75420c8d6547e3ba5b98d963e6fa6491addc8c023189cc519821b4a1f5",
+        "efa53b389ab67c593dba624d898d0f7353ab99e4ac9d42302ee64cbf9939a419",
+        "1c35d1a5811083fd7119f5d5d1ba027b4d01c0c6c49fb6ff2cf75393ea5db4a7",
+        "59b889b0821111fc4c249dc98b5435b767b44fb881542c61a85c1bebbffb2906" };
+    for (int i = 0; i < LENGTHS.length; i++) {
+      assertEquals(expected[i], hex(new BLAKE3(KEY).update(pattern(LENGTHS[i])).digest()));
+    }
+  }
+
+  @Test
+  public void deriveKeyMatchesReferenceVectors() {
+    String[] expected = new String[] {
+        "2cc39783c223154fea8dfb7c1b1660f2ac2dcbd1c1de8277b0b0dd39b7e50d7d",
+        "b3e2e340a117a499c6cf2398a19ee0d29cca2bb7404c73063382693bf66cb06c",
+        "7356cd7720d5b66b6d0697eb3177d9f8d73a4a5c5e968896eb6a689684302706",
+        "effaa245f065fbf82ac186839a249707c3bddf6d3fdda22d1b95a3c970379bcb",
+        "2ea477c5515cc3dd606512ee72bb3e0e758cfae7232826f35fb98ca1bcbdf273",
+        "af1e0346e389b17c23200270a64aa4e1ead98c61695d917de7d5b00491c9b0f1",
+        "39772aef80e0ebe60596361e45b061e8f417429d529171b6764468c22928e28e",
+        "4652cff7a3f385a6103b5c260fc1593e13c778dbe608efb092fe7ee69df6e9c6",
+        "8e1484f3996130ebdfd55a93b734f485e1590f3adbf57ffa02d2ae9207bf0293" };
+    for (int i = 0; i < LENGTHS.length; i++) {
+      assertEquals(expected[i], hex(BLAKE3.deriveKey(CONTEXT, 32).update(pattern(LENGTHS[i])).digest()));
+    }
+  }
+
+  @Test
+  public void incrementalUpdatesAndSqueezesMatchOneShot() {
+    byte[] data = pattern(1 << 20);
+    BLAKE3 blake = new BLAKE3();
+    byte[] expected = blake.update(data).squeeze(300);
+    assertEquals("437ca7cc2f45e8f3c3bbf37a49e0ed2d9a188c50fae99da22c13458d0808ca2d", hex(new SHA256().update(expected).digest()));
+    blake.reset();
+    for (int step : new int[] { 1000, 1024, 5000, 65536, 300000 }) {
+      for (int off = 0; off < data.length; off += step) {
+        blake.update(data, off, Math.min(step, data.length - off));
+      }
+      byte[] out = new byte[300];
+      for (int off = 0; off < out.length; off += 7) {
+        blake.squeeze(out, off, Math.min(7, out.length - off));
+      }
+      assertArrayEquals(expected, out);
+      try {
+        blake.update(data);
+        fail("Absorbed after squeezing.");
+      } catch (IllegalStateException e) {
+        // expected
+      }
+      blake.reset();
+    }
+  }
+
+  @Test
+  public void BLAKE3Benchmark() {
+    byte[] data = new byte[1 << 25];
+    Hasher[] hashers = new Hasher[] { new BLAKE3(32, null), new BLAKE3(), new SHA256(), new SHA512() };
+    String[] names = new String[] { "BLAKE3 on one thread", "BLAKE3 on " + ForkJoinPool.commonPool().getParallelism()
+        + " workers", "SHA256", "SHA512" };
+    StringBuilder report = new StringBuilder();
+    for (int i = 0; i < hashers.length; i++) {
+      hashers[i].update(data).digest();
+      long start = System.nanoTime();
+      hashers[i].update(data).digest();
+      long time = System.nanoTime() - start;
+      report.append(i == 0 ? "" : ", ").append(names[i]).append(" ").append(data.length * 1000L / Math.max(1, time))
+          .append("MB/s");
+    }
+    System.out.println(report);
+  }
+}
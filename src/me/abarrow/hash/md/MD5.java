@@ -5,8 +5,6 @@ import me.abarrow.hash.sha.SHA32Hash;
 
 public class MD5 extends SHA32Hash {
 
-  private static final int[] s = new int[] { 7, 12, 17, 22, 5, 9, 14, 20, 4, 11, 16, 23, 6, 10, 15, 21, };
-
   private static final int[] K = new int[] { 0xd76aa478, 0xe8c7b756, 0x242070db, 0xc1bdceee, 0xf57c0faf, 0x4787c62a,
       0xa8304613, 0xfd469501, 0x698098d8, 0x8b44f7af, 0xffff5bb1, 0x895cd7be, 0x6b901122, 0xfd987193, 0xa679438e,
       0x49b40821, 0xf61e2562, 0xc040b340, 0x265e5a51, 0xe9b6c7aa, 0xd62f105d, 0x02441453, 0xd8a1e681, 0xe7d3fbc8,
@@ -21,42 +19,100 @@ public class MD5 extends SHA32Hash {
   private static final int BLOCK_BITS = 512;
   private static final int BLOCK_BYTES = MD5.BLOCK_BITS / 8;
   
+  /**
+   * The steps are unrolled with their shifts and message word order written in, so the working variables trade roles
+   * instead of moving.
+   */
+  @Override
   protected void innerHashBlock(byte[] bytes, int start) {
-    int A = hash[0];
-    int B = hash[1];
-    int C = hash[2];
-    int D = hash[3];
-
-    int temp;
-    int F;
-    int g;
-
-    for (int i = 0; i < 64; i++) {
-      if (i < 16) {
-        W[i] = CryptoUtils.intFromBytes(bytes, start + i * 4, true);
-        F = (B & C) | ((~B) & D);
-        g = i;
-      } else if (i < 32) {
-        F = (D & B) | ((~D) & C);
-        g = (5 * i + 1) % 16;
-      } else if (i < 48) {
-        F = CryptoUtils.intParity(B, C, D);
-        g = (3 * i + 5) % 16;
-      } else {
-        F = C ^ (B | (~D));
-        g = (7 * i) % 16;
-      }
-      temp = B + CryptoUtils.rotateIntLeft(A + F + MD5.K[i] + W[g], MD5.s[i % 4 + 4 * (i / 16)]);
-      A = D;
-      D = C;
-      C = B;
-      B = temp;
-    }
-
-    hash[0] = hash[0] + A;
-    hash[1] = hash[1] + B;
-    hash[2] = hash[2] + C;
-    hash[3] = hash[3] + D;
+    int a = hash[0];
+    int b = hash[1];
+    int c = hash[2];
+    int d = hash[3];
+    int x0 = CryptoUtils.intFromBytes(bytes, start, true);
+    int x1 = CryptoUtils.intFromBytes(bytes, start + 4, true);
+    int x2 = CryptoUtils.intFromBytes(bytes, start + 8, true);
+    int x3 = CryptoUtils.intFromBytes(bytes, start + 12, true);
+    int x4 = CryptoUtils.intFromBytes(bytes, start + 16, true);
+    int x5 = CryptoUtils.intFromBytes(bytes, start + 20, true);
+    int x6 = CryptoUtils.intFromBytes(bytes, start + 24, true);
+    int x7 = CryptoUtils.intFromBytes(bytes, start + 28, true);
+    int x8 = CryptoUtils.intFromBytes(bytes, start + 32, true);
+    int x9 = CryptoUtils.intFromBytes(bytes, start + 36, true);
+    int x10 = CryptoUtils.intFromBytes(bytes, start + 40, true);
+    int x11 = CryptoUtils.intFromBytes(bytes, start + 44, true);
+    int x12 = CryptoUtils.intFromBytes(bytes, start + 48, true);
+    int x13 = CryptoUtils.intFromBytes(bytes, start + 52, true);
+    int x14 = CryptoUtils.intFromBytes(bytes, start + 56, true);
+    int x15 = CryptoUtils.intFromBytes(bytes, start + 60, true);
+    a = b + Integer.rotateLeft(a + (d ^ (b & (c ^ d))) + K[0] + x0, 7);
+    d = a + Integer.rotateLeft(d + (c ^ (a & (b ^ c))) + K[1] + x1, 12);
+    c = d + Integer.rotateLeft(c + (b ^ (d & (a ^ b))) + K[2] + x2, 17);
+    b = c + Integer.rotateLeft(b + (a ^ (c & (d ^ a))) + K[3] + x3, 22);
+    a = b + Integer.rotateLeft(a + (d ^ (b & (c ^ d))) + K[4] + x4, 7);
+    d = a + Integer.rotateLeft(d + (c ^ (a & (b ^ c))) + K[5] + x5, 12);
+    c = d + Integer.rotateLeft(c + (b ^ (d & (a ^ b))) + K[6] + x6, 17);
+    b = c + Integer.rotateLeft(b + (a ^ (c & (d ^ a))) + K[7] + x7, 22);
+    a = b + Integer.rotateLeft(a + (d ^ (b & (c ^ d))) + K[8] + x8, 7);
+    d = a + Integer.rotateLeft(d + (c ^ (a & (b ^ c))) + K[9] + x9, 12);
+    c = d + Integer.rotateLeft(c + (b ^ (d & (a ^ b))) + K[10] + x10, 17);
+    b = c + Integer.rotateLeft(b + (a ^ (c & (d ^ a))) + K[11] + x11, 22);
+    a = b + Integer.rotateLeft(a + (d ^ (b & (c ^ d))) + K[12] + x12, 7);
+    d = a + Integer.rotateLeft(d + (c ^ (a & (b ^ c))) + K[13] + x13, 12);
+    c = d + Integer.rotateLeft(c + (b ^ (d & (a ^ b))) + K[14] + x14, 17);
+    b = c + Integer.rotateLeft(b + (a ^ (c & (d ^ a))) + K[15] + x15, 22);
+    a = b + Integer.rotateLeft(a + (c ^ (d & (b ^ c))) + K[16] + x1, 5);
+    d = a + Integer.rotateLeft(d + (b ^ (c & (a ^ b))) + K[17] + x6, 9);
+    c = d + Integer.rotateLeft(c + (a ^ (b & (d ^ a))) + K[18] + x11, 14);
+    b = c + Integer.rotateLeft(b + (d ^ (a & (c ^ d))) + K[19] + x0, 20);
+    a = b + Integer.rotateLeft(a + (c ^ (d & (b ^ c))) + K[20] + x5, 5);
+    d = a + Integer.rotateLeft(d + (b ^ (c & (a ^ b))) + K[21] + x10, 9);
+    c = d + Integer.rotateLeft(c + (a ^ (b & (d ^ a))) + K[22] + x15, 14);
+    b = c + Integer.rotateLeft(b + (d ^ (a & (c ^ d))) + K[23] + x4, 20);
+    a = b + Integer.rotateLeft(a + (c ^ (d & (b ^ c))) + K[24] + x9, 5);
+    d = a + Integer.rotateLeft(d + (b ^ (c & (a ^ b))) + K[25] + x14, 9);
+    c = d + Integer.rotateLeft(c + (a ^ (b & (d ^ a))) + K[26] + x3, 14);
+    b = c + Integer.rotateLeft(b + (d ^ (a & (c ^ d))) + K[27] + x8, 20);
+    a = b + Integer.rotateLeft(a + (c ^ (d & (b ^ c))) + K[28] + x13, 5);
+    d = a + Integer.rotateLeft(d + (b ^ (c & (a ^ b))) + K[29] + x2, 9);
+    c = d + Integer.rotateLeft(c + (a ^ (b & (d ^ a))) + K[30] + x7, 14);
+    b = c + Integer.rotateLeft(b + (d ^ (a & (c ^ d))) + K[31] + x12, 20);
+    a = b + Integer.rotateLeft(a + (b ^ c ^ d) + K[32] + x5, 4);
+    d = a + Integer.rotateLeft(d + (a ^ b ^ c) + K[33] + x8, 11);
+    c = d + Integer.rotateLeft(c + (d ^ a ^ b) + K[34] + x11, 16);
+    b = c + Integer.rotateLeft(b + (c ^ d ^ a) + K[35] + x14, 23);
+    a = b + Integer.rotateLeft(a + (b ^ c ^ d) + K[36] + x1, 4);
+    d = a + Integer.rotateLeft(d + (a ^ b ^ c) + K[37] + x4, 11);
+    c = d + Integer.rotateLeft(c + (d ^ a ^ b) + K[38] + x7, 16);
+    b = c + Integer.rotateLeft(b + (c ^ d ^ a) + K[39] + x10, 23);
+    a = b + Integer.rotateLeft(a + (b ^ c ^ d) + K[40] + x13, 4);
+    d = a + Integer.rotateLeft(d + (a ^ b ^ c) + K[41] + x0, 11);
+    c = d + Integer.rotateLeft(c + (d ^ a ^ b) + K[42] + x3, 16);
+    b = c + Integer.rotateLeft(b + (c ^ d ^ a) + K[43] + x6, 23);
+    a = b + Integer.rotateLeft(a + (b ^ c ^ d) + K[44] + x9, 4);
+    d = a + Integer.rotateLeft(d + (a ^ b ^ c) + K[45] + x12, 11);
+    c = d + Integer.rotateLeft(c + (d ^ a ^ b) + K[46] + x15, 16);
+    b = c + Integer.rotateLeft(b + (c ^ d ^ a) + K[47] + x2, 23);
+    a = b + Integer.rotateLeft(a + (c ^ (b | ~d)) + K[48] + x0, 6);
+    d = a + Integer.rotateLeft(d + (b ^ (a | ~c)) + K[49] + x7, 10);
+    c = d + Integer.rotateLeft(c + (a ^ (d | ~b)) + K[50] + x14, 15);
+    b = c + Integer.rotateLeft(b + (d ^ (c | ~a)) + K[51] + x5, 21);
+    a = b + Integer.rotateLeft(a + (c ^ (b | ~d)) + K[52] + x12, 6);
+    d = a + Integer.rotateLeft(d + (b ^ (a | ~c)) + K[53] + x3, 10);
+    c = d + Integer.rotateLeft(c + (a ^ (d | ~b)) + K[54] + x10, 15);
+    b = c + Integer.rotateLeft(b + (d ^ (c | ~a)) + K[55] + x1, 21);
+    a = b + Integer.rotateLeft(a + (c ^ (b | ~d)) + K[56] + x8, 6);
+    d = a + Integer.rotateLeft(d + (b ^ (a | ~c)) + K[57] + x15, 10);
+    c = d + Integer.rotateLeft(c + (a ^ (d | ~b)) + K[58] + x6, 15);
+    b = c + Integer.rotateLeft(b + (d ^ (c | ~a)) + K[59] + x13, 21);
+    a = b + Integer.rotateLeft(a + (c ^ (b | ~d)) + K[60] + x4, 6);
+    d = a + Integer.rotateLeft(d + (b ^ (a | ~c)) + K[61] + x11, 10);
+    c = d + Integer.rotateLeft(c + (a ^ (d | ~b)) + K[62] + x2, 15);
+    b = c + Integer.rotateLeft(b + (d ^ (c | ~a)) + K[63] + x9, 21);
+    hash[0] += a;
+    hash[1] += b;
+    hash[2] += c;
+    hash[3] += d;
   }
 
   @Override
@@ -79,9 +135,4 @@ public class MD5 extends SHA32Hash {
     return true;
   }
 
-  @Override
-  protected int getWLength() {
-    return 16;
-  }
-
 }
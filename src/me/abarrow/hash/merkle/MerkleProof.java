@@ -0,0 +1,125 @@
+package me.abarrow.hash.merkle;
+
+import me.abarrow.core.CryptoUtils;
+import me.abarrow.hash.Hasher;
+
+/**
+ * Proof that a run of leaves belongs to a {@link MerkleTree} with a known root. It holds the hashes of the nodes
+ * bordering the run on each level, which together with the leaves themselves are enough to hash back up to the root.
+ * The verifier supplies the bytes of the leaves, from {@link #getDataOffset()} for {@link #getDataLength()} bytes.
+ */
+public class MerkleProof {
+
+  private static final int HEADER_BYTES = 20;
+
+  private final int leafBytes;
+  private final long size;
+  private final int firstLeaf;
+  private final int lastLeaf;
+  private final byte[] siblings;
+
+  MerkleProof(int leafSize, long contentSize, int first, int last, byte[] siblingHashes) {
+    leafBytes = leafSize;
+    size = contentSize;
+    firstLeaf = first;
+    lastLeaf = last;
+    siblings = siblingHashes;
+  }
+
+  /**
+   * Reads a proof written by getEncoded.
+   */
+  public MerkleProof(byte[] encoded) {
+    if (encoded.length < HEADER_BYTES) {
+      throw new IllegalArgumentException("A Merkle proof is at least " + HEADER_BYTES + " bytes long.");
+    }
+    leafBytes = CryptoUtils.intFromBytes(encoded, 0);
+    size = CryptoUtils.longFromBytes(encoded, 4);
+    firstLeaf = CryptoUtils.intFromBytes(encoded, 12);
+    lastLeaf = CryptoUtils.intFromBytes(encoded, 16);
+    if (leafBytes < 1 || size < 0 || firstLeaf < 0 || lastLeaf < firstLeaf
+        || lastLeaf >= MerkleTree.leafCount(size, leafBytes)) {
+      throw new IllegalArgumentException("The Merkle proof header is corrupt.");
+    }
+    siblings = new byte[encoded.length - HEADER_BYTES];
+    System.arraycopy(encoded, HEADER_BYTES, siblings, 0, siblings.length);
+  }
+
+  public byte[] getEncoded() {
+    byte[] encoded = new byte[HEADER_BYTES + siblings.length];
+    CryptoUtils.intToBytes(leafBytes, encoded, 0);
+    CryptoUtils.longToBytes(size, encoded, 4);
+    CryptoUtils.intToBytes(firstLeaf, encoded, 12);
+    CryptoUtils.intToBytes(lastLeaf, encoded, 16);
+    System.arraycopy(siblings, 0, encoded, HEADER_BYTES, siblings.length);
+    return encoded;
+  }
+
+  public long getDataOffset() {
+    return (long) firstLeaf * leafBytes;
+  }
+
+  public int getDataLength() {
+    return (int) (Math.min(size, (long) (lastLeaf + 1) * leafBytes) - getDataOffset());
+  }
+
+  /**
+   * Whether data, holding the proven leaves from off, hashes up to root with the given kind of hasher.
+   */
+  public boolean verify(Hasher hasher, byte[] root, byte[] data, int off) {
+    int hashBytes = hasher.getHashByteLength();
+    int len = getDataLength();
+    if (root.length != hashBytes || off < 0 || data.length - off < len) {
+      return false;
+    }
+    int[] counts = MerkleTree.levelCounts(MerkleTree.leafCount(size, leafBytes));
+    // the known run of each level, with its left edge at nodes[0] and room for a sibling on either side
+    byte[] nodes = new byte[(lastLeaf - firstLeaf + 3) * hashBytes];
+    for (int i = 0; i <= lastLeaf - firstLeaf; i++) {
+      int leafOff = i * leafBytes;
+      MerkleTree.hashLeaf(hasher, data, off + leafOff, Math.min(leafBytes, len - leafOff), nodes, i * hashBytes);
+    }
+    int lo = firstLeaf;
+    int hi = lastLeaf;
+    int used = 0;
+    for (int level = 0; level + 1 < counts.length; level++) {
+      int known = hi - lo + 1;
+      if (lo % 2 == 1) {
+        if (used + hashBytes > siblings.length) {
+          return false;
+        }
+        System.arraycopy(nodes, 0, nodes, hashBytes, known * hashBytes);
+        System.arraycopy(siblings, used, nodes, 0, hashBytes);
+        used += hashBytes;
+        lo--;
+        known++;
+      }
+      if (hi % 2 == 0 && hi + 1 < counts[level]) {
+        if (used + hashBytes > siblings.length) {
+          return false;
+        }
+        System.arraycopy(siblings, used, nodes, known * hashBytes, hashBytes);
+        used += hashBytes;
+        hi++;
+        known++;
+      }
+      // lo is now even, so the run pairs up from its start, and only a last node without a partner is carried
+      for (int i = 0; i < known; i += 2) {
+        if (i + 1 < known) {
+          MerkleTree.hashNode(hasher, nodes, i * hashBytes, nodes, (i + 1) * hashBytes, hashBytes, nodes,
+              (i / 2) * hashBytes);
+        } else {
+          System.arraycopy(nodes, i * hashBytes, nodes, (i / 2) * hashBytes, hashBytes);
+        }
+      }
+      lo /= 2;
+      hi /= 2;
+    }
+    if (used != siblings.length) {
+      return false;
+    }
+    byte[] computed = new byte[hashBytes];
+    System.arraycopy(nodes, 0, computed, 0, hashBytes);
+    return CryptoUtils.constantTimeArrayEquals(computed, root);
+  }
+}
@@ -0,0 +1,356 @@
+package me.abarrow.hash.merkle;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.SeekableByteChannel;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+import me.abarrow.core.CryptoUtils;
+import me.abarrow.hash.Hasher;
+
+/**
+ * A Merkle tree over the contents of a channel, cut into fixed size leaves and hashed with any hasher.
+ * <p>
+ * Leaves are hashed with a 0 byte in front of them and interior nodes with a 1 byte in front of their two children, so
+ * a leaf can never pass for a node. Each level holds half as many nodes as the one below, rounded up, and a node left
+ * without a partner is carried up to the next level unchanged. Empty content is a single empty leaf.
+ * <p>
+ * Every node is kept, and {@link #writeIndex(OutputStream)} saves them to a sidecar index that
+ * {@link #readIndex(InputStream, Hasher, ForkJoinPool)} loads again. After an edit, {@link #update} only hashes the
+ * leaves the edited range covers and the nodes above them. Leaves are hashed on a fork join pool when the hasher can
+ * copy its state, and one at a time on the given hasher otherwise.
+ */
+public class MerkleTree {
+
+  private static final int INDEX_MAGIC = 0x4d4b4c31; // MKL1
+  private static final int HEADER_BYTES = 20;
+
+  private static final byte[] LEAF_PREFIX = new byte[] { 0x00 };
+  private static final byte[] NODE_PREFIX = new byte[] { 0x01 };
+
+  // how much of the channel is read at once
+  private static final int BATCH_BYTES = 1 << 20;
+  // the most leaves a task hashes itself rather than splitting
+  private static final int TASK_LEAVES = 16;
+
+  private final Hasher hasher;
+  private final int leafBytes;
+  private final int hashBytes;
+  private final ForkJoinPool pool;
+
+  private long size;
+  // every level of the tree from the leaves up, each node hashBytes long
+  private byte[][] levels;
+
+  /**
+   * A tree over empty content. Without a pool, or with a hasher that cannot copy its state, every leaf is hashed on
+   * the calling thread.
+   */
+  public MerkleTree(Hasher leafHasher, int leafSize, ForkJoinPool forkJoinPool) {
+    if (leafSize < 1) {
+      throw new IllegalArgumentException("A Merkle tree cannot have leaves of " + leafSize + " bytes.");
+    }
+    hasher = leafHasher;
+    leafBytes = leafSize;
+    hashBytes = hasher.getHashByteLength();
+    pool = hasher.supportsStateCopy() ? forkJoinPool : null;
+    size = 0;
+    levels = allocateLevels(0, null);
+    hashLeaves(new byte[0], 0, 0, 1);
+    hashNodes(0, 0);
+  }
+
+  static int leafCount(long size, int leafSize) {
+    return (int) Math.max(1, (size + leafSize - 1) / leafSize);
+  }
+
+  /**
+   * The number of nodes on each level of a tree with the given number of leaves, from the leaves up.
+   */
+  static int[] levelCounts(int leaves) {
+    int depth = 1;
+    for (int n = leaves; n > 1; n = (n + 1) / 2) {
+      depth++;
+    }
+    int[] counts = new int[depth];
+    counts[0] = leaves;
+    for (int i = 1; i < depth; i++) {
+      counts[i] = (counts[i - 1] + 1) / 2;
+    }
+    return counts;
+  }
+
+  /**
+   * Levels for content of the given size, keeping the nodes they share with old.
+   */
+  private byte[][] allocateLevels(long contentSize, byte[][] old) {
+    int[] counts = levelCounts(leafCount(contentSize, leafBytes));
+    byte[][] allocated = new byte[counts.length][];
+    for (int i = 0; i < counts.length; i++) {
+      allocated[i] = new byte[counts[i] * hashBytes];
+      if (old != null && i < old.length) {
+        System.arraycopy(old[i], 0, allocated[i], 0, Math.min(old[i].length, allocated[i].length));
+      }
+    }
+    return allocated;
+  }
+
+  /**
+   * Hashes all of the channel and returns the new root.
+   */
+  public byte[] build(SeekableByteChannel channel) throws IOException {
+    size = 0;
+    levels = allocateLevels(0, null);
+    return update(channel, 0, channel.size());
+  }
+
+  /**
+   * Brings the tree up to date after length bytes from offset were written, hashing only the leaves they fall in and
+   * the nodes above them, and returns the new root. If the channel changed size, everything from the old end or the
+   * start of the range, whichever comes first, is hashed again.
+   */
+  public byte[] update(SeekableByteChannel channel, long offset, long length) throws IOException {
+    if (offset < 0 || length < 0) {
+      throw new IllegalArgumentException("The offset and length cannot be negative.");
+    }
+    long newSize = channel.size();
+    if ((newSize + leafBytes - 1) / leafBytes > Integer.MAX_VALUE / hashBytes) {
+      throw new IOException("The content has too many leaves to index.");
+    }
+    int oldLeaves = leafCount(size, leafBytes);
+    int newLeaves = leafCount(newSize, leafBytes);
+    int first;
+    int last;
+    if (newSize != size) {
+      first = (int) Math.min(offset / leafBytes, oldLeaves - 1);
+      last = newLeaves - 1;
+      levels = allocateLevels(newSize, levels);
+      size = newSize;
+    } else {
+      if (length == 0 || offset >= size) {
+        return getRoot();
+      }
+      first = (int) (offset / leafBytes);
+      last = (int) ((Math.min(offset + length, size) - 1) / leafBytes);
+    }
+    first = Math.min(first, newLeaves - 1);
+
+    int batchLeaves = Math.max(1, BATCH_BYTES / leafBytes);
+    int bufferLeaves = Math.min(batchLeaves, last - first + 1);
+    byte[] buffer = new byte[(int) Math.min((long) bufferLeaves * leafBytes, Math.max(size, 1))];
+    try {
+      for (int leaf = first; leaf <= last; leaf += batchLeaves) {
+        int count = Math.min(batchLeaves, last - leaf + 1);
+        long start = (long) leaf * leafBytes;
+        int len = (int) Math.min((long) count * leafBytes, size - start);
+        read(channel, start, buffer, len);
+        hashLeaves(buffer, len, leaf, count);
+      }
+    } finally {
+      CryptoUtils.fillWithZeroes(buffer);
+    }
+    hashNodes(first, last);
+    return getRoot();
+  }
+
+  private static void read(SeekableByteChannel channel, long at, byte[] buffer, int len) throws IOException {
+    channel.position(at);
+    ByteBuffer wrapped = ByteBuffer.wrap(buffer, 0, len);
+    while (wrapped.hasRemaining()) {
+      if (channel.read(wrapped) == -1) {
+        throw new IOException("The channel ended early.");
+      }
+    }
+  }
+
+  /**
+   * Hashes count leaves held in the first len bytes of data into the bottom level, starting at leaf first.
+   */
+  private void hashLeaves(byte[] data, int len, int first, int count) {
+    if (pool != null && count > TASK_LEAVES) {
+      pool.invoke(new LeafTask(data, len, first, 0, count));
+    } else {
+      hashLeaves(hasher, data, len, first, 0, count);
+    }
+  }
+
+  private void hashLeaves(Hasher h, byte[] data, int len, int firstLeaf, int from, int to) {
+    for (int i = from; i < to; i++) {
+      int off = i * leafBytes;
+      hashLeaf(h, data, off, Math.min(leafBytes, len - off), levels[0], (firstLeaf + i) * hashBytes);
+    }
+  }
+
+  static void hashLeaf(Hasher h, byte[] data, int off, int len, byte[] out, int outOff) {
+    h.reset();
+    h.update(LEAF_PREFIX);
+    h.update(data, off, len);
+    h.digest(out, outOff);
+  }
+
+  static void hashNode(Hasher h, byte[] left, int leftOff, byte[] right, int rightOff, int hashLength, byte[] out,
+      int outOff) {
+    h.reset();
+    h.update(NODE_PREFIX);
+    h.update(left, leftOff, hashLength);
+    h.update(right, rightOff, hashLength);
+    h.digest(out, outOff);
+  }
+
+  /**
+   * Hashes the nodes above leaves first to last again, level by level up to the root.
+   */
+  private void hashNodes(int first, int last) {
+    for (int level = 0; level + 1 < levels.length; level++) {
+      byte[] below = levels[level];
+      byte[] above = levels[level + 1];
+      int belowCount = below.length / hashBytes;
+      first /= 2;
+      last /= 2;
+      for (int i = first; i <= last; i++) {
+        int left = 2 * i;
+        if (left + 1 < belowCount) {
+          hashNode(hasher, below, left * hashBytes, below, (left + 1) * hashBytes, hashBytes, above, i * hashBytes);
+        } else {
+          System.arraycopy(below, left * hashBytes, above, i * hashBytes, hashBytes);
+        }
+      }
+    }
+  }
+
+  /**
+   * Hashes a run of leaves, splitting it in half until the runs are short. Each run hashes on its own copy of the
+   * hasher.
+   */
+  private final class LeafTask extends RecursiveAction {
+
+    private static final long serialVersionUID = -6311806392043551087L;
+
+    private final byte[] data;
+    private final int len;
+    private final int firstLeaf;
+    private final int from;
+    private final int to;
+
+    LeafTask(byte[] data, int len, int firstLeaf, int from, int to) {
+      this.data = data;
+      this.len = len;
+      this.firstLeaf = firstLeaf;
+      this.from = from;
+      this.to = to;
+    }
+
+    @Override
+    protected void compute() {
+      if (to - from <= TASK_LEAVES) {
+        Hasher copy = hasher.copyState();
+        hashLeaves(copy, data, len, firstLeaf, from, to);
+        copy.reset();
+        return;
+      }
+      int half = (from + to) / 2;
+      invokeAll(new LeafTask(data, len, firstLeaf, from, half), new LeafTask(data, len, firstLeaf, half, to));
+    }
+  }
+
+  public byte[] getRoot() {
+    return levels[levels.length - 1].clone();
+  }
+
+  public long getSize() {
+    return size;
+  }
+
+  public int getLeafBytes() {
+    return leafBytes;
+  }
+
+  /**
+   * A proof that the leaves covering length bytes from offset are part of this tree.
+   */
+  public MerkleProof prove(long offset, long length) {
+    if (offset < 0 || length < 0 || offset + length > size) {
+      throw new IllegalArgumentException("The range to prove must lie within the content.");
+    }
+    int leaves = leafCount(size, leafBytes);
+    int first = (int) Math.min(offset / leafBytes, leaves - 1);
+    int last = length == 0 ? first : (int) ((offset + length - 1) / leafBytes);
+    byte[] siblings = new byte[levels.length * 2 * hashBytes];
+    int n = 0;
+    int lo = first;
+    int hi = last;
+    for (int level = 0; level + 1 < levels.length; level++) {
+      int count = levels[level].length / hashBytes;
+      if (lo % 2 == 1) {
+        System.arraycopy(levels[level], (lo - 1) * hashBytes, siblings, n, hashBytes);
+        n += hashBytes;
+      }
+      if (hi % 2 == 0 && hi + 1 < count) {
+        System.arraycopy(levels[level], (hi + 1) * hashBytes, siblings, n, hashBytes);
+        n += hashBytes;
+      }
+      lo /= 2;
+      hi /= 2;
+    }
+    byte[] used = new byte[n];
+    System.arraycopy(siblings, 0, used, 0, n);
+    return new MerkleProof(leafBytes, size, first, last, used);
+  }
+
+  /**
+   * Writes the index: a header giving the hash length, leaf size and content size, then every level from the leaves
+   * up.
+   */
+  public void writeIndex(OutputStream out) throws IOException {
+    byte[] header = new byte[HEADER_BYTES];
+    CryptoUtils.intToBytes(INDEX_MAGIC, header, 0);
+    CryptoUtils.intToBytes(hashBytes, header, 4);
+    CryptoUtils.intToBytes(leafBytes, header, 8);
+    CryptoUtils.longToBytes(size, header, 12);
+    out.write(header);
+    for (byte[] level : levels) {
+      out.write(level);
+    }
+  }
+
+  /**
+   * Loads a tree saved by writeIndex. The hasher must be the kind the tree was built with, though only its hash
+   * length can be checked.
+   */
+  public static MerkleTree readIndex(InputStream in, Hasher leafHasher, ForkJoinPool forkJoinPool) throws IOException {
+    byte[] header = new byte[HEADER_BYTES];
+    readFully(in, header);
+    if (CryptoUtils.intFromBytes(header, 0) != INDEX_MAGIC) {
+      throw new IOException("This is not a Merkle tree index.");
+    }
+    int hashLength = CryptoUtils.intFromBytes(header, 4);
+    if (hashLength != leafHasher.getHashByteLength()) {
+      throw new IOException("The index was built with a hash of a different length.");
+    }
+    int leafSize = CryptoUtils.intFromBytes(header, 8);
+    long contentSize = CryptoUtils.longFromBytes(header, 12);
+    if (leafSize < 1 || contentSize < 0 || (contentSize + leafSize - 1) / leafSize > Integer.MAX_VALUE / hashLength) {
+      throw new IOException("The index header is corrupt.");
+    }
+    MerkleTree tree = new MerkleTree(leafHasher, leafSize, forkJoinPool);
+    tree.levels = tree.allocateLevels(contentSize, null);
+    tree.size = contentSize;
+    for (byte[] level : tree.levels) {
+      readFully(in, level);
+    }
+    return tree;
+  }
+
+  private static void readFully(InputStream in, byte[] b) throws IOException {
+    for (int n = 0; n < b.length;) {
+      int read = in.read(b, n, b.length - n);
+      if (read == -1) {
+        throw new IOException("The index ended early.");
+      }
+      n += read;
+    }
+  }
+}
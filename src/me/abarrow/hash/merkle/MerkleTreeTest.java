@@ -0,0 +1,213 @@
+package me.abarrow.hash.merkle;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+
+import me.abarrow.core.CryptoUtils;
+import me.abarrow.hash.blake.BLAKE3;
+import me.abarrow.hash.sha.SHA256;
+
+import org.junit.Test;
+
+public class MerkleTreeTest {
+
+  private static byte[] pattern(int length) {
+    byte[] data = new byte[length];
+    for (int i = 0; i < length; i++) {
+      data[i] = (byte) (i % 251);
+    }
+    return data;
+  }
+
+  private static FileChannel open(Path path) throws IOException {
+    return FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE);
+  }
+
+  private static void write(FileChannel channel, long at, byte[] data) throws IOException {
+    ByteBuffer wrapped = ByteBuffer.wrap(data);
+    while (wrapped.hasRemaining()) {
+      channel.write(wrapped, at + wrapped.position());
+    }
+  }
+
+  @Test
+  public void rootsMatchReferenceVectors() throws IOException {
+    Path file = Files.createTempFile("merkle", ".bin");
+    try {
+      FileChannel channel = open(file);
+      try {
+        MerkleTree serial = new MerkleTree(new SHA256(), 64, null);
+        assertEquals("6e340b9cffb37a989ca544e6bb780a2c78901d3fb33738768511a30617afa01d",
+            CryptoUtils.byteArrayToHexString(serial.getRoot()));
+        write(channel, 0, pattern(1000));
+        assertEquals("97936bb0af1ebe1f8bdf0438946f7b3feb5acba0db69b044bcb91234952a75b2",
+            CryptoUtils.byteArrayToHexString(serial.build(channel)));
+        assertArrayEquals(serial.getRoot(), new MerkleTree(new SHA256(), 64, ForkJoinPool.commonPool()).build(channel));
+        // a hasher that cannot copy its state hashes on the calling thread
+        assertArrayEquals(new MerkleTree(new BLAKE3(), 64, null).build(channel),
+            new MerkleTree(new BLAKE3(), 64, ForkJoinPool.commonPool()).build(channel));
+
+        channel.truncate(320);
+        assertEquals("d49218c64d3aae2bb3d3ec51254df2104312f8edaa2cbfeea39bf06ae25a4a02",
+            CryptoUtils.byteArrayToHexString(serial.update(channel, 320, 0)));
+      } finally {
+        channel.close();
+      }
+    } finally {
+      Files.delete(file);
+    }
+  }
+
+  @Test
+  public void updatesMatchRebuildingTheTree() throws IOException {
+    Path file = Files.createTempFile("merkle", ".bin");
+    try {
+      FileChannel channel = open(file);
+      try {
+        Random random = new Random(50);
+        byte[] content = new byte[3 * 1024 * 1024 + 123];
+        random.nextBytes(content);
+        write(channel, 0, content);
+        MerkleTree tree = new MerkleTree(new SHA256(), 4096, ForkJoinPool.commonPool());
+        tree.build(channel);
+
+        for (int i = 0; i < 20; i++) {
+          long size = channel.size();
+          long at;
+          byte[] edit;
+          if (i % 5 == 3) {
+            // grow past the end
+            at = size - random.nextInt(5000);
+            edit = new byte[random.nextInt(20000) + 1];
+          } else if (i % 5 == 4) {
+            at = size - random.nextInt(30000) - 1;
+            channel.truncate(at);
+            assertArrayEquals(new MerkleTree(new SHA256(), 4096, null).build(channel), tree.update(channel, at, 0));
+            continue;
+          } else {
+            at = (long) (random.nextDouble() * (size - 100));
+            edit = new byte[random.nextInt((int) Math.min(10000, size - at)) + 1];
+          }
+          random.nextBytes(edit);
+          write(channel, at, edit);
+          assertArrayEquals(new MerkleTree(new SHA256(), 4096, null).build(channel),
+              tree.update(channel, at, edit.length));
+        }
+
+        // the index carries on where the tree stopped
+        ByteArrayOutputStream index = new ByteArrayOutputStream();
+        tree.writeIndex(index);
+        int leaves = (int) ((channel.size() + 4095) / 4096);
+        assertTrue(index.size() < 20 + 2 * leaves * 32 + 32 * 32);
+        MerkleTree loaded = MerkleTree.readIndex(new ByteArrayInputStream(index.toByteArray()), new SHA256(), null);
+        assertArrayEquals(tree.getRoot(), loaded.getRoot());
+        assertEquals(channel.size(), loaded.getSize());
+        write(channel, 5000, pattern(10));
+        assertArrayEquals(tree.update(channel, 5000, 10), loaded.update(channel, 5000, 10));
+        try {
+          MerkleTree.readIndex(new ByteArrayInputStream(index.toByteArray()), new BLAKE3(64, null), null);
+          fail("Loaded an index with the wrong hash length.");
+        } catch (IOException e) {
+        }
+      } finally {
+        channel.close();
+      }
+    } finally {
+      Files.delete(file);
+    }
+  }
+
+  @Test
+  public void proofsVerifyOnlyTheProvenLeaves() throws IOException {
+    Path file = Files.createTempFile("merkle", ".bin");
+    try {
+      FileChannel channel = open(file);
+      try {
+        byte[] content = pattern(100 * 64 + 17);
+        write(channel, 0, content);
+        MerkleTree tree = new MerkleTree(new SHA256(), 64, null);
+        byte[] root = tree.build(channel);
+        // leaves 1 to 2 and 37 to 56 start on an odd leaf and end on an even one with a right sibling
+        long[][] ranges = new long[][] { { 0, 1 }, { 63, 2 }, { 64, 65 }, { 64 * 37 + 5, 64 * 20 }, { 6400, 17 },
+            { 0, content.length }, { 64 * 99, 64 }, { 200, 0 } };
+        for (long[] range : ranges) {
+          MerkleProof proof = new MerkleProof(tree.prove(range[0], range[1]).getEncoded());
+          int off = (int) proof.getDataOffset();
+          assertTrue(off <= range[0] && off + proof.getDataLength() >= range[0] + range[1]);
+          byte[] data = Arrays.copyOfRange(content, off, off + proof.getDataLength());
+          assertTrue(proof.verify(new SHA256(), root, data, 0));
+
+          data[data.length - 1] ^= 1;
+          assertFalse(proof.verify(new SHA256(), root, data, 0));
+          data[data.length - 1] ^= 1;
+          byte[] wrongRoot = root.clone();
+          wrongRoot[3] ^= 1;
+          assertFalse(proof.verify(new SHA256(), wrongRoot, data, 0));
+          byte[] encoded = proof.getEncoded();
+          if (encoded.length > 20) {
+            encoded[encoded.length - 1] ^= 1;
+            assertFalse(new MerkleProof(encoded).verify(new SHA256(), root, data, 0));
+          }
+        }
+        // every range of a small tree proves
+        MerkleTree small = new MerkleTree(new SHA256(), 64, null);
+        channel.truncate(8 * 64);
+        byte[] smallRoot = small.build(channel);
+        for (int first = 0; first < 8; first++) {
+          for (int last = first; last < 8; last++) {
+            MerkleProof proof = small.prove(first * 64, (last - first + 1) * 64);
+            assertTrue(proof.verify(new SHA256(), smallRoot, content, first * 64));
+          }
+        }
+
+        // leaves from elsewhere in the content do not pass for the proven ones
+        MerkleProof proof = tree.prove(640, 64);
+        assertFalse(proof.verify(new SHA256(), root, Arrays.copyOfRange(content, 704, 768), 0));
+      } finally {
+        channel.close();
+      }
+    } finally {
+      Files.delete(file);
+    }
+  }
+
+  @Test
+  public void updateBenchmark() throws IOException {
+    Path file = Files.createTempFile("merkle", ".bin");
+    try {
+      FileChannel channel = open(file);
+      try {
+        byte[] content = new byte[32 * 1024 * 1024];
+        new Random(1).nextBytes(content);
+        write(channel, 0, content);
+        MerkleTree tree = new MerkleTree(new SHA256(), 4096, ForkJoinPool.commonPool());
+        long start = System.nanoTime();
+        tree.build(channel);
+        long built = System.nanoTime() - start;
+        start = System.nanoTime();
+        for (int i = 0; i < 100; i++) {
+          write(channel, i * 300000L, pattern(100));
+          tree.update(channel, i * 300000L, 100);
+        }
+        long updated = (System.nanoTime() - start) / 100;
+        System.out.println("Merkle tree built over 32MiB in " + built / 1000000 + "ms, 100 byte edits took "
+            + updated / 1000 + "us");
+      } finally {
+        channel.close();
+      }
+    } finally {
+      Files.delete(file);
+    }
+  }
+}
@@ -0,0 +1,292 @@
+package me.abarrow.hash.sha;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+import me.abarrow.core.CryptoUtils;
+import me.abarrow.hash.Hasher;
+
+/**
+ * KangarooTwelve from RFC 9861, a tree hash built on TurboSHAKE128.
+ * <p>
+ * The message and customization string are cut into 8KiB chunks. Every chunk after the first is hashed on its own to
+ * a 32 byte chaining value, and the first chunk and the chaining values are hashed together at the end. As the chunks
+ * do not depend on each other, long runs of whole chunks given to update are hashed on a fork join pool, and
+ * {@link #hashFile(Path)} maps a file into memory to feed it through the same way. A run is only split up when it
+ * starts on a chunk boundary of the message, which is always the case when every update is a multiple of 8KiB long.
+ */
+public class KangarooTwelve extends Hasher {
+
+  public static final int CHUNK_BYTES = 8192;
+  public static final int CHAINING_BYTES = 32;
+
+  private static final int RATE = 168;
+
+  private static final byte SINGLE_NODE_DOMAIN = 0x07;
+  private static final byte FINAL_NODE_DOMAIN = 0x06;
+  private static final byte LEAF_DOMAIN = 0x0b;
+
+  private static final byte[] FIRST_CHUNK_SUFFIX = new byte[] { 3, 0, 0, 0, 0, 0, 0, 0 };
+  private static final byte[] FINAL_NODE_SUFFIX = new byte[] { (byte) 0xff, (byte) 0xff };
+
+  // the fewest whole chunks worth handing to the pool
+  private static final int PARALLEL_CHUNKS = 4;
+  // the most chunks a task hashes itself rather than splitting
+  private static final int TASK_CHUNKS = 8;
+  // how many chaining values are collected before being absorbed
+  private static final int BATCH_CHUNKS = 1024;
+  private static final long MAP_BYTES = 1L << 30;
+
+  private final byte[] customization;
+  private final int outputBytes;
+  private final ForkJoinPool pool;
+
+  private TurboSHAKE finalNode;
+  private byte[] chainingValues;
+  // whole chunks absorbed so far, the first included
+  private long chunks;
+
+  public KangarooTwelve() {
+    this(new byte[0], 32, ForkJoinPool.commonPool());
+  }
+
+  /**
+   * Without a pool every chunk is hashed on the calling thread.
+   */
+  public KangarooTwelve(byte[] customizationString, int outputSize, ForkJoinPool forkJoinPool) {
+    customization = customizationString.clone();
+    outputBytes = outputSize;
+    pool = forkJoinPool;
+    finalNode = new TurboSHAKE(SHAKE.SHAKE128, FINAL_NODE_DOMAIN, outputSize);
+    chainingValues = new byte[BATCH_CHUNKS * CHAINING_BYTES];
+    reset();
+  }
+
+  /**
+   * Hashes a whole file, mapping it into memory a window at a time.
+   */
+  public byte[] hashFile(Path path) throws IOException {
+    reset();
+    FileChannel channel = FileChannel.open(path, StandardOpenOption.READ);
+    try {
+      long size = channel.size();
+      for (long pos = 0; pos < size; pos += MAP_BYTES) {
+        update(channel.map(MapMode.READ_ONLY, pos, Math.min(MAP_BYTES, size - pos)));
+      }
+    } finally {
+      channel.close();
+    }
+    return digest();
+  }
+
+  /**
+   * The number of whole chunks at the start of len bytes that can be handed to the pool.
+   */
+  private int parallelChunks(int len) {
+    if (pool == null || getPendingLength() != 0 || len < PARALLEL_CHUNKS * CHUNK_BYTES) {
+      return 0;
+    }
+    return len / CHUNK_BYTES;
+  }
+
+  @Override
+  public KangarooTwelve update(byte[] data, int off, int len) {
+    int whole = parallelChunks(len);
+    if (whole > 0) {
+      absorbChunks(ByteBuffer.wrap(data), off, whole);
+      off += whole * CHUNK_BYTES;
+      len -= whole * CHUNK_BYTES;
+    }
+    super.update(data, off, len);
+    return this;
+  }
+
+  @Override
+  public KangarooTwelve update(byte[] data) {
+    return update(data, 0, data.length);
+  }
+
+  @Override
+  public KangarooTwelve update(ByteBuffer data) {
+    // buffers with arrays come back through update(byte[], int, int)
+    if (!data.hasArray()) {
+      int whole = parallelChunks(data.remaining());
+      if (whole > 0) {
+        absorbChunks(data, data.position(), whole);
+        data.position(data.position() + whole * CHUNK_BYTES);
+      }
+    }
+    super.update(data);
+    return this;
+  }
+
+  @Override
+  public void hashBlock(byte[] data, int srcPos) {
+    absorbChunks(ByteBuffer.wrap(data), srcPos, 1);
+  }
+
+  /**
+   * Absorbs count whole chunks of the message starting at the given index of data.
+   */
+  private void absorbChunks(ByteBuffer data, int start, int count) {
+    data = data.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+    if (chunks == 0 && count > 0) {
+      data.limit(start + CHUNK_BYTES);
+      data.position(start);
+      finalNode.update(data).update(FIRST_CHUNK_SUFFIX);
+      data.clear();
+      chunks = 1;
+      start += CHUNK_BYTES;
+      count--;
+    }
+    while (count > 0) {
+      int batch = Math.min(count, BATCH_CHUNKS);
+      if (pool != null && batch >= PARALLEL_CHUNKS) {
+        pool.invoke(new LeafTask(data, start, batch, chainingValues, 0));
+      } else {
+        for (int i = 0; i < batch; i++) {
+          chainingValue(data, start + i * CHUNK_BYTES, CHUNK_BYTES, chainingValues, i * CHAINING_BYTES);
+        }
+      }
+      finalNode.update(chainingValues, 0, batch * CHAINING_BYTES);
+      chunks += batch;
+      start += batch * CHUNK_BYTES;
+      count -= batch;
+    }
+  }
+
+  /**
+   * TurboSHAKE128 of one chunk with the leaf domain byte, read from a little endian buffer.
+   */
+  private static void chainingValue(ByteBuffer data, int start, int len, byte[] out, int outOff) {
+    long[] state = new long[Keccak.STATE_LANES];
+    int end = start + len;
+    int n = start;
+    for (; n + RATE <= end; n += RATE) {
+      for (int i = 0; i < RATE / 8; i++) {
+        state[i] ^= data.getLong(n + i * 8);
+      }
+      Keccak.permute(state, TurboSHAKE.ROUNDS);
+    }
+    byte[] block = new byte[RATE];
+    for (int i = n; i < end; i++) {
+      block[i - n] = data.get(i);
+    }
+    block[end - n] ^= LEAF_DOMAIN;
+    block[RATE - 1] ^= (byte) 0x80;
+    CryptoUtils.xorLongArrayFromBytes(state, 0, block, 0, RATE / 8, true);
+    Keccak.permute(state, TurboSHAKE.ROUNDS);
+    for (int i = 0; i < CHAINING_BYTES / 8; i++) {
+      CryptoUtils.longToBytes(state[i], out, outOff + i * 8, true);
+    }
+    CryptoUtils.fillWithZeroes(state);
+    CryptoUtils.fillWithZeroes(block);
+  }
+
+  /**
+   * Hashes a run of chunks to their chaining values, splitting it in half until the runs are short.
+   */
+  private static final class LeafTask extends RecursiveAction {
+
+    private static final long serialVersionUID = 4925406349815375020L;
+
+    private final ByteBuffer data;
+    private final int start;
+    private final int count;
+    private final byte[] out;
+    private final int outOff;
+
+    LeafTask(ByteBuffer data, int start, int count, byte[] out, int outOff) {
+      this.data = data;
+      this.start = start;
+      this.count = count;
+      this.out = out;
+      this.outOff = outOff;
+    }
+
+    @Override
+    protected void compute() {
+      if (count <= TASK_CHUNKS) {
+        for (int i = 0; i < count; i++) {
+          chainingValue(data, start + i * CHUNK_BYTES, CHUNK_BYTES, out, outOff + i * CHAINING_BYTES);
+        }
+        return;
+      }
+      int half = count / 2;
+      invokeAll(new LeafTask(data, start, half, out, outOff),
+          new LeafTask(data, start + half * CHUNK_BYTES, count - half, out, outOff + half * CHAINING_BYTES));
+    }
+  }
+
+  /**
+   * The big endian bytes of x without leading zeroes, followed by how many there are.
+   */
+  static byte[] lengthEncode(long x) {
+    int n = 0;
+    for (long v = x; v != 0; v >>>= 8) {
+      n++;
+    }
+    byte[] encoded = new byte[n + 1];
+    for (int i = 0; i < n; i++) {
+      encoded[i] = (byte) (x >>> (8 * (n - 1 - i)));
+    }
+    encoded[n] = (byte) n;
+    return encoded;
+  }
+
+  @Override
+  public byte[] computeHash(byte[] remainder, int remainderLength) {
+    byte[] encoded = lengthEncode(customization.length);
+    byte[] tail = new byte[remainderLength + customization.length + encoded.length];
+    System.arraycopy(remainder, 0, tail, 0, remainderLength);
+    System.arraycopy(customization, 0, tail, remainderLength, customization.length);
+    System.arraycopy(encoded, 0, tail, remainderLength + customization.length, encoded.length);
+
+    byte[] result;
+    if (chunks == 0 && tail.length <= CHUNK_BYTES) {
+      result = new TurboSHAKE(SHAKE.SHAKE128, SINGLE_NODE_DOMAIN, outputBytes).update(tail).digest();
+    } else {
+      ByteBuffer wrapped = ByteBuffer.wrap(tail).order(ByteOrder.LITTLE_ENDIAN);
+      int whole = tail.length / CHUNK_BYTES;
+      absorbChunks(wrapped, 0, whole);
+      int rest = tail.length - whole * CHUNK_BYTES;
+      if (rest > 0) {
+        chainingValue(wrapped, whole * CHUNK_BYTES, rest, chainingValues, 0);
+        finalNode.update(chainingValues, 0, CHAINING_BYTES);
+        chunks++;
+      }
+      finalNode.update(lengthEncode(chunks - 1)).update(FINAL_NODE_SUFFIX);
+      result = finalNode.digest();
+    }
+    CryptoUtils.fillWithZeroes(tail);
+    reset();
+    return result;
+  }
+
+  @Override
+  public void reset() {
+    super.reset();
+    if (finalNode != null) {
+      finalNode.reset();
+    }
+    CryptoUtils.fillWithZeroes(chainingValues);
+    chunks = 0;
+  }
+
+  @Override
+  public int getBlockBytes() {
+    return CHUNK_BYTES;
+  }
+
+  @Override
+  public int getHashByteLength() {
+    return outputBytes;
+  }
+}
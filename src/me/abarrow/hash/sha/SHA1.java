@@ -10,46 +10,261 @@ public class SHA1 extends SHA32Hash {
   
   private static final int[] CONSTANTS = new int[] { 0x5a827999, 0x6ed9eba1, 0x8f1bbcdc, 0xca62c1d6 };
   
+  /**
+   * Unrolled, with the 80 word message schedule kept as a rolling window of 16 locals.
+   */
+  @Override
   protected void innerHashBlock(byte[] bytes, int start) {
     int a = hash[0];
     int b = hash[1];
     int c = hash[2];
     int d = hash[3];
     int e = hash[4];
-    int T;
-    for (int t = 0; t < 80; t++) {
-      if (t < 16) {
-        W[t] = CryptoUtils.intFromBytes(bytes, start + t * 4);
-      } else {
-        W[t] = CryptoUtils.rotateIntLeft(W[t - 3] ^ W[t - 8] ^ W[t - 14] ^ W[t - 16], 1);
-      }
-      T = CryptoUtils.rotateIntLeft(a, 5) + SHA1Func(b, c, d, t) + e + CONSTANTS[t / 20] + W[t];
-      e = d;
-      d = c;
-      c = CryptoUtils.rotateIntLeft(b, 30);
-      b = a;
-      a = T;
-    }
-
-    hash[0] = a + hash[0];
-    hash[1] = b + hash[1];
-    hash[2] = c + hash[2];
-    hash[3] = d + hash[3];
-    hash[4] = e + hash[4];
-  }
-  
-  private int SHA1Func(int x, int y, int z, int index) {
-    if (index < 20) {
-      return CryptoUtils.intCh(x, y, z);
-    } else if (index < 40) {
-      return CryptoUtils.intParity(x, y, z);
-    } else if (index < 60) {
-      return CryptoUtils.intMaj(x, y, z);
-    } else if (index < 80) {
-      return CryptoUtils.intParity(x, y, z);
-    } else {
-      throw new IllegalArgumentException("SHA-1's sequence of logical functions only has 80 members.");
-    }
+    int w0 = CryptoUtils.intFromBytes(bytes, start);
+    int w1 = CryptoUtils.intFromBytes(bytes, start + 4);
+    int w2 = CryptoUtils.intFromBytes(bytes, start + 8);
+    int w3 = CryptoUtils.intFromBytes(bytes, start + 12);
+    int w4 = CryptoUtils.intFromBytes(bytes, start + 16);
+    int w5 = CryptoUtils.intFromBytes(bytes, start + 20);
+    int w6 = CryptoUtils.intFromBytes(bytes, start + 24);
+    int w7 = CryptoUtils.intFromBytes(bytes, start + 28);
+    int w8 = CryptoUtils.intFromBytes(bytes, start + 32);
+    int w9 = CryptoUtils.intFromBytes(bytes, start + 36);
+    int w10 = CryptoUtils.intFromBytes(bytes, start + 40);
+    int w11 = CryptoUtils.intFromBytes(bytes, start + 44);
+    int w12 = CryptoUtils.intFromBytes(bytes, start + 48);
+    int w13 = CryptoUtils.intFromBytes(bytes, start + 52);
+    int w14 = CryptoUtils.intFromBytes(bytes, start + 56);
+    int w15 = CryptoUtils.intFromBytes(bytes, start + 60);
+    e += Integer.rotateLeft(a, 5) + (d ^ (b & (c ^ d))) + CONSTANTS[0] + w0;
+    b = Integer.rotateLeft(b, 30);
+    d += Integer.rotateLeft(e, 5) + (c ^ (a & (b ^ c))) + CONSTANTS[0] + w1;
+    a = Integer.rotateLeft(a, 30);
+    c += Integer.rotateLeft(d, 5) + (b ^ (e & (a ^ b))) + CONSTANTS[0] + w2;
+    e = Integer.rotateLeft(e, 30);
+    b += Integer.rotateLeft(c, 5) + (a ^ (d & (e ^ a))) + CONSTANTS[0] + w3;
+    d = Integer.rotateLeft(d, 30);
+    a += Integer.rotateLeft(b, 5) + (e ^ (c & (d ^ e))) + CONSTANTS[0] + w4;
+    c = Integer.rotateLeft(c, 30);
+    e += Integer.rotateLeft(a, 5) + (d ^ (b & (c ^ d))) + CONSTANTS[0] + w5;
+    b = Integer.rotateLeft(b, 30);
+    d += Integer.rotateLeft(e, 5) + (c ^ (a & (b ^ c))) + CONSTANTS[0] + w6;
+    a = Integer.rotateLeft(a, 30);
+    c += Integer.rotateLeft(d, 5) + (b ^ (e & (a ^ b))) + CONSTANTS[0] + w7;
+    e = Integer.rotateLeft(e, 30);
+    b += Integer.rotateLeft(c, 5) + (a ^ (d & (e ^ a))) + CONSTANTS[0] + w8;
+    d = Integer.rotateLeft(d, 30);
+    a += Integer.rotateLeft(b, 5) + (e ^ (c & (d ^ e))) + CONSTANTS[0] + w9;
+    c = Integer.rotateLeft(c, 30);
+    e += Integer.rotateLeft(a, 5) + (d ^ (b & (c ^ d))) + CONSTANTS[0] + w10;
+    b = Integer.rotateLeft(b, 30);
+    d += Integer.rotateLeft(e, 5) + (c ^ (a & (b ^ c))) + CONSTANTS[0] + w11;
+    a = Integer.rotateLeft(a, 30);
+    c += Integer.rotateLeft(d, 5) + (b ^ (e & (a ^ b))) + CONSTANTS[0] + w12;
+    e = Integer.rotateLeft(e, 30);
+    b += Integer.rotateLeft(c, 5) + (a ^ (d & (e ^ a))) + CONSTANTS[0] + w13;
+    d = Integer.rotateLeft(d, 30);
+    a += Integer.rotateLeft(b, 5) + (e ^ (c & (d ^ e))) + CONSTANTS[0] + w14;
+    c = Integer.rotateLeft(c, 30);
+    e += Integer.rotateLeft(a, 5) + (d ^ (b & (c ^ d))) + CONSTANTS[0] + w15;
+    b = Integer.rotateLeft(b, 30);
+    w0 = Integer.rotateLeft(w13 ^ w8 ^ w2 ^ w0, 1);
+    d += Integer.rotateLeft(e, 5) + (c ^ (a & (b ^ c))) + CONSTANTS[0] + w0;
+    a = Integer.rotateLeft(a, 30);
+    w1 = Integer.rotateLeft(w14 ^ w9 ^ w3 ^ w1, 1);
+    c += Integer.rotateLeft(d, 5) + (b ^ (e & (a ^ b))) + CONSTANTS[0] + w1;
+    e = Integer.rotateLeft(e, 30);
+    w2 = Integer.rotateLeft(w15 ^ w10 ^ w4 ^ w2, 1);
+    b += Integer.rotateLeft(c, 5) + (a ^ (d & (e ^ a))) + CONSTANTS[0] + w2;
+    d = Integer.rotateLeft(d, 30);
+    w3 = Integer.rotateLeft(w0 ^ w11 ^ w5 ^ w3, 1);
+    a += Integer.rotateLeft(b, 5) + (e ^ (c & (d ^ e))) + CONSTANTS[0] + w3;
+    c = Integer.rotateLeft(c, 30);
+    w4 = Integer.rotateLeft(w1 ^ w12 ^ w6 ^ w4, 1);
+    e += Integer.rotateLeft(a, 5) + (b ^ c ^ d) + CONSTANTS[1] + w4;
+    b = Integer.rotateLeft(b, 30);
+    w5 = Integer.rotateLeft(w2 ^ w13 ^ w7 ^ w5, 1);
+    d += Integer.rotateLeft(e, 5) + (a ^ b ^ c) + CONSTANTS[1] + w5;
+    a = Integer.rotateLeft(a, 30);
+    w6 = Integer.rotateLeft(w3 ^ w14 ^ w8 ^ w6, 1);
+    c += Integer.rotateLeft(d, 5) + (e ^ a ^ b) + CONSTANTS[1] + w6;
+    e = Integer.rotateLeft(e, 30);
+    w7 = Integer.rotateLeft(w4 ^ w15 ^ w9 ^ w7, 1);
+    b += Integer.rotateLeft(c, 5) + (d ^ e ^ a) + CONSTANTS[1] + w7;
+    d = Integer.rotateLeft(d, 30);
+    w8 = Integer.rotateLeft(w5 ^ w0 ^ w10 ^ w8, 1);
+    a += Integer.rotateLeft(b, 5) + (c ^ d ^ e) + CONSTANTS[1] + w8;
+    c = Integer.rotateLeft(c, 30);
+    w9 = Integer.rotateLeft(w6 ^ w1 ^ w11 ^ w9, 1);
+    e += Integer.rotateLeft(a, 5) + (b ^ c ^ d) + CONSTANTS[1] + w9;
+    b = Integer.rotateLeft(b, 30);
+    w10 = Integer.rotateLeft(w7 ^ w2 ^ w12 ^ w10, 1);
+    d += Integer.rotateLeft(e, 5) + (a ^ b ^ c) + CONSTANTS[1] + w10;
+    a = Integer.rotateLeft(a, 30);
+    w11 = Integer.rotateLeft(w8 ^ w3 ^ w13 ^ w11, 1);
+    c += Integer.rotateLeft(d, 5) + (e ^ a ^ b) + CONSTANTS[1] + w11;
+    e = Integer.rotateLeft(e, 30);
+    w12 = Integer.rotateLeft(w9 ^ w4 ^ w14 ^ w12, 1);
+    b += Integer.rotateLeft(c, 5) + (d ^ e ^ a) + CONSTANTS[1] + w12;
+    d = Integer.rotateLeft(d, 30);
+    w13 = Integer.rotateLeft(w10 ^ w5 ^ w15 ^ w13, 1);
+    a += Integer.rotateLeft(b, 5) + (c ^ d ^ e) + CONSTANTS[1] + w13;
+    c = Integer.rotateLeft(c, 30);
+    w14 = Integer.rotateLeft(w11 ^ w6 ^ w0 ^ w14, 1);
+    e += Integer.rotateLeft(a, 5) + (b ^ c ^ d) + CONSTANTS[1] + w14;
+    b = Integer.rotateLeft(b, 30);
+    w15 = Integer.rotateLeft(w12 ^ w7 ^ w1 ^ w15, 1);
+    d += Integer.rotateLeft(e, 5) + (a ^ b ^ c) + CONSTANTS[1] + w15;
+    a = Integer.rotateLeft(a, 30);
+    w0 = Integer.rotateLeft(w13 ^ w8 ^ w2 ^ w0, 1);
+    c += Integer.rotateLeft(d, 5) + (e ^ a ^ b) + CONSTANTS[1] + w0;
+    e = Integer.rotateLeft(e, 30);
+    w1 = Integer.rotateLeft(w14 ^ w9 ^ w3 ^ w1, 1);
+    b += Integer.rotateLeft(c, 5) + (d ^ e ^ a) + CONSTANTS[1] + w1;
+    d = Integer.rotateLeft(d, 30);
+    w2 = Integer.rotateLeft(w15 ^ w10 ^ w4 ^ w2, 1);
+    a += Integer.rotateLeft(b, 5) + (c ^ d ^ e) + CONSTANTS[1] + w2;
+    c = Integer.rotateLeft(c, 30);
+    w3 = Integer.rotateLeft(w0 ^ w11 ^ w5 ^ w3, 1);
+    e += Integer.rotateLeft(a, 5) + (b ^ c ^ d) + CONSTANTS[1] + w3;
+    b = Integer.rotateLeft(b, 30);
+    w4 = Integer.rotateLeft(w1 ^ w12 ^ w6 ^ w4, 1);
+    d += Integer.rotateLeft(e, 5) + (a ^ b ^ c) + CONSTANTS[1] + w4;
+    a = Integer.rotateLeft(a, 30);
+    w5 = Integer.rotateLeft(w2 ^ w13 ^ w7 ^ w5, 1);
+    c += Integer.rotateLeft(d, 5) + (e ^ a ^ b) + CONSTANTS[1] + w5;
+    e = Integer.rotateLeft(e, 30);
+    w6 = Integer.rotateLeft(w3 ^ w14 ^ w8 ^ w6, 1);
+    b += Integer.rotateLeft(c, 5) + (d ^ e ^ a) + CONSTANTS[1] + w6;
+    d = Integer.rotateLeft(d, 30);
+    w7 = Integer.rotateLeft(w4 ^ w15 ^ w9 ^ w7, 1);
+    a += Integer.rotateLeft(b, 5) + (c ^ d ^ e) + CONSTANTS[1] + w7;
+    c = Integer.rotateLeft(c, 30);
+    w8 = Integer.rotateLeft(w5 ^ w0 ^ w10 ^ w8, 1);
+    e += Integer.rotateLeft(a, 5) + ((b & c) | (d & (b | c))) + CONSTANTS[2] + w8;
+    b = Integer.rotateLeft(b, 30);
+    w9 = Integer.rotateLeft(w6 ^ w1 ^ w11 ^ w9, 1);
+    d += Integer.rotateLeft(e, 5) + ((a & b) | (c & (a | b))) + CONSTANTS[2] + w9;
+    a = Integer.rotateLeft(a, 30);
+    w10 = Integer.rotateLeft(w7 ^ w2 ^ w12 ^ w10, 1);
+    c += Integer.rotateLeft(d, 5) + ((e & a) | (b & (e | a))) + CONSTANTS[2] + w10;
+    e = Integer.rotateLeft(e, 30);
+    w11 = Integer.rotateLeft(w8 ^ w3 ^ w13 ^ w11, 1);
+    b += Integer.rotateLeft(c, 5) + ((d & e) | (a & (d | e))) + CONSTANTS[2] + w11;
+    d = Integer.rotateLeft(d, 30);
+    w12 = Integer.rotateLeft(w9 ^ w4 ^ w14 ^ w12, 1);
+    a += Integer.rotateLeft(b, 5) + ((c & d) | (e & (c | d))) + CONSTANTS[2] + w12;
+    c = Integer.rotateLeft(c, 30);
+    w13 = Integer.rotateLeft(w10 ^ w5 ^ w15 ^ w13, 1);
+    e += Integer.rotateLeft(a, 5) + ((b & c) | (d & (b | c))) + CONSTANTS[2] + w13;
+    b = Integer.rotateLeft(b, 30);
+    w14 = Integer.rotateLeft(w11 ^ w6 ^ w0 ^ w14, 1);
+    d += Integer.rotateLeft(e, 5) + ((a & b) | (c & (a | b))) + CONSTANTS[2] + w14;
+    a = Integer.rotateLeft(a, 30);
+    w15 = Integer.rotateLeft(w12 ^ w7 ^ w1 ^ w15, 1);
+    c += Integer.rotateLeft(d, 5) + ((e & a) | (b & (e | a))) + CONSTANTS[2] + w15;
+    e = Integer.rotateLeft(e, 30);
+    w0 = Integer.rotateLeft(w13 ^ w8 ^ w2 ^ w0, 1);
+    b += Integer.rotateLeft(c, 5) + ((d & e) | (a & (d | e))) + CONSTANTS[2] + w0;
+    d = Integer.rotateLeft(d, 30);
+    w1 = Integer.rotateLeft(w14 ^ w9 ^ w3 ^ w1, 1);
+    a += Integer.rotateLeft(b, 5) + ((c & d) | (e & (c | d))) + CONSTANTS[2] + w1;
+    c = Integer.rotateLeft(c, 30);
+    w2 = Integer.rotateLeft(w15 ^ w10 ^ w4 ^ w2, 1);
+    e += Integer.rotateLeft(a, 5) + ((b & c) | (d & (b | c))) + CONSTANTS[2] + w2;
+    b = Integer.rotateLeft(b, 30);
+    w3 = Integer.rotateLeft(w0 ^ w11 ^ w5 ^ w3, 1);
+    d += Integer.rotateLeft(e, 5) + ((a & b) | (c & (a | b))) + CONSTANTS[2] + w3;
+    a = Integer.rotateLeft(a, 30);
+    w4 = Integer.rotateLeft(w1 ^ w12 ^ w6 ^ w4, 1);
+    c += Integer.rotateLeft(d, 5) + ((e & a) | (b & (e | a))) + CONSTANTS[2] + w4;
+    e = Integer.rotateLeft(e, 30);
+    w5 = Integer.rotateLeft(w2 ^ w13 ^ w7 ^ w5, 1);
+    b += Integer.rotateLeft(c, 5) + ((d & e) | (a & (d | e))) + CONSTANTS[2] + w5;
+    d = Integer.rotateLeft(d, 30);
+    w6 = Integer.rotateLeft(w3 ^ w14 ^ w8 ^ w6, 1);
+    a += Integer.rotateLeft(b, 5) + ((c & d) | (e & (c | d))) + CONSTANTS[2] + w6;
+    c = Integer.rotateLeft(c, 30);
+    w7 = Integer.rotateLeft(w4 ^ w15 ^ w9 ^ w7, 1);
+    e += Integer.rotateLeft(a, 5) + ((b & c) | (d & (b | c))) + CONSTANTS[2] + w7;
+    b = Integer.rotateLeft(b, 30);
+    w8 = Integer.rotateLeft(w5 ^ w0 ^ w10 ^ w8, 1);
+    d += Integer.rotateLeft(e, 5) + ((a & b) | (c & (a | b))) + CONSTANTS[2] + w8;
+    a = Integer.rotateLeft(a, 30);
+    w9 = Integer.rotateLeft(w6 ^ w1 ^ w11 ^ w9, 1);
+    c += Integer.rotateLeft(d, 5) + ((e & a) | (b & (e | a))) + CONSTANTS[2] + w9;
+    e = Integer.rotateLeft(e, 30);
+    w10 = Integer.rotateLeft(w7 ^ w2 ^ w12 ^ w10, 1);
+    b += Integer.rotateLeft(c, 5) + ((d & e) | (a & (d | e))) + CONSTANTS[2] + w10;
+    d = Integer.rotateLeft(d, 30);
+    w11 = Integer.rotateLeft(w8 ^ w3 ^ w13 ^ w11, 1);
+    a += Integer.rotateLeft(b, 5) + ((c & d) | (e & (c | d))) + CONSTANTS[2] + w11;
+    c = Integer.rotateLeft(c, 30);
+    w12 = Integer.rotateLeft(w9 ^ w4 ^ w14 ^ w12, 1);
+    e += Integer.rotateLeft(a, 5) + (b ^ c ^ d) + CONSTANTS[3] + w12;
+    b = Integer.rotateLeft(b, 30);
+    w13 = Integer.rotateLeft(w10 ^ w5 ^ w15 ^ w13, 1);
+    d += Integer.rotateLeft(e, 5) + (a ^ b ^ c) + CONSTANTS[3] + w13;
+    a = Integer.rotateLeft(a, 30);
+    w14 = Integer.rotateLeft(w11 ^ w6 ^ w0 ^ w14, 1);
+    c += Integer.rotateLeft(d, 5) + (e ^ a ^ b) + CONSTANTS[3] + w14;
+    e = Integer.rotateLeft(e, 30);
+    w15 = Integer.rotateLeft(w12 ^ w7 ^ w1 ^ w15, 1);
+    b += Integer.rotateLeft(c, 5) + (d ^ e ^ a) + CONSTANTS[3] + w15;
+    d = Integer.rotateLeft(d, 30);
+    w0 = Integer.rotateLeft(w13 ^ w8 ^ w2 ^ w0, 1);
+    a += Integer.rotateLeft(b, 5) + (c ^ d ^ e) + CONSTANTS[3] + w0;
+    c = Integer.rotateLeft(c, 30);
+    w1 = Integer.rotateLeft(w14 ^ w9 ^ w3 ^ w1, 1);
+    e += Integer.rotateLeft(a, 5) + (b ^ c ^ d) + CONSTANTS[3] + w1;
+    b = Integer.rotateLeft(b, 30);
+    w2 = Integer.rotateLeft(w15 ^ w10 ^ w4 ^ w2, 1);
+    d += Integer.rotateLeft(e, 5) + (a ^ b ^ c) + CONSTANTS[3] + w2;
+    a = Integer.rotateLeft(a, 30);
+    w3 = Integer.rotateLeft(w0 ^ w11 ^ w5 ^ w3, 1);
+    c += Integer.rotateLeft(d, 5) + (e ^ a ^ b) + CONSTANTS[3] + w3;
+    e = Integer.rotateLeft(e, 30);
+    w4 = Integer.rotateLeft(w1 ^ w12 ^ w6 ^ w4, 1);
+    b += Integer.rotateLeft(c, 5) + (d ^ e ^ a) + CONSTANTS[3] + w4;
+    d = Integer.rotateLeft(d, 30);
+    w5 = Integer.rotateLeft(w2 ^ w13 ^ w7 ^ w5, 1);
+    a += Integer.rotateLeft(b, 5) + (c ^ d ^ e) + CONSTANTS[3] + w5;
+    c = Integer.rotateLeft(c, 30);
+    w6 = Integer.rotateLeft(w3 ^ w14 ^ w8 ^ w6, 1);
+    e += Integer.rotateLeft(a, 5) + (b ^ c ^ d) + CONSTANTS[3] + w6;
+    b = Integer.rotateLeft(b, 30);
+    w7 = Integer.rotateLeft(w4 ^ w15 ^ w9 ^ w7, 1);
+    d += Integer.rotateLeft(e, 5) + (a ^ b ^ c) + CONSTANTS[3] + w7;
+    a = Integer.rotateLeft(a, 30);
+    w8 = Integer.rotateLeft(w5 ^ w0 ^ w10 ^ w8, 1);
+    c += Integer.rotateLeft(d, 5) + (e ^ a ^ b) + CONSTANTS[3] + w8;
+    e = Integer.rotateLeft(e, 30);
+    w9 = Integer.rotateLeft(w6 ^ w1 ^ w11 ^ w9, 1);
+    b += Integer.rotateLeft(c, 5) + (d ^ e ^ a) + CONSTANTS[3] + w9;
+    d = Integer.rotateLeft(d, 30);
+    w10 = Integer.rotateLeft(w7 ^ w2 ^ w12 ^ w10, 1);
+    a += Integer.rotateLeft(b, 5) + (c ^ d ^ e) + CONSTANTS[3] + w10;
+    c = Integer.rotateLeft(c, 30);
+    w11 = Integer.rotateLeft(w8 ^ w3 ^ w13 ^ w11, 1);
+    e += Integer.rotateLeft(a, 5) + (b ^ c ^ d) + CONSTANTS[3] + w11;
+    b = Integer.rotateLeft(b, 30);
+    w12 = Integer.rotateLeft(w9 ^ w4 ^ w14 ^ w12, 1);
+    d += Integer.rotateLeft(e, 5) + (a ^ b ^ c) + CONSTANTS[3] + w12;
+    a = Integer.rotateLeft(a, 30);
+    w13 = Integer.rotateLeft(w10 ^ w5 ^ w15 ^ w13, 1);
+    c += Integer.rotateLeft(d, 5) + (e ^ a ^ b) + CONSTANTS[3] + w13;
+    e = Integer.rotateLeft(e, 30);
+    w14 = Integer.rotateLeft(w11 ^ w6 ^ w0 ^ w14, 1);
+    b += Integer.rotateLeft(c, 5) + (d ^ e ^ a) + CONSTANTS[3] + w14;
+    d = Integer.rotateLeft(d, 30);
+    w15 = Integer.rotateLeft(w12 ^ w7 ^ w1 ^ w15, 1);
+    a += Integer.rotateLeft(b, 5) + (c ^ d ^ e) + CONSTANTS[3] + w15;
+    c = Integer.rotateLeft(c, 30);
+    hash[0] += a;
+    hash[1] += b;
+    hash[2] += c;
+    hash[3] += d;
+    hash[4] += e;
   }
 
   @Override
@@ -67,9 +282,4 @@ public class SHA1 extends SHA32Hash {
     return SHA1.INITIAL_HASHES;
   }
 
-  @Override
-  protected int getWLength() {
-    return 80;
-  }
-
 }
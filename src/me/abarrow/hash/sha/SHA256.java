@@ -4,7 +4,7 @@ import me.abarrow.core.CryptoUtils;
 
 public class SHA256 extends SHA32Hash {
   
-  private static final int[] CONSTANTS = new int[]{
+  static final int[] CONSTANTS = new int[]{
     0x428a2f98, 0x71374491, 0xb5c0fbcf, 0xe9b5dba5, 0x3956c25b, 0x59f111f1, 0x923f82a4, 0xab1c5ed5,
     0xd807aa98, 0x12835b01, 0x243185be, 0x550c7dc3, 0x72be5d74, 0x80deb1fe, 0x9bdc06a7, 0xc19bf174,
     0xe49b69c1, 0xefbe4786, 0x0fc19dc6, 0x240ca1cc, 0x2de92c6f, 0x4a7484aa, 0x5cb0a9dc, 0x76f988da,
@@ -15,7 +15,7 @@ public class SHA256 extends SHA32Hash {
     0x748f82ee, 0x78a5636f, 0x84c87814, 0x8cc70208, 0x90befffa, 0xa4506ceb, 0xbef9a3f7, 0xc67178f2
   };
   
-  private static final int[] INITIAL_HASHES = new int[]{
+  static final int[] INITIAL_HASHES = new int[]{
     0x6a09e667, 0xbb67ae85, 0x3c6ef372, 0xa54ff53a, 0x510e527f, 0x9b05688c, 0x1f83d9ab, 0x5be0cd19
   };
     
@@ -23,40 +23,163 @@ public class SHA256 extends SHA32Hash {
   
   @Override
   protected void innerHashBlock(byte[] data, int srcPos) {
-    int a = hash[0];
-    int b = hash[1];
-    int c = hash[2];
-    int d = hash[3];
-    int e = hash[4];
-    int f = hash[5];
-    int g = hash[6];
-    int h = hash[7];
-    for (int t = 0; t < 64; t++) {
-      if (t < 16) {
-        W[t] = CryptoUtils.intFromBytes(data, srcPos + t * 4);
-      } else {
-        W[t] = CryptoUtils.lowerSigmaOneTwoFiftySix(W[t -2]) + W[t- 7] +
-            CryptoUtils.lowerSigmaZeroTwoFiftySix(W[t - 15]) + W[t -16];
+    compressBlock(hash, 0, data, srcPos);
+  }
+
+  /**
+   * Compresses one block into the 8 words of state starting at stateOff. The rounds are unrolled so that the working
+   * variables trade roles instead of moving, and the message schedule is a window of 16 locals.
+   */
+  static void compressBlock(int[] state, int stateOff, byte[] data, int srcPos) {
+    int a = state[stateOff];
+    int b = state[stateOff + 1];
+    int c = state[stateOff + 2];
+    int d = state[stateOff + 3];
+    int e = state[stateOff + 4];
+    int f = state[stateOff + 5];
+    int g = state[stateOff + 6];
+    int h = state[stateOff + 7];
+    int w0 = CryptoUtils.intFromBytes(data, srcPos);
+    int w1 = CryptoUtils.intFromBytes(data, srcPos + 4);
+    int w2 = CryptoUtils.intFromBytes(data, srcPos + 8);
+    int w3 = CryptoUtils.intFromBytes(data, srcPos + 12);
+    int w4 = CryptoUtils.intFromBytes(data, srcPos + 16);
+    int w5 = CryptoUtils.intFromBytes(data, srcPos + 20);
+    int w6 = CryptoUtils.intFromBytes(data, srcPos + 24);
+    int w7 = CryptoUtils.intFromBytes(data, srcPos + 28);
+    int w8 = CryptoUtils.intFromBytes(data, srcPos + 32);
+    int w9 = CryptoUtils.intFromBytes(data, srcPos + 36);
+    int w10 = CryptoUtils.intFromBytes(data, srcPos + 40);
+    int w11 = CryptoUtils.intFromBytes(data, srcPos + 44);
+    int w12 = CryptoUtils.intFromBytes(data, srcPos + 48);
+    int w13 = CryptoUtils.intFromBytes(data, srcPos + 52);
+    int w14 = CryptoUtils.intFromBytes(data, srcPos + 56);
+    int w15 = CryptoUtils.intFromBytes(data, srcPos + 60);
+    // fully unrolled the method is too long for the JIT to compile, so 16 rounds at a time
+    for (int t = 0; t < 64; t += 16) {
+      if (t > 0) {
+        w0 += (Integer.rotateRight(w1, 7) ^ Integer.rotateRight(w1, 18) ^ (w1 >>> 3)) + w9
+            + (Integer.rotateRight(w14, 17) ^ Integer.rotateRight(w14, 19) ^ (w14 >>> 10));
+        w1 += (Integer.rotateRight(w2, 7) ^ Integer.rotateRight(w2, 18) ^ (w2 >>> 3)) + w10
+            + (Integer.rotateRight(w15, 17) ^ Integer.rotateRight(w15, 19) ^ (w15 >>> 10));
+        w2 += (Integer.rotateRight(w3, 7) ^ Integer.rotateRight(w3, 18) ^ (w3 >>> 3)) + w11
+            + (Integer.rotateRight(w0, 17) ^ Integer.rotateRight(w0, 19) ^ (w0 >>> 10));
+        w3 += (Integer.rotateRight(w4, 7) ^ Integer.rotateRight(w4, 18) ^ (w4 >>> 3)) + w12
+            + (Integer.rotateRight(w1, 17) ^ Integer.rotateRight(w1, 19) ^ (w1 >>> 10));
+        w4 += (Integer.rotateRight(w5, 7) ^ Integer.rotateRight(w5, 18) ^ (w5 >>> 3)) + w13
+            + (Integer.rotateRight(w2, 17) ^ Integer.rotateRight(w2, 19) ^ (w2 >>> 10));
+        w5 += (Integer.rotateRight(w6, 7) ^ Integer.rotateRight(w6, 18) ^ (w6 >>> 3)) + w14
+            + (Integer.rotateRight(w3, 17) ^ Integer.rotateRight(w3, 19) ^ (w3 >>> 10));
+        w6 += (Integer.rotateRight(w7, 7) ^ Integer.rotateRight(w7, 18) ^ (w7 >>> 3)) + w15
+            + (Integer.rotateRight(w4, 17) ^ Integer.rotateRight(w4, 19) ^ (w4 >>> 10));
+        w7 += (Integer.rotateRight(w8, 7) ^ Integer.rotateRight(w8, 18) ^ (w8 >>> 3)) + w0
+            + (Integer.rotateRight(w5, 17) ^ Integer.rotateRight(w5, 19) ^ (w5 >>> 10));
+        w8 += (Integer.rotateRight(w9, 7) ^ Integer.rotateRight(w9, 18) ^ (w9 >>> 3)) + w1
+            + (Integer.rotateRight(w6, 17) ^ Integer.rotateRight(w6, 19) ^ (w6 >>> 10));
+        w9 += (Integer.rotateRight(w10, 7) ^ Integer.rotateRight(w10, 18) ^ (w10 >>> 3)) + w2
+            + (Integer.rotateRight(w7, 17) ^ Integer.rotateRight(w7, 19) ^ (w7 >>> 10));
+        w10 += (Integer.rotateRight(w11, 7) ^ Integer.rotateRight(w11, 18) ^ (w11 >>> 3)) + w3
+            + (Integer.rotateRight(w8, 17) ^ Integer.rotateRight(w8, 19) ^ (w8 >>> 10));
+        w11 += (Integer.rotateRight(w12, 7) ^ Integer.rotateRight(w12, 18) ^ (w12 >>> 3)) + w4
+            + (Integer.rotateRight(w9, 17) ^ Integer.rotateRight(w9, 19) ^ (w9 >>> 10));
+        w12 += (Integer.rotateRight(w13, 7) ^ Integer.rotateRight(w13, 18) ^ (w13 >>> 3)) + w5
+            + (Integer.rotateRight(w10, 17) ^ Integer.rotateRight(w10, 19) ^ (w10 >>> 10));
+        w13 += (Integer.rotateRight(w14, 7) ^ Integer.rotateRight(w14, 18) ^ (w14 >>> 3)) + w6
+            + (Integer.rotateRight(w11, 17) ^ Integer.rotateRight(w11, 19) ^ (w11 >>> 10));
+        w14 += (Integer.rotateRight(w15, 7) ^ Integer.rotateRight(w15, 18) ^ (w15 >>> 3)) + w7
+            + (Integer.rotateRight(w12, 17) ^ Integer.rotateRight(w12, 19) ^ (w12 >>> 10));
+        w15 += (Integer.rotateRight(w0, 7) ^ Integer.rotateRight(w0, 18) ^ (w0 >>> 3)) + w8
+            + (Integer.rotateRight(w13, 17) ^ Integer.rotateRight(w13, 19) ^ (w13 >>> 10));
       }
-      int T1 = h + CryptoUtils.upperSigmaOneTwoFiftySix(e) + CryptoUtils.intCh(e, f, g) + SHA256.CONSTANTS[t] + W[t];
-      int T2 = CryptoUtils.upperSigmaZeroTwoFiftySix(a) + CryptoUtils.intMaj(a, b, c);
-      h = g;
-      g = f;
-      f = e;
-      e = d + T1;
-      d = c;
-      c = b;
-      b = a;
-      a = T1 + T2;
+      h += (Integer.rotateRight(e, 6) ^ Integer.rotateRight(e, 11) ^ Integer.rotateRight(e, 25))
+          + (g ^ (e & (f ^ g))) + CONSTANTS[t] + w0;
+      d += h;
+      h += (Integer.rotateRight(a, 2) ^ Integer.rotateRight(a, 13) ^ Integer.rotateRight(a, 22))
+          + ((a & b) | (c & (a | b)));
+      g += (Integer.rotateRight(d, 6) ^ Integer.rotateRight(d, 11) ^ Integer.rotateRight(d, 25))
+          + (f ^ (d & (e ^ f))) + CONSTANTS[t + 1] + w1;
+      c += g;
+      g += (Integer.rotateRight(h, 2) ^ Integer.rotateRight(h, 13) ^ Integer.rotateRight(h, 22))
+          + ((h & a) | (b & (h | a)));
+      f += (Integer.rotateRight(c, 6) ^ Integer.rotateRight(c, 11) ^ Integer.rotateRight(c, 25))
+          + (e ^ (c & (d ^ e))) + CONSTANTS[t + 2] + w2;
+      b += f;
+      f += (Integer.rotateRight(g, 2) ^ Integer.rotateRight(g, 13) ^ Integer.rotateRight(g, 22))
+          + ((g & h) | (a & (g | h)));
+      e += (Integer.rotateRight(b, 6) ^ Integer.rotateRight(b, 11) ^ Integer.rotateRight(b, 25))
+          + (d ^ (b & (c ^ d))) + CONSTANTS[t + 3] + w3;
+      a += e;
+      e += (Integer.rotateRight(f, 2) ^ Integer.rotateRight(f, 13) ^ Integer.rotateRight(f, 22))
+          + ((f & g) | (h & (f | g)));
+      d += (Integer.rotateRight(a, 6) ^ Integer.rotateRight(a, 11) ^ Integer.rotateRight(a, 25))
+          + (c ^ (a & (b ^ c))) + CONSTANTS[t + 4] + w4;
+      h += d;
+      d += (Integer.rotateRight(e, 2) ^ Integer.rotateRight(e, 13) ^ Integer.rotateRight(e, 22))
+          + ((e & f) | (g & (e | f)));
+      c += (Integer.rotateRight(h, 6) ^ Integer.rotateRight(h, 11) ^ Integer.rotateRight(h, 25))
+          + (b ^ (h & (a ^ b))) + CONSTANTS[t + 5] + w5;
+      g += c;
+      c += (Integer.rotateRight(d, 2) ^ Integer.rotateRight(d, 13) ^ Integer.rotateRight(d, 22))
+          + ((d & e) | (f & (d | e)));
+      b += (Integer.rotateRight(g, 6) ^ Integer.rotateRight(g, 11) ^ Integer.rotateRight(g, 25))
+          + (a ^ (g & (h ^ a))) + CONSTANTS[t + 6] + w6;
+      f += b;
+      b += (Integer.rotateRight(c, 2) ^ Integer.rotateRight(c, 13) ^ Integer.rotateRight(c, 22))
+          + ((c & d) | (e & (c | d)));
+      a += (Integer.rotateRight(f, 6) ^ Integer.rotateRight(f, 11) ^ Integer.rotateRight(f, 25))
+          + (h ^ (f & (g ^ h))) + CONSTANTS[t + 7] + w7;
+      e += a;
+      a += (Integer.rotateRight(b, 2) ^ Integer.rotateRight(b, 13) ^ Integer.rotateRight(b, 22))
+          + ((b & c) | (d & (b | c)));
+      h += (Integer.rotateRight(e, 6) ^ Integer.rotateRight(e, 11) ^ Integer.rotateRight(e, 25))
+          + (g ^ (e & (f ^ g))) + CONSTANTS[t + 8] + w8;
+      d += h;
+      h += (Integer.rotateRight(a, 2) ^ Integer.rotateRight(a, 13) ^ Integer.rotateRight(a, 22))
+          + ((a & b) | (c & (a | b)));
+      g += (Integer.rotateRight(d, 6) ^ Integer.rotateRight(d, 11) ^ Integer.rotateRight(d, 25))
+          + (f ^ (d & (e ^ f))) + CONSTANTS[t + 9] + w9;
+      c += g;
+      g += (Integer.rotateRight(h, 2) ^ Integer.rotateRight(h, 13) ^ Integer.rotateRight(h, 22))
+          + ((h & a) | (b & (h | a)));
+      f += (Integer.rotateRight(c, 6) ^ Integer.rotateRight(c, 11) ^ Integer.rotateRight(c, 25))
+          + (e ^ (c & (d ^ e))) + CONSTANTS[t + 10] + w10;
+      b += f;
+      f += (Integer.rotateRight(g, 2) ^ Integer.rotateRight(g, 13) ^ Integer.rotateRight(g, 22))
+          + ((g & h) | (a & (g | h)));
+      e += (Integer.rotateRight(b, 6) ^ Integer.rotateRight(b, 11) ^ Integer.rotateRight(b, 25))
+          + (d ^ (b & (c ^ d))) + CONSTANTS[t + 11] + w11;
+      a += e;
+      e += (Integer.rotateRight(f, 2) ^ Integer.rotateRight(f, 13) ^ Integer.rotateRight(f, 22))
+          + ((f & g) | (h & (f | g)));
+      d += (Integer.rotateRight(a, 6) ^ Integer.rotateRight(a, 11) ^ Integer.rotateRight(a, 25))
+          + (c ^ (a & (b ^ c))) + CONSTANTS[t + 12] + w12;
+      h += d;
+      d += (Integer.rotateRight(e, 2) ^ Integer.rotateRight(e, 13) ^ Integer.rotateRight(e, 22))
+          + ((e & f) | (g & (e | f)));
+      c += (Integer.rotateRight(h, 6) ^ Integer.rotateRight(h, 11) ^ Integer.rotateRight(h, 25))
+          + (b ^ (h & (a ^ b))) + CONSTANTS[t + 13] + w13;
+      g += c;
+      c += (Integer.rotateRight(d, 2) ^ Integer.rotateRight(d, 13) ^ Integer.rotateRight(d, 22))
+          + ((d & e) | (f & (d | e)));
+      b += (Integer.rotateRight(g, 6) ^ Integer.rotateRight(g, 11) ^ Integer.rotateRight(g, 25))
+          + (a ^ (g & (h ^ a))) + CONSTANTS[t + 14] + w14;
+      f += b;
+      b += (Integer.rotateRight(c, 2) ^ Integer.rotateRight(c, 13) ^ Integer.rotateRight(c, 22))
+          + ((c & d) | (e & (c | d)));
+      a += (Integer.rotateRight(f, 6) ^ Integer.rotateRight(f, 11) ^ Integer.rotateRight(f, 25))
+          + (h ^ (f & (g ^ h))) + CONSTANTS[t + 15] + w15;
+      e += a;
+      a += (Integer.rotateRight(b, 2) ^ Integer.rotateRight(b, 13) ^ Integer.rotateRight(b, 22))
+          + ((b & c) | (d & (b | c)));
     }
-    hash[0] = a + hash[0];
-    hash[1] = b + hash[1];
-    hash[2] = c + hash[2];
-    hash[3] = d + hash[3];
-    hash[4] = e + hash[4];
-    hash[5] = f + hash[5];
-    hash[6] = g + hash[6];
-    hash[7] = h + hash[7];
+    state[stateOff] += a;
+    state[stateOff + 1] += b;
+    state[stateOff + 2] += c;
+    state[stateOff + 3] += d;
+    state[stateOff + 4] += e;
+    state[stateOff + 5] += f;
+    state[stateOff + 6] += g;
+    state[stateOff + 7] += h;
   }
   
   @Override
@@ -74,9 +197,4 @@ public class SHA256 extends SHA32Hash {
     return SHA256.INITIAL_HASHES;
   }
 
-  @Override
-  protected int getWLength() {
-    return 64;
-  }
-
 }
@@ -0,0 +1,197 @@
+package me.abarrow.hash.sha;
+
+import java.util.Arrays;
+
+import me.abarrow.core.CryptoUtils;
+
+/**
+ * SHA-256 of a batch of independent messages. A block from each of many messages is compressed in one pass, with the
+ * working variables and message schedule of every lane side by side in arrays, so each step of a round is a plain
+ * loop over the lanes that the JIT compiles to vector instructions. Nothing is allocated per message, and the digests
+ * are written one after another in the order of the messages.
+ * <p>
+ * When the batch runs short of messages to keep every lane busy, the last few are finished one block at a time. An
+ * instance holds scratch state and is not safe to use from several threads at once.
+ */
+public final class SHA256MultiBuffer {
+
+  public static final int LANES = 64;
+  public static final int HASH_BYTES = 32;
+
+  private static final int BLOCK_BYTES = 64;
+
+  private final int[] states = new int[LANES * 8];
+  // word r of every lane's working variables, and the last 16 words of every lane's message schedule
+  private final int[][] working = new int[8][LANES];
+  private final int[][] schedule = new int[16][LANES];
+  private final byte[][] blocks = new byte[LANES][];
+  private final int[] offsets = new int[LANES];
+
+  // for each lane, the message it is hashing, its whole blocks, all of its blocks and the next one
+  private final int[] messageIndex = new int[LANES];
+  private final int[] wholeBlocks = new int[LANES];
+  private final int[] blockCount = new int[LANES];
+  private final int[] nextBlock = new int[LANES];
+  // the padded last one or two blocks of each lane's message
+  private final byte[] padding = new byte[LANES * 2 * BLOCK_BYTES];
+
+  public byte[][] hashAll(byte[][] messages) {
+    byte[] out = hashAll(messages, new byte[messages.length * HASH_BYTES], 0);
+    byte[][] digests = new byte[messages.length][];
+    for (int i = 0; i < messages.length; i++) {
+      digests[i] = new byte[HASH_BYTES];
+      System.arraycopy(out, i * HASH_BYTES, digests[i], 0, HASH_BYTES);
+    }
+    return digests;
+  }
+
+  /**
+   * Writes the digest of each message to out, the first at outOff.
+   */
+  public byte[] hashAll(byte[][] messages, byte[] out, int outOff) {
+    int next = 0;
+    int active = 0;
+    for (int lane = 0; lane < LANES; lane++) {
+      if (next < messages.length) {
+        load(lane, messages, next++);
+        active++;
+      } else {
+        messageIndex[lane] = -1;
+      }
+    }
+    while (active > 0) {
+      if (active == LANES) {
+        for (int lane = 0; lane < LANES; lane++) {
+          selectBlock(lane, messages);
+        }
+        compressLanes(states, blocks, offsets, working, schedule);
+      } else {
+        for (int lane = 0; lane < LANES; lane++) {
+          if (messageIndex[lane] != -1) {
+            selectBlock(lane, messages);
+            SHA256.compressBlock(states, lane * 8, blocks[lane], offsets[lane]);
+          }
+        }
+      }
+      for (int lane = 0; lane < LANES; lane++) {
+        if (messageIndex[lane] == -1 || ++nextBlock[lane] < blockCount[lane]) {
+          continue;
+        }
+        int at = outOff + messageIndex[lane] * HASH_BYTES;
+        for (int i = 0; i < 8; i++) {
+          CryptoUtils.intToBytes(states[lane * 8 + i], out, at + i * 4);
+        }
+        if (next < messages.length) {
+          load(lane, messages, next++);
+        } else {
+          messageIndex[lane] = -1;
+          active--;
+        }
+      }
+    }
+    CryptoUtils.fillWithZeroes(states);
+    for (int[] row : working) {
+      CryptoUtils.fillWithZeroes(row);
+    }
+    for (int[] row : schedule) {
+      CryptoUtils.fillWithZeroes(row);
+    }
+    CryptoUtils.fillWithZeroes(padding);
+    for (int lane = 0; lane < LANES; lane++) {
+      blocks[lane] = null;
+    }
+    return out;
+  }
+
+  /**
+   * Starts a lane on a message, padding its tail into the lane's part of the padding buffer.
+   */
+  private void load(int lane, byte[][] messages, int index) {
+    byte[] message = messages[index];
+    int tail = message.length % BLOCK_BYTES;
+    int padBlocks = tail + 9 <= BLOCK_BYTES ? 1 : 2;
+    int base = lane * 2 * BLOCK_BYTES;
+    Arrays.fill(padding, base, base + 2 * BLOCK_BYTES, CryptoUtils.ZERO_BYTE);
+    System.arraycopy(message, message.length - tail, padding, base, tail);
+    padding[base + tail] = CryptoUtils.ONE_AND_SEVEN_ZEROES_BYTE;
+    CryptoUtils.longToBytes((long) message.length * 8, padding, base + padBlocks * BLOCK_BYTES - 8);
+    System.arraycopy(SHA256.INITIAL_HASHES, 0, states, lane * 8, 8);
+    messageIndex[lane] = index;
+    wholeBlocks[lane] = message.length / BLOCK_BYTES;
+    blockCount[lane] = wholeBlocks[lane] + padBlocks;
+    nextBlock[lane] = 0;
+  }
+
+  private void selectBlock(int lane, byte[][] messages) {
+    int k = nextBlock[lane];
+    if (k < wholeBlocks[lane]) {
+      blocks[lane] = messages[messageIndex[lane]];
+      offsets[lane] = k * BLOCK_BYTES;
+    } else {
+      blocks[lane] = padding;
+      offsets[lane] = lane * 2 * BLOCK_BYTES + (k - wholeBlocks[lane]) * BLOCK_BYTES;
+    }
+  }
+
+  /**
+   * One block of each lane. The working variables trade roles from round to round by which row plays which, as in
+   * {@link SHA256#compressBlock(int[], int, byte[], int)}, so a round only writes the two rows it changes.
+   */
+  private static void compressLanes(int[] states, byte[][] data, int[] offsets, int[][] s, int[][] w) {
+    for (int r = 0; r < 8; r++) {
+      int[] row = s[r];
+      for (int l = 0; l < LANES; l++) {
+        row[l] = states[l * 8 + r];
+      }
+    }
+    for (int i = 0; i < 16; i++) {
+      int[] row = w[i];
+      for (int l = 0; l < LANES; l++) {
+        row[l] = CryptoUtils.intFromBytes(data[l], offsets[l] + i * 4);
+      }
+    }
+    for (int t = 0; t < 64; t++) {
+      int[] wt = w[t & 15];
+      if (t >= 16) {
+        int[] w1 = w[(t + 1) & 15];
+        int[] w9 = w[(t + 9) & 15];
+        int[] w14 = w[(t + 14) & 15];
+        for (int l = 0; l < LANES; l++) {
+          int x1 = w1[l];
+          int x14 = w14[l];
+          wt[l] += (Integer.rotateRight(x1, 7) ^ Integer.rotateRight(x1, 18) ^ (x1 >>> 3)) + w9[l]
+              + (Integer.rotateRight(x14, 17) ^ Integer.rotateRight(x14, 19) ^ (x14 >>> 10));
+        }
+      }
+      int k = SHA256.CONSTANTS[t];
+      int[] sa = s[-t & 7];
+      int[] sb = s[(1 - t) & 7];
+      int[] sc = s[(2 - t) & 7];
+      int[] sd = s[(3 - t) & 7];
+      int[] se = s[(4 - t) & 7];
+      int[] sf = s[(5 - t) & 7];
+      int[] sg = s[(6 - t) & 7];
+      int[] sh = s[(7 - t) & 7];
+      for (int l = 0; l < LANES; l++) {
+        int a = sa[l];
+        int b = sb[l];
+        int c = sc[l];
+        int e = se[l];
+        int f = sf[l];
+        int g = sg[l];
+        int t1 = sh[l] + (Integer.rotateRight(e, 6) ^ Integer.rotateRight(e, 11) ^ Integer.rotateRight(e, 25))
+            + (g ^ (e & (f ^ g))) + k + wt[l];
+        sd[l] += t1;
+        sh[l] = t1 + (Integer.rotateRight(a, 2) ^ Integer.rotateRight(a, 13) ^ Integer.rotateRight(a, 22))
+            + ((a & b) | (c & (a | b)));
+      }
+    }
+    // 64 rounds bring every row back to the role it started in
+    for (int r = 0; r < 8; r++) {
+      int[] row = s[r];
+      for (int l = 0; l < LANES; l++) {
+        states[l * 8 + r] += row[l];
+      }
+    }
+  }
+}
@@ -21,19 +21,6 @@ public class SHA3 extends Hasher {
    * col 4 row 4 depth 1599 -> [4][4][63] -> 1599
    */
   private long[] state;
-  private long[] stateCopy;
-  private long[] C;
-  private int[] stateInts;
-
-  private static final long[] RC = new long[] { 0x0000000000000001L, 0x0000000000008082L, 0x800000000000808aL,
-      0x8000000080008000L, 0x000000000000808bL, 0x0000000080000001L, 0x8000000080008081L, 0x8000000000008009L,
-      0x000000000000008aL, 0x0000000000000088L, 0x0000000080008009L, 0x000000008000000aL, 0x000000008000808bL,
-      0x800000000000008bL, 0x8000000000008089L, 0x8000000000008003L, 0x8000000000008002L, 0x8000000000000080L,
-      0x000000000000800aL, 0x800000008000000aL, 0x8000000080008081L, 0x8000000000008080L, 0x0000000080000001L,
-      0x8000000080008008L };
-
-  private static final int[] BIT_SHIFTS = new int[] { 0, 1, 190, 28, 91, 36, 300, 6, 55, 276, 3, 10, 171, 153, 231,
-      105, 45, 15, 21, 136, 210, 66, 253, 120, 78 };
 
   private int outputBytes;
   private int blockBytes;
@@ -95,19 +82,38 @@ public class SHA3 extends Hasher {
     return result;
   }
 
+  @Override
+  public boolean supportsStateCopy() {
+    return true;
+  }
+
+  @Override
+  public SHA3 copyState() {
+    SHA3 copy = (SHA3) copyBaseState();
+    copy.state = state.clone();
+    return copy;
+  }
+
+  /**
+   * The snapshot must also have been taken in the same mode.
+   */
+  @Override
+  public SHA3 restoreState(Hasher snapshot) {
+    if (snapshot instanceof SHA3 && ((SHA3) snapshot).mode != mode) {
+      throw new IllegalArgumentException("A SHA3 can only restore the state of the same kind of hasher.");
+    }
+    restoreBaseState(snapshot);
+    System.arraycopy(((SHA3) snapshot).state, 0, state, 0, state.length);
+    return this;
+  }
+
   @Override
   public void reset() {
     super.reset();
     if (state != null) {
       CryptoUtils.fillWithZeroes(state);
-      CryptoUtils.fillWithZeroes(stateCopy);
-      CryptoUtils.fillWithZeroes(stateInts);
-      CryptoUtils.fillWithZeroes(C);
     } else {
-      state = new long[25];
-      stateCopy = new long[25];
-      C = new long[5];
-      stateInts = new int[50];
+      state = new long[Keccak.STATE_LANES];
     }
   }
 
@@ -195,65 +201,8 @@ public class SHA3 extends Hasher {
   }*/
 
   @Override
-  public void hashBlock(byte[] data, int startIndex) {    
+  public void hashBlock(byte[] data, int startIndex) {
     CryptoUtils.xorLongArrayFromBytes(state, 0, data, startIndex, blockBytes / 8, true);
-    
-    // perform a block permutation
-    for (int n = 0; n < 24; n++) {
-      
-      // theta is working
-      for (int x = 0; x < 5; x++) {
-        C[x] = state[x] ^ state[5 + x] ^ state[10 + x] ^ state[15 + x] ^ state[20 + x];
-      }
-      
-      CryptoUtils.longArrayToIntArray(state, stateInts);
-      
-      for (int x = 0; x < 5; x++) {
-        int sx =(x + 4) % 5;
-        int gx = (x + 1) % 5;
-        
-        long sum = 0;
-        
-        for (int z = 0; z < 64; z ++) {
-          int sz = (z + 63) % 64;
-          
-          sum ^= (((C[sx] >>> z) & 0x1L) ^ ((C[gx] >>> sz) & 0x1L)) << z;
-        }
-        for (int y = 0; y < 5; y++) {
-          state[x + 5 * y] ^= sum;
-        }
-      }
-      // rho is working
-      for (int i = 1; i < 25; i++) {
-        state[i] = CryptoUtils.rotateLongLeft(state[i], SHA3.BIT_SHIFTS[i] % 64);
-      }
-      
-
-      // pi is working
-      System.arraycopy(state, 0, stateCopy, 0, state.length);
-      for (int i = 0; i < 25; i++) {
-        int x = i % 5;
-        int y = i / 5;
-        state[i] = stateCopy[(x + 3 * y) % 5 + 5 * x];
-      }
-      
-      
-      // chi is working
-      System.arraycopy(state, 0, stateCopy, 0, state.length);
-      for (int i = 0; i < 25; i++) {
-
-        int x = i % 5;
-        int y = i / 5;
-
-        state[i] = stateCopy[i] ^ ((~stateCopy[(x + 1) % 5 + 5 * y]) & stateCopy[(x + 2) % 5 + 5 * y]);
-      }
-
-      // iota
-      state[0] ^= RC[n];
-    }
-    
-    CryptoUtils.fillWithZeroes(stateInts);
-    CryptoUtils.fillWithZeroes(stateCopy);
-    CryptoUtils.fillWithZeroes(C); 
+    Keccak.permute(state);
   }
 }
@@ -9,38 +9,42 @@ public abstract class SHA32Hash extends Hasher {
 
   private static final int MIN_PADDING_BYTES = 9;
   protected int[] hash;
-  protected int[] W;
+  // the message length in bytes
+  private long byteCount;
 
   @Override
   public final byte[] computeHash(byte[] remainder, int remainderLength) {
-    hashByteCount.plusEquals(remainderLength);
-    
     byte[] block = new byte[getBlockBytes()];
     System.arraycopy(remainder, 0, block, 0, remainderLength);
+    byte[] result = new byte[getHashByteLength()];
+    computeHash(block, remainderLength, result, 0);
+    reset();
+    return result;
+  }
 
-    if (remainderLength == 0) {
-      fillPadding(block, 0);
-      innerHashBlock(block, 0);
-    } else if ((getBlockBytes() - remainderLength) < SHA32Hash.MIN_PADDING_BYTES) {
-      block[remainderLength] = CryptoUtils.ONE_AND_SEVEN_ZEROES_BYTE;
-      innerHashBlock(block, 0);
-
-      Arrays.fill(block, 0, block.length, (byte) 0);
-      appendWithLength(block);
-      innerHashBlock(block, 0);
-    } else {
-      fillPadding(block, remainderLength);
-      innerHashBlock(block, 0);
+  /**
+   * Pads in place in the block and writes the hash words straight to out.
+   */
+  @Override
+  protected final void computeHash(byte[] remainder, int remainderLength, byte[] out, int off) {
+    byteCount += remainderLength;
+    remainder[remainderLength] = CryptoUtils.ONE_AND_SEVEN_ZEROES_BYTE;
+    if ((getBlockBytes() - remainderLength) < SHA32Hash.MIN_PADDING_BYTES) {
+      innerHashBlock(remainder, 0);
+      Arrays.fill(remainder, 0, remainder.length, (byte) 0);
     }
+    appendWithLength(remainder);
+    innerHashBlock(remainder, 0);
 
-    byte[] result = CryptoUtils.intArrayToByteArray(new byte[getHashByteLength()], 0, hash, isHashLittleEndian());
-    reset();
-    return result;
+    boolean littleEndian = isHashLittleEndian();
+    for (int i = 0; i < getHashByteLength() / 4; i++) {
+      CryptoUtils.intToBytes(hash[i], out, off + i * 4, littleEndian);
+    }
   }
   
   @Override
   public final void hashBlock(byte[] data, int srcPos) {
-    hashByteCount.plusEquals(getBlockBytes());
+    byteCount += getBlockBytes();
     innerHashBlock(data, srcPos);
   }
 
@@ -48,25 +52,40 @@ public abstract class SHA32Hash extends Hasher {
   protected abstract void innerHashBlock(byte[] data, int srcPos);
 
 
-  private void fillPadding(byte[] padded, int startIndex) {
-    padded[startIndex] = CryptoUtils.ONE_AND_SEVEN_ZEROES_BYTE;
-    appendWithLength(padded);
+  private void appendWithLength(byte[] padded) {
+    CryptoUtils.longToBytes(byteCount << 3, padded, padded.length - 8, isHashLittleEndian());
   }
 
-  private void appendWithLength(byte[] padded) {
-    CryptoUtils.longToBytes(hashByteCount.longValue() * 8, padded, padded.length - 8, isHashLittleEndian());
+  @Override
+  public boolean supportsStateCopy() {
+    return true;
+  }
+
+  @Override
+  public SHA32Hash copyState() {
+    SHA32Hash copy = (SHA32Hash) copyBaseState();
+    copy.hash = hash.clone();
+    return copy;
+  }
+
+  @Override
+  public SHA32Hash restoreState(Hasher snapshot) {
+    restoreBaseState(snapshot);
+    SHA32Hash from = (SHA32Hash) snapshot;
+    System.arraycopy(from.hash, 0, hash, 0, hash.length);
+    byteCount = from.byteCount;
+    return this;
   }
 
   @Override
   public void reset() {
     super.reset();
+    byteCount = 0;
     int[] intialHashes = getInitialHashes();
     if (hash == null) {
       hash = Arrays.copyOf(intialHashes, intialHashes.length);
-      W = new int[getWLength()];
     } else {
       System.arraycopy(intialHashes, 0, hash, 0, intialHashes.length);
-      CryptoUtils.fillWithZeroes(W);
     }
   }
   
@@ -75,6 +94,5 @@ public abstract class SHA32Hash extends Hasher {
   }
   
   protected abstract int[] getInitialHashes();
-  protected abstract int getWLength();
 
 }
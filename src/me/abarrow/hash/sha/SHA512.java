@@ -1,12 +1,15 @@
 package me.abarrow.hash.sha;
 
-import java.math.BigInteger;
 import java.util.Arrays;
 
 import me.abarrow.core.CryptoUtils;
 import me.abarrow.hash.Hasher;
-import me.abarrow.math.Int128;
 
+/**
+ * The SHA-512 family. The output size picks the member, each with its own initial hash: 64 bytes for SHA-512, 48 for
+ * SHA-384, 32 for SHA-512/256 and 28 for SHA-512/224. The message length is counted in two longs rather than the
+ * shared 128 bit counter.
+ */
 public class SHA512 extends Hasher {
   
   private static final int BLOCK_BITS = 1024;
@@ -17,6 +20,18 @@ public class SHA512 extends Hasher {
       0x3c6ef372fe94f82bL, 0xa54ff53a5f1d36f1L, 0x510e527fade682d1L, 0x9b05688c2b3e6c1fL, 0x1f83d9abfb41bd6bL,
       0x5be0cd19137e2179L };
 
+  private static final long[] SHA384_INITIAL_HASHES = new long[] { 0xcbbb9d5dc1059ed8L, 0x629a292a367cd507L,
+      0x9159015a3070dd17L, 0x152fecd8f70e5939L, 0x67332667ffc00b31L, 0x8eb44a8768581511L, 0xdb0c2e0d64f98fa7L,
+      0x47b5481dbefa4fa4L };
+
+  private static final long[] SHA512_256_INITIAL_HASHES = new long[] { 0x22312194fc2bf72cL, 0x9f555fa3c84c64c2L,
+      0x2393b86b6f53b151L, 0x963877195940eabdL, 0x96283ee2a88effe3L, 0xbe5e1e2553863992L, 0x2b0199fc2c85b8aaL,
+      0x0eb72ddc81c52ca2L };
+
+  private static final long[] SHA512_224_INITIAL_HASHES = new long[] { 0x8c3d37c819544da2L, 0x73e1996689dcd4d6L,
+      0x1dfab7ae32ff9c82L, 0x679dd514582f9fcfL, 0x0f6d2b697bd44da8L, 0x77e36f7304c48942L, 0x3f9d85a86a1d36c8L,
+      0x1112e6ad91d692a1L };
+
   private static final long[] CONSTANTS = new long[] { 0x428a2f98d728ae22L, 0x7137449123ef65cdL,
       0xb5c0fbcfec4d3b2fL, 0xe9b5dba58189dbbcL, 0x3956c25bf348b538L, 0x59f111f1b605d019L, 0x923f82a4af194f9bL,
       0xab1c5ed5da6d8118L, 0xd807aa98a3030242L, 0x12835b0145706fbeL, 0x243185be4ee4b28cL, 0x550c7dc3d5ffb4e2L,
@@ -37,50 +52,82 @@ public class SHA512 extends Hasher {
 
   
   private long[] hash;
-  
-  private long[] W;
-  
+
+  private final long[] initialHashes;
+  private final int outputBytes;
+
+  // the message length in bytes
+  private long byteCountLow;
+  private long byteCountHigh;
+
   public SHA512() {
+    this(64);
+  }
+
+  public SHA512(int outputSize) {
+    if (outputSize == 64) {
+      initialHashes = INITIAL_HASHES;
+    } else if (outputSize == 48) {
+      initialHashes = SHA384_INITIAL_HASHES;
+    } else if (outputSize == 32) {
+      initialHashes = SHA512_256_INITIAL_HASHES;
+    } else if (outputSize == 28) {
+      initialHashes = SHA512_224_INITIAL_HASHES;
+    } else {
+      throw new IllegalArgumentException("SHA512 cannot have an output size of " + outputSize + " bytes.");
+    }
+    outputBytes = outputSize;
     reset();
   }
 
   @Override
   public final byte[] computeHash(byte[] remainder, int remainderLength) {
-    hashByteCount.plusEquals(remainderLength);
     byte[] block = new byte[BLOCK_BYTES];
     System.arraycopy(remainder, 0, block, 0, remainderLength);
-
-    if (remainderLength == 0) {
-      fillPadding(block, 0);
-      innerHashBlock(block, 0);
-    } else if ((SHA512.BLOCK_BYTES - remainderLength) < SHA512.MIN_PADDING_BYTES) {
-      block[remainderLength] = CryptoUtils.ONE_AND_SEVEN_ZEROES_BYTE;
-      innerHashBlock(block, 0);
-                
-      Arrays.fill(block, 0, block.length, (byte)0);
-      appendWithLength(block);
-      innerHashBlock(block, 0);
-    } else {
-      fillPadding(block, remainderLength);
-      innerHashBlock(block, 0);
-    }
-    byte[] result = CryptoUtils.longArrayToByteArray(new byte[getHashByteLength()], 0, hash, hash.length, false);
+    byte[] result = new byte[outputBytes];
+    computeHash(block, remainderLength, result, 0);
     reset();
     return result;
   }
-  
-  private void fillPadding(byte[] padded, int startIndex) {
-    padded[startIndex] = CryptoUtils.ONE_AND_SEVEN_ZEROES_BYTE;
-    appendWithLength(padded);
+
+  /**
+   * Pads in place in the block and writes the hash straight to out.
+   */
+  @Override
+  protected final void computeHash(byte[] remainder, int remainderLength, byte[] out, int off) {
+    countBytes(remainderLength);
+    remainder[remainderLength] = CryptoUtils.ONE_AND_SEVEN_ZEROES_BYTE;
+    if ((SHA512.BLOCK_BYTES - remainderLength) < SHA512.MIN_PADDING_BYTES) {
+      innerHashBlock(remainder, 0);
+      Arrays.fill(remainder, 0, remainder.length, (byte) 0);
+    }
+    // the length in bits, a 128 bit big endian number
+    CryptoUtils.longToBytes((byteCountHigh << 3) | (byteCountLow >>> 61), remainder, BLOCK_BYTES - 16);
+    CryptoUtils.longToBytes(byteCountLow << 3, remainder, BLOCK_BYTES - 8);
+    innerHashBlock(remainder, 0);
+
+    for (int i = 0; i < outputBytes / 8; i++) {
+      CryptoUtils.longToBytes(hash[i], out, off + i * 8);
+    }
+    // SHA-512/224 ends half way through a word
+    if (outputBytes % 8 != 0) {
+      int last = outputBytes / 8 * 8;
+      for (int i = 0; i < outputBytes % 8; i++) {
+        out[off + last + i] = (byte) (hash[outputBytes / 8] >>> (56 - 8 * i));
+      }
+    }
   }
-  
-  private void appendWithLength(byte[] padded) {
-    Int128 eight = new Int128(8);
-    Int128 dest = new Int128();
-    Int128.times(hashByteCount, eight, dest);
-    dest.toBigEndianBytes(padded, padded.length - 16);
+
+  private void countBytes(int count) {
+    byteCountLow += count;
+    if (Long.compareUnsigned(byteCountLow, count) < 0) {
+      byteCountHigh++;
+    }
   }
-  
+
+  /**
+   * Unrolled 16 rounds at a time, with the message schedule as a rolling window of 16 locals.
+   */
   private void innerHashBlock(byte[] bytes, int start) {
     long a = hash[0];
     long b = hash[1];
@@ -90,52 +137,189 @@ public class SHA512 extends Hasher {
     long f = hash[5];
     long g = hash[6];
     long h = hash[7];
-    
-    long T1;
-    long T2;
-    for (int t = 0; t < 80; t++) {
-      if (t < 16) {
-        W[t] = CryptoUtils.longFromBytes(bytes, start + t * 8);
-      } else {
-        W[t] = CryptoUtils.lowerSigmaOneFiveTwelve(W[t-2]) + W[t-7] + CryptoUtils.lowerSigmaZeroFiveTwelve(W[t-15]) + W[t-16];
+    long w0 = CryptoUtils.longFromBytes(bytes, start);
+    long w1 = CryptoUtils.longFromBytes(bytes, start + 8);
+    long w2 = CryptoUtils.longFromBytes(bytes, start + 16);
+    long w3 = CryptoUtils.longFromBytes(bytes, start + 24);
+    long w4 = CryptoUtils.longFromBytes(bytes, start + 32);
+    long w5 = CryptoUtils.longFromBytes(bytes, start + 40);
+    long w6 = CryptoUtils.longFromBytes(bytes, start + 48);
+    long w7 = CryptoUtils.longFromBytes(bytes, start + 56);
+    long w8 = CryptoUtils.longFromBytes(bytes, start + 64);
+    long w9 = CryptoUtils.longFromBytes(bytes, start + 72);
+    long w10 = CryptoUtils.longFromBytes(bytes, start + 80);
+    long w11 = CryptoUtils.longFromBytes(bytes, start + 88);
+    long w12 = CryptoUtils.longFromBytes(bytes, start + 96);
+    long w13 = CryptoUtils.longFromBytes(bytes, start + 104);
+    long w14 = CryptoUtils.longFromBytes(bytes, start + 112);
+    long w15 = CryptoUtils.longFromBytes(bytes, start + 120);
+    for (int t = 0; t < 80; t += 16) {
+      if (t > 0) {
+        w0 += (Long.rotateRight(w1, 1) ^ Long.rotateRight(w1, 8) ^ (w1 >>> 7)) + w9
+            + (Long.rotateRight(w14, 19) ^ Long.rotateRight(w14, 61) ^ (w14 >>> 6));
+        w1 += (Long.rotateRight(w2, 1) ^ Long.rotateRight(w2, 8) ^ (w2 >>> 7)) + w10
+            + (Long.rotateRight(w15, 19) ^ Long.rotateRight(w15, 61) ^ (w15 >>> 6));
+        w2 += (Long.rotateRight(w3, 1) ^ Long.rotateRight(w3, 8) ^ (w3 >>> 7)) + w11
+            + (Long.rotateRight(w0, 19) ^ Long.rotateRight(w0, 61) ^ (w0 >>> 6));
+        w3 += (Long.rotateRight(w4, 1) ^ Long.rotateRight(w4, 8) ^ (w4 >>> 7)) + w12
+            + (Long.rotateRight(w1, 19) ^ Long.rotateRight(w1, 61) ^ (w1 >>> 6));
+        w4 += (Long.rotateRight(w5, 1) ^ Long.rotateRight(w5, 8) ^ (w5 >>> 7)) + w13
+            + (Long.rotateRight(w2, 19) ^ Long.rotateRight(w2, 61) ^ (w2 >>> 6));
+        w5 += (Long.rotateRight(w6, 1) ^ Long.rotateRight(w6, 8) ^ (w6 >>> 7)) + w14
+            + (Long.rotateRight(w3, 19) ^ Long.rotateRight(w3, 61) ^ (w3 >>> 6));
+        w6 += (Long.rotateRight(w7, 1) ^ Long.rotateRight(w7, 8) ^ (w7 >>> 7)) + w15
+            + (Long.rotateRight(w4, 19) ^ Long.rotateRight(w4, 61) ^ (w4 >>> 6));
+        w7 += (Long.rotateRight(w8, 1) ^ Long.rotateRight(w8, 8) ^ (w8 >>> 7)) + w0
+            + (Long.rotateRight(w5, 19) ^ Long.rotateRight(w5, 61) ^ (w5 >>> 6));
+        w8 += (Long.rotateRight(w9, 1) ^ Long.rotateRight(w9, 8) ^ (w9 >>> 7)) + w1
+            + (Long.rotateRight(w6, 19) ^ Long.rotateRight(w6, 61) ^ (w6 >>> 6));
+        w9 += (Long.rotateRight(w10, 1) ^ Long.rotateRight(w10, 8) ^ (w10 >>> 7)) + w2
+            + (Long.rotateRight(w7, 19) ^ Long.rotateRight(w7, 61) ^ (w7 >>> 6));
+        w10 += (Long.rotateRight(w11, 1) ^ Long.rotateRight(w11, 8) ^ (w11 >>> 7)) + w3
+            + (Long.rotateRight(w8, 19) ^ Long.rotateRight(w8, 61) ^ (w8 >>> 6));
+        w11 += (Long.rotateRight(w12, 1) ^ Long.rotateRight(w12, 8) ^ (w12 >>> 7)) + w4
+            + (Long.rotateRight(w9, 19) ^ Long.rotateRight(w9, 61) ^ (w9 >>> 6));
+        w12 += (Long.rotateRight(w13, 1) ^ Long.rotateRight(w13, 8) ^ (w13 >>> 7)) + w5
+            + (Long.rotateRight(w10, 19) ^ Long.rotateRight(w10, 61) ^ (w10 >>> 6));
+        w13 += (Long.rotateRight(w14, 1) ^ Long.rotateRight(w14, 8) ^ (w14 >>> 7)) + w6
+            + (Long.rotateRight(w11, 19) ^ Long.rotateRight(w11, 61) ^ (w11 >>> 6));
+        w14 += (Long.rotateRight(w15, 1) ^ Long.rotateRight(w15, 8) ^ (w15 >>> 7)) + w7
+            + (Long.rotateRight(w12, 19) ^ Long.rotateRight(w12, 61) ^ (w12 >>> 6));
+        w15 += (Long.rotateRight(w0, 1) ^ Long.rotateRight(w0, 8) ^ (w0 >>> 7)) + w8
+            + (Long.rotateRight(w13, 19) ^ Long.rotateRight(w13, 61) ^ (w13 >>> 6));
       }
-      T1 = h + CryptoUtils.upperSigmaOneFiveTwelve(e) + CryptoUtils.longCh(e, f, g) + CONSTANTS[t] + W[t];
-      T2 = CryptoUtils.upperSigmaZeroFiveTwelve(a) + CryptoUtils.longMaj(a, b, c);
-      h = g;
-      g = f;
-      f = e;
-      e = d + T1;
-      d = c;
-      c = b;
-      b = a;
-      a = T1 + T2;
+      h += (Long.rotateRight(e, 14) ^ Long.rotateRight(e, 18) ^ Long.rotateRight(e, 41))
+          + (g ^ (e & (f ^ g))) + CONSTANTS[t] + w0;
+      d += h;
+      h += (Long.rotateRight(a, 28) ^ Long.rotateRight(a, 34) ^ Long.rotateRight(a, 39))
+          + ((a & b) | (c & (a | b)));
+      g += (Long.rotateRight(d, 14) ^ Long.rotateRight(d, 18) ^ Long.rotateRight(d, 41))
+          + (f ^ (d & (e ^ f))) + CONSTANTS[t + 1] + w1;
+      c += g;
+      g += (Long.rotateRight(h, 28) ^ Long.rotateRight(h, 34) ^ Long.rotateRight(h, 39))
+          + ((h & a) | (b & (h | a)));
+      f += (Long.rotateRight(c, 14) ^ Long.rotateRight(c, 18) ^ Long.rotateRight(c, 41))
+          + (e ^ (c & (d ^ e))) + CONSTANTS[t + 2] + w2;
+      b += f;
+      f += (Long.rotateRight(g, 28) ^ Long.rotateRight(g, 34) ^ Long.rotateRight(g, 39))
+          + ((g & h) | (a & (g | h)));
+      e += (Long.rotateRight(b, 14) ^ Long.rotateRight(b, 18) ^ Long.rotateRight(b, 41))
+          + (d ^ (b & (c ^ d))) + CONSTANTS[t + 3] + w3;
+      a += e;
+      e += (Long.rotateRight(f, 28) ^ Long.rotateRight(f, 34) ^ Long.rotateRight(f, 39))
+          + ((f & g) | (h & (f | g)));
+      d += (Long.rotateRight(a, 14) ^ Long.rotateRight(a, 18) ^ Long.rotateRight(a, 41))
+          + (c ^ (a & (b ^ c))) + CONSTANTS[t + 4] + w4;
+      h += d;
+      d += (Long.rotateRight(e, 28) ^ Long.rotateRight(e, 34) ^ Long.rotateRight(e, 39))
+          + ((e & f) | (g & (e | f)));
+      c += (Long.rotateRight(h, 14) ^ Long.rotateRight(h, 18) ^ Long.rotateRight(h, 41))
+          + (b ^ (h & (a ^ b))) + CONSTANTS[t + 5] + w5;
+      g += c;
+      c += (Long.rotateRight(d, 28) ^ Long.rotateRight(d, 34) ^ Long.rotateRight(d, 39))
+          + ((d & e) | (f & (d | e)));
+      b += (Long.rotateRight(g, 14) ^ Long.rotateRight(g, 18) ^ Long.rotateRight(g, 41))
+          + (a ^ (g & (h ^ a))) + CONSTANTS[t + 6] + w6;
+      f += b;
+      b += (Long.rotateRight(c, 28) ^ Long.rotateRight(c, 34) ^ Long.rotateRight(c, 39))
+          + ((c & d) | (e & (c | d)));
+      a += (Long.rotateRight(f, 14) ^ Long.rotateRight(f, 18) ^ Long.rotateRight(f, 41))
+          + (h ^ (f & (g ^ h))) + CONSTANTS[t + 7] + w7;
+      e += a;
+      a += (Long.rotateRight(b, 28) ^ Long.rotateRight(b, 34) ^ Long.rotateRight(b, 39))
+          + ((b & c) | (d & (b | c)));
+      h += (Long.rotateRight(e, 14) ^ Long.rotateRight(e, 18) ^ Long.rotateRight(e, 41))
+          + (g ^ (e & (f ^ g))) + CONSTANTS[t + 8] + w8;
+      d += h;
+      h += (Long.rotateRight(a, 28) ^ Long.rotateRight(a, 34) ^ Long.rotateRight(a, 39))
+          + ((a & b) | (c & (a | b)));
+      g += (Long.rotateRight(d, 14) ^ Long.rotateRight(d, 18) ^ Long.rotateRight(d, 41))
+          + (f ^ (d & (e ^ f))) + CONSTANTS[t + 9] + w9;
+      c += g;
+      g += (Long.rotateRight(h, 28) ^ Long.rotateRight(h, 34) ^ Long.rotateRight(h, 39))
+          + ((h & a) | (b & (h | a)));
+      f += (Long.rotateRight(c, 14) ^ Long.rotateRight(c, 18) ^ Long.rotateRight(c, 41))
+          + (e ^ (c & (d ^ e))) + CONSTANTS[t + 10] + w10;
+      b += f;
+      f += (Long.rotateRight(g, 28) ^ Long.rotateRight(g, 34) ^ Long.rotateRight(g, 39))
+          + ((g & h) | (a & (g | h)));
+      e += (Long.rotateRight(b, 14) ^ Long.rotateRight(b, 18) ^ Long.rotateRight(b, 41))
+          + (d ^ (b & (c ^ d))) + CONSTANTS[t + 11] + w11;
+      a += e;
+      e += (Long.rotateRight(f, 28) ^ Long.rotateRight(f, 34) ^ Long.rotateRight(f, 39))
+          + ((f & g) | (h & (f | g)));
+      d += (Long.rotateRight(a, 14) ^ Long.rotateRight(a, 18) ^ Long.rotateRight(a, 41))
+          + (c ^ (a & (b ^ c))) + CONSTANTS[t + 12] + w12;
+      h += d;
+      d += (Long.rotateRight(e, 28) ^ Long.rotateRight(e, 34) ^ Long.rotateRight(e, 39))
+          + ((e & f) | (g & (e | f)));
+      c += (Long.rotateRight(h, 14) ^ Long.rotateRight(h, 18) ^ Long.rotateRight(h, 41))
+          + (b ^ (h & (a ^ b))) + CONSTANTS[t + 13] + w13;
+      g += c;
+      c += (Long.rotateRight(d, 28) ^ Long.rotateRight(d, 34) ^ Long.rotateRight(d, 39))
+          + ((d & e) | (f & (d | e)));
+      b += (Long.rotateRight(g, 14) ^ Long.rotateRight(g, 18) ^ Long.rotateRight(g, 41))
+          + (a ^ (g & (h ^ a))) + CONSTANTS[t + 14] + w14;
+      f += b;
+      b += (Long.rotateRight(c, 28) ^ Long.rotateRight(c, 34) ^ Long.rotateRight(c, 39))
+          + ((c & d) | (e & (c | d)));
+      a += (Long.rotateRight(f, 14) ^ Long.rotateRight(f, 18) ^ Long.rotateRight(f, 41))
+          + (h ^ (f & (g ^ h))) + CONSTANTS[t + 15] + w15;
+      e += a;
+      a += (Long.rotateRight(b, 28) ^ Long.rotateRight(b, 34) ^ Long.rotateRight(b, 39))
+          + ((b & c) | (d & (b | c)));
     }
-
-    hash[0] = a + hash[0];
-    hash[1] = b + hash[1];
-    hash[2] = c + hash[2];
-    hash[3] = d + hash[3];
-    hash[4] = e + hash[4];
-    hash[5] = f + hash[5];
-    hash[6] = g + hash[6];
-    hash[7] = h + hash[7];
+    hash[0] += a;
+    hash[1] += b;
+    hash[2] += c;
+    hash[3] += d;
+    hash[4] += e;
+    hash[5] += f;
+    hash[6] += g;
+    hash[7] += h;
   }
-  
+
   public void hashBlock(byte[] bytes, int start) {
-    hashByteCount.plusEquals(BLOCK_BYTES);
+    countBytes(BLOCK_BYTES);
     innerHashBlock(bytes, start);
   }
 
+  @Override
+  public boolean supportsStateCopy() {
+    return true;
+  }
+
+  @Override
+  public SHA512 copyState() {
+    SHA512 copy = (SHA512) copyBaseState();
+    copy.hash = hash.clone();
+    return copy;
+  }
+
+  @Override
+  public SHA512 restoreState(Hasher snapshot) {
+    restoreBaseState(snapshot);
+    SHA512 from = (SHA512) snapshot;
+    System.arraycopy(from.hash, 0, hash, 0, hash.length);
+    byteCountLow = from.byteCountLow;
+    byteCountHigh = from.byteCountHigh;
+    return this;
+  }
+
   @Override
   public void reset() {
     super.reset();
+    // called by the Hasher constructor before the fields are set
+    if (initialHashes == null) {
+      return;
+    }
     if (hash == null) {
-      hash = Arrays.copyOf(SHA512.INITIAL_HASHES, 8);
-      W = new long[80];
+      hash = Arrays.copyOf(initialHashes, 8);
     } else {
-      System.arraycopy(SHA512.INITIAL_HASHES, 0, hash, 0, 8);
-      CryptoUtils.fillWithZeroes(W);
+      System.arraycopy(initialHashes, 0, hash, 0, 8);
     }
+    byteCountLow = 0;
+    byteCountHigh = 0;
   }
 
   @Override
@@ -145,7 +329,7 @@ public class SHA512 extends Hasher {
 
   @Override
   public int getHashByteLength() {
-    return 64;
+    return outputBytes;
   }
   
   
@@ -0,0 +1,178 @@
+package me.abarrow.hash.sha;
+
+import java.nio.ByteBuffer;
+
+import me.abarrow.core.CryptoUtils;
+import me.abarrow.hash.Hasher;
+
+/**
+ * The SHAKE128 and SHAKE256 extendable output functions from FIPS 202.
+ * <p>
+ * The message is absorbed with update as with any hasher, and then any amount of output can be read with repeated
+ * calls to {@link #squeeze(byte[], int, int)}, each carrying on where the last stopped. Once squeezing has started
+ * nothing more can be absorbed until reset. Used as a plain hasher, digest gives the first
+ * {@link #getHashByteLength()} bytes of output.
+ */
+public class SHAKE extends Hasher {
+
+  public static final int SHAKE128 = 128;
+  public static final int SHAKE256 = 256;
+
+  private long[] state;
+
+  private final int blockBytes;
+  private final int outputBytes;
+  private final int rounds;
+  private final byte domain;
+
+  // the block of output being read while squeezing
+  private byte[] output;
+  private int outputOffset;
+  private boolean squeezing;
+
+  /**
+   * Digests are twice the security level, the shortest that keeps it for collisions.
+   */
+  public SHAKE(int securityBits) {
+    this(securityBits, securityBits / 4);
+  }
+
+  public SHAKE(int securityBits, int outputSize) {
+    this(securityBits, outputSize, Keccak.ROUNDS, (byte) 0x1f);
+  }
+
+  /**
+   * A sponge on the same rates with fewer rounds of the permutation or another domain byte, which also holds the
+   * first bit of the padding.
+   */
+  protected SHAKE(int securityBits, int outputSize, int permutationRounds, byte domainByte) {
+    if (securityBits == SHAKE128) {
+      blockBytes = 168;
+    } else if (securityBits == SHAKE256) {
+      blockBytes = 136;
+    } else {
+      throw new IllegalArgumentException("SHAKE cannot have a security level of " + securityBits + " bits.");
+    }
+    if (outputSize < 1) {
+      throw new IllegalArgumentException("SHAKE cannot have an output size of " + outputSize + " bytes.");
+    }
+    outputBytes = outputSize;
+    rounds = permutationRounds;
+    domain = domainByte;
+    output = new byte[blockBytes];
+    reset();
+  }
+
+  private void checkAbsorbing() {
+    if (squeezing) {
+      throw new IllegalStateException("SHAKE cannot absorb more of a message once squeezing has started.");
+    }
+  }
+
+  @Override
+  public SHAKE update(byte[] data, int off, int len) {
+    checkAbsorbing();
+    super.update(data, off, len);
+    return this;
+  }
+
+  @Override
+  public SHAKE update(byte[] data) {
+    return update(data, 0, data.length);
+  }
+
+  @Override
+  public SHAKE update(ByteBuffer data) {
+    checkAbsorbing();
+    super.update(data);
+    return this;
+  }
+
+  /**
+   * Pads and absorbs the last block of the message, leaving the permutation for the first block of output.
+   */
+  private void absorbFinal(byte[] block, int length) {
+    block[length] ^= domain; // SHAKE 0001 1111, TurboSHAKE its domain byte
+    block[blockBytes - 1] ^= (byte) 0x80; // 1000 0000
+    CryptoUtils.xorLongArrayFromBytes(state, 0, block, 0, blockBytes / 8, true);
+    CryptoUtils.fillWithZeroes(block);
+    outputOffset = blockBytes;
+    squeezing = true;
+  }
+
+  /**
+   * Writes the next len bytes of output to out, finishing the message first if this is the first squeeze.
+   */
+  public byte[] squeeze(byte[] out, int off, int len) {
+    if (!squeezing) {
+      absorbFinal(output, takePending(output));
+    }
+    int lanes = blockBytes / 8;
+    while (len > 0) {
+      if (outputOffset == blockBytes) {
+        Keccak.permute(state, rounds);
+        if (len >= blockBytes) {
+          // whole blocks go straight to out
+          for (int i = 0; i < lanes; i++) {
+            CryptoUtils.longToBytes(state[i], out, off + i * 8, true);
+          }
+          off += blockBytes;
+          len -= blockBytes;
+          continue;
+        }
+        for (int i = 0; i < lanes; i++) {
+          CryptoUtils.longToBytes(state[i], output, i * 8, true);
+        }
+        outputOffset = 0;
+      }
+      int n = Math.min(len, blockBytes - outputOffset);
+      System.arraycopy(output, outputOffset, out, off, n);
+      outputOffset += n;
+      off += n;
+      len -= n;
+    }
+    return out;
+  }
+
+  public byte[] squeeze(int len) {
+    return squeeze(new byte[len], 0, len);
+  }
+
+  @Override
+  public byte[] computeHash(byte[] remainder, int remainderLength) {
+    checkAbsorbing();
+    absorbFinal(remainder, remainderLength);
+    byte[] result = squeeze(outputBytes);
+    reset();
+    return result;
+  }
+
+  @Override
+  public void hashBlock(byte[] data, int startIndex) {
+    CryptoUtils.xorLongArrayFromBytes(state, 0, data, startIndex, blockBytes / 8, true);
+    Keccak.permute(state, rounds);
+  }
+
+  @Override
+  public void reset() {
+    super.reset();
+    if (state != null) {
+      CryptoUtils.fillWithZeroes(state);
+    } else {
+      state = new long[Keccak.STATE_LANES];
+    }
+    CryptoUtils.fillWithZeroes(output);
+    outputOffset = 0;
+    squeezing = false;
+  }
+
+  @Override
+  public int getBlockBytes() {
+    return blockBytes;
+  }
+
+  @Override
+  public int getHashByteLength() {
+    return outputBytes;
+  }
+}
@@ -2,10 +2,21 @@ package me.abarrow.hash.sha;
 
 import static org.junit.Assert.*;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
 
 import me.abarrow.core.CryptoUtils;
 import me.abarrow.hash.Hasher;
+import me.abarrow.hash.md.MD5;
+import me.abarrow.random.SHAKERandom;
 
 import org.junit.Test;
 
@@ -102,6 +113,103 @@ public class SHATest {
         SHA512Case(hundredAndTwentyEightCharacterLong));
   }
   
+  @Test
+  public void SHA512TruncationsProperlyHashStrings() throws IOException {
+    assertEquals(
+        "38b060a751ac96384cd9327eb1b1e36a21fdb71114be07434c0cc7bf63f6e1da274edebfe76f65fbd51ad2f14898b95b",
+        testCase(new SHA512(48), empty));
+    assertEquals(
+        "cb00753f45a35e8bb5a03d699ac65007272c32ab0eded1631a8b605a43ff5bed8086072ba1e7cc2358baeca134c825a7",
+        testCase(new SHA512(48), abc));
+    assertEquals(
+        "fbd51e346c9eb0308d782eeb2239869ca67cad751a92d9147d2b91336f5e1a282d37ad3e104f3055472705fce4863afd",
+        testCase(new SHA512(48), awfullyLongString));
+    assertEquals("c672b8d1ef56ed28ab87c3622c5114069bdd3ad7b8f9737498d0c01ecef0967a", testCase(new SHA512(32), empty));
+    assertEquals("53048e2681941ef99b2e29b76b4c7dabe4c2d0c634fc6d46e0e2f13107e7af23", testCase(new SHA512(32), abc));
+    assertEquals("79793ee68e221ed5693d3d5300b8258308f88d5b814c63a10e2750ab00c50f05",
+        testCase(new SHA512(32), awfullyLongString));
+    assertEquals("6ed0dd02806fa89e25de060c19d3ac86cabb87d6a0ddd05c333b84f4", testCase(new SHA512(28), empty));
+    assertEquals("4634270f707b6a54daae7530460842e20e37ed265ceee9a43e8924aa", testCase(new SHA512(28), abc));
+    assertEquals("8058050ab5acefadec4bdcacd1d3703e7b8e3ce98d288b2a4d07898f",
+        testCase(new SHA512(28), awfullyLongString));
+  }
+
+  @Test
+  public void SHA512PadsAcrossBlockBoundaries() {
+    // 111 bytes leave just room for the padding, 112 push the length into another block
+    int[] lengths = new int[] { 111, 112, 239, 240 };
+    String[] sha384 = new String[] {
+        "f5f9fe110d809d34029de262a01b208356caec6e054c7f926b2591f6c9780579d4b59f5578c6f531a84f158a33660cef",
+        "33ba080ec0ccb378e4e95fed3b26c23aa1a280476e007519ee47f60cd9c5c8a65d627259a9aa2fd33ca06d3c14ee5548",
+        "2556cf077a788c49bb6d600f4a3cee635c4443832d169f761537afee2980742b9f34afbc87f598dd0aedc4a826ed6a73",
+        "d64769ad58f5a338669b935f3431e5bef31667d0a2437bff78f1e5275075f434fff675f9833ea04ac4e5c2e2c2c99b8c" };
+    String[] sha512_224 = new String[] { "f8810ee322210d0f4cbd7a4e92e7d7e72b63d2777dcb531e13ddd690",
+        "8099918892ebbd31215c9bb5e4e53c0b52927b000ced0720d2c65a22",
+        "5f3fd8a5a4ef847d833b2faaa74a30fe51d22c68244298a25302b7ed",
+        "181dbae9308b111d4ae06a6229d6038c4afffb93a0eafda9cf1e83aa" };
+    String[] sha512_256 = new String[] { "bd209f60b0d04102a09175297fd255367e54b5a5605b928635c606306914363f",
+        "2cafeb0882cc405167e9a255b8581a66dc683212474902dd453dbca20a94e61a",
+        "b81472d255d80182e196481e5866aa207761a152302a0237e242eb88c577a428",
+        "6ca13c55886b74a5ca2ac9782c4b9a49fe3aeeefdfc0cefc34984872fb4c54fd" };
+    SHA512 h384 = new SHA512(48);
+    SHA512 h224 = new SHA512(28);
+    SHA512 h256 = new SHA512(32);
+    for (int i = 0; i < lengths.length; i++) {
+      byte[] data = pattern(lengths[i]);
+      assertEquals(sha384[i], CryptoUtils.byteArrayToHexString(h384.update(data).digest()));
+      // digesting into the middle of a larger array leaves the rest alone
+      byte[] out = new byte[40];
+      h224.update(data).digest(out, 6);
+      assertEquals(sha512_224[i], CryptoUtils.byteArrayToHexString(Arrays.copyOfRange(out, 6, 34)));
+      assertEquals(0, out[34]);
+      assertEquals(sha512_256[i], CryptoUtils.byteArrayToHexString(h256.update(data).digest()));
+    }
+  }
+
+  @Test
+  public void lengthsPast2GiBAreCounted() {
+    // the length field used to overflow once a message passed 2^31 bytes
+    Hasher[] hashers = new Hasher[] { new SHA256(), new MD5() };
+    String[] expected = new String[] { "eb0110a7a730c401a686584c05f92f352c8b6f7a787fd2a15f832d775eea2cbb",
+        "36198ef8533be9c261b7774893a7b2bb" };
+    byte[] zeroes = new byte[1 << 20];
+    for (int i = 0; i < hashers.length; i++) {
+      for (int n = 0; n < 2048; n++) {
+        hashers[i].update(zeroes);
+      }
+      hashers[i].update(new byte[64]);
+      assertEquals(expected[i], CryptoUtils.byteArrayToHexString(hashers[i].digest()));
+    }
+  }
+
+  @Test
+  public void restoredStatesCarryOnFromTheSnapshot() {
+    byte[] prefix = pattern(200);
+    byte[] suffix = awfullyLongString.getBytes();
+    Hasher[] hashers = new Hasher[] { new SHA1(), new SHA256(), new SHA512(), new SHA512(28), new MD5(),
+        new SHA3(SHA3Mode.SHA3, 32), new SHA3(SHA3Mode.KECCAK, 64) };
+    for (Hasher h : hashers) {
+      String expected = CryptoUtils.byteArrayToHexString(h.update(prefix).update(suffix).digest());
+      Hasher snapshot = h.update(prefix).copyState();
+      // the original and the copy go their own ways
+      h.update(pattern(5)).digest();
+      assertEquals(expected, CryptoUtils.byteArrayToHexString(snapshot.copyState().update(suffix).digest()));
+      for (int i = 0; i < 3; i++) {
+        assertEquals(expected, CryptoUtils.byteArrayToHexString(h.restoreState(snapshot).update(suffix).digest()));
+      }
+    }
+    try {
+      new SHA512().restoreState(new SHA512(48).copyState());
+      fail("SHA-512 restored a SHA-384 state.");
+    } catch (IllegalArgumentException e) {
+    }
+    try {
+      new SHA3(SHA3Mode.SHA3, 32).restoreState(new SHA3(SHA3Mode.KECCAK, 32));
+      fail("SHA3 restored a Keccak state.");
+    } catch (IllegalArgumentException e) {
+    }
+  }
+
   private String SHA3Case(SHA3Mode m, int outputSize, String testString) throws IOException {
     return testCase(new SHA3(m, outputSize), testString);
   }
@@ -146,4 +254,224 @@ public class SHATest {
         SHA3Case(SHA3Mode.KECCAK, 64, awfullyLongString));
     
   }
+  
+  @Test
+  public void incrementalUpdatesMatchOneShot() throws IOException {
+    byte[] data = awfullyLongString.getBytes();
+    Hasher[] hashers = new Hasher[] { new SHA1(), new SHA256(), new SHA512(), new SHA3(SHA3Mode.SHA3, 32),
+        new SHAKE(SHAKE.SHAKE128) };
+    for (Hasher h : hashers) {
+      byte[] expected = h.hash().runSync(data);
+      for (int step : new int[] { 1, 7, 63, 64, 65, 200 }) {
+        for (int off = 0; off < data.length; off += step) {
+          h.update(data, off, Math.min(step, data.length - off));
+        }
+        assertArrayEquals(expected, h.digest());
+      }
+      ByteBuffer direct = ByteBuffer.allocateDirect(data.length);
+      direct.put(data).flip();
+      assertArrayEquals(expected, h.update(direct).digest());
+      assertFalse(direct.hasRemaining());
+      
+      // a stream that returns short reads part way through a block
+      InputStream trickle = new ByteArrayInputStream(data) {
+        @Override
+        public synchronized int read(byte[] b, int off, int len) {
+          return super.read(b, off, Math.min(len, 5));
+        }
+      };
+      ByteArrayOutputStream out = new ByteArrayOutputStream();
+      h.hash().process(trickle, out);
+      assertArrayEquals(expected, out.toByteArray());
+    }
+  }
+  
+  @Test
+  public void SHAKEProperlyHashesStrings() throws IOException {
+    assertEquals("7f9c2ba4e88f827d616045507605853ed73b8093f6efbc88eb1a6eacfa66ef26",
+        testCase(new SHAKE(SHAKE.SHAKE128), empty));
+    assertEquals("46b9dd2b0ba88d13233b3feb743eeb243fcd52ea62b81b82b50c27646ed5762f"
+        + "d75dc4ddd8c0f200cb05019d67b592f6fc821c49479ab48640292eacb3b7c4be", testCase(new SHAKE(SHAKE.SHAKE256), empty));
+    assertEquals("107f77d1c0905bed32bcf8c225e4a369c7c20ab2882c26c4b8da87ec7839fb67",
+        testCase(new SHAKE(SHAKE.SHAKE128), awfullyLongString));
+    assertEquals("31bdc059e99ce4006439236c0fcbc4ba25d89cdcce8448abde2e9dc6883cc2cd"
+        + "b4587a2da59e569240643c3941eefef2cc90a76a3ae1af55dabef9617691b744",
+        testCase(new SHAKE(SHAKE.SHAKE256), awfullyLongString));
+  }
+  
+  @Test
+  public void SHAKESqueezesRepeatedly() {
+    SHAKE shake = new SHAKE(SHAKE.SHAKE128);
+    byte[] data = awfullyLongString.getBytes();
+    for (int step : new int[] { 1, 13, 168, 169, 1000 }) {
+      shake.update(data, 0, 100).update(data, 100, data.length - 100);
+      byte[] out = new byte[1000];
+      for (int off = 0; off < out.length; off += step) {
+        shake.squeeze(out, off, Math.min(step, out.length - off));
+      }
+      assertEquals("6dba1701913a832516d870bd48d271e4c7c7a1f5b42149e07e518a84fcefed01",
+          CryptoUtils.byteArrayToHexString(new SHA256().update(out).digest()));
+      try {
+        shake.update(data);
+        fail("Absorbed after squeezing.");
+      } catch (IllegalStateException e) {
+        // expected
+      }
+      shake.reset();
+    }
+  }
+  
+  @Test
+  public void SHAKERandomSqueezesTheSeed() {
+    byte[] out = new byte[5000];
+    SHAKERandom random = new SHAKERandom("seed".getBytes());
+    random.nextBytes(out);
+    assertEquals("a8e7c0a7bc1df4e69d46fdc04c5d10ce5d1802d96374f021bcf1afe0afd99520",
+        CryptoUtils.byteArrayToHexString(new SHA256().update(out).digest()));
+  }
+  
+  private static byte[] pattern(int length) {
+    byte[] data = new byte[length];
+    for (int i = 0; i < length; i++) {
+      data[i] = (byte) (i % 251);
+    }
+    return data;
+  }
+  
+  private static String k12(byte[] message, byte[] customization, int outputBytes, ForkJoinPool pool) {
+    return CryptoUtils.byteArrayToHexString(new KangarooTwelve(customization, outputBytes, pool).update(message).digest());
+  }
+  
+  @Test
+  public void kangarooTwelveMatchesReferenceVectors() {
+    String[] expected = new String[] {
+        "1ac2d450fc3b4205d19da7bfca1b37513c0803577ac7167f06fe2ce1f0ef39e5",
+        "2bda92450e8b147f8a7cb629e784a058efca7cf7d8218e02d345dfaa65244a1f",
+        "6bf75fa2239198db4772e36478f8e19b0f371205f6a9a93a273f51df37122888",
+        "0c315ebcdedbf61426de7dcf8fb725d1e74675d7f5327a5067f367b108ecb67c",
+        "cb552e2ec77d9910701d578b457ddf772c12e322e4ee7fe417f92c758f0d59d0",
+        "1b577636f723643e990cc7d6a659837436fd6a103626600eb8301cd1dbe553d6",
+        "48f256f6772f9edfb6a8b661ec92dc93b95ebd05a08a17b39ae3490870c926c3",
+        "bb66fe72eaea5179418d5295ee1344854d8ad7f3fa17efcb467ec152341284cf",
+        "82778f7f7234c83352e76837b721fbdbb5270b88010d84fa5ab0b61ec8ce0956",
+        "8701045e22205345ff4dda05555cbb5c3af1a771c2b89baef37db43d9998b9fe",
+        "93070bfd10b8028f3c0ebe9304dd7f10f2c8ae403371ae695591f4710928f8dd" };
+    int[] lengths = new int[] { 0, 1, 17, 289, 4913, 8191, 8192, 8193, 16384, 83521, 1 << 20 };
+    for (int i = 0; i < lengths.length; i++) {
+      assertEquals(expected[i], k12(pattern(lengths[i]), new byte[0], 32, null));
+      assertEquals(expected[i], k12(pattern(lengths[i]), new byte[0], 32, ForkJoinPool.commonPool()));
+    }
+    assertEquals("bc07e7a3ce4f2f7ce2746be7e223e175ab698b47fc2bdc332a31799ae48ba0be", k12(pattern(8191), pattern(41), 32, null));
+    assertEquals("1e47a693af8ef10ed11ba76ba0904847cdfdc253f0c4fa1483afd1f3b3216ad8", k12(pattern(100), pattern(9000), 32, null));
+    assertEquals("b99350df72c767e6e2693784990106a9cea3ca7799f4f0cf0eaad9eb395e93ae"
+        + "695a6863c1f8aa5fa9eea79ae266b060a57074638db002dc595246edaa9f9ae9", k12(pattern(20000), pattern(9000), 64, null));
+  }
+  
+  @Test
+  public void kangarooTwelveHashesInPiecesAndFiles() throws IOException {
+    byte[] data = pattern(1 << 20);
+    String expected = "93070bfd10b8028f3c0ebe9304dd7f10f2c8ae403371ae695591f4710928f8dd";
+    KangarooTwelve k12 = new KangarooTwelve();
+    for (int step : new int[] { 100, 8192, 40000, 65536 }) {
+      for (int off = 0; off < data.length; off += step) {
+        k12.update(data, off, Math.min(step, data.length - off));
+      }
+      assertEquals(expected, CryptoUtils.byteArrayToHexString(k12.digest()));
+    }
+    ByteBuffer direct = ByteBuffer.allocateDirect(data.length);
+    direct.put(data).flip();
+    assertEquals(expected, CryptoUtils.byteArrayToHexString(k12.update(direct).digest()));
+    
+    Path file = Files.createTempFile("k12", ".bin");
+    try {
+      Files.write(file, data);
+      assertEquals(expected, CryptoUtils.byteArrayToHexString(k12.hashFile(file)));
+    } finally {
+      Files.delete(file);
+    }
+  }
+  
+  @Test
+  public void kangarooTwelveBenchmark() {
+    byte[] data = new byte[1 << 25];
+    KangarooTwelve serial = new KangarooTwelve(new byte[0], 32, null);
+    KangarooTwelve parallel = new KangarooTwelve();
+    serial.update(data).digest();
+    parallel.update(data).digest();
+    long start = System.nanoTime();
+    serial.update(data).digest();
+    long serialTime = System.nanoTime() - start;
+    start = System.nanoTime();
+    parallel.update(data).digest();
+    long parallelTime = System.nanoTime() - start;
+    System.out.println("KangarooTwelve hashed " + (data.length * 1000L / Math.max(1, serialTime)) + "MB/s on one thread, "
+        + (data.length * 1000L / Math.max(1, parallelTime)) + "MB/s on " + ForkJoinPool.commonPool().getParallelism()
+        + " workers");
+  }
+  
+  @Test
+  public void multiBufferMatchesOneAtATime() {
+    Random random = new Random(7);
+    byte[][] messages = new byte[300][];
+    for (int i = 0; i < messages.length; i++) {
+      // every tail length, then some longer messages, so lanes finish out of step
+      messages[i] = new byte[i < 200 ? i : random.nextInt(5000)];
+      random.nextBytes(messages[i]);
+    }
+    byte[][] digests = new SHA256MultiBuffer().hashAll(messages);
+    SHA256 sha = new SHA256();
+    for (int i = 0; i < messages.length; i++) {
+      assertArrayEquals(sha.update(messages[i]).digest(), digests[i]);
+    }
+    assertEquals(0, new SHA256MultiBuffer().hashAll(new byte[0][]).length);
+  }
+  
+  @Test
+  public void multiBufferBenchmark() {
+    Random random = new Random(7);
+    byte[][] messages = new byte[50000][];
+    for (int i = 0; i < messages.length; i++) {
+      messages[i] = new byte[100 + random.nextInt(4000)];
+    }
+    SHA256MultiBuffer multi = new SHA256MultiBuffer();
+    SHA256 sha = new SHA256();
+    byte[] out = new byte[messages.length * SHA256MultiBuffer.HASH_BYTES];
+    // best of a few runs of each, alternating so both are compiled and see the same machine
+    long multiTime = Long.MAX_VALUE;
+    long scalarTime = Long.MAX_VALUE;
+    for (int run = 0; run < 4; run++) {
+      long start = System.nanoTime();
+      multi.hashAll(messages, out, 0);
+      multiTime = Math.min(multiTime, System.nanoTime() - start);
+      start = System.nanoTime();
+      for (byte[] message : messages) {
+        sha.update(message).digest();
+      }
+      scalarTime = Math.min(scalarTime, System.nanoTime() - start);
+    }
+    System.out.println("SHA256 of 100B-4KB messages: " + (messages.length * 1000000000L / Math.max(1, multiTime))
+        + "/s with " + SHA256MultiBuffer.LANES + " lanes, " + (messages.length * 1000000000L / Math.max(1, scalarTime))
+        + "/s one at a time, " + String.format("%.2f", (double) scalarTime / Math.max(1, multiTime))
+        + " times the scalar rate");
+  }
+  
+  @Test
+  public void keccakPermutesTheZeroState() {
+    long[] state = new long[Keccak.STATE_LANES];
+    Keccak.permute(state);
+    assertEquals(0xf1258f7940e1dde7L, state[0]);
+    assertEquals(0x84d5ccf933c0478aL, state[1]);
+    assertEquals(0xeaf1ff7b5ceca249L, state[24]);
+  }
+  
+  @Test
+  public void SHA3Benchmark() {
+    byte[] data = new byte[1 << 23];
+    SHA3 sha3 = new SHA3(32);
+    sha3.update(data).digest();
+    long start = System.nanoTime();
+    sha3.update(data).digest();
+    long time = System.nanoTime() - start;
+    System.out.println("SHA3-256 hashed " + (data.length * 1000L / Math.max(1, time)) + "MB/s");
+  }
 }
@@ -0,0 +1,27 @@
+package me.abarrow.hash.sha;
+
+/**
+ * TurboSHAKE128 and TurboSHAKE256 from RFC 9861, SHAKE with 12 rounds of the permutation and a domain separation
+ * byte chosen by the caller.
+ */
+public class TurboSHAKE extends SHAKE {
+
+  public static final int ROUNDS = 12;
+
+  public static final byte DEFAULT_DOMAIN = 0x1f;
+
+  public TurboSHAKE(int securityBits) {
+    this(securityBits, DEFAULT_DOMAIN, securityBits / 4);
+  }
+
+  public TurboSHAKE(int securityBits, byte domainByte, int outputSize) {
+    super(securityBits, outputSize, ROUNDS, checkDomain(domainByte));
+  }
+
+  private static byte checkDomain(byte domainByte) {
+    if (domainByte < 0x01) {
+      throw new IllegalArgumentException("TurboSHAKE domain bytes must be between 0x01 and 0x7f.");
+    }
+    return domainByte;
+  }
+}
@@ -1,60 +1,229 @@
 package me.abarrow.mac.gcmac;
 
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+
+import me.abarrow.cipher.BlockCipher;
+import me.abarrow.cipher.aes.AES;
+import me.abarrow.cipher.mode.GCMMode;
+import me.abarrow.cipher.mode.GHash;
+import me.abarrow.cipher.mode.KeyedTable;
 import me.abarrow.core.CryptoException;
 import me.abarrow.core.CryptoUtils;
 import me.abarrow.mac.MAC;
 import me.abarrow.stream.StreamProcess;
+import me.abarrow.stream.StreamUtils;
+import me.abarrow.stream.SuffixStream;
 
+/**
+ * GMAC, which is GCM authenticating its input as associated data with no message. The tag is the GHASH of the data
+ * XORed with the encrypted pre-counter block, so every tag needs its own IV under a key, set with
+ * {@link #setIV(byte[])} for the {@link MAC} methods or passed to the allocation free
+ * {@link #tag(byte[], byte[], int, int, byte[], int)}.
+ */
 public class GCMMAC implements MAC {
   
+  private static final int BLOCK_SIZE = 16;
+  private static final int CHUNK_SIZE = 4096;
+  
+  private BlockCipher bc;
+  private byte[] iv;
+  
+  private final KeyedTable<GHash> gHash;
+  
+  // scratch space for the allocation free methods
+  private final long[] state = new long[2];
+  private final byte[] preCounter = new byte[BLOCK_SIZE];
+  private final byte[] mask = new byte[BLOCK_SIZE];
+  private final byte[] computedTag = new byte[BLOCK_SIZE];
+  
   public GCMMAC() {
+    this(new AES());
+  }
+  
+  public GCMMAC(BlockCipher blockCipher) {
+    if (blockCipher.getBlockBytes() != BLOCK_SIZE) {
+      throw new IllegalArgumentException(CryptoException.INCOMPATIBLE_CIPHER);
+    }
+    bc = blockCipher;
+    gHash = new KeyedTable<GHash>(bc) {
+      @Override
+      protected GHash build(byte[] h) {
+        return new GHash(h, GHash.SHOUP_8_BIT);
+      }
+    };
+  }
+  
+  public GCMMAC(BlockCipher blockCipher, byte[] key) throws CryptoException {
+    this(blockCipher);
+    setKey(key);
+  }
+  
+  public GCMMAC setIV(byte[] initVector) {
+    iv = Arrays.copyOf(initVector, initVector.length);
+    return this;
+  }
+  
+  public byte[] getIV() {
+    return iv;
+  }
+  
+  public boolean hasIV() {
+    return iv != null;
+  }
+  
+  /**
+   * Writes the tag of len bytes of data under the given IV into out, without allocating for 96 bit IVs. Not safe to
+   * call from several threads at once.
+   */
+  public byte[] tag(byte[] initVector, byte[] data, int off, int len, byte[] out, int outOff)
+      throws CryptoException {
+    GHash g = gHash.get();
+    state[0] = 0;
+    state[1] = 0;
+    g.update(state, data, off, len);
+    finishTag(g, initVector, state, len, out, outOff, preCounter, mask);
+    return out;
+  }
+  
+  /**
+   * Checks the tag of len bytes of data under the given IV in constant time, without allocating for 96 bit IVs.
+   */
+  public boolean verify(byte[] initVector, byte[] data, int off, int len, byte[] tag, int tagOff)
+      throws CryptoException {
+    tag(initVector, data, off, len, computedTag, 0);
+    boolean matches = CryptoUtils.constantTimeSubArrayEquals(computedTag, 0, tag, tagOff, BLOCK_SIZE);
+    CryptoUtils.fillWithZeroes(computedTag);
+    return matches;
+  }
+  
+  private void finishTag(GHash g, byte[] initVector, long[] hash, long dataBytes, byte[] out, int outOff,
+      byte[] j0, byte[] encryptedJ0) throws CryptoException {
+    g.finish(hash, dataBytes, 0);
+    GCMMode.preCounterBlock(g, initVector, j0);
+    bc.encryptBlock(j0, 0, encryptedJ0, 0);
+    GHash.toBytes(hash, out, outOff);
+    CryptoUtils.xorByteArrays(out, outOff, encryptedJ0, 0, out, outOff, BLOCK_SIZE);
+    CryptoUtils.fillWithZeroes(hash);
+    CryptoUtils.fillWithZeroes(j0);
+    CryptoUtils.fillWithZeroes(encryptedJ0);
+  }
+  
+  private byte[] streamTag(boolean tagOnly, InputStream in, OutputStream out) throws IOException, CryptoException {
+    if (!hasIV()) {
+      throw new CryptoException(CryptoException.NO_IV);
+    }
+    GHash g = gHash.get();
+    long[] hash = new long[2];
+    byte[] chunk = new byte[CHUNK_SIZE];
+    long dataBytes = 0;
+    try {
+      while (true) {
+        int read = StreamUtils.readFully(in, chunk, 0, chunk.length);
+        g.update(hash, chunk, 0, read);
+        dataBytes += read;
+        if (!tagOnly) {
+          out.write(chunk, 0, read);
+        }
+        if (read < chunk.length) {
+          break;
+        }
+      }
+      in.close();
+      
+      byte[] tag = new byte[BLOCK_SIZE];
+      finishTag(g, iv, hash, dataBytes, tag, 0, new byte[BLOCK_SIZE], new byte[BLOCK_SIZE]);
+      return tag;
+    } finally {
+      CryptoUtils.fillWithZeroes(chunk);
+      CryptoUtils.fillWithZeroes(hash);
+    }
   }
 
   @Override
-  public StreamProcess tag(boolean tagOnly) {
-    // TODO Auto-generated method stub
-    return null;
+  public StreamProcess tag(final boolean tagOnly) {
+    return new StreamProcess() {
+      @Override
+      public void process(InputStream in, OutputStream out) throws IOException {
+        try {
+          byte[] tag = streamTag(tagOnly, in, out);
+          out.write(tag);
+          CryptoUtils.fillWithZeroes(tag);
+        } catch (CryptoException e) {
+          throw new IOException(e);
+        }
+      }
+    };
   }
 
   @Override
   public byte[] tag(byte[] data, boolean tagOnly) throws CryptoException {
-    // TODO Auto-generated method stub
-    return null;
+    try {
+      return tag(tagOnly).runSync(data);
+    } catch (IOException e) {
+      throw new CryptoException(e);
+    }
   }
 
   @Override
-  public StreamProcess checkTag(boolean checkOnly) {
-    // TODO Auto-generated method stub
-    return null;
+  public StreamProcess checkTag(final boolean checkOnly) {
+    return new StreamProcess() {
+      @Override
+      public void process(InputStream in, OutputStream out) throws IOException {
+        SuffixStream taglessIn = new SuffixStream(in, BLOCK_SIZE);
+        if (!taglessIn.hasFullSuffix()) {
+          taglessIn.close();
+          throw new IOException(new CryptoException(CryptoException.NO_MAC));
+        }
+        byte[] includedTag = taglessIn.getSuffix();
+        byte[] computedTag = null;
+        try {
+          computedTag = streamTag(checkOnly, taglessIn, out);
+          if (!CryptoUtils.constantTimeArrayEquals(includedTag, computedTag)) {
+            throw new IOException(new CryptoException(CryptoException.MAC_DOES_NOT_MATCH));
+          }
+        } catch (CryptoException e) {
+          throw new IOException(e);
+        } finally {
+          CryptoUtils.fillWithZeroes(includedTag);
+          CryptoUtils.fillWithZeroes(computedTag);
+        }
+      }
+    };
   }
 
   @Override
   public byte[] checkTag(byte[] data, boolean checkOnly) throws CryptoException {
-    // TODO Auto-generated method stub
-    return null;
+    try {
+      return checkTag(checkOnly).runSync(data);
+    } catch (IOException e) {
+      throw new CryptoException(e);
+    }
   }
 
   @Override
   public MAC setKey(byte[] key) throws CryptoException {
-    // TODO Auto-generated method stub
-    return null;
+    gHash.clear();
+    bc.setKey(key);
+    return this;
   }
 
   @Override
   public boolean hasKey() {
-    // TODO Auto-generated method stub
-    return false;
+    return bc.hasKey();
   }
 
   @Override
   public MAC removeKey() {
-    // TODO Auto-generated method stub
-    return null;
+    gHash.clear();
+    bc.removeKey();
+    return this;
   }
 
   @Override
   public int getTagLength() {
-    // TODO Auto-generated method stub
-    return 0;
+    return BLOCK_SIZE;
   }
 }
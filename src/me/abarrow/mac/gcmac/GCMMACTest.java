@@ -0,0 +1,84 @@
+package me.abarrow.mac.gcmac;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+
+import org.junit.Test;
+
+import me.abarrow.cipher.BlockCipher;
+import me.abarrow.cipher.CompoundBlockCipher;
+import me.abarrow.cipher.aes.AES;
+import me.abarrow.cipher.mode.GCMMode;
+import me.abarrow.core.CryptoException;
+import me.abarrow.core.CryptoUtils;
+
+public class GCMMACTest {
+  
+  private static final byte[] KEY = CryptoUtils.parseHexString("feffe9928665731c6d6a8f9467308308");
+  private static final byte[] IV = CryptoUtils.parseHexString("cafebabefacedbaddecaf888");
+
+  @Test
+  public void testGMAC() throws CryptoException, IOException {
+    byte[] data = new byte[100];
+    for (int n = 0; n < data.length; n++) {
+      data[n] = (byte) n;
+    }
+    testSuccessfulCase(data, CryptoUtils.parseHexString("d57ff5caf5b6fe991a56c69bf9fbc3b7"));
+    testSuccessfulCase(new byte[0], CryptoUtils.parseHexString("3247184b3c4f69a44dbcd22887bbb418"));
+  }
+  
+  @Test
+  public void testMatchesGCMWithNoMessage() throws CryptoException, IOException {
+    byte[] data = "The quick brown fox jumps over the lazy dog".getBytes();
+    byte[] iv = new byte[20];
+    byte[] expected = new GCMMode(new AES(KEY)).setAuthData(data).setIV(iv).encrypt().runSync(new byte[0]);
+    GCMMAC mac = new GCMMAC(new AES(), KEY).setIV(iv);
+    assertArrayEquals(expected, mac.tag(data, true));
+    // a cipher without a key schedule keeps its tables while its key stays the same
+    GCMMAC compound = new GCMMAC(new CompoundBlockCipher(new BlockCipher[] { new AES(KEY) })).setIV(iv);
+    assertArrayEquals(expected, compound.tag(data, true));
+    assertArrayEquals(expected, compound.tag(data, true));
+  }
+  
+  private void testSuccessfulCase(byte[] data, byte[] expectedTag) throws CryptoException, IOException {
+    GCMMAC mac = new GCMMAC(new AES(), KEY).setIV(IV);
+    byte[] taggedData = CryptoUtils.concatArrays(data, expectedTag);
+    byte[] badlyTaggedData = taggedData.clone();
+    badlyTaggedData[badlyTaggedData.length - 1] ^= 1;
+    
+    assertArrayEquals(expectedTag, mac.tag(data, true));
+    assertArrayEquals(taggedData, mac.tag(data, false));
+    assertArrayEquals(expectedTag, mac.tag(true).runSync(data));
+    assertArrayEquals(data, mac.checkTag(taggedData, false));
+    assertArrayEquals(new byte[0], mac.checkTag(taggedData, true));
+    try {
+      mac.checkTag(badlyTaggedData, false);
+      fail();
+    } catch (CryptoException e) {
+    }
+    
+    byte[] out = new byte[20];
+    mac.tag(IV, data, 0, data.length, out, 4);
+    assertArrayEquals(expectedTag, java.util.Arrays.copyOfRange(out, 4, 20));
+    assertTrue(mac.verify(IV, taggedData, 0, data.length, taggedData, data.length));
+    assertFalse(mac.verify(IV, badlyTaggedData, 0, data.length, badlyTaggedData, data.length));
+  }
+  
+  @Test
+  public void testSmallMessageThroughput() throws CryptoException {
+    GCMMAC mac = new GCMMAC(new AES(), KEY);
+    byte[] frame = new byte[64];
+    byte[] iv = new byte[12];
+    byte[] tag = new byte[16];
+    int frames = 200000;
+    long start = System.nanoTime();
+    for (int n = 0; n < frames; n++) {
+      CryptoUtils.intToBytes(n, iv, 8);
+      mac.tag(iv, frame, 0, frame.length, tag, 0);
+    }
+    long took = System.nanoTime() - start;
+    System.out.println("GMAC tagged " + Math.round(frames * 1e9 / took) + " 64 byte frames per second");
+  }
+
+}
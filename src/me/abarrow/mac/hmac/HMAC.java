@@ -7,29 +7,48 @@ import java.util.Arrays;
 
 import me.abarrow.core.CryptoException;
 import me.abarrow.core.CryptoUtils;
+import me.abarrow.core.KeyExpander;
+import me.abarrow.core.KeySchedule;
 import me.abarrow.hash.Hasher;
 import me.abarrow.mac.MAC;
-import me.abarrow.stream.ByteProcess;
 import me.abarrow.stream.StreamProcess;
 import me.abarrow.stream.SuffixStream;
 
-public class HMAC implements MAC {
+public class HMAC implements MAC, KeyExpander {
 
   private static final byte O_PAD_BYTE = 0x5c;
   private static final byte I_PAD_BYTE = 0x36;
+  private static final int STREAM_CHUNK_BYTES = 8192;
 
   private int blockBytes;
   private int hashByteLength;
 
   private Hasher hasher;
+  // a fresh copy of the hasher that is only ever copied, so keys can be expanded on any thread
+  private final Hasher keyHasher;
 
   private byte[] iPadKey;
   private byte[] oPadKey;
 
+  private byte[] innerHash;
+  
+  private HMACKeySchedule schedule;
+  private boolean ownsSchedule;
+  
+  // whether the inner hash has absorbed the inner padded key of the current message
+  private boolean started;
+
   public HMAC(Hasher hashMaker) {
     hasher = hashMaker;
     blockBytes = hasher.getBlockBytes();
     hashByteLength = hasher.getHashByteLength();
+    innerHash = new byte[hashByteLength];
+    if (hasher.supportsStateCopy()) {
+      keyHasher = hasher.copyState();
+      keyHasher.reset();
+    } else {
+      keyHasher = null;
+    }
   }
 
   public HMAC(Hasher hashMaker, byte[] key) throws CryptoException {
@@ -77,45 +96,77 @@ public class HMAC implements MAC {
   }
 
   private byte[] innerHMAC(boolean tagOnly, OutputStream out, InputStream in) throws IOException {
-    //ByteProcess hashProc = hasher.hash().createAsyncByteProcess();
-    //hashProc.add(iPadKey);
-    
-    
-    
-    hasher.reset();
-    hasher.hashBlock(iPadKey, 0);
-    
-    byte[] buffer = new byte[blockBytes];
-    byte[] firstPass = null;
-    while (true) {
-      int read = in.read(buffer);
-      if (read == -1) {
-        break;
-      } else if (read == blockBytes) {
-        hasher.hashBlock(buffer, 0);
-        if (!tagOnly) {
-          out.write(buffer, 0, read);
+    byte[] buffer = new byte[STREAM_CHUNK_BYTES];
+    try {
+      reset();
+      while (true) {
+        int read = in.read(buffer);
+        if (read == -1) {
+          break;
         }
-      } else {
-        firstPass = hasher.computeHash(buffer, read);
+        update(buffer, 0, read);
         if (!tagOnly) {
           out.write(buffer, 0, read);
         }
       }
+      in.close();
+      return doFinal(new byte[hashByteLength], 0);
+    } catch (CryptoException e) {
+      throw new IOException(e);
+    } finally {
+      CryptoUtils.fillWithZeroes(buffer);
     }
-    in.close();
-    
-    CryptoUtils.fillWithZeroes(buffer);
-    
-    if (firstPass == null) {
-      firstPass = hasher.computeHash(buffer, 0);
+  }
+  
+  /**
+   * Absorbs len more bytes of the message.
+   */
+  public HMAC update(byte[] data, int off, int len) throws CryptoException {
+    if (!hasKey()) {
+      throw new CryptoException(CryptoException.NO_KEY);
     }
-        
-    hasher.hashBlock(oPadKey, 0);
-    byte[] hash = hasher.computeHash(firstPass, hasher.getHashByteLength());
-    
-    CryptoUtils.fillWithZeroes(firstPass);
-    return hash;
+    if (!started) {
+      if (schedule.innerState != null) {
+        hasher.restoreState(schedule.innerState);
+      } else {
+        hasher.reset();
+        hasher.update(iPadKey);
+      }
+      started = true;
+    }
+    hasher.update(data, off, len);
+    return this;
+  }
+  
+  public HMAC update(byte[] data) throws CryptoException {
+    return update(data, 0, data.length);
+  }
+  
+  /**
+   * Writes the tag of everything absorbed since the key was set or the last tag, and starts a new message.
+   */
+  public byte[] doFinal(byte[] out, int outOff) throws CryptoException {
+    update(CryptoUtils.EMPTY_BYTES, 0, 0);
+    hasher.digest(innerHash, 0);
+    if (schedule.outerState != null) {
+      hasher.restoreState(schedule.outerState);
+    } else {
+      hasher.update(oPadKey);
+    }
+    hasher.update(innerHash);
+    hasher.digest(out, outOff);
+    CryptoUtils.fillWithZeroes(innerHash);
+    started = false;
+    return out;
+  }
+  
+  /**
+   * Discards anything absorbed since the last tag.
+   */
+  public HMAC reset() {
+    hasher.reset();
+    started = false;
+    return this;
   }
 
   @Override
@@ -148,17 +199,35 @@ public class HMAC implements MAC {
 
   @Override
   public MAC setKey(byte[] key) throws CryptoException {
-    if (hasKey()) {
-      removeKey();
+    bind(expandKey(key), true);
+    return this;
+  }
+  
+  /**
+   * Computes the padded inner and outer keys once so they can be shared by any HMAC over the same kind of hash.
+   * <p>
+   * Several threads may expand keys on one HMAC at once, as a {@link me.abarrow.core.KeyScheduleCache} does on misses.
+   * Each expansion hashes on its own copy of the hasher. Hashers that cannot copy their state are shared under a lock
+   * instead, which also throws away any message this HMAC was part way through.
+   */
+  @Override
+  public HMACKeySchedule expandKey(byte[] key) throws CryptoException {
+    if (keyHasher == null) {
+      synchronized (hasher) {
+        return expandKey(key, hasher);
+      }
     }
+    return expandKey(key, keyHasher.copyState());
+  }
+
+  private HMACKeySchedule expandKey(byte[] key, Hasher h) {
     byte[] padded = new byte[blockBytes];
+    byte[] hashedKey = null;
 
     if (key.length > blockBytes) {
-      try {
-        key = hasher.hash().runSync(key);
-      } catch (IOException e) {
-        throw new CryptoException(e);
-      }
+      h.reset();
+      hashedKey = h.update(key).digest();
+      key = hashedKey;
     }
 
     if (key.length < blockBytes) {
@@ -167,15 +236,77 @@ public class HMAC implements MAC {
       key = padded;
     }
 
-    iPadKey = new byte[blockBytes];
-    Arrays.fill(iPadKey, I_PAD_BYTE);
-    CryptoUtils.xorByteArrays(iPadKey, key, iPadKey);
+    byte[] innerPadKey = new byte[blockBytes];
+    Arrays.fill(innerPadKey, I_PAD_BYTE);
+    CryptoUtils.xorByteArrays(innerPadKey, key, innerPadKey);
 
-    oPadKey = new byte[blockBytes];
-    Arrays.fill(oPadKey, O_PAD_BYTE);
-    CryptoUtils.xorByteArrays(oPadKey, key, oPadKey);
+    byte[] outerPadKey = new byte[blockBytes];
+    Arrays.fill(outerPadKey, O_PAD_BYTE);
+    CryptoUtils.xorByteArrays(outerPadKey, key, outerPadKey);
+    
+    CryptoUtils.fillWithZeroes(padded);
+    CryptoUtils.fillWithZeroes(hashedKey);
+    Hasher innerState = absorbedState(h, innerPadKey);
+    Hasher outerState = absorbedState(h, outerPadKey);
+    h.reset();
+    return new HMACKeySchedule(hasher.getClass(), hashByteLength, innerPadKey, outerPadKey, innerState, outerState);
+  }
+
+  /**
+   * Snapshots h after absorbing a padded key, so each message restores it instead of hashing the key again. Null for
+   * hashers that cannot copy their state.
+   */
+  private static Hasher absorbedState(Hasher h, byte[] padKey) {
+    if (!h.supportsStateCopy()) {
+      return null;
+    }
+    h.reset();
+    h.update(padKey);
+    return h.copyState();
+  }
+  
+  /**
+   * Binds this HMAC to a shared schedule, holding a reference to it until the key is removed again.
+   */
+  public HMAC setKeySchedule(KeySchedule sharedSchedule) throws CryptoException {
+    if (!(sharedSchedule instanceof HMACKeySchedule)) {
+      throw new CryptoException(CryptoException.INCOMPATIBLE_KEY_SCHEDULE);
+    }
+    HMACKeySchedule hmacSchedule = (HMACKeySchedule) sharedSchedule;
+    if (hmacSchedule.hasherType != hasher.getClass() || hmacSchedule.hashByteLength != hashByteLength
+        || hmacSchedule.iPadKey.length != blockBytes) {
+      throw new CryptoException(CryptoException.INCOMPATIBLE_KEY_SCHEDULE);
+    }
+    if (hmacSchedule.innerState != null) {
+      // catches hashers of the same class and length that still differ, such as SHA3 and Keccak
+      try {
+        hasher.restoreState(hmacSchedule.innerState);
+      } catch (IllegalArgumentException e) {
+        throw new CryptoException(CryptoException.INCOMPATIBLE_KEY_SCHEDULE);
+      } finally {
+        hasher.reset();
+      }
+    }
+    bind(hmacSchedule, false);
     return this;
   }
+  
+  private void bind(HMACKeySchedule newSchedule, boolean owned) throws CryptoException {
+    // take the reference first, so a destroyed schedule leaves the current key in place
+    if (!owned && !newSchedule.retain()) {
+      throw new CryptoException(CryptoException.NO_KEY);
+    }
+    removeKey();
+    reset();
+    schedule = newSchedule;
+    ownsSchedule = owned;
+    iPadKey = schedule.iPadKey;
+    oPadKey = schedule.oPadKey;
+  }
+  
+  public HMACKeySchedule getKeySchedule() {
+    return schedule;
+  }
 
   @Override
   public int getTagLength() {
@@ -184,15 +315,23 @@ public class HMAC implements MAC {
 
   @Override
   public boolean hasKey() {
-    return iPadKey != null;
+    return schedule != null && !schedule.isDestroyed();
   }
 
   @Override
   public MAC removeKey() {
-    CryptoUtils.fillWithZeroes(iPadKey);
-    CryptoUtils.fillWithZeroes(oPadKey);
+    if (schedule == null) {
+      return this;
+    }
+    if (ownsSchedule) {
+      schedule.destroy();
+    } else {
+      schedule.release();
+    }
     iPadKey = null;
     oPadKey = null;
+    schedule = null;
+    reset();
     return this;
   }
 }
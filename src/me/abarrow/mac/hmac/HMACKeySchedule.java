@@ -0,0 +1,37 @@
+package me.abarrow.mac.hmac;
+
+import me.abarrow.core.CryptoUtils;
+import me.abarrow.core.KeySchedule;
+import me.abarrow.hash.Hasher;
+
+public final class HMACKeySchedule extends KeySchedule {
+  
+  final Class<?> hasherType;
+  final int hashByteLength;
+  final byte[] iPadKey;
+  final byte[] oPadKey;
+  // the hasher after absorbing each padded key, or null if it cannot copy its state
+  final Hasher innerState;
+  final Hasher outerState;
+  
+  HMACKeySchedule(Class<?> hashType, int hashLength, byte[] innerPadKey, byte[] outerPadKey, Hasher innerSnapshot,
+      Hasher outerSnapshot) {
+    hasherType = hashType;
+    hashByteLength = hashLength;
+    iPadKey = innerPadKey;
+    oPadKey = outerPadKey;
+    innerState = innerSnapshot;
+    outerState = outerSnapshot;
+  }
+
+  @Override
+  protected void zero() {
+    CryptoUtils.fillWithZeroes(iPadKey);
+    CryptoUtils.fillWithZeroes(oPadKey);
+    // the snapshots are as good as the key
+    if (innerState != null) {
+      innerState.reset();
+      outerState.reset();
+    }
+  }
+}
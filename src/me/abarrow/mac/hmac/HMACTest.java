@@ -2,11 +2,17 @@ package me.abarrow.mac.hmac;
 
 import static org.junit.Assert.*;
 import java.io.IOException;
+import java.util.Arrays;
+
 import me.abarrow.core.CryptoException;
 import me.abarrow.core.CryptoUtils;
 import me.abarrow.hash.Hasher;
 import me.abarrow.hash.md.MD5;
 import me.abarrow.hash.sha.SHA1;
+import me.abarrow.hash.sha.SHA256;
+import me.abarrow.hash.sha.SHA3;
+import me.abarrow.hash.sha.SHA3Mode;
+import me.abarrow.hash.sha.SHA512;
 
 import org.junit.Test;
 
@@ -20,7 +26,49 @@ public class HMACTest {
     testSuccessfulCase(new MD5(), new byte[0], new byte[0], CryptoUtils.parseHexString("74e6f7298a9c2d168935f58c001bad88"));
     testSuccessfulCase(new MD5(), "key".getBytes(), "The quick brown fox jumps over the lazy dog".getBytes(),
         CryptoUtils.parseHexString("80070713463e7749b90c2dc24911e275"));
+    testSuccessfulCase(new SHA3(SHA3Mode.SHA3, 32), "key".getBytes(),
+        "The quick brown fox jumps over the lazy dog".getBytes(),
+        CryptoUtils.parseHexString("8c6e0683409427f8931711b10ca92a506eb1fafa48fadd66d76126f47ac2c333"));
+    byte[] longKey = new byte[200];
+    Arrays.fill(longKey, (byte) 'k');
+    testSuccessfulCase(new SHA256(), longKey, "The quick brown fox jumps over the lazy dog".getBytes(),
+        CryptoUtils.parseHexString("86522d64cfd7d3d21199f47288e74cdc22a6395aff54f0270c7feef1d0fa61bf"));
+    testSuccessfulCase(new SHA512(48), "key".getBytes(), "The quick brown fox jumps over the lazy dog".getBytes(),
+        CryptoUtils.parseHexString("d7f4727e2c0b39ae0f1e40cc96f60242d5b7801841cea6fc592c5d3e1ae50700582a96cf35e1e554995fe4e03381c237"));
+    testSuccessfulCase(new SHA512(), "key".getBytes(), "The quick brown fox jumps over the lazy dog".getBytes(),
+        CryptoUtils.parseHexString("b42af09057bac1e2d41708e48a902e09b5ff7f12ab428a4fe86653c73dd248fb82f948a549f7b791a5b41915ee4d1ec3935357e4e2317250d0372afa2ebeeb3a"));
+  }
 
+  @Test
+  public void schedulesOnlyBindToTheSameHash() throws CryptoException {
+    HMACKeySchedule schedule = new HMAC(new SHA512(48)).expandKey("key".getBytes());
+    try {
+      new HMAC(new SHA512()).setKeySchedule(schedule);
+      fail("A SHA-384 key schedule was bound to SHA-512.");
+    } catch (CryptoException e) {
+    }
+    byte[] tag = new HMAC(new SHA512(48)).setKeySchedule(schedule).tag("abc".getBytes(), true);
+    assertArrayEquals(new HMAC(new SHA512(48), "key".getBytes()).tag("abc".getBytes(), true), tag);
+    try {
+      new HMAC(new SHA3(SHA3Mode.KECCAK, 32)).setKeySchedule(new HMAC(new SHA3(32)).expandKey("key".getBytes()));
+      fail("A SHA3 key schedule was bound to Keccak.");
+    } catch (CryptoException e) {
+    }
+  }
+
+  @Test
+  public void destroyedSchedulesAreRefused() throws CryptoException {
+    HMAC mac = new HMAC(new SHA256(), "key".getBytes());
+    byte[] expected = mac.tag("abc".getBytes(), true);
+    HMACKeySchedule destroyed = mac.expandKey("other".getBytes());
+    destroyed.destroy();
+    try {
+      mac.setKeySchedule(destroyed);
+      fail("Bound a destroyed key schedule.");
+    } catch (CryptoException e) {
+    }
+    // the key it already had is left in place
+    assertArrayEquals(expected, mac.tag("abc".getBytes(), true));
   }
 
   private void testSuccessfulCase(Hasher hash, byte[] key, byte[] data, byte[] expectedTag) throws CryptoException,
@@ -35,6 +83,10 @@ public class HMACTest {
     System.arraycopy(data, 0, badlyTaggedData, 0, data.length);
 
     assertArrayEquals(expectedTag, mac.tag(data, true));
+    int half = data.length / 2;
+    byte[] incremental = new byte[expectedTag.length + 1];
+    mac.update(data, 0, half).update(data, half, data.length - half).doFinal(incremental, 1);
+    assertArrayEquals(expectedTag, Arrays.copyOfRange(incremental, 1, incremental.length));
     assertArrayEquals(taggedData, mac.tag(data, false));    
     assertArrayEquals(expectedTag, mac.tag(true).runSync(data));
     assertArrayEquals(taggedData, mac.tag(false).runSync(data));
@@ -0,0 +1,403 @@
+package me.abarrow.mac.poly1305;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+import me.abarrow.core.CryptoException;
+import me.abarrow.core.CryptoUtils;
+import me.abarrow.mac.MAC;
+import me.abarrow.stream.StreamProcess;
+import me.abarrow.stream.StreamUtils;
+import me.abarrow.stream.SuffixStream;
+
+/**
+ * The Poly1305 one time authenticator from RFC 8439. A key must only ever tag one message.
+ * <p>
+ * The accumulator is held in five 26 bit limbs so that every product fits in a long. Runs of four blocks are
+ * absorbed together as (h + m1) r^4 + m2 r^3 + m3 r^2 + m4 r, with the powers of r worked out when the key is set,
+ * so there is only one carry chain per four blocks.
+ * <p>
+ * Besides the {@link MAC} methods, {@link #update(byte[], int, int)} and {@link #doFinal(byte[], int)} tag a message
+ * incrementally without allocating.
+ */
+public class Poly1305 implements MAC {
+  
+  public static final int KEY_BYTES = 32;
+  public static final int TAG_BYTES = 16;
+  public static final int BLOCK_BYTES = 16;
+  
+  private static final long MASK = 0x3ffffff;
+  private static final long HIGH_BIT = 1L << 24;
+  private static final int CHUNK_SIZE = 4096;
+  
+  private boolean keyed = false;
+  // r^1 to r^4 in 26 bit limbs, and 5 times each limb for the limbs that wrap around past 2^130
+  private final long[][] r = new long[4][5];
+  private final long[][] s = new long[4][5];
+  private final long[] pad = new long[4];
+  
+  private final long[] h = new long[5];
+  private final long[] d = new long[5];
+  private final byte[] partial = new byte[BLOCK_BYTES];
+  private int partialLength = 0;
+  
+  public Poly1305() {
+  }
+  
+  public Poly1305(byte[] key) throws CryptoException {
+    setKey(key);
+  }
+  
+  private static long le32(byte[] bytes, int off) {
+    return CryptoUtils.intFromBytes(bytes, off, true) & 0xffffffffL;
+  }
+  
+  /**
+   * out = a * b mod 2^130 - 5, partly reduced.
+   */
+  private static void multiply(long[] a, long[] b, long[] out) {
+    long b1 = b[1] * 5, b2 = b[2] * 5, b3 = b[3] * 5, b4 = b[4] * 5;
+    long d0 = a[0] * b[0] + a[1] * b4 + a[2] * b3 + a[3] * b2 + a[4] * b1;
+    long d1 = a[0] * b[1] + a[1] * b[0] + a[2] * b4 + a[3] * b3 + a[4] * b2;
+    long d2 = a[0] * b[2] + a[1] * b[1] + a[2] * b[0] + a[3] * b4 + a[4] * b3;
+    long d3 = a[0] * b[3] + a[1] * b[2] + a[2] * b[1] + a[3] * b[0] + a[4] * b4;
+    long d4 = a[0] * b[4] + a[1] * b[3] + a[2] * b[2] + a[3] * b[1] + a[4] * b[0];
+    d1 += d0 >>> 26;
+    d2 += d1 >>> 26;
+    d3 += d2 >>> 26;
+    d4 += d3 >>> 26;
+    long c = d4 >>> 26;
+    out[0] = (d0 & MASK) + c * 5;
+    out[1] = (d1 & MASK) + (out[0] >>> 26);
+    out[0] &= MASK;
+    out[2] = d2 & MASK;
+    out[3] = d3 & MASK;
+    out[4] = d4 & MASK;
+  }
+  
+  /**
+   * d += x * r^(power + 1), where x is a message block or the accumulator in limbs.
+   */
+  private void multiplyAdd(long x0, long x1, long x2, long x3, long x4, int power) {
+    long[] rk = r[power];
+    long[] sk = s[power];
+    d[0] += x0 * rk[0] + x1 * sk[4] + x2 * sk[3] + x3 * sk[2] + x4 * sk[1];
+    d[1] += x0 * rk[1] + x1 * rk[0] + x2 * sk[4] + x3 * sk[3] + x4 * sk[2];
+    d[2] += x0 * rk[2] + x1 * rk[1] + x2 * rk[0] + x3 * sk[4] + x4 * sk[3];
+    d[3] += x0 * rk[3] + x1 * rk[2] + x2 * rk[1] + x3 * rk[0] + x4 * sk[4];
+    d[4] += x0 * rk[4] + x1 * rk[3] + x2 * rk[2] + x3 * rk[1] + x4 * rk[0];
+  }
+  
+  /**
+   * d += m * r^(power + 1) for the block m at off.
+   */
+  private void multiplyAddBlock(byte[] m, int off, long hibit, int power) {
+    long t0 = le32(m, off);
+    long t1 = le32(m, off + 4);
+    long t2 = le32(m, off + 8);
+    long t3 = le32(m, off + 12);
+    multiplyAdd(t0 & MASK, ((t0 >>> 26) | (t1 << 6)) & MASK, ((t1 >>> 20) | (t2 << 12)) & MASK,
+        ((t2 >>> 14) | (t3 << 18)) & MASK, (t3 >>> 8) | hibit, power);
+  }
+  
+  private void carry() {
+    long c = d[0] >>> 26;
+    h[0] = d[0] & MASK;
+    d[1] += c;
+    c = d[1] >>> 26;
+    h[1] = d[1] & MASK;
+    d[2] += c;
+    c = d[2] >>> 26;
+    h[2] = d[2] & MASK;
+    d[3] += c;
+    c = d[3] >>> 26;
+    h[3] = d[3] & MASK;
+    d[4] += c;
+    c = d[4] >>> 26;
+    h[4] = d[4] & MASK;
+    h[0] += c * 5;
+    c = h[0] >>> 26;
+    h[0] &= MASK;
+    h[1] += c;
+  }
+  
+  private void blocks(byte[] m, int off, int count, long hibit) {
+    int n = 0;
+    for (; n + 4 <= count; n += 4) {
+      int b = off + n * BLOCK_BYTES;
+      long t0 = le32(m, b);
+      long t1 = le32(m, b + 4);
+      long t2 = le32(m, b + 8);
+      long t3 = le32(m, b + 12);
+      d[0] = d[1] = d[2] = d[3] = d[4] = 0;
+      multiplyAdd(h[0] + (t0 & MASK), h[1] + (((t0 >>> 26) | (t1 << 6)) & MASK),
+          h[2] + (((t1 >>> 20) | (t2 << 12)) & MASK), h[3] + (((t2 >>> 14) | (t3 << 18)) & MASK),
+          h[4] + ((t3 >>> 8) | hibit), 3);
+      multiplyAddBlock(m, b + BLOCK_BYTES, hibit, 2);
+      multiplyAddBlock(m, b + 2 * BLOCK_BYTES, hibit, 1);
+      multiplyAddBlock(m, b + 3 * BLOCK_BYTES, hibit, 0);
+      carry();
+    }
+    for (; n < count; n++) {
+      int b = off + n * BLOCK_BYTES;
+      long t0 = le32(m, b);
+      long t1 = le32(m, b + 4);
+      long t2 = le32(m, b + 8);
+      long t3 = le32(m, b + 12);
+      d[0] = d[1] = d[2] = d[3] = d[4] = 0;
+      multiplyAdd(h[0] + (t0 & MASK), h[1] + (((t0 >>> 26) | (t1 << 6)) & MASK),
+          h[2] + (((t1 >>> 20) | (t2 << 12)) & MASK), h[3] + (((t2 >>> 14) | (t3 << 18)) & MASK),
+          h[4] + ((t3 >>> 8) | hibit), 0);
+      carry();
+    }
+  }
+  
+  /**
+   * Absorbs len more bytes of the message.
+   */
+  public Poly1305 update(byte[] data, int off, int len) throws CryptoException {
+    if (!keyed) {
+      throw new CryptoException(CryptoException.NO_KEY);
+    }
+    if (partialLength > 0) {
+      int taken = Math.min(len, BLOCK_BYTES - partialLength);
+      System.arraycopy(data, off, partial, partialLength, taken);
+      partialLength += taken;
+      off += taken;
+      len -= taken;
+      if (partialLength < BLOCK_BYTES) {
+        return this;
+      }
+      blocks(partial, 0, 1, HIGH_BIT);
+      partialLength = 0;
+    }
+    int count = len / BLOCK_BYTES;
+    blocks(data, off, count, HIGH_BIT);
+    off += count * BLOCK_BYTES;
+    len -= count * BLOCK_BYTES;
+    System.arraycopy(data, off, partial, 0, len);
+    partialLength = len;
+    return this;
+  }
+  
+  /**
+   * Writes the tag of everything absorbed since the key was set or the last tag, and starts a new message.
+   */
+  public byte[] doFinal(byte[] out, int outOff) throws CryptoException {
+    if (!keyed) {
+      throw new CryptoException(CryptoException.NO_KEY);
+    }
+    if (partialLength > 0) {
+      partial[partialLength] = 1;
+      for (int n = partialLength + 1; n < BLOCK_BYTES; n++) {
+        partial[n] = 0;
+      }
+      blocks(partial, 0, 1, 0);
+    }
+    
+    long h0 = h[0], h1 = h[1], h2 = h[2], h3 = h[3], h4 = h[4];
+    long c = h1 >>> 26;
+    h1 &= MASK;
+    h2 += c;
+    c = h2 >>> 26;
+    h2 &= MASK;
+    h3 += c;
+    c = h3 >>> 26;
+    h3 &= MASK;
+    h4 += c;
+    c = h4 >>> 26;
+    h4 &= MASK;
+    h0 += c * 5;
+    c = h0 >>> 26;
+    h0 &= MASK;
+    h1 += c;
+    
+    // g = h - p, which is used when it is not negative
+    long g0 = h0 + 5;
+    c = g0 >>> 26;
+    g0 &= MASK;
+    long g1 = h1 + c;
+    c = g1 >>> 26;
+    g1 &= MASK;
+    long g2 = h2 + c;
+    c = g2 >>> 26;
+    g2 &= MASK;
+    long g3 = h3 + c;
+    c = g3 >>> 26;
+    g3 &= MASK;
+    long g4 = h4 + c - (1L << 26);
+    long keepH = g4 >> 63;
+    h0 = (h0 & keepH) | (g0 & ~keepH);
+    h1 = (h1 & keepH) | (g1 & ~keepH);
+    h2 = (h2 & keepH) | (g2 & ~keepH);
+    h3 = (h3 & keepH) | (g3 & ~keepH);
+    h4 = (h4 & keepH) | (g4 & ~keepH);
+    
+    long f = ((h0 | (h1 << 26)) & 0xffffffffL) + pad[0];
+    CryptoUtils.intToBytes((int) f, out, outOff, true);
+    f = (((h1 >>> 6) | (h2 << 20)) & 0xffffffffL) + pad[1] + (f >>> 32);
+    CryptoUtils.intToBytes((int) f, out, outOff + 4, true);
+    f = (((h2 >>> 12) | (h3 << 14)) & 0xffffffffL) + pad[2] + (f >>> 32);
+    CryptoUtils.intToBytes((int) f, out, outOff + 8, true);
+    f = (((h3 >>> 18) | (h4 << 8)) & 0xffffffffL) + pad[3] + (f >>> 32);
+    CryptoUtils.intToBytes((int) f, out, outOff + 12, true);
+    
+    reset();
+    return out;
+  }
+  
+  /**
+   * Discards anything absorbed since the last tag.
+   */
+  public Poly1305 reset() {
+    CryptoUtils.fillWithZeroes(h);
+    CryptoUtils.fillWithZeroes(d);
+    CryptoUtils.fillWithZeroes(partial);
+    partialLength = 0;
+    return this;
+  }
+  
+  private byte[] streamTag(boolean tagOnly, InputStream in, OutputStream out) throws IOException, CryptoException {
+    if (!keyed) {
+      throw new CryptoException(CryptoException.NO_KEY);
+    }
+    reset();
+    byte[] chunk = new byte[CHUNK_SIZE];
+    try {
+      while (true) {
+        int read = StreamUtils.readFully(in, chunk, 0, chunk.length);
+        update(chunk, 0, read);
+        if (!tagOnly) {
+          out.write(chunk, 0, read);
+        }
+        if (read < chunk.length) {
+          break;
+        }
+      }
+      in.close();
+      return doFinal(new byte[TAG_BYTES], 0);
+    } finally {
+      CryptoUtils.fillWithZeroes(chunk);
+    }
+  }
+
+  @Override
+  public StreamProcess tag(final boolean tagOnly) {
+    return new StreamProcess() {
+      @Override
+      public void process(InputStream in, OutputStream out) throws IOException {
+        try {
+          byte[] tag = streamTag(tagOnly, in, out);
+          out.write(tag);
+          CryptoUtils.fillWithZeroes(tag);
+        } catch (CryptoException e) {
+          throw new IOException(e);
+        }
+      }
+    };
+  }
+
+  @Override
+  public byte[] tag(byte[] data, boolean tagOnly) throws CryptoException {
+    byte[] out = new byte[(tagOnly ? 0 : data.length) + TAG_BYTES];
+    reset();
+    update(data, 0, data.length);
+    if (!tagOnly) {
+      System.arraycopy(data, 0, out, 0, data.length);
+    }
+    return doFinal(out, out.length - TAG_BYTES);
+  }
+
+  @Override
+  public StreamProcess checkTag(final boolean checkOnly) {
+    return new StreamProcess() {
+      @Override
+      public void process(InputStream in, OutputStream out) throws IOException {
+        SuffixStream taglessIn = new SuffixStream(in, TAG_BYTES);
+        if (!taglessIn.hasFullSuffix()) {
+          taglessIn.close();
+          throw new IOException(new CryptoException(CryptoException.NO_MAC));
+        }
+        byte[] includedTag = taglessIn.getSuffix();
+        byte[] computedTag = null;
+        try {
+          computedTag = streamTag(checkOnly, taglessIn, out);
+          if (!CryptoUtils.constantTimeArrayEquals(includedTag, computedTag)) {
+            throw new IOException(new CryptoException(CryptoException.MAC_DOES_NOT_MATCH));
+          }
+        } catch (CryptoException e) {
+          throw new IOException(e);
+        } finally {
+          CryptoUtils.fillWithZeroes(includedTag);
+          CryptoUtils.fillWithZeroes(computedTag);
+        }
+      }
+    };
+  }
+
+  @Override
+  public byte[] checkTag(byte[] data, boolean checkOnly) throws CryptoException {
+    try {
+      return checkTag(checkOnly).runSync(data);
+    } catch (IOException e) {
+      throw new CryptoException(e);
+    }
+  }
+
+  /**
+   * The key is the 16 bytes of r, which are clamped, followed by the 16 bytes of s.
+   */
+  @Override
+  public Poly1305 setKey(byte[] key) throws CryptoException {
+    if (key.length != KEY_BYTES) {
+      throw new IllegalArgumentException("Poly1305 keys are 32 bytes long.");
+    }
+    removeKey();
+    long t0 = le32(key, 0);
+    long t1 = le32(key, 4);
+    long t2 = le32(key, 8);
+    long t3 = le32(key, 12);
+    long[] r1 = r[0];
+    r1[0] = t0 & 0x3ffffff;
+    r1[1] = ((t0 >>> 26) | (t1 << 6)) & 0x3ffff03;
+    r1[2] = ((t1 >>> 20) | (t2 << 12)) & 0x3ffc0ff;
+    r1[3] = ((t2 >>> 14) | (t3 << 18)) & 0x3f03fff;
+    r1[4] = (t3 >>> 8) & 0x00fffff;
+    for (int power = 1; power < r.length; power++) {
+      multiply(r[power - 1], r1, r[power]);
+    }
+    for (int power = 0; power < r.length; power++) {
+      for (int limb = 0; limb < 5; limb++) {
+        s[power][limb] = r[power][limb] * 5;
+      }
+    }
+    for (int n = 0; n < 4; n++) {
+      pad[n] = le32(key, 16 + 4 * n);
+    }
+    keyed = true;
+    return this;
+  }
+
+  @Override
+  public boolean hasKey() {
+    return keyed;
+  }
+
+  @Override
+  public Poly1305 removeKey() {
+    for (int power = 0; power < r.length; power++) {
+      CryptoUtils.fillWithZeroes(r[power]);
+      CryptoUtils.fillWithZeroes(s[power]);
+    }
+    CryptoUtils.fillWithZeroes(pad);
+    reset();
+    keyed = false;
+    return this;
+  }
+
+  @Override
+  public int getTagLength() {
+    return TAG_BYTES;
+  }
+}
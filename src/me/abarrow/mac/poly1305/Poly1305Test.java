@@ -0,0 +1,89 @@
+package me.abarrow.mac.poly1305;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.Test;
+
+import me.abarrow.core.CryptoException;
+import me.abarrow.core.CryptoUtils;
+import me.abarrow.hash.sha.SHA256;
+import me.abarrow.mac.hmac.HMAC;
+
+public class Poly1305Test {
+
+  @Test
+  public void testPoly1305() throws CryptoException, IOException {
+    testSuccessfulCase(CryptoUtils.parseHexString("85d6be7857556d337f4452fe42d506a80103808afb0db2fd4abff6af4149f51b"),
+        "Cryptographic Forum Research Group".getBytes(),
+        CryptoUtils.parseHexString("a8061dc1305136c6c22b8baf0c0127a9"));
+    // r and the message at their largest, which exercises the final reduction
+    byte[] key = new byte[32];
+    Arrays.fill(key, 0, 16, (byte) 0xff);
+    byte[] data = new byte[200];
+    Arrays.fill(data, (byte) 0xff);
+    testSuccessfulCase(key, data,
+        CryptoUtils.parseHexString("39e84b52575a58bcdb84ae0860f4417d"));
+  }
+  
+  @Test
+  public void testIncremental() throws CryptoException {
+    Random rand = new Random(2);
+    byte[] key = new byte[32];
+    rand.nextBytes(key);
+    byte[] data = new byte[777];
+    rand.nextBytes(data);
+    Poly1305 mac = new Poly1305(key);
+    byte[] expected = mac.tag(data, true);
+    for (int chunk : new int[] {1, 7, 16, 33, 64, 100}) {
+      for (int n = 0; n < data.length; n += chunk) {
+        mac.update(data, n, Math.min(chunk, data.length - n));
+      }
+      assertArrayEquals(expected, mac.doFinal(new byte[16], 0));
+    }
+  }
+  
+  private void testSuccessfulCase(byte[] key, byte[] data, byte[] expectedTag) throws CryptoException, IOException {
+    Poly1305 mac = new Poly1305(key);
+    byte[] taggedData = CryptoUtils.concatArrays(data, expectedTag);
+    byte[] badlyTaggedData = taggedData.clone();
+    badlyTaggedData[0] ^= 1;
+    
+    assertArrayEquals(expectedTag, mac.tag(data, true));
+    assertArrayEquals(taggedData, mac.tag(data, false));
+    assertArrayEquals(expectedTag, mac.tag(true).runSync(data));
+    assertArrayEquals(taggedData, mac.tag(false).runSync(data));
+    assertArrayEquals(data, mac.checkTag(taggedData, false));
+    try {
+      mac.checkTag(badlyTaggedData, false);
+      fail();
+    } catch (CryptoException e) {
+    }
+  }
+  
+  @Test
+  public void testThroughputAgainstHMAC() throws CryptoException {
+    byte[] data = new byte[1 << 20];
+    Poly1305 poly = new Poly1305(new byte[32]);
+    HMAC hmac = new HMAC(new SHA256(), new byte[32]);
+    poly.tag(data, true);
+    hmac.tag(data, true);
+    
+    long start = System.nanoTime();
+    for (int n = 0; n < 8; n++) {
+      poly.tag(data, true);
+    }
+    long polyTime = System.nanoTime() - start;
+    start = System.nanoTime();
+    for (int n = 0; n < 8; n++) {
+      hmac.tag(data, true);
+    }
+    long hmacTime = System.nanoTime() - start;
+    System.out.println("8MiB Poly1305 took " + Math.round(polyTime / 1e6) + "ms, HMAC-SHA256 took "
+        + Math.round(hmacTime / 1e6) + "ms");
+  }
+
+}
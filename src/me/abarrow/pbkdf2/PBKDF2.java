@@ -1,7 +1,5 @@
 package me.abarrow.pbkdf2;
 
-import java.util.Arrays;
-
 import me.abarrow.core.CryptoException;
 import me.abarrow.core.CryptoUtils;
 import me.abarrow.mac.hmac.HMAC;
@@ -14,22 +12,21 @@ public class PBKDF2 {
     int hmacLength = hmac.getHMACByteLength();
     int numChains = (desiredLength + hmacLength - 1) / hmacLength;
     byte[] key = new byte[desiredLength];
+    byte[] keyFragment = new byte[hmacLength];
+    byte[] xoredFragments = new byte[hmacLength];
     for (int i = 0; i < numChains; i++) {
-      byte[] keyFragment = null;
-      byte[] xoredFragments = null;
-      for (int n = 0; n < interations; n++) {  
-        if (n == 0) {
-          keyFragment = hmac.tag(CryptoUtils.intToBytes(i + 1, saltedNumber, salt.length, false), true);
-          xoredFragments = Arrays.copyOf(keyFragment, keyFragment.length);
-        } else {
-          byte[] temp = hmac.tag(keyFragment, true);
-          keyFragment = temp;
-          CryptoUtils.xorByteArrays(keyFragment, xoredFragments, xoredFragments);
-        }
+      CryptoUtils.intToBytes(i + 1, saltedNumber, salt.length, false);
+      hmac.update(saltedNumber).doFinal(keyFragment, 0);
+      System.arraycopy(keyFragment, 0, xoredFragments, 0, hmacLength);
+      for (int n = 1; n < interations; n++) {
+        hmac.update(keyFragment).doFinal(keyFragment, 0);
+        CryptoUtils.xorByteArrays(keyFragment, xoredFragments, xoredFragments);
       }
       System.arraycopy(xoredFragments, 0, key, i * hmacLength, (i == (numChains - 1)) ? desiredLength - hmacLength * i
           : hmacLength);
     }
+    CryptoUtils.fillWithZeroes(keyFragment);
+    CryptoUtils.fillWithZeroes(xoredFragments);
     hmac.removeKey();
     return key;
   }
@@ -5,6 +5,7 @@ import me.abarrow.core.CryptoException;
 import me.abarrow.core.CryptoUtils;
 import me.abarrow.hash.sha.SHA1;
 import me.abarrow.hash.sha.SHA256;
+import me.abarrow.hash.sha.SHA512;
 import me.abarrow.mac.hmac.HMAC;
 
 import org.junit.Test;
@@ -26,5 +27,8 @@ public class PBKDF2Test {
     
     assertEquals("15361a12e9cdf546262d468fe84b03a9bdc1e711b99d0429db9f8d9167e5236676af06f0e4ffe16ee6a2689fd20f8070d36f55f3e5f171bc39ce670f4fbb78e8", CryptoUtils.byteArrayToHexString(PBKDF2.generateKey(new HMAC(
         new SHA256()), "passwd".getBytes(), "salt".getBytes(), 100000, 64)));
+
+    assertEquals("9b24b69e88dfa45d31e06a6dd20bc963268c0a94924677f76d4b2f02e5a105a7f65fca857a354cb2e5069580b8b8457cb5b40da49084e4d75c39b31ac1f356d5", CryptoUtils.byteArrayToHexString(PBKDF2.generateKey(new HMAC(
+        new SHA512()), "passwd".getBytes(), "salt".getBytes(), 1000, 64)));
   }
 }
@@ -1,7 +1,5 @@
 package me.abarrow.random;
 
-import java.io.IOException;
-
 import me.abarrow.counter.BigIntCounter;
 import me.abarrow.counter.Counter;
 import me.abarrow.hash.Hasher;
@@ -26,12 +24,9 @@ public class HasherRandom extends BufferedRandom {
   }
   
   @Override
-  protected void generateMoreBytes(byte[] data) {    
-    try {
-      hasher.hash().createSyncByteProcess().add(key).add(counter.increment()).finish(data, 0);
-    } catch (IOException e) {
-      //there's little we can do about this
-    }
+  protected void generateMoreBytes(byte[] data) {
+    hasher.reset();
+    hasher.update(key).update(counter.increment()).digest(data, 0);
   }
   
   public void resetCounter() {
@@ -0,0 +1,32 @@
+package me.abarrow.random;
+
+import me.abarrow.hash.sha.SHAKE;
+
+/**
+ * Deterministic random bytes squeezed from a SHAKE instance that has absorbed a seed. The same seed always gives the
+ * same bytes, and there is no counter to run out as all output comes from one message.
+ */
+public class SHAKERandom extends BufferedRandom {
+
+  private static final long serialVersionUID = -3260318424542185374L;
+
+  private static final int BUFFER_BLOCKS = 16;
+
+  private final SHAKE shake;
+
+  public SHAKERandom(byte[] seed) {
+    this(new SHAKE(SHAKE.SHAKE256), seed);
+  }
+
+  public SHAKERandom(SHAKE xof, byte[] seed) {
+    super(xof.getBlockBytes() * BUFFER_BLOCKS);
+    shake = xof;
+    shake.reset();
+    shake.update(seed);
+  }
+
+  @Override
+  protected void generateMoreBytes(byte[] data) {
+    shake.squeeze(data, 0, data.length);
+  }
+}
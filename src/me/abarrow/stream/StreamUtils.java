@@ -30,6 +30,21 @@ public class StreamUtils {
     }
   }
 
+  /**
+   * Reads until len bytes have been read or the stream ends, returning how many were read.
+   */
+  public static int readFully(InputStream input, byte[] buffer, int off, int len) throws IOException {
+    int total = 0;
+    while (total < len) {
+      int read = input.read(buffer, off + total, len - total);
+      if (read == -1) {
+        break;
+      }
+      total += read;
+    }
+    return total;
+  }
+
   public static void copyStream(InputStream input, OutputStream output) throws IOException {
     copyStream(input, output, 1024);
   }